@@ -37,6 +37,9 @@ public interface PictureCaptureHandler<T> {
 
     /**
      * Process picture capture data.
+     * <p>
+     * The data array may be reused by the caller once this returns, an implementation that needs the data afterwards
+     * must copy it.
      *
      * @param data picture data
      * @return number of bytes processed, if this does not equal the size of the supplied data the capture will be aborted in error
@@ -0,0 +1,91 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the chunks of picture data of a capture so that they can be replayed to another picture capture handler
+ * later, for picture capture handlers that can only decide whether to pass a picture on once all of it has arrived.
+ * <p>
+ * Chunks passed to {@link PictureCaptureHandler#pictureData(byte[])} may be reused by the caller, so every chunk is
+ * copied. The copies are kept and reused for each capture, a new copy is only allocated when a chunk is a different
+ * size from the one recorded in the same place in the previous capture.
+ * <p>
+ * When replayed, the other handler receives the same chunks of data exactly as it would have done from the camera.
+ */
+public final class PictureDataRecorder {
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private int count;
+
+    /**
+     * Begin a new capture, discarding anything recorded for the previous one.
+     */
+    public void begin() {
+        count = 0;
+    }
+
+    /**
+     * Add a chunk of picture data.
+     *
+     * @param data picture data
+     */
+    public void add(byte[] data) {
+        byte[] chunk = count < chunks.size() ? chunks.get(count) : null;
+        if (chunk == null || chunk.length != data.length) {
+            chunk = data.clone();
+            if (count < chunks.size()) {
+                chunks.set(count, chunk);
+            } else {
+                chunks.add(chunk);
+            }
+        } else {
+            System.arraycopy(data, 0, chunk, 0, data.length);
+        }
+        count++;
+    }
+
+    /**
+     * Replay the recorded capture to another picture capture handler, from begin to end.
+     * <p>
+     * The other handler is always ended once it has begun, even if it fails.
+     *
+     * @param handler handler to receive the picture data
+     * @throws Exception if the other handler fails, or does not accept all of a chunk
+     */
+    public void replay(PictureCaptureHandler<?> handler) throws Exception {
+        handler.begin();
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] data = chunks.get(i);
+                if (handler.pictureData(data) != data.length) {
+                    throw new IllegalStateException("Handler did not accept all of the data");
+                }
+            }
+        }
+        finally {
+            handler.end();
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.dedup;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.PictureDataRecorder;
+import uk.co.caprica.picam.jpeg.JpegThumbnailPictureCaptureHandler;
+import uk.co.caprica.picam.raw.LumaGrid;
+import uk.co.caprica.picam.raw.LumaPictureCaptureHandler;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Implementation of a picture capture handler that skips, or marks, pictures that are near-duplicates of recent
+ * pictures before they reach another picture capture handler.
+ * <p>
+ * The perceptual hash is calculated from the picture data as it arrives. For a raw capture the luma rows are
+ * accumulated directly into the hash grid. For a JPEG capture the DC coefficients are decoded to a 1/8 scale thumbnail
+ * (see {@link JpegThumbnailPictureCaptureHandler}) and the grid is calculated from that, the picture is never fully
+ * decoded.
+ * <p>
+ * With {@link DuplicateAction#MARK} the picture data is passed straight through to the other handler and
+ * {@link #duplicate()} reports the outcome after the capture ends. With {@link DuplicateAction#DROP} the picture data
+ * must be recorded until the end of the capture, when the hash is complete (see {@link PictureDataRecorder}). If the
+ * picture is kept, the other handler then receives the same chunks of data exactly as it would have done from the
+ * camera; if it is dropped, the other handler is never invoked and the result is <code>null</code>.
+ * <p>
+ * The same handler instance (or at least the same deduplicator) must be used for each capture in the sequence since
+ * the deduplicator holds the history.
+ *
+ * @param <T> type of result produced by the other picture capture handler
+ */
+public class DeduplicatingPictureCaptureHandler<T> implements PictureCaptureHandler<T> {
+
+    private final PictureCaptureHandler<T> handler;
+
+    private final Deduplicator deduplicator;
+
+    private final PictureCaptureHandler<?> hasher;
+
+    private final LumaGrid grid;
+
+    private final boolean drop;
+
+    private final PictureDataRecorder recorder = new PictureDataRecorder();
+
+    private long hashNanos;
+
+    private boolean duplicate;
+
+    /**
+     * Create a picture capture handler for raw captures.
+     *
+     * @param handler handler that receives pictures that are kept
+     * @param deduplicator deduplicator
+     * @param layout frame layout
+     */
+    public DeduplicatingPictureCaptureHandler(PictureCaptureHandler<T> handler, Deduplicator deduplicator, RawFrameLayout layout) {
+        this.handler = handler;
+        this.deduplicator = deduplicator;
+        this.grid = new LumaGrid(layout.width(), layout.height(), deduplicator.hash().columns(), deduplicator.hash().rows());
+        this.hasher = new RawHasher(layout);
+        this.drop = deduplicator.action() == DuplicateAction.DROP;
+    }
+
+    /**
+     * Create a picture capture handler for JPEG captures.
+     *
+     * @param handler handler that receives pictures that are kept
+     * @param deduplicator deduplicator
+     */
+    public DeduplicatingPictureCaptureHandler(PictureCaptureHandler<T> handler, Deduplicator deduplicator) {
+        this.handler = handler;
+        this.deduplicator = deduplicator;
+        this.grid = null;
+        this.hasher = new JpegThumbnailPictureCaptureHandler(8);
+        this.drop = deduplicator.action() == DuplicateAction.DROP;
+    }
+
+    public Deduplicator deduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Was the most recent picture a duplicate?
+     *
+     * @return <code>true</code> if the picture was a duplicate; <code>false</code> if it was kept
+     */
+    public boolean duplicate() {
+        return duplicate;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        duplicate = false;
+        recorder.begin();
+        long start = System.nanoTime();
+        hasher.begin();
+        hashNanos = System.nanoTime() - start;
+        if (!drop) {
+            handler.begin();
+        }
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        long start = System.nanoTime();
+        hasher.pictureData(data);
+        hashNanos += System.nanoTime() - start;
+        if (drop) {
+            recorder.add(data);
+            return data.length;
+        }
+        return handler.pictureData(data);
+    }
+
+    @Override
+    public void end() throws Exception {
+        try {
+            long start = System.nanoTime();
+            hasher.end();
+            int[] cells = cells();
+            if (cells != null) {
+                long hash = deduplicator.hash().hash(cells);
+                hashNanos += System.nanoTime() - start;
+                deduplicator.addHashNanos(hashNanos);
+                duplicate = deduplicator.isDuplicate(hash);
+            }
+        }
+        finally {
+            if (drop) {
+                if (!duplicate) {
+                    recorder.replay(handler);
+                }
+            } else {
+                handler.end();
+            }
+        }
+    }
+
+    @Override
+    public T result() {
+        return drop && duplicate ? null : handler.result();
+    }
+
+    /**
+     * Get the luma grid of the picture.
+     *
+     * @return grid cells, or <code>null</code> if the picture could not be decoded and must simply be kept
+     */
+    private int[] cells() {
+        if (grid != null) {
+            return grid.cells();
+        }
+        BufferedImage thumbnail = ((JpegThumbnailPictureCaptureHandler) hasher).result();
+        if (thumbnail == null) {
+            return null;
+        }
+        PerceptualHash hash = deduplicator.hash();
+        LumaGrid thumbnailGrid = new LumaGrid(thumbnail.getWidth(), thumbnail.getHeight(), hash.columns(), hash.rows());
+        thumbnailGrid.image(thumbnail);
+        return thumbnailGrid.cells();
+    }
+
+    private final class RawHasher extends LumaPictureCaptureHandler<Void> {
+
+        private RawHasher(RawFrameLayout layout) {
+            super(layout);
+        }
+
+        @Override
+        protected void beginFrame() {
+            grid.reset();
+        }
+
+        @Override
+        protected void lumaRow(byte[] luma, int offset, int y) {
+            grid.row(luma, offset, y);
+        }
+
+        @Override
+        protected void endFrame() {
+        }
+
+        @Override
+        public Void result() {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.dedup;
+
+/**
+ * Perceptual-hash duplicate detection for a sequence of pictures.
+ * <p>
+ * The hash of each picture is compared with the hashes of the most recent pictures that were kept. If any is within the
+ * configured Hamming distance, the picture is a duplicate. Duplicates are not added to the history, so a scene that
+ * changes slowly is still compared against the last picture that was actually kept and does not drift away unnoticed.
+ * <p>
+ * The number of pictures, the number of duplicates and the time spent hashing are recorded so the effectiveness and the
+ * cost of the deduplication can be reported.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the first picture.
+ * <p>
+ * An instance must only be used for one picture at a time.
+ */
+public final class Deduplicator {
+
+    private PerceptualHash hash = PerceptualHash.DIFFERENCE;
+
+    private int distance = 4;
+
+    private DuplicateAction action = DuplicateAction.DROP;
+
+    private long[] history = new long[1];
+
+    private int historySize;
+
+    private int historyNext;
+
+    private int lastDistance = -1;
+
+    private long frames;
+
+    private long duplicates;
+
+    private long hashNanos;
+
+    private Deduplicator() {
+    }
+
+    /**
+     * Create a deduplicator.
+     *
+     * @return deduplicator
+     */
+    public static Deduplicator deduplicator() {
+        return new Deduplicator();
+    }
+
+    /**
+     * Set the hash algorithm.
+     * <p>
+     * The default is {@link PerceptualHash#DIFFERENCE}.
+     *
+     * @param hash hash algorithm
+     * @return this deduplicator
+     */
+    public Deduplicator hash(PerceptualHash hash) {
+        checkNotStarted();
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Set the maximum Hamming distance at which pictures are considered duplicates.
+     * <p>
+     * The default is 4.
+     *
+     * @param distance distance, 0 (identical hashes only) to 64
+     * @return this deduplicator
+     */
+    public Deduplicator distance(int distance) {
+        if (distance < 0 || distance > 64) {
+            throw new IllegalArgumentException("Distance must be in the range 0 to 64");
+        }
+        this.distance = distance;
+        return this;
+    }
+
+    /**
+     * Set the number of recent kept pictures to compare against.
+     * <p>
+     * The default is 1, only the last kept picture.
+     *
+     * @param history number of pictures
+     * @return this deduplicator
+     */
+    public Deduplicator history(int history) {
+        checkNotStarted();
+        if (history < 1) {
+            throw new IllegalArgumentException("History must be at least 1");
+        }
+        this.history = new long[history];
+        return this;
+    }
+
+    /**
+     * Set what happens to duplicate pictures.
+     * <p>
+     * The default is {@link DuplicateAction#DROP}.
+     *
+     * @param action action
+     * @return this deduplicator
+     */
+    public Deduplicator action(DuplicateAction action) {
+        checkNotStarted();
+        this.action = action;
+        return this;
+    }
+
+    public PerceptualHash hash() {
+        return hash;
+    }
+
+    public DuplicateAction action() {
+        return action;
+    }
+
+    /**
+     * Check whether a picture is a duplicate of a recent picture, and record it.
+     *
+     * @param pictureHash hash of the picture
+     * @return <code>true</code> if the picture is a duplicate; <code>false</code> if it is kept
+     */
+    public boolean isDuplicate(long pictureHash) {
+        frames++;
+        int nearest = -1;
+        for (int i = 0; i < historySize; i++) {
+            int d = PerceptualHash.distance(pictureHash, history[i]);
+            if (nearest < 0 || d < nearest) {
+                nearest = d;
+            }
+        }
+        lastDistance = nearest;
+        if (nearest >= 0 && nearest <= distance) {
+            duplicates++;
+            return true;
+        }
+        history[historyNext] = pictureHash;
+        historyNext = (historyNext + 1) % history.length;
+        historySize = Math.min(historySize + 1, history.length);
+        return false;
+    }
+
+    /**
+     * Forget all previous pictures and reset the statistics.
+     */
+    public void reset() {
+        historySize = 0;
+        historyNext = 0;
+        lastDistance = -1;
+        frames = 0;
+        duplicates = 0;
+        hashNanos = 0;
+    }
+
+    /**
+     * Get the distance from the most recent picture to the nearest picture in the history.
+     *
+     * @return distance, or -1 if there was no history to compare with
+     */
+    public int lastDistance() {
+        return lastDistance;
+    }
+
+    /**
+     * Get the number of pictures checked.
+     *
+     * @return number of pictures
+     */
+    public long frames() {
+        return frames;
+    }
+
+    /**
+     * Get the number of pictures found to be duplicates.
+     *
+     * @return number of duplicates
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get the fraction of pictures found to be duplicates.
+     *
+     * @return ratio, 0 to 1
+     */
+    public double ratio() {
+        return frames > 0 ? (double) duplicates / frames : 0;
+    }
+
+    /**
+     * Get the mean time spent calculating the hash of a picture.
+     *
+     * @return time, in nanoseconds
+     */
+    public long meanHashNanos() {
+        return frames > 0 ? hashNanos / frames : 0;
+    }
+
+    void addHashNanos(long nanos) {
+        hashNanos += nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames, %d duplicates (%.1f%%), %.3f ms hashing per frame", frames, duplicates, ratio() * 100, meanHashNanos() / 1e6);
+    }
+
+    private void checkNotStarted() {
+        if (frames > 0) {
+            throw new IllegalStateException("Configuration can not be changed after the first picture");
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.dedup;
+
+/**
+ * Perceptual hash algorithms.
+ * <p>
+ * Each algorithm reduces a picture to a small grid of mean luma values and from that derives a 64-bit hash. Pictures
+ * that look alike have hashes that differ in only a few bits, the number of differing bits (the Hamming distance) is a
+ * measure of how different two pictures are.
+ */
+public enum PerceptualHash {
+
+    /**
+     * Average hash, an 8x8 grid where each bit is set if the cell is brighter than the mean of all cells.
+     * <p>
+     * Very cheap, but sensitive to overall changes in brightness.
+     */
+    AVERAGE(8, 8),
+
+    /**
+     * Difference hash, a 9x8 grid where each bit is set if a cell is brighter than the cell to its left.
+     * <p>
+     * Only gradients are compared, so this is robust against gradual changes in overall brightness.
+     */
+    DIFFERENCE(9, 8);
+
+    private final int columns;
+
+    private final int rows;
+
+    PerceptualHash(int columns, int rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Get the number of columns in the luma grid.
+     *
+     * @return number of columns
+     */
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows in the luma grid.
+     *
+     * @return number of rows
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Calculate the hash of a luma grid.
+     *
+     * @param cells mean luma of each grid cell, row by row, {@link #columns()} by {@link #rows()}
+     * @return hash
+     */
+    public long hash(int[] cells) {
+        long hash = 0;
+        if (this == AVERAGE) {
+            long sum = 0;
+            for (int i = 0; i < 64; i++) {
+                sum += cells[i];
+            }
+            for (int i = 0; i < 64; i++) {
+                // Compare against the mean without dividing
+                hash = (hash << 1) | (cells[i] * 64L > sum ? 1 : 0);
+            }
+        } else {
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < columns - 1; x++) {
+                    int i = y * columns + x;
+                    hash = (hash << 1) | (cells[i + 1] > cells[i] ? 1 : 0);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get the Hamming distance between two hashes.
+     *
+     * @param hash1 first hash
+     * @param hash2 second hash
+     * @return number of differing bits, 0 to 64
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.exposure;
+
+import uk.co.caprica.picam.CameraConfiguration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Closed-loop software exposure control, for sequences of captures with manual exposure such as time-lapses.
+ * <p>
+ * The camera's own automatic exposure makes a fresh decision for every capture, which shows up as flicker in a
+ * time-lapse. Instead, the shutter speed and ISO are fixed for each capture, and after each capture the measured
+ * brightness is used to adjust them slightly for the next one.
+ * <p>
+ * The brightness is the weighted mean luma of a coarse grid, so some regions of the picture (for example the
+ * foreground rather than the sky) can be given more influence than others. The exposure error is converted from a
+ * brightness ratio to stops using the gamma of the camera's output. Only a fraction of the error is corrected at each
+ * step, and never more than a maximum step, so brightness changes smoothly and a single odd frame has little effect.
+ * Errors within a small dead band are ignored altogether.
+ * <p>
+ * A change in exposure is made with the shutter speed first, up to its maximum, and only then with the ISO, so noise
+ * is kept as low as possible. The exposure compensation of the camera configuration, in sixths of a stop, biases the
+ * target brightness.
+ * <p>
+ * After each step the new shutter speed and ISO are set on the camera configuration, the camera must be re-opened to
+ * apply them before the next capture.
+ * <p>
+ * This can be used in like a "builder".
+ */
+public final class ExposureController {
+
+    /**
+     * Number of columns in the metering grid.
+     */
+    public static final int GRID_COLUMNS = 16;
+
+    /**
+     * Number of rows in the metering grid.
+     */
+    public static final int GRID_ROWS = 12;
+
+    private final CameraConfiguration configuration;
+
+    private final double[] weights = new double[GRID_COLUMNS * GRID_ROWS];
+
+    private double target = 110;
+
+    private double gamma = 2.2;
+
+    private double damping = 0.4;
+
+    private double deadBand = 0.1;
+
+    private double maximumStep = 1;
+
+    private int minimumShutterSpeed = 100;
+
+    private int maximumShutterSpeed = 1000000;
+
+    private int minimumIso = 100;
+
+    private int maximumIso = 800;
+
+    private int historySize = 1000;
+
+    private final Deque<ExposureDecision> history = new ArrayDeque<>();
+
+    private ExposureSettings settings;
+
+    private long frame;
+
+    private ExposureController(CameraConfiguration configuration) {
+        this.configuration = configuration;
+        Arrays.fill(weights, 1);
+        int shutterSpeed = configuration.shutterSpeed() != null ? configuration.shutterSpeed() : 10000;
+        int iso = configuration.iso() != null ? configuration.iso() : minimumIso;
+        this.settings = new ExposureSettings(shutterSpeed, iso);
+    }
+
+    /**
+     * Create an exposure controller.
+     * <p>
+     * The initial settings are taken from the camera configuration if it has a shutter speed and ISO set, otherwise
+     * 10ms at ISO 100 is used.
+     *
+     * @param configuration camera configuration that will be updated with each new exposure
+     * @return controller
+     */
+    public static ExposureController exposureController(CameraConfiguration configuration) {
+        ExposureController controller = new ExposureController(configuration);
+        controller.configure();
+        return controller;
+    }
+
+    /**
+     * Set the target brightness.
+     * <p>
+     * The default is 110.
+     *
+     * @param target target mean luma, 1 to 254
+     * @return this controller
+     */
+    public synchronized ExposureController target(double target) {
+        if (target < 1 || target > 254) {
+            throw new IllegalArgumentException("Target must be in the range 1 to 254");
+        }
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * Set the gamma of the camera output, used to convert a brightness ratio to an exposure ratio.
+     * <p>
+     * The default is 2.2.
+     *
+     * @param gamma gamma
+     * @return this controller
+     */
+    public synchronized ExposureController gamma(double gamma) {
+        this.gamma = gamma;
+        return this;
+    }
+
+    /**
+     * Set the damping, the fraction of the error corrected at each step.
+     * <p>
+     * The default is 0.4. Larger values track changes faster, smaller values give smoother results.
+     *
+     * @param damping damping, greater than 0 and at most 1
+     * @return this controller
+     */
+    public synchronized ExposureController damping(double damping) {
+        if (damping <= 0 || damping > 1) {
+            throw new IllegalArgumentException("Damping must be greater than 0 and at most 1");
+        }
+        this.damping = damping;
+        return this;
+    }
+
+    /**
+     * Set the dead band, errors smaller than this are ignored.
+     * <p>
+     * The default is 0.1 stops.
+     *
+     * @param deadBand dead band, in stops
+     * @return this controller
+     */
+    public synchronized ExposureController deadBand(double deadBand) {
+        this.deadBand = deadBand;
+        return this;
+    }
+
+    /**
+     * Set the largest change in exposure made at one step.
+     * <p>
+     * The default is 1 stop.
+     *
+     * @param maximumStep maximum step, in stops
+     * @return this controller
+     */
+    public synchronized ExposureController maximumStep(double maximumStep) {
+        this.maximumStep = maximumStep;
+        return this;
+    }
+
+    /**
+     * Set the range of shutter speeds.
+     * <p>
+     * The default is 100us to 1s.
+     *
+     * @param minimum shortest shutter speed, in microseconds
+     * @param maximum longest shutter speed, in microseconds
+     * @return this controller
+     */
+    public synchronized ExposureController shutterSpeed(int minimum, int maximum) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid shutter speed range");
+        }
+        this.minimumShutterSpeed = minimum;
+        this.maximumShutterSpeed = maximum;
+        return this;
+    }
+
+    /**
+     * Set the range of ISO.
+     * <p>
+     * The default is 100 to 800.
+     *
+     * @param minimum lowest ISO
+     * @param maximum highest ISO
+     * @return this controller
+     */
+    public synchronized ExposureController iso(int minimum, int maximum) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid ISO range");
+        }
+        this.minimumIso = minimum;
+        this.maximumIso = maximum;
+        return this;
+    }
+
+    /**
+     * Set the weight of a region of the picture.
+     * <p>
+     * Each grid cell whose centre is inside the region is given the weight, later regions override earlier ones. All
+     * cells initially have a weight of 1, a weight of 0 ignores a region altogether.
+     *
+     * @param x left edge, as a fraction of the picture width
+     * @param y top edge, as a fraction of the picture height
+     * @param width width, as a fraction of the picture width
+     * @param height height, as a fraction of the picture height
+     * @param weight weight
+     * @return this controller
+     */
+    public synchronized ExposureController region(double x, double y, double width, double height, double weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative");
+        }
+        for (int row = 0; row < GRID_ROWS; row++) {
+            double cy = (row + 0.5) / GRID_ROWS;
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                double cx = (column + 0.5) / GRID_COLUMNS;
+                if (cx >= x && cx < x + width && cy >= y && cy < y + height) {
+                    weights[row * GRID_COLUMNS + column] = weight;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Set the number of decisions kept in the history.
+     * <p>
+     * The default is 1000, 0 keeps no history at all.
+     *
+     * @param historySize number of decisions
+     * @return this controller
+     */
+    public synchronized ExposureController historySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("History size must not be negative");
+        }
+        this.historySize = historySize;
+        while (history.size() > historySize) {
+            history.removeFirst();
+        }
+        return this;
+    }
+
+    /**
+     * Get the current settings, those that the next capture should use.
+     *
+     * @return settings
+     */
+    public synchronized ExposureSettings settings() {
+        return settings;
+    }
+
+    /**
+     * Calculate the weighted brightness of a metering grid.
+     *
+     * @param cells mean luma of each cell, {@link #GRID_COLUMNS} by {@link #GRID_ROWS}
+     * @return brightness, 0 to 255
+     */
+    public synchronized double brightness(int[] cells) {
+        double sum = 0;
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i] * cells[i];
+            total += weights[i];
+        }
+        return total > 0 ? sum / total : 0;
+    }
+
+    /**
+     * Update the exposure from the brightness of the last capture.
+     * <p>
+     * The new settings are set on the camera configuration.
+     *
+     * @param brightness measured brightness of the capture, 0 to 255
+     * @return decision
+     */
+    public synchronized ExposureDecision update(double brightness) {
+        Integer compensation = configuration.exposureCompensation();
+        double bias = compensation != null ? compensation / 6.0 : 0;
+        double effectiveTarget = Math.min(254, target * Math.pow(2, bias / gamma));
+        double error = gamma * log2(effectiveTarget / Math.max(brightness, 0.5));
+        double step = Math.abs(error) < deadBand ? 0 : Math.max(-maximumStep, Math.min(maximumStep, damping * error));
+
+        ExposureSettings previous = settings;
+        if (step != 0) {
+            settings = split(previous.exposure() * Math.pow(2, step));
+        }
+        ExposureDecision decision = new ExposureDecision(frame++, System.currentTimeMillis(), brightness, error, log2(settings.exposure() / previous.exposure()), previous, settings);
+        history.addLast(decision);
+        while (history.size() > historySize) {
+            history.removeFirst();
+        }
+        configure();
+        return decision;
+    }
+
+    /**
+     * Get the recent decisions.
+     *
+     * @return decisions, oldest first
+     */
+    public synchronized List<ExposureDecision> history() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * Split an exposure into a shutter speed and ISO, preferring the lowest ISO.
+     *
+     * @param exposure exposure, in microseconds at ISO 100
+     * @return settings
+     */
+    private ExposureSettings split(double exposure) {
+        double shutterSpeed = Math.max(minimumShutterSpeed, Math.min(maximumShutterSpeed, exposure * 100 / minimumIso));
+        int iso = (int) Math.round(Math.max(minimumIso, Math.min(maximumIso, exposure * 100 / shutterSpeed)));
+        // Rounding the ISO leaves a small remainder, make it up with the shutter speed if there is room
+        shutterSpeed = Math.max(minimumShutterSpeed, Math.min(maximumShutterSpeed, exposure * 100 / iso));
+        return new ExposureSettings((int) Math.round(shutterSpeed), iso);
+    }
+
+    private void configure() {
+        configuration.shutterSpeed(settings.shutterSpeed());
+        configuration.iso(settings.iso());
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+}
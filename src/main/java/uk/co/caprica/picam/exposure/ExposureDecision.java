@@ -0,0 +1,118 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.exposure;
+
+/**
+ * A record of one step of the exposure control loop.
+ */
+public final class ExposureDecision {
+
+    private final long frame;
+
+    private final long time;
+
+    private final double brightness;
+
+    private final double error;
+
+    private final double step;
+
+    private final ExposureSettings previous;
+
+    private final ExposureSettings next;
+
+    ExposureDecision(long frame, long time, double brightness, double error, double step, ExposureSettings previous, ExposureSettings next) {
+        this.frame = frame;
+        this.time = time;
+        this.brightness = brightness;
+        this.error = error;
+        this.step = step;
+        this.previous = previous;
+        this.next = next;
+    }
+
+    /**
+     * Get the frame number, counting from zero.
+     *
+     * @return frame number
+     */
+    public long frame() {
+        return frame;
+    }
+
+    /**
+     * Get the time the decision was made.
+     *
+     * @return time, in milliseconds since the epoch
+     */
+    public long time() {
+        return time;
+    }
+
+    /**
+     * Get the measured (weighted) brightness of the frame.
+     *
+     * @return brightness, 0 to 255
+     */
+    public double brightness() {
+        return brightness;
+    }
+
+    /**
+     * Get the exposure error of the frame.
+     *
+     * @return error, in stops, positive if the frame was too dark
+     */
+    public double error() {
+        return error;
+    }
+
+    /**
+     * Get the change in exposure actually applied, after damping and limits.
+     *
+     * @return change, in stops
+     */
+    public double step() {
+        return step;
+    }
+
+    /**
+     * Get the settings the frame was captured with.
+     *
+     * @return settings
+     */
+    public ExposureSettings previous() {
+        return previous;
+    }
+
+    /**
+     * Get the settings for the next frame.
+     *
+     * @return settings
+     */
+    public ExposureSettings next() {
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frame %d brightness %.1f error %+.2f step %+.2f %s -> %s", frame, brightness, error, step, previous, next);
+    }
+
+}
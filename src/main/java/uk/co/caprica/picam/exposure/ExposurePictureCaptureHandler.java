@@ -0,0 +1,164 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.exposure;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.jpeg.JpegThumbnailPictureCaptureHandler;
+import uk.co.caprica.picam.raw.LumaGrid;
+import uk.co.caprica.picam.raw.LumaPictureCaptureHandler;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.awt.image.BufferedImage;
+
+import static uk.co.caprica.picam.exposure.ExposureController.GRID_COLUMNS;
+import static uk.co.caprica.picam.exposure.ExposureController.GRID_ROWS;
+
+/**
+ * Implementation of a picture capture handler that meters each capture for an {@link ExposureController} while
+ * passing the picture data on to another picture capture handler.
+ * <p>
+ * The picture data is not buffered. For a raw capture the luma rows are accumulated into the metering grid as they
+ * arrive, for a JPEG capture the grid is calculated from the DC coefficients (see
+ * {@link JpegThumbnailPictureCaptureHandler}), so in neither case is the picture fully decoded.
+ * <p>
+ * When the capture ends the controller is updated, which sets the exposure for the next capture on the camera
+ * configuration. If a JPEG capture can not be decoded, the exposure is left unchanged.
+ *
+ * @param <T> type of result produced by the other picture capture handler
+ */
+public class ExposurePictureCaptureHandler<T> implements PictureCaptureHandler<T> {
+
+    private final PictureCaptureHandler<T> handler;
+
+    private final ExposureController controller;
+
+    private final PictureCaptureHandler<?> meter;
+
+    private final LumaGrid grid;
+
+    private ExposureDecision decision;
+
+    /**
+     * Create a picture capture handler for raw captures.
+     *
+     * @param handler handler that receives the picture data
+     * @param controller exposure controller
+     * @param layout frame layout
+     */
+    public ExposurePictureCaptureHandler(PictureCaptureHandler<T> handler, ExposureController controller, RawFrameLayout layout) {
+        this.handler = handler;
+        this.controller = controller;
+        this.grid = new LumaGrid(layout.width(), layout.height(), GRID_COLUMNS, GRID_ROWS);
+        this.meter = new RawMeter(layout);
+    }
+
+    /**
+     * Create a picture capture handler for JPEG captures.
+     *
+     * @param handler handler that receives the picture data
+     * @param controller exposure controller
+     */
+    public ExposurePictureCaptureHandler(PictureCaptureHandler<T> handler, ExposureController controller) {
+        this.handler = handler;
+        this.controller = controller;
+        this.grid = null;
+        this.meter = new JpegThumbnailPictureCaptureHandler(8);
+    }
+
+    /**
+     * Get the decision made after the most recent capture.
+     *
+     * @return decision, or <code>null</code> if none was made
+     */
+    public ExposureDecision decision() {
+        return decision;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        decision = null;
+        meter.begin();
+        handler.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        meter.pictureData(data);
+        return handler.pictureData(data);
+    }
+
+    @Override
+    public void end() throws Exception {
+        try {
+            handler.end();
+        }
+        finally {
+            meter.end();
+            int[] cells = cells();
+            if (cells != null) {
+                decision = controller.update(controller.brightness(cells));
+            }
+        }
+    }
+
+    @Override
+    public T result() {
+        return handler.result();
+    }
+
+    private int[] cells() {
+        if (grid != null) {
+            return grid.cells();
+        }
+        BufferedImage thumbnail = ((JpegThumbnailPictureCaptureHandler) meter).result();
+        if (thumbnail == null) {
+            return null;
+        }
+        LumaGrid thumbnailGrid = new LumaGrid(thumbnail.getWidth(), thumbnail.getHeight(), GRID_COLUMNS, GRID_ROWS);
+        thumbnailGrid.image(thumbnail);
+        return thumbnailGrid.cells();
+    }
+
+    private final class RawMeter extends LumaPictureCaptureHandler<Void> {
+
+        private RawMeter(RawFrameLayout layout) {
+            super(layout);
+        }
+
+        @Override
+        protected void beginFrame() {
+            grid.reset();
+        }
+
+        @Override
+        protected void lumaRow(byte[] luma, int offset, int y) {
+            grid.row(luma, offset, y);
+        }
+
+        @Override
+        protected void endFrame() {
+        }
+
+        @Override
+        public Void result() {
+            return null;
+        }
+    }
+
+}
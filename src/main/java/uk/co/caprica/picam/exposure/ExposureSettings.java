@@ -0,0 +1,68 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.exposure;
+
+/**
+ * Manual exposure settings, a shutter speed and an ISO.
+ */
+public final class ExposureSettings {
+
+    private final int shutterSpeed;
+
+    private final int iso;
+
+    /**
+     * Create exposure settings.
+     *
+     * @param shutterSpeed shutter speed, in microseconds
+     * @param iso ISO
+     */
+    public ExposureSettings(int shutterSpeed, int iso) {
+        this.shutterSpeed = shutterSpeed;
+        this.iso = iso;
+    }
+
+    /**
+     * Get the shutter speed.
+     *
+     * @return shutter speed, in microseconds
+     */
+    public int shutterSpeed() {
+        return shutterSpeed;
+    }
+
+    public int iso() {
+        return iso;
+    }
+
+    /**
+     * Get the total exposure, the shutter speed scaled by the gain relative to ISO 100.
+     *
+     * @return exposure, in microseconds at ISO 100
+     */
+    public double exposure() {
+        return shutterSpeed * iso / 100.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dus ISO %d", shutterSpeed, iso);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.focus;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.PictureDataRecorder;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.awt.Rectangle;
+
+/**
+ * Implementation of a picture capture handler that only passes pictures that are in focus on to another picture
+ * capture handler, for example to reject pictures blurred by camera shake before they are ever written to a file.
+ * <p>
+ * The focus is measured as the picture data arrives (see {@link FocusPictureCaptureHandler}), but the decision can
+ * only be made when the capture ends, so the picture data is recorded until then (see {@link PictureDataRecorder}).
+ * If the score reaches the threshold, the other handler receives the same chunks of data exactly as it would have done
+ * from the camera; otherwise the other handler is never invoked and the result is <code>null</code>.
+ *
+ * @param <T> type of result produced by the other picture capture handler
+ */
+public class FocusGatePictureCaptureHandler<T> implements PictureCaptureHandler<T> {
+
+    private final PictureCaptureHandler<T> handler;
+
+    private final FocusPictureCaptureHandler focus;
+
+    private final double threshold;
+
+    private final PictureDataRecorder recorder = new PictureDataRecorder();
+
+    private boolean rejected;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param handler handler that receives pictures that are in focus
+     * @param layout frame layout
+     * @param metric focus metric
+     * @param threshold lowest score for a picture to be passed on
+     * @param regions regions to score, if none are given the whole picture is scored
+     */
+    public FocusGatePictureCaptureHandler(PictureCaptureHandler<T> handler, RawFrameLayout layout, FocusMetric metric, double threshold, Rectangle... regions) {
+        this.handler = handler;
+        this.focus = new FocusPictureCaptureHandler(layout, metric, regions);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get the focus score of the most recent picture.
+     *
+     * @return score, or <code>null</code> if the capture has not ended
+     */
+    public FocusScore score() {
+        return focus.result();
+    }
+
+    /**
+     * Was the most recent picture rejected?
+     *
+     * @return <code>true</code> if the picture was not passed on; <code>false</code> if it was
+     */
+    public boolean rejected() {
+        return rejected;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        rejected = false;
+        recorder.begin();
+        focus.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        focus.pictureData(data);
+        recorder.add(data);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        focus.end();
+        rejected = focus.result().score() < threshold;
+        if (!rejected) {
+            recorder.replay(handler);
+        }
+    }
+
+    @Override
+    public T result() {
+        return rejected ? null : handler.result();
+    }
+
+}
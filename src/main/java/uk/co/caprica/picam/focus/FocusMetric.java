@@ -0,0 +1,40 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.focus;
+
+/**
+ * Focus (sharpness) metrics.
+ * <p>
+ * Both metrics measure the strength of fine detail in the luma, a sharp picture scores higher than the same picture
+ * blurred. The scores are only comparable between pictures of similar scenes, so a threshold must be chosen for a
+ * particular camera position.
+ */
+public enum FocusMetric {
+
+    /**
+     * Variance of the 3x3 Laplacian (4-neighbour), very cheap and widely used.
+     */
+    LAPLACIAN_VARIANCE,
+
+    /**
+     * Tenengrad, the mean squared magnitude of the 3x3 Sobel gradient, less sensitive to noise.
+     */
+    TENENGRAD
+
+}
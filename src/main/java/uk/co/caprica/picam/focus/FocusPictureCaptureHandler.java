@@ -0,0 +1,217 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.focus;
+
+import uk.co.caprica.picam.raw.LumaPictureCaptureHandler;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Implementation of a picture capture handler that measures the focus of a raw capture as the picture data arrives.
+ * <p>
+ * The 3x3 operator of the metric is applied to each row once the row below it has arrived, so only a rolling window of
+ * three luma rows is kept. Pixels on the edge of the picture, which do not have a full neighbourhood, are not scored.
+ * <p>
+ * The whole picture is scored, or, if regions are given, each region is scored separately.
+ * <p>
+ * Nothing is allocated after construction, other than the result.
+ */
+public class FocusPictureCaptureHandler extends LumaPictureCaptureHandler<FocusScore> {
+
+    private final FocusMetric metric;
+
+    private final List<Rectangle> regions;
+
+    private final int[] left;
+
+    private final int[] right;
+
+    private final int[] top;
+
+    private final int[] bottom;
+
+    private final long[] counts;
+
+    private final long[] sums;
+
+    private final long[] squares;
+
+    private final byte[][] window = new byte[3][];
+
+    private final int[] response;
+
+    private FocusScore score;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param metric focus metric
+     * @param regions regions to score, if none are given the whole picture is scored
+     */
+    public FocusPictureCaptureHandler(RawFrameLayout layout, FocusMetric metric, Rectangle... regions) {
+        super(layout);
+        this.metric = metric;
+        List<Rectangle> list = new ArrayList<>();
+        if (regions.length == 0) {
+            list.add(new Rectangle(0, 0, layout.width(), layout.height()));
+        } else {
+            for (Rectangle region : regions) {
+                list.add(new Rectangle(region));
+            }
+        }
+        this.regions = Collections.unmodifiableList(list);
+        int count = list.size();
+        this.left = new int[count];
+        this.right = new int[count];
+        this.top = new int[count];
+        this.bottom = new int[count];
+        this.counts = new long[count];
+        this.sums = new long[count];
+        this.squares = new long[count];
+        for (int i = 0; i < count; i++) {
+            Rectangle region = list.get(i);
+            // Only pixels with a full 3x3 neighbourhood are scored, the bounds are inclusive
+            left[i] = Math.max(1, region.x);
+            right[i] = Math.min(layout.width() - 2, region.x + region.width - 1);
+            top[i] = Math.max(1, region.y);
+            bottom[i] = Math.min(layout.height() - 2, region.y + region.height - 1);
+        }
+        for (int i = 0; i < window.length; i++) {
+            window[i] = new byte[layout.width()];
+        }
+        this.response = new int[layout.width()];
+    }
+
+    public FocusMetric metric() {
+        return metric;
+    }
+
+    @Override
+    protected void beginFrame() {
+        score = null;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            sums[i] = 0;
+            squares[i] = 0;
+        }
+    }
+
+    @Override
+    protected void lumaRow(byte[] luma, int offset, int y) {
+        System.arraycopy(luma, offset, window[y % 3], 0, window[y % 3].length);
+        if (y < 2) {
+            return;
+        }
+        int centre = y - 1;
+        int from = Integer.MAX_VALUE;
+        int to = -1;
+        for (int i = 0; i < counts.length; i++) {
+            if (centre >= top[i] && centre <= bottom[i]) {
+                from = Math.min(from, left[i]);
+                to = Math.max(to, right[i]);
+            }
+        }
+        if (to < from) {
+            return;
+        }
+        byte[] above = window[(y - 2) % 3];
+        byte[] middle = window[(y - 1) % 3];
+        byte[] below = window[y % 3];
+        if (metric == FocusMetric.LAPLACIAN_VARIANCE) {
+            laplacian(above, middle, below, from, to);
+        } else {
+            sobel(above, middle, below, from, to);
+        }
+        boolean variance = metric == FocusMetric.LAPLACIAN_VARIANCE;
+        for (int i = 0; i < counts.length; i++) {
+            if (centre >= top[i] && centre <= bottom[i] && right[i] >= left[i]) {
+                long sum = 0;
+                long square = 0;
+                for (int x = left[i]; x <= right[i]; x++) {
+                    int value = response[x];
+                    sum += value;
+                    if (variance) {
+                        square += (long) value * value;
+                    }
+                }
+                counts[i] += right[i] - left[i] + 1;
+                sums[i] += sum;
+                squares[i] += square;
+            }
+        }
+    }
+
+    @Override
+    protected void endFrame() {
+        double[] scores = new double[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            if (metric == FocusMetric.LAPLACIAN_VARIANCE) {
+                double mean = (double) sums[i] / counts[i];
+                scores[i] = (double) squares[i] / counts[i] - mean * mean;
+            } else {
+                // The response is already the squared gradient magnitude
+                scores[i] = (double) sums[i] / counts[i];
+            }
+        }
+        score = new FocusScore(metric, regions, scores);
+    }
+
+    /**
+     * Get the focus score.
+     *
+     * @return score, or <code>null</code> if the capture has not ended
+     */
+    @Override
+    public FocusScore result() {
+        return score;
+    }
+
+    private void laplacian(byte[] above, byte[] middle, byte[] below, int from, int to) {
+        int[] response = this.response;
+        for (int x = from; x <= to; x++) {
+            response[x] = 4 * (middle[x] & 0xff) - (above[x] & 0xff) - (below[x] & 0xff) - (middle[x - 1] & 0xff) - (middle[x + 1] & 0xff);
+        }
+    }
+
+    private void sobel(byte[] above, byte[] middle, byte[] below, int from, int to) {
+        int[] response = this.response;
+        for (int x = from; x <= to; x++) {
+            int a0 = above[x - 1] & 0xff;
+            int a1 = above[x] & 0xff;
+            int a2 = above[x + 1] & 0xff;
+            int m0 = middle[x - 1] & 0xff;
+            int m2 = middle[x + 1] & 0xff;
+            int b0 = below[x - 1] & 0xff;
+            int b1 = below[x] & 0xff;
+            int b2 = below[x + 1] & 0xff;
+            int gx = (a2 + 2 * m2 + b2) - (a0 + 2 * m0 + b0);
+            int gy = (b0 + 2 * b1 + b2) - (a0 + 2 * a1 + a2);
+            response[x] = gx * gx + gy * gy;
+        }
+    }
+
+}
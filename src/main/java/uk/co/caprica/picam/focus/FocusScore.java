@@ -0,0 +1,88 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.focus;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The focus score of a picture.
+ */
+public final class FocusScore {
+
+    private final FocusMetric metric;
+
+    private final List<Rectangle> regions;
+
+    private final double[] regionScores;
+
+    private final double score;
+
+    FocusScore(FocusMetric metric, List<Rectangle> regions, double[] regionScores) {
+        this.metric = metric;
+        this.regions = regions;
+        this.regionScores = regionScores;
+        double score = 0;
+        for (double regionScore : regionScores) {
+            score = Math.max(score, regionScore);
+        }
+        this.score = score;
+    }
+
+    public FocusMetric metric() {
+        return metric;
+    }
+
+    /**
+     * Get the score of the picture.
+     * <p>
+     * If regions were configured, this is the highest region score, a picture is in focus if any region is in focus.
+     *
+     * @return score
+     */
+    public double score() {
+        return score;
+    }
+
+    /**
+     * Get the regions that were scored.
+     *
+     * @return regions, a single region covering the whole picture if none were configured
+     */
+    public List<Rectangle> regions() {
+        return regions;
+    }
+
+    /**
+     * Get the score of a region.
+     *
+     * @param index index of the region
+     * @return score
+     */
+    public double regionScore(int index) {
+        return regionScores[index];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.1f %s", metric, score, Arrays.toString(regionScores));
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Builder for an animated GIF from a sequence of raw captures, for example a short preview of an event.
+ * <p>
+ * Frames are converted to RGB as they are added. When the animation is written the work is done in stages, each stage
+ * spread across the frames in a fork-join pool:
+ * <ol>
+ *     <li>a colour histogram of each frame, merged into one for a {@link PaletteMode#GLOBAL} palette;</li>
+ *     <li>a median cut palette, for each frame with {@link PaletteMode#PER_FRAME}, and the palette index of each
+ *     pixel;</li>
+ *     <li>with transparency, each frame is compared with the frame before it: only the rectangle that changed is
+ *     stored, and pixels within it that did not change become transparent, which compresses to almost nothing.</li>
+ * </ol>
+ * The frames are then LZW encoded in order, straight to the output. Pixels are mapped to the nearest palette colour
+ * without dithering, dithering would make unchanged pixels differ from one frame to the next.
+ * <p>
+ * Frames are held in memory, four bytes a pixel, until the animation is written.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the first frame is added.
+ * <p>
+ * An instance must only be used by one thread at a time.
+ */
+public final class AnimatedGif {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int DISPOSE_NONE = 1;
+
+    private final RawFrameLayout layout;
+
+    private PaletteMode paletteMode = PaletteMode.GLOBAL;
+
+    private int colours = 256;
+
+    private int delay = 10;
+
+    private int loopCount;
+
+    private boolean transparency = true;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private final List<int[]> frames = new ArrayList<>();
+
+    private AnimatedGif(RawFrameLayout layout) {
+        if (layout.width() > 0xffff || layout.height() > 0xffff) {
+            throw new IllegalArgumentException("Picture is too large for a GIF");
+        }
+        this.layout = layout;
+    }
+
+    /**
+     * Create an animated GIF builder.
+     *
+     * @param layout layout of the raw frames that will be added
+     * @return builder
+     */
+    public static AnimatedGif animatedGif(RawFrameLayout layout) {
+        return new AnimatedGif(layout);
+    }
+
+    /**
+     * Set how palettes are chosen, the default is {@link PaletteMode#GLOBAL}.
+     *
+     * @param paletteMode palette mode
+     * @return this builder
+     */
+    public AnimatedGif paletteMode(PaletteMode paletteMode) {
+        checkNoFrames();
+        this.paletteMode = paletteMode;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of colours in each palette, including the transparent colour if there is one.
+     * <p>
+     * The default is 256. Fewer colours make a smaller file.
+     *
+     * @param colours number of colours, 2 to 256
+     * @return this builder
+     */
+    public AnimatedGif colours(int colours) {
+        checkNoFrames();
+        if (colours < 2 || colours > 256) {
+            throw new IllegalArgumentException("Colours must be in the range 2 to 256");
+        }
+        this.colours = colours;
+        return this;
+    }
+
+    /**
+     * Set the time each frame is shown.
+     * <p>
+     * The default is 100 milliseconds. GIF delays are in hundredths of a second, the delay is rounded to the nearest.
+     *
+     * @param delay delay
+     * @param unit unit of the delay
+     * @return this builder
+     */
+    public AnimatedGif delay(long delay, TimeUnit unit) {
+        checkNoFrames();
+        long hundredths = (unit.toMillis(delay) + 5) / 10;
+        if (hundredths < 0 || hundredths > 0xffff) {
+            throw new IllegalArgumentException("Delay must be in the range 0 to 655.35 seconds");
+        }
+        this.delay = (int) hundredths;
+        return this;
+    }
+
+    /**
+     * Set the number of times the animation repeats.
+     *
+     * @param loopCount number of repeats, zero to repeat forever (the default)
+     * @return this builder
+     */
+    public AnimatedGif loopCount(int loopCount) {
+        checkNoFrames();
+        if (loopCount < 0 || loopCount > 0xffff) {
+            throw new IllegalArgumentException("Loop count must be in the range 0 to 65535");
+        }
+        this.loopCount = loopCount;
+        return this;
+    }
+
+    /**
+     * Set whether each frame only stores what changed since the frame before, using transparency, the default is
+     * <code>true</code>.
+     * <p>
+     * This uses one palette entry for the transparent colour.
+     *
+     * @param transparency <code>true</code> to store only what changed
+     * @return this builder
+     */
+    public AnimatedGif transparency(boolean transparency) {
+        checkNoFrames();
+        this.transparency = transparency;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used to quantise and compare the frames, the default is the common pool.
+     *
+     * @param pool pool
+     * @return this builder
+     */
+    public AnimatedGif pool(ForkJoinPool pool) {
+        checkNoFrames();
+        this.pool = pool;
+        return this;
+    }
+
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Add a frame.
+     * <p>
+     * The frame is converted immediately, the frame data is not retained.
+     *
+     * @param frame raw frame data
+     * @return index of the frame in the animation
+     */
+    public int add(byte[] frame) {
+        if (frame.length < layout.frameSize()) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        int[] pixels = new int[layout.width() * layout.height()];
+        ColourConverter.convertRows(frame, layout, pixels, 0, layout.height());
+        frames.add(pixels);
+        return frames.size() - 1;
+    }
+
+    /**
+     * Get the number of frames added.
+     *
+     * @return number of frames
+     */
+    public int frames() {
+        return frames.size();
+    }
+
+    /**
+     * Write the animation to a file.
+     * <p>
+     * The frames are kept, the animation can be written again or more frames added.
+     *
+     * @param file file, replaced if it exists
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+            write(out);
+        }
+    }
+
+    /**
+     * Write the animation.
+     *
+     * @param out output stream, not closed
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(OutputStream out) throws IOException {
+        int count = frames.size();
+        if (count == 0) {
+            throw new IllegalStateException("No frames have been added");
+        }
+        int width = layout.width();
+        int height = layout.height();
+        boolean transparent = transparency && count > 1;
+        int paletteColours = transparent ? colours - 1 : colours;
+        Frame[] encoded = new Frame[count];
+        Palette global = null;
+        if (paletteMode == PaletteMode.GLOBAL) {
+            global = MedianCutQuantiser.palette(pool.invoke(new HistogramTask(0, count)), paletteColours);
+        }
+        Palette shared = global;
+        pool.invoke(new FramesTask(0, count, i -> {
+            int[] pixels = frames.get(i);
+            Palette palette = shared;
+            if (palette == null) {
+                ColourHistogram histogram = new ColourHistogram();
+                histogram.add(pixels);
+                palette = MedianCutQuantiser.palette(histogram, paletteColours);
+            }
+            byte[] indices = new byte[pixels.length];
+            for (int p = 0; p < pixels.length; p++) {
+                indices[p] = (byte) palette.index(pixels[p]);
+            }
+            encoded[i] = new Frame(palette, indices, width, height);
+        }));
+        if (transparent) {
+            pool.invoke(new FramesTask(1, count, i -> encoded[i].difference(encoded[i - 1])));
+        }
+
+        out.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+        writeShort(out, width);
+        writeShort(out, height);
+        int globalBits = global != null ? tableBits(global.size() + (transparent ? 1 : 0)) : 0;
+        out.write(global != null ? 0x80 | 0x70 | (globalBits - 1) : 0x70);
+        out.write(0);
+        out.write(0);
+        if (global != null) {
+            writeColourTable(out, global, globalBits);
+        }
+        if (count > 1) {
+            out.write(new byte[] {0x21, (byte) 0xff, 0x0b});
+            out.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[] {0x03, 0x01});
+            writeShort(out, loopCount);
+            out.write(0);
+        }
+        LzwEncoder encoder = new LzwEncoder();
+        for (Frame frame : encoded) {
+            int bits = global != null ? globalBits : tableBits(frame.palette.size() + (transparent ? 1 : 0));
+            out.write(new byte[] {0x21, (byte) 0xf9, 0x04});
+            out.write(DISPOSE_NONE << 2 | (frame.transparent ? 1 : 0));
+            writeShort(out, delay);
+            out.write(frame.transparent ? frame.palette.size() : 0);
+            out.write(0);
+            out.write(0x2c);
+            writeShort(out, frame.left);
+            writeShort(out, frame.top);
+            writeShort(out, frame.width);
+            writeShort(out, frame.height);
+            if (global == null) {
+                out.write(0x80 | (bits - 1));
+                writeColourTable(out, frame.palette, bits);
+            } else {
+                out.write(0);
+            }
+            encoder.encode(frame.stored, 0, frame.storedStride, frame.width, frame.height, Math.max(2, bits), out);
+        }
+        out.write(0x3b);
+        out.flush();
+    }
+
+    private void checkNoFrames() {
+        if (!frames.isEmpty()) {
+            throw new IllegalStateException("Frames have already been added");
+        }
+    }
+
+    /**
+     * Get the number of bits for a colour table, which must have a power of two entries.
+     */
+    private static int tableBits(int entries) {
+        int bits = 1;
+        while (1 << bits < entries) {
+            bits++;
+        }
+        return bits;
+    }
+
+    private static void writeColourTable(OutputStream out, Palette palette, int bits) throws IOException {
+        byte[] table = new byte[3 << bits];
+        for (int i = 0; i < palette.size(); i++) {
+            int rgb = palette.colours[i];
+            table[i * 3] = (byte) (rgb >> 16);
+            table[i * 3 + 1] = (byte) (rgb >> 8);
+            table[i * 3 + 2] = (byte) rgb;
+        }
+        out.write(table);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+    }
+
+    /**
+     * A quantised frame, and the rectangle of it that is stored.
+     */
+    private static final class Frame {
+
+        private final Palette palette;
+
+        private final byte[] indices;
+
+        private final int stride;
+
+        /**
+         * Indices of the stored rectangle.
+         */
+        private byte[] stored;
+
+        private int storedStride;
+
+        private int left;
+
+        private int top;
+
+        private int width;
+
+        private int height;
+
+        private boolean transparent;
+
+        private Frame(Palette palette, byte[] indices, int width, int height) {
+            this.palette = palette;
+            this.indices = indices;
+            this.stride = width;
+            this.width = width;
+            this.height = height;
+            this.stored = indices;
+            this.storedStride = width;
+        }
+
+        /**
+         * Reduce the frame to the rectangle that changed since the previous frame, with the unchanged pixels in it
+         * transparent.
+         * <p>
+         * Colours are compared, not indices, as the frames may have different palettes. The quantised indices of both
+         * frames are only read, so frames can be compared in parallel.
+         */
+        private void difference(Frame previous) {
+            int[] colours = palette.colours;
+            int[] previousColours = previous.palette.colours;
+            int minX = stride;
+            int minY = height;
+            int maxX = -1;
+            int maxY = -1;
+            for (int y = 0; y < height; y++) {
+                int row = y * stride;
+                for (int x = 0; x < stride; x++) {
+                    if (colours[indices[row + x] & 0xff] != previousColours[previous.indices[row + x] & 0xff]) {
+                        minX = Math.min(minX, x);
+                        maxX = Math.max(maxX, x);
+                        minY = Math.min(minY, y);
+                        maxY = y;
+                    }
+                }
+            }
+            transparent = true;
+            byte transparentIndex = (byte) palette.size();
+            if (maxX < 0) {
+                // Nothing changed, store a single transparent pixel
+                left = 0;
+                top = 0;
+                width = 1;
+                height = 1;
+                stored = new byte[] {transparentIndex};
+                storedStride = 1;
+                return;
+            }
+            left = minX;
+            top = minY;
+            width = maxX - minX + 1;
+            height = maxY - minY + 1;
+            stored = new byte[width * height];
+            storedStride = width;
+            for (int y = 0; y < height; y++) {
+                int row = (top + y) * stride + left;
+                for (int x = 0; x < width; x++) {
+                    int index = indices[row + x] & 0xff;
+                    boolean same = colours[index] == previousColours[previous.indices[row + x] & 0xff];
+                    stored[y * width + x] = same ? transparentIndex : (byte) index;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the merged histogram of a range of frames, splitting the range in half until it is a single frame.
+     */
+    private final class HistogramTask extends RecursiveTask<ColourHistogram> {
+
+        private final int first;
+
+        private final int last;
+
+        private HistogramTask(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected ColourHistogram compute() {
+            if (last - first == 1) {
+                ColourHistogram histogram = new ColourHistogram();
+                histogram.add(frames.get(first));
+                return histogram;
+            }
+            int middle = (first + last) >>> 1;
+            HistogramTask upper = new HistogramTask(middle, last);
+            upper.fork();
+            ColourHistogram histogram = new HistogramTask(first, middle).compute();
+            histogram.add(upper.join());
+            return histogram;
+        }
+    }
+
+    /**
+     * Runs an action for each of a range of frames, splitting the range in half until it is a single frame.
+     */
+    private static final class FramesTask extends RecursiveAction {
+
+        private final int first;
+
+        private final int last;
+
+        private final IntConsumer action;
+
+        private FramesTask(int first, int last, IntConsumer action) {
+            this.first = first;
+            this.last = last;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= 1) {
+                if (last > first) {
+                    action.accept(first);
+                }
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new FramesTask(first, middle, action), new FramesTask(middle, last, action));
+        }
+    }
+
+}
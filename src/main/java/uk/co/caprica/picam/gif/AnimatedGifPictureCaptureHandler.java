@@ -0,0 +1,77 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.raw.FrameAssembler;
+
+/**
+ * Implementation of a picture capture handler that adds each raw capture to an {@link AnimatedGif} as a new frame.
+ * <p>
+ * The chunks of each capture are assembled by a {@link FrameAssembler}.
+ */
+public class AnimatedGifPictureCaptureHandler implements PictureCaptureHandler<Integer> {
+
+    private final AnimatedGif gif;
+
+    private final FrameAssembler assembler;
+
+    private Integer result;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param gif animated GIF builder
+     */
+    public AnimatedGifPictureCaptureHandler(AnimatedGif gif) {
+        this.gif = gif;
+        this.assembler = new FrameAssembler(gif.layout());
+    }
+
+    @Override
+    public void begin() throws Exception {
+        assembler.begin();
+        result = null;
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        assembler.add(data);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        if (assembler.isComplete()) {
+            result = gif.add(assembler.frame());
+        }
+    }
+
+    /**
+     * Get the index of the frame in the animation.
+     *
+     * @return frame index, or <code>null</code> if a complete frame was not received
+     */
+    @Override
+    public Integer result() {
+        return result;
+    }
+
+}
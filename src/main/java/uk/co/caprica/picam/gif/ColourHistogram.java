@@ -0,0 +1,80 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+/**
+ * Histogram of colours at five bits per channel, with the sum of the full-precision colours in each bin so that the
+ * mean colour of any set of bins can be found exactly.
+ */
+final class ColourHistogram {
+
+    /**
+     * Number of bins, 32 levels of each of red, green and blue.
+     */
+    static final int SIZE = 1 << 15;
+
+    final long[] counts = new long[SIZE];
+
+    final long[] red = new long[SIZE];
+
+    final long[] green = new long[SIZE];
+
+    final long[] blue = new long[SIZE];
+
+    /**
+     * Get the bin of a colour.
+     *
+     * @param rgb packed RGB colour
+     * @return bin, red in the top five bits and blue in the bottom five
+     */
+    static int bin(int rgb) {
+        return (rgb >> 9) & 0x7c00 | (rgb >> 6) & 0x03e0 | (rgb >> 3) & 0x001f;
+    }
+
+    /**
+     * Add pixels to the histogram.
+     *
+     * @param pixels packed RGB pixels
+     */
+    void add(int[] pixels) {
+        for (int rgb : pixels) {
+            int bin = bin(rgb);
+            counts[bin]++;
+            red[bin] += (rgb >> 16) & 0xff;
+            green[bin] += (rgb >> 8) & 0xff;
+            blue[bin] += rgb & 0xff;
+        }
+    }
+
+    /**
+     * Add another histogram to this one.
+     *
+     * @param other histogram to add
+     */
+    void add(ColourHistogram other) {
+        for (int bin = 0; bin < SIZE; bin++) {
+            counts[bin] += other.counts[bin];
+            red[bin] += other.red[bin];
+            green[bin] += other.green[bin];
+            blue[bin] += other.blue[bin];
+        }
+    }
+
+}
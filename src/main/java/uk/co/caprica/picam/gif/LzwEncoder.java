@@ -0,0 +1,158 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * GIF variant LZW encoder, writing the compressed data straight to an output stream in 255 byte sub-blocks.
+ * <p>
+ * The string table is an open-addressed hash table keyed by prefix code and next index, cleared with a clear code
+ * whenever all 4096 codes have been used.
+ * <p>
+ * An encoder holds its tables for reuse, it must only be used by one thread at a time.
+ */
+final class LzwEncoder {
+
+    private static final int MAX_BITS = 12;
+
+    private static final int MAX_CODES = 1 << MAX_BITS;
+
+    private static final int HASH_SIZE = 8192;
+
+    private final int[] keys = new int[HASH_SIZE];
+
+    private final short[] codes = new short[HASH_SIZE];
+
+    private final byte[] block = new byte[256];
+
+    private OutputStream out;
+
+    private int blockLength;
+
+    private int accumulator;
+
+    private int accumulatorBits;
+
+    private int codeSize;
+
+    /**
+     * Encode a rectangle of palette indices as an image data block: the minimum code size, the sub-blocks and the
+     * block terminator.
+     *
+     * @param indices palette indices
+     * @param offset offset of the top left index of the rectangle
+     * @param stride distance between rows, in indices
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param minCodeSize minimum code size, the number of bits needed for the largest index but at least 2
+     * @param out output stream
+     * @throws IOException if an I/O error occurs
+     */
+    void encode(byte[] indices, int offset, int stride, int width, int height, int minCodeSize, OutputStream out) throws IOException {
+        this.out = out;
+        blockLength = 0;
+        accumulator = 0;
+        accumulatorBits = 0;
+        out.write(minCodeSize);
+        int clear = 1 << minCodeSize;
+        int endOfInformation = clear + 1;
+        reset(minCodeSize);
+        int next = clear + 2;
+        emit(clear);
+        int prefix = indices[offset] & 0xff;
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for (int x = y == 0 ? 1 : 0; x < width; x++) {
+                int index = indices[row + x] & 0xff;
+                int key = index << MAX_BITS | prefix;
+                int slot = (key * 0x9e3779b1) >>> (32 - 13);
+                while (keys[slot] != -1 && keys[slot] != key) {
+                    slot = (slot + 1) & (HASH_SIZE - 1);
+                }
+                if (keys[slot] == key) {
+                    prefix = codes[slot];
+                    continue;
+                }
+                if (next > 1 << codeSize && codeSize < MAX_BITS) {
+                    codeSize++;
+                }
+                emit(prefix);
+                if (next < MAX_CODES) {
+                    keys[slot] = key;
+                    codes[slot] = (short) next++;
+                } else {
+                    emit(clear);
+                    reset(minCodeSize);
+                    next = clear + 2;
+                }
+                prefix = index;
+            }
+        }
+        if (next > 1 << codeSize && codeSize < MAX_BITS) {
+            codeSize++;
+        }
+        emit(prefix);
+        // The decoder adds a string for the last code too, and may have widened its codes as a result
+        if (next >= 1 << codeSize && codeSize < MAX_BITS) {
+            codeSize++;
+        }
+        emit(endOfInformation);
+        if (accumulatorBits > 0) {
+            put(accumulator);
+        }
+        if (blockLength > 0) {
+            writeBlock();
+        }
+        out.write(0);
+        this.out = null;
+    }
+
+    private void reset(int minCodeSize) {
+        Arrays.fill(keys, -1);
+        codeSize = minCodeSize + 1;
+    }
+
+    private void emit(int code) throws IOException {
+        accumulator |= code << accumulatorBits;
+        accumulatorBits += codeSize;
+        while (accumulatorBits >= 8) {
+            put(accumulator);
+            accumulator >>>= 8;
+            accumulatorBits -= 8;
+        }
+    }
+
+    private void put(int value) throws IOException {
+        block[++blockLength] = (byte) value;
+        if (blockLength == 255) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        block[0] = (byte) blockLength;
+        out.write(block, 0, blockLength + 1);
+        blockLength = 0;
+    }
+
+}
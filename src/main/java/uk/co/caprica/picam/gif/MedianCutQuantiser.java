@@ -0,0 +1,225 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Median cut colour quantisation over a {@link ColourHistogram}.
+ * <p>
+ * The colour cube is split into boxes, starting with the smallest box containing every colour. The box with the most
+ * pixels, weighted by its longest side, is repeatedly split across that side at the median pixel, until there are as
+ * many boxes as colours wanted or no box holds more than one bin. Each palette colour is the exact mean of the pixels
+ * in its box.
+ * <p>
+ * Working on the histogram rather than the pixels makes the cost independent of the picture size, and since every
+ * occupied bin lies in exactly one box, mapping a pixel to its palette index is a single table lookup.
+ */
+final class MedianCutQuantiser {
+
+    private static final int LEVELS = 32;
+
+    private MedianCutQuantiser() {
+    }
+
+    /**
+     * Choose a palette.
+     *
+     * @param histogram histogram of the colours to be represented
+     * @param maxColours maximum number of colours, 1 to 256
+     * @return palette, with at least one colour
+     */
+    static Palette palette(ColourHistogram histogram, int maxColours) {
+        List<Box> boxes = new ArrayList<>();
+        Box all = new Box(0, LEVELS - 1, 0, LEVELS - 1, 0, LEVELS - 1);
+        if (all.shrink(histogram)) {
+            boxes.add(all);
+        }
+        while (boxes.size() < maxColours) {
+            Box best = null;
+            long bestScore = 0;
+            for (Box box : boxes) {
+                long score = box.score();
+                if (score > bestScore) {
+                    best = box;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            boxes.add(best.split(histogram));
+        }
+        if (boxes.isEmpty()) {
+            return new Palette(new int[] {0}, new byte[ColourHistogram.SIZE]);
+        }
+        int[] colours = new int[boxes.size()];
+        byte[] lookup = new byte[ColourHistogram.SIZE];
+        for (int i = 0; i < colours.length; i++) {
+            Box box = boxes.get(i);
+            colours[i] = box.mean(histogram);
+            box.fill(lookup, (byte) i);
+        }
+        return new Palette(colours, lookup);
+    }
+
+    private static int bin(int r, int g, int b) {
+        return r << 10 | g << 5 | b;
+    }
+
+    private static final class Box {
+
+        /**
+         * Inclusive bounds, in bins, for each of red, green and blue.
+         */
+        private final int[] lower = new int[3];
+
+        private final int[] upper = new int[3];
+
+        private long count;
+
+        private Box(int r0, int r1, int g0, int g1, int b0, int b1) {
+            lower[0] = r0;
+            upper[0] = r1;
+            lower[1] = g0;
+            upper[1] = g1;
+            lower[2] = b0;
+            upper[2] = b1;
+        }
+
+        /**
+         * Shrink the box to the occupied bins, and count its pixels.
+         *
+         * @return <code>false</code> if the box is empty
+         */
+        private boolean shrink(ColourHistogram histogram) {
+            int[] min = {LEVELS, LEVELS, LEVELS};
+            int[] max = {-1, -1, -1};
+            long total = 0;
+            long[] counts = histogram.counts;
+            for (int r = lower[0]; r <= upper[0]; r++) {
+                for (int g = lower[1]; g <= upper[1]; g++) {
+                    for (int b = lower[2]; b <= upper[2]; b++) {
+                        long n = counts[bin(r, g, b)];
+                        if (n > 0) {
+                            total += n;
+                            min[0] = Math.min(min[0], r);
+                            max[0] = Math.max(max[0], r);
+                            min[1] = Math.min(min[1], g);
+                            max[1] = Math.max(max[1], g);
+                            min[2] = Math.min(min[2], b);
+                            max[2] = Math.max(max[2], b);
+                        }
+                    }
+                }
+            }
+            count = total;
+            if (total == 0) {
+                return false;
+            }
+            System.arraycopy(min, 0, lower, 0, 3);
+            System.arraycopy(max, 0, upper, 0, 3);
+            return true;
+        }
+
+        private int longestAxis() {
+            int axis = 0;
+            for (int i = 1; i < 3; i++) {
+                if (upper[i] - lower[i] > upper[axis] - lower[axis]) {
+                    axis = i;
+                }
+            }
+            return axis;
+        }
+
+        /**
+         * Get the priority for splitting this box.
+         *
+         * @return score, zero if the box is a single bin and can not be split
+         */
+        private long score() {
+            int axis = longestAxis();
+            return count * (upper[axis] - lower[axis]);
+        }
+
+        /**
+         * Split the box across its longest side at the median pixel, this box keeps the lower part.
+         *
+         * @return new box with the upper part
+         */
+        private Box split(ColourHistogram histogram) {
+            int axis = longestAxis();
+            long[] slices = new long[LEVELS];
+            int[] position = new int[3];
+            for (position[0] = lower[0]; position[0] <= upper[0]; position[0]++) {
+                for (position[1] = lower[1]; position[1] <= upper[1]; position[1]++) {
+                    for (position[2] = lower[2]; position[2] <= upper[2]; position[2]++) {
+                        slices[position[axis]] += histogram.counts[bin(position[0], position[1], position[2])];
+                    }
+                }
+            }
+            long half = count / 2;
+            long cumulative = 0;
+            int cut = lower[axis];
+            for (; cut < upper[axis] - 1; cut++) {
+                cumulative += slices[cut];
+                if (cumulative >= half) {
+                    break;
+                }
+            }
+            Box other = new Box(lower[0], upper[0], lower[1], upper[1], lower[2], upper[2]);
+            other.lower[axis] = cut + 1;
+            upper[axis] = cut;
+            shrink(histogram);
+            other.shrink(histogram);
+            return other;
+        }
+
+        private int mean(ColourHistogram histogram) {
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            for (int red = lower[0]; red <= upper[0]; red++) {
+                for (int green = lower[1]; green <= upper[1]; green++) {
+                    for (int blue = lower[2]; blue <= upper[2]; blue++) {
+                        int bin = bin(red, green, blue);
+                        r += histogram.red[bin];
+                        g += histogram.green[bin];
+                        b += histogram.blue[bin];
+                    }
+                }
+            }
+            long half = count / 2;
+            return (int) ((r + half) / count) << 16 | (int) ((g + half) / count) << 8 | (int) ((b + half) / count);
+        }
+
+        private void fill(byte[] lookup, byte index) {
+            for (int r = lower[0]; r <= upper[0]; r++) {
+                for (int g = lower[1]; g <= upper[1]; g++) {
+                    for (int b = lower[2]; b <= upper[2]; b++) {
+                        lookup[bin(r, g, b)] = index;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+/**
+ * A colour palette, with a lookup from histogram bin to palette index.
+ * <p>
+ * The lookup is only valid for colours that were in the histogram the palette was made from.
+ */
+final class Palette {
+
+    /**
+     * Packed RGB colour of each palette entry.
+     */
+    final int[] colours;
+
+    private final byte[] lookup;
+
+    Palette(int[] colours, byte[] lookup) {
+        this.colours = colours;
+        this.lookup = lookup;
+    }
+
+    int size() {
+        return colours.length;
+    }
+
+    /**
+     * Get the palette index of a colour.
+     *
+     * @param rgb packed RGB colour
+     * @return palette index
+     */
+    int index(int rgb) {
+        return lookup[ColourHistogram.bin(rgb)] & 0xff;
+    }
+
+}
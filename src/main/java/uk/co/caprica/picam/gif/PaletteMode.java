@@ -0,0 +1,41 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+/**
+ * How the colour palettes of an animated GIF are chosen.
+ */
+public enum PaletteMode {
+
+    /**
+     * One palette, chosen from the colours of every frame, written once for the whole animation.
+     * <p>
+     * The file is smaller and colours do not flicker from frame to frame, but each frame has fewer colours to itself.
+     */
+    GLOBAL,
+
+    /**
+     * A palette for each frame, chosen from the colours of that frame alone.
+     * <p>
+     * Better for sequences whose colours change a lot, at the cost of a colour table in every frame.
+     */
+    PER_FRAME
+
+}
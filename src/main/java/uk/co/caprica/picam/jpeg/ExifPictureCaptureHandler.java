@@ -0,0 +1,270 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+/**
+ * Implementation of a picture capture handler that inserts an EXIF segment into a JPEG capture while the picture data
+ * is streamed to another picture capture handler.
+ * <p>
+ * Any existing EXIF segment is removed and the new segment is inserted immediately after the start-of-image marker, or
+ * after the JFIF APP0 segment if the image starts with one, all other header segments are kept. Only the header of the image is rewritten, once the first non-application segment is
+ * reached all remaining picture data is passed to the wrapped handler unchanged.
+ * <p>
+ * If the picture data is not a JPEG image, it is passed through unchanged.
+ *
+ * @param <T> type of result produced by the wrapped picture capture handler
+ */
+public class ExifPictureCaptureHandler<T> implements PictureCaptureHandler<T> {
+
+    private enum State {
+        SOI,
+        MARKER,
+        LENGTH,
+        PEEK,
+        COPY,
+        SKIP,
+        PASS
+    }
+
+    private final PictureCaptureHandler<T> handler;
+
+    private final CameraConfiguration configuration;
+
+    private final String deviceId;
+
+    /**
+     * Buffer for the rewritten header, reused for each capture.
+     */
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+
+    /**
+     * Buffer for the start of an APP1 segment, used to decide whether or not it is an EXIF segment.
+     */
+    private final byte[] peek = new byte[4 + ExifSegment.EXIF_IDENTIFIER.length];
+
+    private State state;
+
+    private int position;
+
+    private int marker;
+
+    private int remaining;
+
+    private boolean failed;
+
+    /**
+     * Has the start-of-image marker been read without the EXIF segment having been inserted yet?
+     */
+    private boolean exifPending;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param handler picture capture handler that will receive the rewritten picture data
+     * @param configuration camera configuration used to take the picture
+     * @param deviceId identifier of the device taking the picture, may be <code>null</code>
+     */
+    public ExifPictureCaptureHandler(PictureCaptureHandler<T> handler, CameraConfiguration configuration, String deviceId) {
+        this.handler = handler;
+        this.configuration = configuration;
+        this.deviceId = deviceId;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        state = State.SOI;
+        position = 0;
+        failed = false;
+        exifPending = false;
+        header.reset();
+        handler.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        if (state == State.PASS) {
+            return handler.pictureData(data);
+        }
+        int i = 0;
+        while (i < data.length && state != State.PASS) {
+            i = process(data, i);
+        }
+        if (state == State.PASS && i == 0 && header.size() == 0) {
+            // Not a JPEG at all, nothing was consumed
+            return handler.pictureData(data);
+        }
+        if (state == State.PASS && i < data.length) {
+            header.write(data, i, data.length - i);
+        }
+        if (header.size() > 0) {
+            byte[] out = header.toByteArray();
+            header.reset();
+            if (handler.pictureData(out) != out.length) {
+                failed = true;
+            }
+        }
+        return failed ? -1 : data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        handler.end();
+    }
+
+    @Override
+    public T result() {
+        return handler.result();
+    }
+
+    /**
+     * Create the EXIF segment for the current capture.
+     * <p>
+     * Sub-classes may override this to add further values.
+     *
+     * @return EXIF segment builder
+     */
+    protected ExifSegment exifSegment() {
+        ExifSegment segment = ExifSegment.exifSegment().dateTime(new Date()).deviceId(deviceId);
+        if (configuration != null) {
+            segment.configuration(configuration);
+        }
+        return segment;
+    }
+
+    private int process(byte[] data, int i) {
+        int b = data[i] & 0xff;
+        switch (state) {
+            case SOI:
+                if (position == 0 && b == 0xff || position == 1 && b == 0xd8) {
+                    if (++position == 2) {
+                        header.write(0xff);
+                        header.write(0xd8);
+                        exifPending = true;
+                        state = State.MARKER;
+                        position = 0;
+                    }
+                    return i + 1;
+                }
+                // Not a JPEG, give back anything buffered and stop rewriting
+                state = State.PASS;
+                if (position > 0) {
+                    header.write(0xff);
+                }
+                return i;
+            case MARKER:
+                if (position == 0) {
+                    if (b == 0xff) {
+                        position = 1;
+                    }
+                    return i + 1;
+                }
+                if (b == 0xff) {
+                    // Fill byte
+                    return i + 1;
+                }
+                marker = b;
+                if (exifPending && marker != ExifSegment.APP0) {
+                    // A JFIF APP0 segment must stay first, the EXIF segment goes after it and before everything else
+                    byte[] segment = exifSegment().toByteArray();
+                    header.write(segment, 0, segment.length);
+                    exifPending = false;
+                }
+                if (marker >= 0xe0 && marker <= 0xef || marker == 0xfe) {
+                    state = State.LENGTH;
+                    position = 0;
+                    remaining = 0;
+                    return i + 1;
+                }
+                // First non-application segment, the rest of the image is passed through untouched
+                header.write(0xff);
+                header.write(marker);
+                state = State.PASS;
+                return i + 1;
+            case LENGTH:
+                remaining = (remaining << 8) | b;
+                if (++position == 2) {
+                    peek[0] = (byte) 0xff;
+                    peek[1] = (byte) marker;
+                    peek[2] = (byte) (remaining >> 8);
+                    peek[3] = (byte) remaining;
+                    remaining -= 2;
+                    if (marker == ExifSegment.APP1 && remaining >= ExifSegment.EXIF_IDENTIFIER.length) {
+                        state = State.PEEK;
+                        position = 4;
+                    } else {
+                        header.write(peek, 0, 4);
+                        state = remaining > 0 ? State.COPY : State.MARKER;
+                        position = 0;
+                    }
+                }
+                return i + 1;
+            case PEEK:
+                peek[position++] = data[i];
+                remaining--;
+                if (position == peek.length) {
+                    if (isExif()) {
+                        state = remaining > 0 ? State.SKIP : State.MARKER;
+                    } else {
+                        header.write(peek, 0, peek.length);
+                        state = remaining > 0 ? State.COPY : State.MARKER;
+                    }
+                    position = 0;
+                }
+                return i + 1;
+            case COPY: {
+                int n = Math.min(remaining, data.length - i);
+                header.write(data, i, n);
+                remaining -= n;
+                if (remaining == 0) {
+                    state = State.MARKER;
+                    position = 0;
+                }
+                return i + n;
+            }
+            case SKIP: {
+                int n = Math.min(remaining, data.length - i);
+                remaining -= n;
+                if (remaining == 0) {
+                    state = State.MARKER;
+                    position = 0;
+                }
+                return i + n;
+            }
+            default:
+                return data.length;
+        }
+    }
+
+    private boolean isExif() {
+        for (int i = 0; i < ExifSegment.EXIF_IDENTIFIER.length; i++) {
+            if (peek[4 + i] != ExifSegment.EXIF_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,447 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.AutomaticWhiteBalanceMode;
+import uk.co.caprica.picam.enums.ExposureMode;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builder for a JPEG APP1 EXIF segment.
+ * <p>
+ * Only a small set of tags is supported, enough to stamp a capture with a timestamp, a device identifier and the
+ * exposure-related values from a {@link CameraConfiguration}.
+ * <p>
+ * This can be used in like a "builder".
+ */
+public final class ExifSegment {
+
+    /**
+     * APP0 marker, used by the JFIF segment that must come before an EXIF segment.
+     */
+    static final int APP0 = 0xe0;
+
+    /**
+     * APP1 marker.
+     */
+    static final int APP1 = 0xe1;
+
+    /**
+     * Identifier at the start of an EXIF APP1 payload.
+     */
+    static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * Maximum size of a segment payload, including the two length bytes.
+     */
+    private static final int MAX_SEGMENT_LENGTH = 0xffff;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+    private static final int TYPE_SRATIONAL = 10;
+
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_SOFTWARE = 0x0131;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829a;
+    private static final int TAG_ISO_SPEED = 0x8827;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_EXPOSURE_BIAS = 0x9204;
+    private static final int TAG_METERING_MODE = 0x9207;
+    private static final int TAG_USER_COMMENT = 0x9286;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+    private static final int TAG_EXPOSURE_MODE = 0xa402;
+    private static final int TAG_WHITE_BALANCE = 0xa403;
+    private static final int TAG_BODY_SERIAL_NUMBER = 0xa431;
+
+    private static final byte[] USER_COMMENT_ASCII = {'A', 'S', 'C', 'I', 'I', 0, 0, 0};
+
+    private String make = "RaspberryPi";
+
+    private String model;
+
+    private String software = "picam";
+
+    private Date dateTime;
+
+    private String deviceId;
+
+    private Integer width;
+
+    private Integer height;
+
+    private Integer shutterSpeed;
+
+    private Integer iso;
+
+    private Integer exposureCompensation;
+
+    private Integer meteringMode;
+
+    private Integer exposureMode;
+
+    private Integer whiteBalance;
+
+    private String userComment;
+
+    private ExifSegment() {
+    }
+
+    public static ExifSegment exifSegment() {
+        return new ExifSegment();
+    }
+
+    public ExifSegment make(String make) {
+        this.make = make;
+        return this;
+    }
+
+    public ExifSegment model(String model) {
+        this.model = model;
+        return this;
+    }
+
+    public ExifSegment software(String software) {
+        this.software = software;
+        return this;
+    }
+
+    public ExifSegment dateTime(Date dateTime) {
+        this.dateTime = dateTime;
+        return this;
+    }
+
+    public ExifSegment deviceId(String deviceId) {
+        this.deviceId = deviceId;
+        return this;
+    }
+
+    public ExifSegment size(Integer width, Integer height) {
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Set the exposure time.
+     *
+     * @param shutterSpeed shutter speed, in microseconds
+     * @return this builder
+     */
+    public ExifSegment shutterSpeed(Integer shutterSpeed) {
+        this.shutterSpeed = shutterSpeed;
+        return this;
+    }
+
+    public ExifSegment iso(Integer iso) {
+        this.iso = iso;
+        return this;
+    }
+
+    /**
+     * Set the exposure compensation.
+     *
+     * @param exposureCompensation exposure compensation, in the camera's units of one sixth of a stop
+     * @return this builder
+     */
+    public ExifSegment exposureCompensation(Integer exposureCompensation) {
+        this.exposureCompensation = exposureCompensation;
+        return this;
+    }
+
+    public ExifSegment userComment(String userComment) {
+        this.userComment = userComment;
+        return this;
+    }
+
+    /**
+     * Copy the relevant values from a camera configuration.
+     * <p>
+     * Values that have not been set in the configuration are not written. The exposure mode, metering mode and white
+     * balance mode are mapped to their nearest EXIF equivalents, and the exact camera settings are also recorded in the
+     * user comment.
+     *
+     * @param configuration camera configuration
+     * @return this builder
+     */
+    public ExifSegment configuration(CameraConfiguration configuration) {
+        this.width = configuration.width();
+        this.height = configuration.height();
+        this.shutterSpeed = configuration.shutterSpeed();
+        this.iso = configuration.iso();
+        this.exposureCompensation = configuration.exposureCompensation();
+        if (configuration.exposureMeteringMode() != null) {
+            switch (configuration.exposureMeteringMode()) {
+                case AVERAGE:
+                    this.meteringMode = 1;
+                    break;
+                case SPOT:
+                    this.meteringMode = 3;
+                    break;
+                case BACKLIT:
+                    this.meteringMode = 2;
+                    break;
+                case MATRIX:
+                    this.meteringMode = 5;
+                    break;
+                default:
+                    this.meteringMode = 255;
+                    break;
+            }
+        }
+        ExposureMode exposure = configuration.exposureMode();
+        if (exposure != null) {
+            this.exposureMode = exposure == ExposureMode.OFF ? 1 : 0;
+        }
+        AutomaticWhiteBalanceMode awb = configuration.automaticWhiteBalanceMode();
+        if (awb != null) {
+            this.whiteBalance = awb == AutomaticWhiteBalanceMode.AUTO ? 0 : 1;
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, "exposure", exposure);
+        append(sb, "metering", configuration.exposureMeteringMode());
+        append(sb, "awb", awb);
+        append(sb, "iso", configuration.iso());
+        append(sb, "ss", configuration.shutterSpeed());
+        append(sb, "ev", configuration.exposureCompensation());
+        append(sb, "drc", configuration.dynamicRangeCompressionStrength());
+        append(sb, "effect", configuration.imageEffect());
+        this.userComment = sb.length() > 0 ? sb.toString() : null;
+        return this;
+    }
+
+    /**
+     * Create the complete APP1 segment, including the marker and length bytes.
+     *
+     * @return segment bytes
+     * @throws IllegalStateException if the segment would be too large
+     */
+    public byte[] toByteArray() {
+        Ifd ifd0 = new Ifd();
+        ifd0.ascii(TAG_MAKE, make);
+        ifd0.ascii(TAG_MODEL, model);
+        ifd0.ascii(TAG_SOFTWARE, software);
+        String formattedDateTime = dateTime != null ? new SimpleDateFormat("yyyy:MM:dd HH:mm:ss").format(dateTime) : null;
+        ifd0.ascii(TAG_DATE_TIME, formattedDateTime);
+
+        Ifd exifIfd = new Ifd();
+        if (shutterSpeed != null) {
+            exifIfd.rational(TAG_EXPOSURE_TIME, TYPE_RATIONAL, shutterSpeed, 1000000);
+        }
+        exifIfd.integer(TAG_ISO_SPEED, TYPE_SHORT, iso);
+        exifIfd.ascii(TAG_DATE_TIME_ORIGINAL, formattedDateTime);
+        if (exposureCompensation != null) {
+            exifIfd.rational(TAG_EXPOSURE_BIAS, TYPE_SRATIONAL, exposureCompensation, 6);
+        }
+        exifIfd.integer(TAG_METERING_MODE, TYPE_SHORT, meteringMode);
+        if (userComment != null) {
+            byte[] text = userComment.getBytes(StandardCharsets.US_ASCII);
+            byte[] value = new byte[USER_COMMENT_ASCII.length + text.length];
+            System.arraycopy(USER_COMMENT_ASCII, 0, value, 0, USER_COMMENT_ASCII.length);
+            System.arraycopy(text, 0, value, USER_COMMENT_ASCII.length, text.length);
+            exifIfd.add(TAG_USER_COMMENT, TYPE_UNDEFINED, value.length, value);
+        }
+        exifIfd.integer(TAG_PIXEL_X_DIMENSION, TYPE_LONG, width);
+        exifIfd.integer(TAG_PIXEL_Y_DIMENSION, TYPE_LONG, height);
+        exifIfd.integer(TAG_EXPOSURE_MODE, TYPE_SHORT, exposureMode);
+        exifIfd.integer(TAG_WHITE_BALANCE, TYPE_SHORT, whiteBalance);
+        exifIfd.ascii(TAG_BODY_SERIAL_NUMBER, deviceId);
+
+        // The EXIF IFD pointer is a placeholder until the size of IFD0 is known
+        ifd0.add(TAG_EXIF_IFD, TYPE_LONG, 1, new byte[4]);
+
+        int ifd0Offset = 8;
+        int exifIfdOffset = ifd0Offset + ifd0.size();
+        byte[] pointer = ifd0.entry(TAG_EXIF_IFD).value;
+        putInt(pointer, 0, exifIfdOffset);
+
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream(256);
+        tiff.write('M');
+        tiff.write('M');
+        writeShort(tiff, 0x2a);
+        writeInt(tiff, ifd0Offset);
+        ifd0.write(tiff, ifd0Offset);
+        exifIfd.write(tiff, exifIfdOffset);
+
+        int length = 2 + EXIF_IDENTIFIER.length + tiff.size();
+        if (length > MAX_SEGMENT_LENGTH) {
+            throw new IllegalStateException("EXIF segment is too large: " + length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + length);
+        out.write(0xff);
+        out.write(APP1);
+        writeShort(out, length);
+        out.write(EXIF_IDENTIFIER, 0, EXIF_IDENTIFIER.length);
+        byte[] tiffBytes = tiff.toByteArray();
+        out.write(tiffBytes, 0, tiffBytes.length);
+        return out.toByteArray();
+    }
+
+    private static void append(StringBuilder sb, String name, Object value) {
+        if (value != null) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(name).append('=').append(value);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write((value >> 24) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset    ] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A single image file directory, written in big-endian ("MM") byte order.
+     */
+    private static final class Ifd {
+
+        private final List<Entry> entries = new ArrayList<>();
+
+        private void ascii(int tag, String value) {
+            if (value != null) {
+                byte[] text = value.getBytes(StandardCharsets.US_ASCII);
+                byte[] b = new byte[text.length + 1];
+                System.arraycopy(text, 0, b, 0, text.length);
+                add(tag, TYPE_ASCII, b.length, b);
+            }
+        }
+
+        private void integer(int tag, int type, Integer value) {
+            if (value != null) {
+                byte[] b;
+                if (type == TYPE_SHORT) {
+                    b = new byte[] {(byte) (value >> 8), (byte) (int) value};
+                } else {
+                    b = new byte[4];
+                    putInt(b, 0, value);
+                }
+                add(tag, type, 1, b);
+            }
+        }
+
+        private void rational(int tag, int type, int numerator, int denominator) {
+            byte[] b = new byte[8];
+            putInt(b, 0, numerator);
+            putInt(b, 4, denominator);
+            add(tag, type, 1, b);
+        }
+
+        private void add(int tag, int type, int count, byte[] value) {
+            entries.add(new Entry(tag, type, count, value));
+        }
+
+        private Entry entry(int tag) {
+            for (Entry entry : entries) {
+                if (entry.tag == tag) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private int size() {
+            int size = 2 + entries.size() * 12 + 4;
+            for (Entry entry : entries) {
+                if (entry.value.length > 4) {
+                    size += (entry.value.length + 1) & ~1;
+                }
+            }
+            return size;
+        }
+
+        private void write(ByteArrayOutputStream out, int offset) {
+            entries.sort(Comparator.comparingInt(e -> e.tag));
+            int dataOffset = offset + 2 + entries.size() * 12 + 4;
+            writeShort(out, entries.size());
+            for (Entry entry : entries) {
+                writeShort(out, entry.tag);
+                writeShort(out, entry.type);
+                writeInt(out, entry.count);
+                if (entry.value.length > 4) {
+                    writeInt(out, dataOffset);
+                    dataOffset += (entry.value.length + 1) & ~1;
+                } else {
+                    out.write(entry.value, 0, entry.value.length);
+                    for (int i = entry.value.length; i < 4; i++) {
+                        out.write(0);
+                    }
+                }
+            }
+            // No next IFD
+            writeInt(out, 0);
+            for (Entry entry : entries) {
+                if (entry.value.length > 4) {
+                    out.write(entry.value, 0, entry.value.length);
+                    if ((entry.value.length & 1) != 0) {
+                        out.write(0);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final int tag;
+
+        private final int type;
+
+        private final int count;
+
+        private final byte[] value;
+
+        private Entry(int tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+/**
+ * A JPEG Huffman table, as defined by a DHT segment.
+ * <p>
+ * The table provides both decoding (a direct lookup for short codes, falling back to the canonical "maximum code"
+ * search for longer codes) and encoding (code and length for each symbol).
+ */
+final class HuffmanTable {
+
+    /**
+     * Number of bits used for the direct decode lookup.
+     */
+    static final int LOOKAHEAD = 9;
+
+    /**
+     * Direct lookup, indexed by the next {@link #LOOKAHEAD} bits, each entry is <code>(length &lt;&lt; 8) | symbol</code>
+     * or zero if the code is longer than the lookahead.
+     */
+    final int[] lookup = new int[1 << LOOKAHEAD];
+
+    /**
+     * Largest code of each length, or -1 if there are no codes of that length.
+     */
+    final int[] maxCode = new int[18];
+
+    /**
+     * Offset from a code of each length to the index of its symbol.
+     */
+    final int[] valueOffset = new int[17];
+
+    /**
+     * Symbols, in code order.
+     */
+    final byte[] values;
+
+    /**
+     * Code for each symbol, used for encoding.
+     */
+    final int[] codes = new int[256];
+
+    /**
+     * Code length for each symbol, used for encoding, zero if the symbol has no code.
+     */
+    final int[] lengths = new int[256];
+
+    /**
+     * Create a Huffman table.
+     *
+     * @param counts number of codes of each length from 1 to 16 bits
+     * @param values symbols, in code order
+     */
+    HuffmanTable(int[] counts, byte[] values) {
+        this.values = values;
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            valueOffset[length] = k - code;
+            int count = counts[length - 1];
+            for (int i = 0; i < count; i++) {
+                int symbol = values[k] & 0xff;
+                codes[symbol] = code;
+                lengths[symbol] = length;
+                if (length <= LOOKAHEAD) {
+                    int shift = LOOKAHEAD - length;
+                    int base = code << shift;
+                    for (int j = 0; j < 1 << shift; j++) {
+                        lookup[base + j] = (length << 8) | symbol;
+                    }
+                }
+                code++;
+                k++;
+            }
+            maxCode[length] = count > 0 ? code - 1 : -1;
+            code <<= 1;
+        }
+        maxCode[17] = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Standard luminance DC table, from Annex K of the JPEG specification.
+     */
+    static HuffmanTable luminanceDc() {
+        return new HuffmanTable(
+            new int[] {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}
+        );
+    }
+
+    /**
+     * Standard chrominance DC table, from Annex K of the JPEG specification.
+     */
+    static HuffmanTable chrominanceDc() {
+        return new HuffmanTable(
+            new int[] {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}
+        );
+    }
+
+    /**
+     * Standard luminance AC table, from Annex K of the JPEG specification.
+     */
+    static HuffmanTable luminanceAc() {
+        return new HuffmanTable(
+            new int[] {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            bytes(
+                0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                0xf9, 0xfa
+            )
+        );
+    }
+
+    /**
+     * Standard chrominance AC table, from Annex K of the JPEG specification.
+     */
+    static HuffmanTable chrominanceAc() {
+        return new HuffmanTable(
+            new int[] {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+            bytes(
+                0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                0xf9, 0xfa
+            )
+        );
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,690 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel baseline JPEG encoder for raw captures.
+ * <p>
+ * The image is encoded as 4:2:0 YCbCr with the standard Huffman tables and quality-scaled standard quantisation tables.
+ * It is divided into bands of whole MCU rows, and the restart interval is set to the number of MCUs in a band. Since
+ * the entropy coder is reset at every restart marker, each band can be transformed and encoded independently, in
+ * parallel, and the bands simply joined with restart markers. The output is a standard baseline JPEG that any decoder
+ * can read.
+ * <p>
+ * The DCT coefficients of each band are kept in reusable buffers. When a target size is set, the image is transformed
+ * once and then only re-quantised and entropy coded at each quality tried during the search.
+ * <p>
+ * {@link Encoding#I420} captures are already 4:2:0 and are used directly, {@link Encoding#RGB24} and
+ * {@link Encoding#BGR24} captures are converted to YCbCr and the chroma is averaged over each two by two block.
+ * <p>
+ * This can be used in like a "builder". An instance must only be used for one image at a time.
+ */
+public final class JpegEncoder {
+
+    /**
+     * Natural order index of each coefficient in zig-zag order.
+     */
+    static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMINANCE_QUANTISATION = {
+        16, 11, 10, 16,  24,  40,  51,  61,
+        12, 12, 14, 19,  26,  58,  60,  55,
+        14, 13, 16, 24,  40,  57,  69,  56,
+        14, 17, 22, 29,  51,  87,  80,  62,
+        18, 22, 37, 56,  68, 109, 103,  77,
+        24, 35, 55, 64,  81, 104, 113,  92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103,  99
+    };
+
+    private static final int[] CHROMINANCE_QUANTISATION = {
+        17, 18, 24, 47, 99, 99, 99, 99,
+        18, 21, 26, 66, 99, 99, 99, 99,
+        24, 26, 56, 99, 99, 99, 99, 99,
+        47, 66, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    /**
+     * Scale factors of the AAN forward DCT.
+     */
+    private static final float[] AAN_SCALE = {
+        1.0f, 1.387039845f, 1.306562965f, 1.175875602f, 1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    /**
+     * Number of blocks in an MCU, four luma, one Cb and one Cr.
+     */
+    private static final int BLOCKS_PER_MCU = 6;
+
+    private static final HuffmanTable[] DC_TABLES = {HuffmanTable.luminanceDc(), HuffmanTable.chrominanceDc()};
+
+    private static final HuffmanTable[] AC_TABLES = {HuffmanTable.luminanceAc(), HuffmanTable.chrominanceAc()};
+
+    private int quality = 85;
+
+    private int minimumQuality = 10;
+
+    private int targetSize;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private RawFrameLayout layout;
+
+    private int mcusPerLine;
+
+    private int mcuRows;
+
+    private int rowsPerBand;
+
+    private Band[] bands = new Band[0];
+
+    private int usedQuality;
+
+    private JpegEncoder() {
+    }
+
+    public static JpegEncoder jpegEncoder() {
+        return new JpegEncoder();
+    }
+
+    /**
+     * Set the quality.
+     * <p>
+     * If a target size is set, this is the maximum quality that will be used.
+     *
+     * @param quality quality, 1 to 100
+     * @return this encoder
+     */
+    public JpegEncoder quality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be in the range 1 to 100");
+        }
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * Set the target size.
+     * <p>
+     * The highest quality, no higher than the configured quality and no lower than the minimum quality, that gives an
+     * image no larger than the target size is used. If even the minimum quality is too large, the minimum quality is
+     * used.
+     *
+     * @param targetSize maximum size of the encoded image, in bytes, or zero for no target
+     * @param minimumQuality lowest quality to try, 1 to 100
+     * @return this encoder
+     */
+    public JpegEncoder targetSize(int targetSize, int minimumQuality) {
+        if (minimumQuality < 1 || minimumQuality > 100) {
+            throw new IllegalArgumentException("Minimum quality must be in the range 1 to 100");
+        }
+        this.targetSize = targetSize;
+        this.minimumQuality = minimumQuality;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used for encoding.
+     * <p>
+     * The default is the common pool.
+     *
+     * @param pool fork-join pool
+     * @return this encoder
+     */
+    public JpegEncoder pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Get the quality used for the most recently encoded image.
+     *
+     * @return quality
+     */
+    public int usedQuality() {
+        return usedQuality;
+    }
+
+    /**
+     * Encode a complete raw frame.
+     * <p>
+     * The sink handler is used exactly as if it were receiving a capture from the camera: it is begun, receives the JPEG
+     * data in chunks, and is ended.
+     *
+     * @param frame frame data
+     * @param layout frame layout
+     * @param sink handler to receive the encoded image
+     * @param <T> type of result produced by the sink
+     * @return sink result
+     * @throws Exception if an error occurs
+     */
+    public <T> T encode(byte[] frame, RawFrameLayout layout, PictureCaptureHandler<T> sink) throws Exception {
+        if (frame.length < layout.frameSize()) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        prepare(layout);
+
+        int q = quality;
+        int[][] tables = quantisationTables(q);
+        run(frame, tables, true);
+        if (targetSize > 0) {
+            int headerSize = header(tables).length;
+            if (size(headerSize) > targetSize) {
+                // Binary search for the highest quality that fits, the coefficients are not recalculated
+                int low = minimumQuality;
+                int high = q - 1;
+                int best = minimumQuality;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    run(frame, quantisationTables(middle), false);
+                    if (size(headerSize) <= targetSize) {
+                        best = middle;
+                        low = middle + 1;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+                q = best;
+                tables = quantisationTables(q);
+                run(frame, tables, false);
+            }
+        }
+        usedQuality = q;
+
+        sink.begin();
+        try {
+            write(sink, header(tables));
+            for (int i = 0; i < bands.length; i++) {
+                write(sink, bands[i].out.toByteArray());
+                if (i < bands.length - 1) {
+                    write(sink, new byte[] {(byte) 0xff, (byte) (0xd0 + (i & 7))});
+                }
+            }
+            write(sink, new byte[] {(byte) 0xff, (byte) 0xd9});
+        }
+        finally {
+            sink.end();
+        }
+        return sink.result();
+    }
+
+    private void prepare(RawFrameLayout layout) {
+        if (layout.equals(this.layout)) {
+            return;
+        }
+        switch (layout.encoding()) {
+            case I420:
+            case RGB24:
+            case BGR24:
+                break;
+            default:
+                throw new IllegalArgumentException("Not a raw encoding: " + layout.encoding());
+        }
+        this.layout = layout;
+        mcusPerLine = (layout.width() + 15) / 16;
+        mcuRows = (layout.height() + 15) / 16;
+        // Aim for several bands per thread for load balancing, the restart interval must fit in 16 bits
+        int target = Math.max(1, pool.getParallelism() * 4);
+        rowsPerBand = Math.max(1, (mcuRows + target - 1) / target);
+        rowsPerBand = Math.max(1, Math.min(rowsPerBand, 0xffff / mcusPerLine));
+        int count = (mcuRows + rowsPerBand - 1) / rowsPerBand;
+        bands = new Band[count];
+        for (int i = 0; i < count; i++) {
+            int first = i * rowsPerBand;
+            bands[i] = new Band(first, Math.min(first + rowsPerBand, mcuRows), mcusPerLine);
+        }
+    }
+
+    private void run(byte[] frame, int[][] tables, boolean transform) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bands.length);
+        for (Band band : bands) {
+            tasks.add(new BandTask(band, frame, tables, transform));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private int size(int headerSize) {
+        // Header, band data, restart markers and the end of image marker
+        int size = headerSize + 2 * bands.length;
+        for (Band band : bands) {
+            size += band.out.size();
+        }
+        return size;
+    }
+
+    static int[][] quantisationTables(int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        return new int[][] {scaleTable(LUMINANCE_QUANTISATION, scale), scaleTable(CHROMINANCE_QUANTISATION, scale)};
+    }
+
+    private static int[] scaleTable(int[] base, int scale) {
+        int[] result = new int[64];
+        for (int i = 0; i < 64; i++) {
+            result[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+        return result;
+    }
+
+    private byte[] header(int[][] tables) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        // SOI
+        out.write(0xff);
+        out.write(0xd8);
+        // APP0 JFIF
+        writeSegment(out, 0xe0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        // DQT
+        byte[] dqt = new byte[2 * 65];
+        for (int t = 0; t < 2; t++) {
+            dqt[t * 65] = (byte) t;
+            for (int i = 0; i < 64; i++) {
+                dqt[t * 65 + 1 + i] = (byte) tables[t][ZIGZAG[i]];
+            }
+        }
+        writeSegment(out, 0xdb, dqt);
+        // SOF0
+        int width = layout.width();
+        int height = layout.height();
+        writeSegment(out, 0xc0, new byte[] {
+            8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 3,
+            1, 0x22, 0,
+            2, 0x11, 1,
+            3, 0x11, 1
+        });
+        // DHT
+        ByteArrayOutputStream dht = new ByteArrayOutputStream(512);
+        writeHuffmanTable(dht, 0x00, DC_TABLES[0]);
+        writeHuffmanTable(dht, 0x10, AC_TABLES[0]);
+        writeHuffmanTable(dht, 0x01, DC_TABLES[1]);
+        writeHuffmanTable(dht, 0x11, AC_TABLES[1]);
+        writeSegment(out, 0xc4, dht.toByteArray());
+        // DRI
+        int interval = mcusPerLine * rowsPerBand;
+        writeSegment(out, 0xdd, new byte[] {(byte) (interval >> 8), (byte) interval});
+        // SOS
+        writeSegment(out, 0xda, new byte[] {3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+        return out.toByteArray();
+    }
+
+    private static void writeHuffmanTable(ByteArrayOutputStream out, int classAndId, HuffmanTable table) {
+        out.write(classAndId);
+        int[] counts = new int[16];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            if (table.lengths[symbol] > 0) {
+                counts[table.lengths[symbol] - 1]++;
+            }
+        }
+        for (int count : counts) {
+            out.write(count);
+        }
+        out.write(table.values, 0, table.values.length);
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((data.length + 2) >> 8);
+        out.write(data.length + 2);
+        out.write(data, 0, data.length);
+    }
+
+    private static void write(PictureCaptureHandler<?> sink, byte[] data) throws Exception {
+        if (sink.pictureData(data) != data.length) {
+            throw new IllegalStateException("Sink did not accept all of the data");
+        }
+    }
+
+    /**
+     * A band of MCU rows, with its reusable coefficient and output buffers.
+     */
+    private static final class Band {
+
+        private final int firstRow;
+
+        private final int lastRow;
+
+        private final short[] coefficients;
+
+        private final BitWriter out = new BitWriter();
+
+        private Band(int firstRow, int lastRow, int mcusPerLine) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.coefficients = new short[(lastRow - firstRow) * mcusPerLine * BLOCKS_PER_MCU * 64];
+        }
+    }
+
+    private final class BandTask extends RecursiveAction {
+
+        private final Band band;
+
+        private final byte[] frame;
+
+        private final int[][] tables;
+
+        private final boolean transform;
+
+        private BandTask(Band band, byte[] frame, int[][] tables, boolean transform) {
+            this.band = band;
+            this.frame = frame;
+            this.tables = tables;
+            this.transform = transform;
+        }
+
+        @Override
+        protected void compute() {
+            if (transform) {
+                transform(band, frame);
+            }
+            entropyCode(band, tables);
+        }
+    }
+
+    private void transform(Band band, byte[] frame) {
+        float[] block = new float[64];
+        float[][] samples = new float[3][256];
+        short[] coefficients = band.coefficients;
+        int index = 0;
+        for (int mcuY = band.firstRow; mcuY < band.lastRow; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusPerLine; mcuX++) {
+                loadMcu(frame, mcuX * 16, mcuY * 16, samples);
+                for (int b = 0; b < 4; b++) {
+                    int bx = (b & 1) * 8;
+                    int by = (b >> 1) * 8;
+                    for (int y = 0; y < 8; y++) {
+                        System.arraycopy(samples[0], (by + y) * 16 + bx, block, y * 8, 8);
+                    }
+                    forwardDct(block, coefficients, index);
+                    index += 64;
+                }
+                for (int c = 1; c < 3; c++) {
+                    System.arraycopy(samples[c], 0, block, 0, 64);
+                    forwardDct(block, coefficients, index);
+                    index += 64;
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the level-shifted samples of one MCU, replicating edge pixels for MCUs that extend past the image.
+     *
+     * @param frame frame data
+     * @param left x position of the MCU
+     * @param top y position of the MCU
+     * @param samples destination, a 16x16 luma block and two 8x8 chroma blocks
+     */
+    private void loadMcu(byte[] frame, int left, int top, float[][] samples) {
+        int width = layout.width();
+        int height = layout.height();
+        int stride = layout.stride();
+        float[] lum = samples[0];
+        float[] cb = samples[1];
+        float[] cr = samples[2];
+        if (layout.isPlanar()) {
+            for (int y = 0; y < 16; y++) {
+                int row = Math.min(top + y, height - 1) * stride;
+                for (int x = 0; x < 16; x++) {
+                    lum[y * 16 + x] = (frame[row + Math.min(left + x, width - 1)] & 0xff) - 128;
+                }
+            }
+            int chromaStride = layout.chromaStride();
+            for (int y = 0; y < 8; y++) {
+                int row = Math.min((top >> 1) + y, layout.chromaHeight() - 1) * chromaStride;
+                for (int x = 0; x < 8; x++) {
+                    int column = Math.min((left >> 1) + x, layout.chromaWidth() - 1);
+                    cb[y * 8 + x] = (frame[layout.uOffset() + row + column] & 0xff) - 128;
+                    cr[y * 8 + x] = (frame[layout.vOffset() + row + column] & 0xff) - 128;
+                }
+            }
+        } else {
+            int red = layout.encoding() == Encoding.BGR24 ? 2 : 0;
+            int blue = 2 - red;
+            for (int i = 0; i < 64; i++) {
+                cb[i] = 0;
+                cr[i] = 0;
+            }
+            for (int y = 0; y < 16; y++) {
+                int row = Math.min(top + y, height - 1) * stride;
+                for (int x = 0; x < 16; x++) {
+                    int p = row + Math.min(left + x, width - 1) * 3;
+                    float r = frame[p + red] & 0xff;
+                    float g = frame[p + 1] & 0xff;
+                    float b = frame[p + blue] & 0xff;
+                    lum[y * 16 + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+                    int c = (y >> 1) * 8 + (x >> 1);
+                    // Chroma is the average of each two by two block, accumulated here and scaled by a quarter
+                    cb[c] += 0.25f * (-0.168736f * r - 0.331264f * g + 0.5f * b);
+                    cr[c] += 0.25f * (0.5f * r - 0.418688f * g - 0.081312f * b);
+                }
+            }
+        }
+    }
+
+    /**
+     * AAN floating point forward DCT, as used by the IJG library, the descaled result is stored rounded.
+     *
+     * @param data samples, overwritten
+     * @param out destination coefficients, in natural order
+     * @param offset offset of the block in the destination
+     */
+    private static void forwardDct(float[] data, short[] out, int offset) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int i = 0, p = 0; i < 8; i++, p += next) {
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                float value = data[v * 8 + u] / (AAN_SCALE[v] * AAN_SCALE[u] * 8);
+                out[offset + v * 8 + u] = (short) Math.round(value);
+            }
+        }
+    }
+
+    private void entropyCode(Band band, int[][] tables) {
+        BitWriter out = band.out;
+        out.reset();
+        short[] coefficients = band.coefficients;
+        int blocks = coefficients.length / 64;
+        int[] predictor = new int[3];
+        for (int block = 0; block < blocks; block++) {
+            int b = block % BLOCKS_PER_MCU;
+            int component = b < 4 ? 0 : b - 3;
+            int table = component == 0 ? 0 : 1;
+            predictor[component] = encodeBlock(out, coefficients, block * 64, tables[table], DC_TABLES[table], AC_TABLES[table], predictor[component]);
+        }
+        out.flush();
+    }
+
+    private static int encodeBlock(BitWriter out, short[] coefficients, int offset, int[] q, HuffmanTable dc, HuffmanTable ac, int predictor) {
+        int value = quantise(coefficients[offset], q[0]);
+        int diff = value - predictor;
+        int size = magnitude(diff);
+        out.write(dc.codes[size], dc.lengths[size]);
+        if (size > 0) {
+            out.write(diff < 0 ? diff - 1 : diff, size);
+        }
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int natural = ZIGZAG[k];
+            int coefficient = quantise(coefficients[offset + natural], q[natural]);
+            if (coefficient == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.write(ac.codes[0xf0], ac.lengths[0xf0]);
+                run -= 16;
+            }
+            size = magnitude(coefficient);
+            int symbol = (run << 4) | size;
+            out.write(ac.codes[symbol], ac.lengths[symbol]);
+            out.write(coefficient < 0 ? coefficient - 1 : coefficient, size);
+            run = 0;
+        }
+        if (run > 0) {
+            out.write(ac.codes[0x00], ac.lengths[0x00]);
+        }
+        return value;
+    }
+
+    private static int quantise(int coefficient, int q) {
+        return coefficient >= 0 ? (coefficient + (q >> 1)) / q : -((-coefficient + (q >> 1)) / q);
+    }
+
+    private static int magnitude(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Entropy coded output with byte stuffing, the buffer is reused.
+     */
+    private static final class BitWriter {
+
+        private byte[] buffer = new byte[65536];
+
+        private int size;
+
+        private long bits;
+
+        private int count;
+
+        private void reset() {
+            size = 0;
+            bits = 0;
+            count = 0;
+        }
+
+        private void write(int value, int length) {
+            bits = (bits << length) | (value & ((1L << length) - 1));
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                int b = (int) (bits >>> count) & 0xff;
+                put(b);
+                if (b == 0xff) {
+                    put(0);
+                }
+            }
+        }
+
+        private void flush() {
+            if (count > 0) {
+                // Pad with one bits
+                write((1 << (8 - count)) - 1, 8 - count);
+            }
+        }
+
+        private void put(int b) {
+            if (size == buffer.length) {
+                byte[] newBuffer = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, size);
+                buffer = newBuffer;
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buffer, 0, result, 0, size);
+            return result;
+        }
+    }
+
+}
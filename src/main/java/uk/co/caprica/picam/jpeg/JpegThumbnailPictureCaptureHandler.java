@@ -0,0 +1,613 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Implementation of a picture capture handler that creates a reduced-size thumbnail from a baseline JPEG capture
+ * without fully decoding it.
+ * <p>
+ * At 1/8 scale only the DC coefficient of each block is used, giving one pixel per 8x8 block. At 1/4 scale the three
+ * lowest frequency AC coefficients are also used, giving two by two pixels per block. In both cases the remaining
+ * coefficients are entropy decoded and skipped, there is no inverse DCT.
+ * <p>
+ * The picture data is decoded as it arrives, only a small window of the compressed data is buffered. The thumbnail is
+ * available as the result after the capture ends.
+ * <p>
+ * Only baseline (and extended Huffman) sequential JPEG images with a single interleaved scan are supported, which is
+ * what the camera produces. If the picture data can not be decoded, the result will be <code>null</code>.
+ */
+public class JpegThumbnailPictureCaptureHandler implements PictureCaptureHandler<BufferedImage> {
+
+    /**
+     * Minimum amount of compressed data to keep buffered ahead of the decoder while the capture is in progress, this
+     * must be larger than the worst-case size of a single MCU.
+     */
+    private static final int MARGIN = 8192;
+
+    /**
+     * Fixed-point (12 bit) weight of the DC coefficient when averaging a block, or a quadrant of a block.
+     */
+    private static final int DC_WEIGHT = 512;
+
+    /**
+     * Fixed-point (12 bit) weight of a first order AC coefficient when averaging a quadrant of a block.
+     */
+    private static final int AC1_WEIGHT = 464;
+
+    /**
+     * Fixed-point (12 bit) weight of the first diagonal AC coefficient when averaging a quadrant of a block.
+     */
+    private static final int AC11_WEIGHT = 420;
+
+    private final int scale;
+
+    /**
+     * Number of samples produced for each block in each dimension.
+     */
+    private final int samples;
+
+    private byte[] buffer = new byte[65536];
+
+    private int position;
+
+    private int limit;
+
+    private long bits;
+
+    private int bitCount;
+
+    private boolean marker;
+
+    private final int[][] quantisation = new int[4][64];
+
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private int restartInterval;
+
+    private boolean scanning;
+
+    private boolean finished;
+
+    private boolean failed;
+
+    private int width;
+
+    private int height;
+
+    private int componentCount;
+
+    private final int[] componentIds = new int[4];
+
+    private final int[] h = new int[4];
+
+    private final int[] v = new int[4];
+
+    private final int[] quantisationTable = new int[4];
+
+    private final int[] dcTable = new int[4];
+
+    private final int[] acTable = new int[4];
+
+    private final int[] predictor = new int[4];
+
+    private int hMax;
+
+    private int vMax;
+
+    private int mcusPerLine;
+
+    private int mcuTotal;
+
+    private int mcuCount;
+
+    private int restartsToGo;
+
+    private final byte[][] planes = new byte[4][];
+
+    private final int[] planeStride = new int[4];
+
+    private BufferedImage image;
+
+    /**
+     * Create a picture capture handler producing a 1/8 scale thumbnail.
+     */
+    public JpegThumbnailPictureCaptureHandler() {
+        this(8);
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param scale scale divisor, either 8 (DC coefficients only) or 4 (DC and the lowest AC coefficients)
+     */
+    public JpegThumbnailPictureCaptureHandler(int scale) {
+        if (scale != 8 && scale != 4) {
+            throw new IllegalArgumentException("Scale must be 4 or 8");
+        }
+        this.scale = scale;
+        this.samples = 8 / scale;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        position = 0;
+        limit = 0;
+        bits = 0;
+        bitCount = 0;
+        marker = false;
+        restartInterval = 0;
+        scanning = false;
+        finished = false;
+        failed = false;
+        componentCount = 0;
+        image = null;
+        for (int i = 0; i < 4; i++) {
+            dcTables[i] = null;
+            acTables[i] = null;
+        }
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        if (!finished && !failed) {
+            append(data);
+            try {
+                decode(false);
+            }
+            catch (IllegalStateException | ArrayIndexOutOfBoundsException e) {
+                failed = true;
+            }
+        }
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        if (!failed) {
+            try {
+                decode(true);
+                if (finished) {
+                    image = createImage();
+                }
+            }
+            catch (IllegalStateException | ArrayIndexOutOfBoundsException e) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * Get the thumbnail.
+     *
+     * @return thumbnail image, or <code>null</code> if the picture data could not be decoded
+     */
+    @Override
+    public BufferedImage result() {
+        return image;
+    }
+
+    private void append(byte[] data) {
+        if (limit + data.length > buffer.length) {
+            int available = limit - position;
+            if (available + data.length > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, available + data.length)];
+                System.arraycopy(buffer, position, newBuffer, 0, available);
+                buffer = newBuffer;
+            } else {
+                System.arraycopy(buffer, position, buffer, 0, available);
+            }
+            position = 0;
+            limit = available;
+        }
+        System.arraycopy(data, 0, buffer, limit, data.length);
+        limit += data.length;
+    }
+
+    private void decode(boolean last) {
+        if (!scanning && !parseHeaders()) {
+            return;
+        }
+        while (mcuCount < mcuTotal && (last || limit - position >= MARGIN)) {
+            if (restartInterval > 0) {
+                if (restartsToGo == 0) {
+                    restart();
+                }
+                restartsToGo--;
+            }
+            decodeMcu(mcuCount % mcusPerLine, mcuCount / mcusPerLine);
+            mcuCount++;
+        }
+        if (mcuCount == mcuTotal) {
+            finished = true;
+            // Nothing else in the picture data is needed
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    /**
+     * Parse as many header segments as are currently available.
+     *
+     * @return <code>true</code> if the start of the scan was reached; <code>false</code> if more data is needed
+     */
+    private boolean parseHeaders() {
+        while (limit - position >= 2) {
+            if ((buffer[position] & 0xff) != 0xff) {
+                throw new IllegalStateException("Expected a marker");
+            }
+            int code = buffer[position + 1] & 0xff;
+            if (code == 0xff) {
+                position++;
+                continue;
+            }
+            if (code == 0xd8 || code >= 0xd0 && code <= 0xd7 || code == 0x01) {
+                position += 2;
+                continue;
+            }
+            if (limit - position < 4) {
+                return false;
+            }
+            int length = u16(position + 2);
+            if (limit - position < 2 + length) {
+                return false;
+            }
+            int start = position + 4;
+            int end = position + 2 + length;
+            position = end;
+            switch (code) {
+                case 0xdb:
+                    parseQuantisationTables(start, end);
+                    break;
+                case 0xc4:
+                    parseHuffmanTables(start, end);
+                    break;
+                case 0xc0:
+                case 0xc1:
+                    parseFrame(start);
+                    break;
+                case 0xc2:
+                case 0xc3:
+                case 0xc5:
+                case 0xc6:
+                case 0xc7:
+                case 0xc9:
+                case 0xca:
+                case 0xcb:
+                case 0xcd:
+                case 0xce:
+                case 0xcf:
+                    throw new IllegalStateException("Unsupported JPEG process");
+                case 0xdd:
+                    restartInterval = u16(start);
+                    break;
+                case 0xda:
+                    parseScan(start);
+                    return true;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private void parseQuantisationTables(int start, int end) {
+        int p = start;
+        while (p < end) {
+            int precision = (buffer[p] & 0xff) >> 4;
+            int id = buffer[p++] & 0x03;
+            int[] table = quantisation[id];
+            for (int i = 0; i < 64; i++) {
+                if (precision == 0) {
+                    table[i] = buffer[p++] & 0xff;
+                } else {
+                    table[i] = u16(p);
+                    p += 2;
+                }
+            }
+        }
+    }
+
+    private void parseHuffmanTables(int start, int end) {
+        int p = start;
+        while (p < end) {
+            int tableClass = (buffer[p] & 0xff) >> 4;
+            int id = buffer[p++] & 0x03;
+            int[] counts = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                counts[i] = buffer[p++] & 0xff;
+                total += counts[i];
+            }
+            byte[] values = new byte[total];
+            System.arraycopy(buffer, p, values, 0, total);
+            p += total;
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if (tableClass == 0) {
+                dcTables[id] = table;
+            } else {
+                acTables[id] = table;
+            }
+        }
+    }
+
+    private void parseFrame(int p) {
+        if (buffer[p] != 8) {
+            throw new IllegalStateException("Unsupported sample precision");
+        }
+        height = u16(p + 1);
+        width = u16(p + 3);
+        componentCount = buffer[p + 5] & 0xff;
+        if (componentCount != 1 && componentCount != 3 || width == 0 || height == 0) {
+            throw new IllegalStateException("Unsupported frame");
+        }
+        p += 6;
+        hMax = 1;
+        vMax = 1;
+        for (int i = 0; i < componentCount; i++) {
+            componentIds[i] = buffer[p] & 0xff;
+            h[i] = componentCount == 1 ? 1 : (buffer[p + 1] & 0xff) >> 4;
+            v[i] = componentCount == 1 ? 1 : buffer[p + 1] & 0x0f;
+            quantisationTable[i] = buffer[p + 2] & 0x03;
+            hMax = Math.max(hMax, h[i]);
+            vMax = Math.max(vMax, v[i]);
+            p += 3;
+        }
+    }
+
+    private void parseScan(int p) {
+        int count = buffer[p++] & 0xff;
+        if (componentCount == 0 || count != componentCount) {
+            throw new IllegalStateException("Unsupported scan");
+        }
+        for (int i = 0; i < count; i++) {
+            int id = buffer[p] & 0xff;
+            if (id != componentIds[i]) {
+                throw new IllegalStateException("Unsupported scan component order");
+            }
+            dcTable[i] = (buffer[p + 1] & 0xff) >> 4;
+            acTable[i] = buffer[p + 1] & 0x03;
+            if (dcTables[dcTable[i]] == null || acTables[acTable[i]] == null) {
+                throw new IllegalStateException("Missing Huffman table");
+            }
+            p += 2;
+        }
+        mcusPerLine = (width + 8 * hMax - 1) / (8 * hMax);
+        int mcusPerColumn = (height + 8 * vMax - 1) / (8 * vMax);
+        mcuTotal = mcusPerLine * mcusPerColumn;
+        mcuCount = 0;
+        restartsToGo = restartInterval;
+        for (int i = 0; i < componentCount; i++) {
+            predictor[i] = 0;
+            int stride = mcusPerLine * h[i] * samples;
+            int size = stride * mcusPerColumn * v[i] * samples;
+            if (planes[i] == null || planes[i].length != size) {
+                planes[i] = new byte[size];
+            }
+            planeStride[i] = stride;
+        }
+        scanning = true;
+    }
+
+    private void restart() {
+        bits = 0;
+        bitCount = 0;
+        marker = false;
+        while (limit - position >= 2 && (buffer[position] & 0xff) == 0xff) {
+            int code = buffer[position + 1] & 0xff;
+            if (code == 0xff) {
+                position++;
+            } else {
+                if (code >= 0xd0 && code <= 0xd7) {
+                    position += 2;
+                }
+                break;
+            }
+        }
+        for (int i = 0; i < componentCount; i++) {
+            predictor[i] = 0;
+        }
+        restartsToGo = restartInterval;
+    }
+
+    private void decodeMcu(int mcuX, int mcuY) {
+        for (int c = 0; c < componentCount; c++) {
+            for (int by = 0; by < v[c]; by++) {
+                for (int bx = 0; bx < h[c]; bx++) {
+                    decodeBlock(c, mcuX * h[c] + bx, mcuY * v[c] + by);
+                }
+            }
+        }
+    }
+
+    private void decodeBlock(int c, int blockX, int blockY) {
+        HuffmanTable dc = dcTables[dcTable[c]];
+        HuffmanTable ac = acTables[acTable[c]];
+        int[] q = quantisation[quantisationTable[c]];
+
+        int s = decodeSymbol(dc);
+        predictor[c] += receiveExtend(s);
+        int f00 = predictor[c] * q[0];
+        int f01 = 0;
+        int f10 = 0;
+        int f11 = 0;
+
+        // Zig-zag positions 1, 2 and 4 are coefficients (0,1), (1,0) and (1,1)
+        boolean keep = samples > 1;
+        int k = 1;
+        while (k < 64) {
+            int rs = decodeSymbol(ac);
+            int r = rs >> 4;
+            s = rs & 0x0f;
+            if (s == 0) {
+                if (r != 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (keep && k <= 4) {
+                int value = receiveExtend(s) * q[k];
+                if (k == 1) {
+                    f01 = value;
+                } else if (k == 2) {
+                    f10 = value;
+                } else if (k == 4) {
+                    f11 = value;
+                }
+            } else {
+                skipBits(s);
+            }
+            k++;
+        }
+
+        byte[] plane = planes[c];
+        int stride = planeStride[c];
+        if (samples == 1) {
+            plane[blockY * stride + blockX] = clamp(((f00 + 4) >> 3) + 128);
+        } else {
+            int base = blockY * 2 * stride + blockX * 2;
+            int dcTerm = f00 * DC_WEIGHT + 2048;
+            int a = f01 * AC1_WEIGHT;
+            int b = f10 * AC1_WEIGHT;
+            int d = f11 * AC11_WEIGHT;
+            plane[base             ] = clamp(((dcTerm + a + b + d) >> 12) + 128);
+            plane[base + 1         ] = clamp(((dcTerm - a + b - d) >> 12) + 128);
+            plane[base + stride    ] = clamp(((dcTerm + a - b - d) >> 12) + 128);
+            plane[base + stride + 1] = clamp(((dcTerm - a - b + d) >> 12) + 128);
+        }
+    }
+
+    private BufferedImage createImage() {
+        int outWidth = (width + scale - 1) / scale;
+        int outHeight = (height + scale - 1) / scale;
+        BufferedImage result = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        if (componentCount == 1) {
+            byte[] plane = planes[0];
+            int stride = planeStride[0];
+            for (int y = 0; y < outHeight; y++) {
+                for (int x = 0; x < outWidth; x++) {
+                    int l = plane[y * stride + x] & 0xff;
+                    pixels[y * outWidth + x] = l << 16 | l << 8 | l;
+                }
+            }
+        } else {
+            for (int y = 0; y < outHeight; y++) {
+                int rowY = y * v[0] / vMax * planeStride[0];
+                int rowCb = y * v[1] / vMax * planeStride[1];
+                int rowCr = y * v[2] / vMax * planeStride[2];
+                for (int x = 0; x < outWidth; x++) {
+                    int lum = planes[0][rowY + x * h[0] / hMax] & 0xff;
+                    int cb = (planes[1][rowCb + x * h[1] / hMax] & 0xff) - 128;
+                    int cr = (planes[2][rowCr + x * h[2] / hMax] & 0xff) - 128;
+                    // Fixed-point (16 bit) JFIF YCbCr to RGB
+                    int r = lum + ((91881 * cr + 32768) >> 16);
+                    int g = lum - ((22554 * cb + 46802 * cr - 32768) >> 16);
+                    int b = lum + ((116130 * cb + 32768) >> 16);
+                    pixels[y * outWidth + x] = clampInt(r) << 16 | clampInt(g) << 8 | clampInt(b);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void fill() {
+        while (bitCount <= 56) {
+            int b = 0;
+            if (!marker && position < limit) {
+                b = buffer[position] & 0xff;
+                if (b == 0xff) {
+                    int next = position + 1 < limit ? buffer[position + 1] & 0xff : 0xd9;
+                    if (next == 0) {
+                        position += 2;
+                    } else {
+                        // A marker, leave it in the buffer and pad with zero bits
+                        marker = true;
+                        b = 0;
+                    }
+                } else {
+                    position++;
+                }
+            }
+            bits = (bits << 8) | b;
+            bitCount += 8;
+        }
+    }
+
+    private int decodeSymbol(HuffmanTable table) {
+        if (bitCount < 16) {
+            fill();
+        }
+        int peek = (int) (bits >>> (bitCount - HuffmanTable.LOOKAHEAD)) & ((1 << HuffmanTable.LOOKAHEAD) - 1);
+        int entry = table.lookup[peek];
+        if (entry != 0) {
+            bitCount -= entry >> 8;
+            return entry & 0xff;
+        }
+        for (int length = HuffmanTable.LOOKAHEAD + 1; length <= 16; length++) {
+            int code = (int) (bits >>> (bitCount - length)) & ((1 << length) - 1);
+            if (code <= table.maxCode[length]) {
+                bitCount -= length;
+                return table.values[table.valueOffset[length] + code] & 0xff;
+            }
+        }
+        throw new IllegalStateException("Bad Huffman code");
+    }
+
+    private int receiveExtend(int s) {
+        if (s == 0) {
+            return 0;
+        }
+        if (bitCount < s) {
+            fill();
+        }
+        bitCount -= s;
+        int value = (int) (bits >>> bitCount) & ((1 << s) - 1);
+        return value < 1 << (s - 1) ? value - (1 << s) + 1 : value;
+    }
+
+    private void skipBits(int s) {
+        if (bitCount < s) {
+            fill();
+        }
+        bitCount -= s;
+    }
+
+    private int u16(int p) {
+        return (buffer[p] & 0xff) << 8 | (buffer[p + 1] & 0xff);
+    }
+
+    private static byte clamp(int value) {
+        return (byte) clampInt(value);
+    }
+
+    private static int clampInt(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+}
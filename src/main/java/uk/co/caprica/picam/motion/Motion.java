@@ -0,0 +1,123 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.motion;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Result of motion detection for a single frame.
+ */
+public final class Motion {
+
+    private final long frame;
+
+    private final double score;
+
+    private final boolean motion;
+
+    private final int tilesAcross;
+
+    private final int tilesDown;
+
+    private final boolean[] changedTiles;
+
+    private final List<Rectangle> boundingBoxes;
+
+    Motion(long frame, double score, boolean motion, int tilesAcross, int tilesDown, boolean[] changedTiles, List<Rectangle> boundingBoxes) {
+        this.frame = frame;
+        this.score = score;
+        this.motion = motion;
+        this.tilesAcross = tilesAcross;
+        this.tilesDown = tilesDown;
+        this.changedTiles = changedTiles;
+        this.boundingBoxes = boundingBoxes;
+    }
+
+    /**
+     * Get the frame number, counting from zero since the detector was created or reset.
+     *
+     * @return frame number
+     */
+    public long frame() {
+        return frame;
+    }
+
+    /**
+     * Get the motion score.
+     *
+     * @return fraction of grid cells that changed, 0.0 to 1.0
+     */
+    public double score() {
+        return score;
+    }
+
+    /**
+     * Check whether the motion score reached the detector's trigger level.
+     *
+     * @return <code>true</code> if motion was detected; <code>false</code> if not
+     */
+    public boolean motion() {
+        return motion;
+    }
+
+    public int tilesAcross() {
+        return tilesAcross;
+    }
+
+    public int tilesDown() {
+        return tilesDown;
+    }
+
+    /**
+     * Check whether a particular tile changed.
+     *
+     * @param tileX tile column
+     * @param tileY tile row
+     * @return <code>true</code> if the tile changed; <code>false</code> if it did not
+     */
+    public boolean changed(int tileX, int tileY) {
+        return changedTiles[tileY * tilesAcross + tileX];
+    }
+
+    /**
+     * Get the changed-tile mask.
+     *
+     * @return copy of the mask, in row order
+     */
+    public boolean[] changedTiles() {
+        return changedTiles.clone();
+    }
+
+    /**
+     * Get the bounding boxes of each connected region of changed tiles.
+     *
+     * @return bounding boxes, in pixels
+     */
+    public List<Rectangle> boundingBoxes() {
+        return boundingBoxes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frame %d score %.4f motion %b regions %s", frame, score, motion, boundingBoxes);
+    }
+
+}
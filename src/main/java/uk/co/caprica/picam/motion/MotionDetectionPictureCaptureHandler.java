@@ -0,0 +1,86 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.motion;
+
+import uk.co.caprica.picam.raw.LumaPictureCaptureHandler;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+/**
+ * Implementation of a picture capture handler that runs motion detection on consecutive raw captures.
+ * <p>
+ * The picture data is not buffered, the luma of each row is accumulated into the detector's grid as it arrives.
+ * <p>
+ * The same handler instance must be used for each capture in the sequence since it holds the background model.
+ */
+public class MotionDetectionPictureCaptureHandler extends LumaPictureCaptureHandler<Motion> {
+
+    private final MotionDetector detector;
+
+    private Motion motion;
+
+    /**
+     * Create a picture capture handler with a default motion detector.
+     *
+     * @param layout frame layout
+     */
+    public MotionDetectionPictureCaptureHandler(RawFrameLayout layout) {
+        this(layout, MotionDetector.motionDetector(layout.width(), layout.height()));
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param detector motion detector, configured for the same frame size
+     */
+    public MotionDetectionPictureCaptureHandler(RawFrameLayout layout, MotionDetector detector) {
+        super(layout);
+        if (detector.width() != layout.width() || detector.height() != layout.height()) {
+            throw new IllegalArgumentException("Detector size does not match the frame layout");
+        }
+        this.detector = detector;
+    }
+
+    public MotionDetector detector() {
+        return detector;
+    }
+
+    @Override
+    protected void beginFrame() {
+        motion = null;
+        detector.beginFrame();
+    }
+
+    @Override
+    protected void lumaRow(byte[] luma, int offset, int y) {
+        detector.row(luma, offset, y);
+    }
+
+    @Override
+    protected void endFrame() {
+        motion = detector.endFrame();
+    }
+
+    @Override
+    public Motion result() {
+        return motion;
+    }
+
+}
@@ -0,0 +1,485 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.motion;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Motion detection engine.
+ * <p>
+ * Each frame is downsampled to a grid of cells, each cell being the mean luma of a square block of pixels. Each cell is
+ * compared with a running background model, cells that differ by more than a threshold are marked as changed. The grid
+ * is divided into tiles, a tile is marked as changed if enough of its cells changed.
+ * <p>
+ * Luma rows are supplied one at a time as they arrive. As soon as a complete band of tiles has been accumulated, the
+ * comparison and background update for those tiles is submitted to a fork-join pool, one task per tile, so the work is
+ * spread over all cores and overlaps the rest of the capture. At the end of the frame the tasks are joined and the
+ * changed tiles are grouped into connected regions.
+ * <p>
+ * The grid, the background model and the tile tasks are allocated with the first frame and reused. The only allocation
+ * for each frame is the {@link Motion} result itself, with its own copy of the changed tiles and the list of regions,
+ * so that results can be kept and compared across frames.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the first frame.
+ * <p>
+ * An instance must only be used for one frame at a time.
+ */
+public final class MotionDetector {
+
+    private final int width;
+
+    private final int height;
+
+    private int cellSize = 8;
+
+    private int tileSize = 8;
+
+    private int threshold = 16;
+
+    private int learningRate = 13;
+
+    private double tileFraction = 0.1;
+
+    private double trigger = 0.002;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private int gridWidth;
+
+    private int gridHeight;
+
+    private int tilesAcross;
+
+    private int tilesDown;
+
+    private int[] cellCounts;
+
+    private int[] sums;
+
+    private int[] background;
+
+    private boolean[] changedCells;
+
+    private int[] changedCellCounts;
+
+    private boolean[] changedTiles;
+
+    private int[] stack;
+
+    private BandTask[] bands;
+
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+    private boolean initialised;
+
+    private boolean backgroundReady;
+
+    private long frame;
+
+    private MotionDetector(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Create a motion detector.
+     *
+     * @param width frame width, in pixels
+     * @param height frame height, in pixels
+     * @return motion detector
+     */
+    public static MotionDetector motionDetector(int width, int height) {
+        return new MotionDetector(width, height);
+    }
+
+    /**
+     * Set the size of a grid cell.
+     *
+     * @param cellSize width and height of a cell, in pixels, 1 to 2048
+     * @return this detector
+     */
+    public MotionDetector cellSize(int cellSize) {
+        checkNotInitialised();
+        if (cellSize < 1 || cellSize > 2048) {
+            // The sum of a larger cell may not fit in an int
+            throw new IllegalArgumentException("Cell size must be in the range 1 to 2048");
+        }
+        this.cellSize = cellSize;
+        return this;
+    }
+
+    /**
+     * Set the size of a tile.
+     *
+     * @param tileSize width and height of a tile, in grid cells
+     * @return this detector
+     */
+    public MotionDetector tileSize(int tileSize) {
+        checkNotInitialised();
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be at least 1");
+        }
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Set the threshold for a cell to be considered changed.
+     *
+     * @param threshold difference from the background, in luma levels
+     * @return this detector
+     */
+    public MotionDetector threshold(int threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set the rate at which the background model adapts to the current frame.
+     *
+     * @param learningRate weight of the current frame, 0.0 (never adapt) to 1.0 (background is the previous frame)
+     * @return this detector
+     */
+    public MotionDetector learningRate(double learningRate) {
+        if (learningRate < 0 || learningRate > 1) {
+            throw new IllegalArgumentException("Learning rate must be in the range 0.0 to 1.0");
+        }
+        this.learningRate = (int) Math.round(learningRate * 256);
+        return this;
+    }
+
+    /**
+     * Set the fraction of changed cells needed to mark a tile as changed.
+     *
+     * @param tileFraction fraction, 0.0 to 1.0
+     * @return this detector
+     */
+    public MotionDetector tileFraction(double tileFraction) {
+        this.tileFraction = tileFraction;
+        return this;
+    }
+
+    /**
+     * Set the motion score at or above which a frame is considered to contain motion.
+     *
+     * @param trigger score, 0.0 to 1.0
+     * @return this detector
+     */
+    public MotionDetector trigger(double trigger) {
+        this.trigger = trigger;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used for the tile comparisons.
+     * <p>
+     * The default is the common pool.
+     *
+     * @param pool fork-join pool
+     * @return this detector
+     */
+    public MotionDetector pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Discard the background model, the next frame will be used as the new background.
+     */
+    public void reset() {
+        backgroundReady = false;
+        frame = 0;
+    }
+
+    /**
+     * Begin a new frame.
+     * <p>
+     * If the previous frame was not ended, for example because its capture failed, its outstanding tile tasks are
+     * waited for before the grid is reset, since they are still reading the grid and updating the background.
+     */
+    public void beginFrame() {
+        if (!initialised) {
+            initialise();
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+        }
+        tasks.clear();
+        Arrays.fill(sums, 0);
+    }
+
+    /**
+     * Accumulate one row of luma into the grid.
+     *
+     * @param luma array containing the row
+     * @param offset offset of the first pixel of the row
+     * @param y row number
+     */
+    public void row(byte[] luma, int offset, int y) {
+        int cell = cellSize;
+        int gy = y / cell;
+        int base = gy * gridWidth;
+        int[] s = sums;
+        int x = 0;
+        for (int gx = 0; gx < gridWidth; gx++) {
+            int end = Math.min(x + cell, width);
+            int sum = 0;
+            for (int i = offset + x, last = offset + end; i < last; i++) {
+                sum += luma[i] & 0xff;
+            }
+            s[base + gx] += sum;
+            x = end;
+        }
+        if (y == height - 1 || (y + 1) % cell == 0) {
+            // A complete grid row, submit the band of tiles if this was its last grid row
+            if (gy == gridHeight - 1 || (gy + 1) % tileSize == 0) {
+                submitBand(gy / tileSize);
+            }
+        }
+    }
+
+    /**
+     * Process a complete luma frame.
+     *
+     * @param luma luma plane
+     * @param offset offset of the first pixel
+     * @param stride number of bytes between the start of each row
+     * @return motion result
+     */
+    public Motion detect(byte[] luma, int offset, int stride) {
+        beginFrame();
+        for (int y = 0; y < height; y++) {
+            row(luma, offset + y * stride, y);
+        }
+        return endFrame();
+    }
+
+    /**
+     * Finish the current frame.
+     *
+     * @return motion result
+     */
+    public Motion endFrame() {
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        tasks.clear();
+
+        Motion result;
+        if (!backgroundReady) {
+            backgroundReady = true;
+            Arrays.fill(changedTiles, false);
+            result = new Motion(frame, 0, false, tilesAcross, tilesDown, changedTiles.clone(), Collections.<Rectangle>emptyList());
+        } else {
+            int changed = 0;
+            for (int count : changedCellCounts) {
+                changed += count;
+            }
+            double score = (double) changed / (gridWidth * gridHeight);
+            result = new Motion(frame, score, score >= trigger && changed > 0, tilesAcross, tilesDown, changedTiles.clone(), regions());
+        }
+        frame++;
+        return result;
+    }
+
+    private void initialise() {
+        gridWidth = (width + cellSize - 1) / cellSize;
+        gridHeight = (height + cellSize - 1) / cellSize;
+        tilesAcross = (gridWidth + tileSize - 1) / tileSize;
+        tilesDown = (gridHeight + tileSize - 1) / tileSize;
+        int cells = gridWidth * gridHeight;
+        cellCounts = new int[cells];
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int h = Math.min(cellSize, height - gy * cellSize);
+            for (int gx = 0; gx < gridWidth; gx++) {
+                cellCounts[gy * gridWidth + gx] = h * Math.min(cellSize, width - gx * cellSize);
+            }
+        }
+        sums = new int[cells];
+        background = new int[cells];
+        changedCells = new boolean[cells];
+        changedCellCounts = new int[tilesAcross * tilesDown];
+        changedTiles = new boolean[tilesAcross * tilesDown];
+        stack = new int[tilesAcross * tilesDown];
+        bands = new BandTask[tilesDown];
+        for (int tileY = 0; tileY < tilesDown; tileY++) {
+            bands[tileY] = new BandTask(tileY);
+        }
+        initialised = true;
+    }
+
+    private void submitBand(int tileY) {
+        // The tasks of the previous frame have all been joined, so they can be reused
+        BandTask band = bands[tileY];
+        band.reinitialize();
+        for (TileTask tile : band.tiles) {
+            tile.reinitialize();
+            tile.compare = backgroundReady;
+        }
+        tasks.add(pool.submit(band));
+    }
+
+    private void compareTile(int tileX, int tileY, boolean compare) {
+        int gx0 = tileX * tileSize;
+        int gy0 = tileY * tileSize;
+        int gx1 = Math.min(gx0 + tileSize, gridWidth);
+        int gy1 = Math.min(gy0 + tileSize, gridHeight);
+        int changed = 0;
+        int rate = learningRate;
+        for (int gy = gy0; gy < gy1; gy++) {
+            for (int i = gy * gridWidth + gx0, end = gy * gridWidth + gx1; i < end; i++) {
+                // Cell mean and background are both fixed-point, 8 fractional bits
+                int current = (int) (((long) sums[i] << 8) / cellCounts[i]);
+                if (compare) {
+                    int difference = Math.abs(current - background[i]) >> 8;
+                    boolean cellChanged = difference > threshold;
+                    changedCells[i] = cellChanged;
+                    if (cellChanged) {
+                        changed++;
+                    }
+                    background[i] += ((current - background[i]) * rate) >> 8;
+                } else {
+                    changedCells[i] = false;
+                    background[i] = current;
+                }
+            }
+        }
+        int tile = tileY * tilesAcross + tileX;
+        int cells = (gx1 - gx0) * (gy1 - gy0);
+        changedCellCounts[tile] = changed;
+        changedTiles[tile] = changed > 0 && changed >= tileFraction * cells;
+    }
+
+    /**
+     * Find the bounding boxes of the connected (4-neighbour) regions of changed tiles.
+     *
+     * @return bounding boxes, in pixels
+     */
+    private List<Rectangle> regions() {
+        List<Rectangle> result = new ArrayList<>();
+        boolean[] visited = new boolean[changedTiles.length];
+        int tilePixels = tileSize * cellSize;
+        for (int start = 0; start < changedTiles.length; start++) {
+            if (!changedTiles[start] || visited[start]) {
+                continue;
+            }
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = -1;
+            int maxY = -1;
+            int top = 0;
+            stack[top++] = start;
+            visited[start] = true;
+            while (top > 0) {
+                int tile = stack[--top];
+                int tx = tile % tilesAcross;
+                int ty = tile / tilesAcross;
+                minX = Math.min(minX, tx);
+                minY = Math.min(minY, ty);
+                maxX = Math.max(maxX, tx);
+                maxY = Math.max(maxY, ty);
+                if (tx > 0) {
+                    top = visit(tile - 1, visited, top);
+                }
+                if (tx < tilesAcross - 1) {
+                    top = visit(tile + 1, visited, top);
+                }
+                if (ty > 0) {
+                    top = visit(tile - tilesAcross, visited, top);
+                }
+                if (ty < tilesDown - 1) {
+                    top = visit(tile + tilesAcross, visited, top);
+                }
+            }
+            int x = minX * tilePixels;
+            int y = minY * tilePixels;
+            int right = Math.min((maxX + 1) * tilePixels, width);
+            int bottom = Math.min((maxY + 1) * tilePixels, height);
+            result.add(new Rectangle(x, y, right - x, bottom - y));
+        }
+        return result;
+    }
+
+    private int visit(int tile, boolean[] visited, int top) {
+        if (changedTiles[tile] && !visited[tile]) {
+            visited[tile] = true;
+            stack[top++] = tile;
+        }
+        return top;
+    }
+
+    private void checkNotInitialised() {
+        if (initialised) {
+            throw new IllegalStateException("The detector configuration can not be changed after the first frame");
+        }
+    }
+
+    private final class BandTask extends RecursiveAction {
+
+        private final TileTask[] tiles;
+
+        private BandTask(int tileY) {
+            tiles = new TileTask[tilesAcross];
+            for (int tileX = 0; tileX < tilesAcross; tileX++) {
+                tiles[tileX] = new TileTask(tileX, tileY);
+            }
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tiles);
+        }
+    }
+
+    private final class TileTask extends RecursiveAction {
+
+        private final int tileX;
+
+        private final int tileY;
+
+        private boolean compare;
+
+        private TileTask(int tileX, int tileY) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        protected void compute() {
+            compareTile(tileX, tileY, compare);
+        }
+    }
+
+}
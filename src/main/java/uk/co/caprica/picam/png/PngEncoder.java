@@ -0,0 +1,481 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.png;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Parallel PNG encoder for raw RGB captures.
+ * <p>
+ * The image is split into blocks of rows that are filtered and compressed independently, in parallel, each with its
+ * own {@link Deflater}, in the style of "pigz". Every block except the last is ended with a sync flush so the raw
+ * deflate streams can simply be concatenated, the zlib header is written before the first block and the Adler-32
+ * checksums of the blocks are combined for the trailer. Each compressed block is written as its own IDAT chunk, in order,
+ * as soon as it and all the blocks before it are complete.
+ * <p>
+ * The blocks do not share a dictionary, which costs a little compression at block boundaries in exchange for complete
+ * independence. With the default block size of 128KB the difference is negligible.
+ * <p>
+ * The row filters are written as simple loops over the bytes of a row so they can be compiled to vector instructions.
+ * <p>
+ * This can be used in like a "builder".
+ */
+public final class PngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int COLOUR_TYPE_RGB = 2;
+
+    private static final int ADLER_BASE = 65521;
+
+    private int level = 6;
+
+    private PngFilter filter = PngFilter.ADAPTIVE;
+
+    private int blockSize = 131072;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private final Deque<Deflater> deflaters = new ArrayDeque<>();
+
+    private PngEncoder() {
+    }
+
+    public static PngEncoder pngEncoder() {
+        return new PngEncoder();
+    }
+
+    /**
+     * Set the compression level.
+     *
+     * @param level deflate compression level, 0 to 9
+     * @return this encoder
+     */
+    public PngEncoder level(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Level must be in the range 0 to 9");
+        }
+        this.level = level;
+        return this;
+    }
+
+    public PngEncoder filter(PngFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Set the approximate amount of image data compressed by each task.
+     *
+     * @param blockSize block size, in bytes, rounded to a whole number of rows
+     * @return this encoder
+     */
+    public PngEncoder blockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used for compression.
+     * <p>
+     * The default is the common pool.
+     *
+     * @param pool fork-join pool
+     * @return this encoder
+     */
+    public PngEncoder pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Encode a complete raw frame.
+     * <p>
+     * The sink handler is used exactly as if it were receiving a capture from the camera: it is begun, receives the PNG
+     * data in chunks, and is ended.
+     *
+     * @param frame frame data
+     * @param layout frame layout, must be {@link Encoding#RGB24} or {@link Encoding#BGR24}
+     * @param sink handler to receive the encoded image
+     * @param <T> type of result produced by the sink
+     * @return sink result
+     * @throws Exception if an error occurs
+     */
+    public <T> T encode(byte[] frame, RawFrameLayout layout, PictureCaptureHandler<T> sink) throws Exception {
+        checkLayout(layout);
+        boolean bgr = layout.encoding() == Encoding.BGR24;
+        int rowsPerBlock = rowsPerBlock(layout.width());
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        sink.begin();
+        try {
+            Trailer trailer = new Trailer();
+            write(sink, header(layout.width(), layout.height()));
+            for (int first = 0; first < layout.height(); first += rowsPerBlock) {
+                int count = Math.min(rowsPerBlock, layout.height() - first);
+                pending.add(submit(frame, first * layout.stride(), layout.stride(), layout.width(), count, first > 0, bgr, first == 0, first + count == layout.height()));
+                // Write anything that is already finished, so the output is produced while encoding continues
+                while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+                    trailer.add(sink, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                trailer.add(sink, pending.removeFirst());
+            }
+            write(sink, trailer.end());
+        }
+        finally {
+            sink.end();
+        }
+        return sink.result();
+    }
+
+    int rowsPerBlock(int width) {
+        return Math.max(1, blockSize / (width * 3 + 1));
+    }
+
+    static void checkLayout(RawFrameLayout layout) {
+        if (layout.encoding() != Encoding.RGB24 && layout.encoding() != Encoding.BGR24) {
+            throw new IllegalArgumentException("Only RGB24 and BGR24 captures can be encoded");
+        }
+    }
+
+    /**
+     * Submit a block of rows for filtering and compression.
+     *
+     * @param source array containing the rows
+     * @param offset offset of the first row of the block
+     * @param stride number of bytes between the start of each row
+     * @param width image width, in pixels
+     * @param count number of rows in the block
+     * @param prior <code>true</code> if the row before the first row is present in the source
+     * @param bgr <code>true</code> if the pixels are in BGR order
+     * @param first <code>true</code> if this is the first block of the image
+     * @param last <code>true</code> if this is the last block of the image
+     * @return future block
+     */
+    Future<Block> submit(byte[] source, int offset, int stride, int width, int count, boolean prior, boolean bgr, boolean first, boolean last) {
+        return pool.submit(() -> compress(source, offset, stride, width, count, prior, bgr, first, last));
+    }
+
+    private Block compress(byte[] source, int offset, int stride, int width, int count, boolean hasPrior, boolean bgr, boolean first, boolean last) {
+        int rowBytes = width * 3;
+        byte[] filtered = new byte[count * (rowBytes + 1)];
+        byte[] prior = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[] candidate = new byte[rowBytes];
+        if (hasPrior) {
+            copyRow(source, offset - stride, prior, rowBytes, bgr);
+        }
+        for (int row = 0; row < count; row++) {
+            copyRow(source, offset + row * stride, current, rowBytes, bgr);
+            filterRow(current, prior, filtered, row * (rowBytes + 1), candidate);
+            byte[] t = prior;
+            prior = current;
+            current = t;
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, 0, filtered.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(filtered.length / 2 + 64);
+        // Chunk length and type, the length is patched later
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write('I');
+        out.write('D');
+        out.write('A');
+        out.write('T');
+        if (first) {
+            // zlib header, 32K window, deflate
+            out.write(0x78);
+            out.write(0x01);
+        }
+        Deflater deflater = deflater();
+        try {
+            deflater.setInput(filtered);
+            byte[] buffer = new byte[65536];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+        }
+        finally {
+            release(deflater);
+        }
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        byte[] chunk = out.toByteArray();
+        int length = chunk.length - 12;
+        putInt(chunk, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 4, length + 4);
+        putInt(chunk, chunk.length - 4, (int) crc.getValue());
+        return new Block(chunk, (int) adler.getValue(), filtered.length);
+    }
+
+    private void filterRow(byte[] current, byte[] prior, byte[] out, int position, byte[] candidate) {
+        int rowBytes = current.length;
+        PngFilter chosen = filter;
+        if (chosen == PngFilter.ADAPTIVE) {
+            chosen = PngFilter.NONE;
+            long best = sumAbs(current);
+            for (PngFilter f : new PngFilter[] {PngFilter.SUB, PngFilter.UP, PngFilter.AVERAGE, PngFilter.PAETH}) {
+                apply(f, current, prior, candidate, 0);
+                long sum = sumAbs(candidate);
+                if (sum < best) {
+                    best = sum;
+                    chosen = f;
+                }
+            }
+        }
+        out[position] = (byte) chosen.value();
+        apply(chosen, current, prior, out, position + 1);
+    }
+
+    private static void apply(PngFilter f, byte[] raw, byte[] prior, byte[] out, int o) {
+        int n = raw.length;
+        switch (f) {
+            case NONE:
+                System.arraycopy(raw, 0, out, o, n);
+                break;
+            case SUB:
+                out[o] = raw[0];
+                out[o + 1] = raw[1];
+                out[o + 2] = raw[2];
+                for (int i = 3; i < n; i++) {
+                    out[o + i] = (byte) (raw[i] - raw[i - 3]);
+                }
+                break;
+            case UP:
+                for (int i = 0; i < n; i++) {
+                    out[o + i] = (byte) (raw[i] - prior[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < 3; i++) {
+                    out[o + i] = (byte) (raw[i] - ((prior[i] & 0xff) >>> 1));
+                }
+                for (int i = 3; i < n; i++) {
+                    out[o + i] = (byte) (raw[i] - (((raw[i - 3] & 0xff) + (prior[i] & 0xff)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < 3; i++) {
+                    out[o + i] = (byte) (raw[i] - prior[i]);
+                }
+                for (int i = 3; i < n; i++) {
+                    int a = raw[i - 3] & 0xff;
+                    int b = prior[i] & 0xff;
+                    int c = prior[i - 3] & 0xff;
+                    int pa = Math.abs(b - c);
+                    int pb = Math.abs(a - c);
+                    int pc = Math.abs(a + b - c - c);
+                    int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    out[o + i] = (byte) (raw[i] - predictor);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private static long sumAbs(byte[] row) {
+        // Filtered bytes are treated as signed, the usual minimum sum of absolute differences heuristic
+        long sum = 0;
+        for (byte b : row) {
+            sum += Math.abs((int) b);
+        }
+        return sum;
+    }
+
+    private static void copyRow(byte[] source, int offset, byte[] row, int rowBytes, boolean bgr) {
+        if (bgr) {
+            for (int i = 0; i < rowBytes; i += 3) {
+                row[i] = source[offset + i + 2];
+                row[i + 1] = source[offset + i + 1];
+                row[i + 2] = source[offset + i];
+            }
+        } else {
+            System.arraycopy(source, offset, row, 0, rowBytes);
+        }
+    }
+
+    private Deflater deflater() {
+        Deflater deflater;
+        synchronized (deflaters) {
+            deflater = deflaters.pollFirst();
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+        synchronized (deflaters) {
+            deflaters.addFirst(deflater);
+        }
+    }
+
+    static byte[] header(int width, int height) {
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = COLOUR_TYPE_RGB;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+        byte[] chunk = chunk("IHDR", ihdr);
+        out.write(chunk, 0, chunk.length);
+        return out.toByteArray();
+    }
+
+    static byte[] chunk(String type, byte[] data) {
+        byte[] chunk = new byte[12 + data.length];
+        putInt(chunk, 0, data.length);
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, chunk, 4, 4);
+        System.arraycopy(data, 0, chunk, 8, data.length);
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 4, data.length + 4);
+        putInt(chunk, 8 + data.length, (int) crc.getValue());
+        return chunk;
+    }
+
+    static void write(PictureCaptureHandler<?> sink, byte[] data) throws Exception {
+        if (sink.pictureData(data) != data.length) {
+            throw new IllegalStateException("Sink did not accept all of the data");
+        }
+    }
+
+    /**
+     * Combine two Adler-32 checksums, as zlib's <code>adler32_combine</code>.
+     *
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 length of the second sequence
+     * @return checksum of the concatenated sequences
+     */
+    static int combineAdler32(int adler1, int adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return (int) (sum1 | (sum2 << 16));
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset    ] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A compressed block, ready to write as an IDAT chunk.
+     */
+    static final class Block {
+
+        private final byte[] chunk;
+
+        private final int adler;
+
+        private final int length;
+
+        private Block(byte[] chunk, int adler, int length) {
+            this.chunk = chunk;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes blocks in order and accumulates the checksum for the zlib trailer.
+     */
+    static final class Trailer {
+
+        private int adler = 1;
+
+        void add(PictureCaptureHandler<?> sink, Future<Block> future) throws Exception {
+            Block block;
+            try {
+                block = future.get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            adler = combineAdler32(adler, block.adler, block.length);
+            write(sink, block.chunk);
+        }
+
+        byte[] end() {
+            byte[] checksum = new byte[4];
+            putInt(checksum, 0, adler);
+            byte[] idat = chunk("IDAT", checksum);
+            byte[] iend = chunk("IEND", new byte[0]);
+            byte[] result = new byte[idat.length + iend.length];
+            System.arraycopy(idat, 0, result, 0, idat.length);
+            System.arraycopy(iend, 0, result, idat.length, iend.length);
+            return result;
+        }
+    }
+
+}
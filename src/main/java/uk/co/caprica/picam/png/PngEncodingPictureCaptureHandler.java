@@ -0,0 +1,177 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.png;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.RawRowPictureCaptureHandler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Implementation of a picture capture handler that encodes a raw RGB capture as a PNG image, sending the encoded image
+ * to another picture capture handler.
+ * <p>
+ * Rows are collected into blocks as the picture data arrives, each complete block is immediately submitted to the
+ * {@link PngEncoder} for parallel compression, so the compression is spread over all cores and overlaps the capture.
+ * Encoded blocks are sent to the sink handler in order as they become available.
+ * <p>
+ * Only the rows of the blocks still being compressed are buffered, not the whole frame. Block buffers are reused for
+ * subsequent captures.
+ * <p>
+ * If the capture ends before the last row has arrived, no trailer is written and {@link #end()} fails, rather than
+ * finishing an image that has rows missing.
+ *
+ * @param <T> type of result produced by the sink picture capture handler
+ */
+public class PngEncodingPictureCaptureHandler<T> extends RawRowPictureCaptureHandler<T> {
+
+    private final PngEncoder encoder;
+
+    private final PictureCaptureHandler<T> sink;
+
+    private final int rowBytes;
+
+    private final int rowsPerBlock;
+
+    private final boolean bgr;
+
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+
+    private final Deque<Future<PngEncoder.Block>> pending = new ArrayDeque<>();
+
+    private final Deque<byte[]> pendingBuffers = new ArrayDeque<>();
+
+    private PngEncoder.Trailer trailer;
+
+    private byte[] block;
+
+    private int blockStart;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout, must be {@link Encoding#RGB24} or {@link Encoding#BGR24}
+     * @param encoder encoder
+     * @param sink handler to receive the encoded image
+     */
+    public PngEncodingPictureCaptureHandler(RawFrameLayout layout, PngEncoder encoder, PictureCaptureHandler<T> sink) {
+        super(layout, false);
+        PngEncoder.checkLayout(layout);
+        this.encoder = encoder;
+        this.sink = sink;
+        this.rowBytes = layout.width() * 3;
+        this.rowsPerBlock = encoder.rowsPerBlock(layout.width());
+        this.bgr = layout.encoding() == Encoding.BGR24;
+    }
+
+    @Override
+    protected void beginFrame() throws Exception {
+        // Anything left over from a failed capture must finish before its buffers can be reused
+        boolean interrupted = false;
+        for (Future<PngEncoder.Block> future : pending) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException | CancellationException e) {
+                // The capture that submitted the block has already failed
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        pending.clear();
+        if (interrupted) {
+            // A block may still be compressing from its buffer, so the buffers are abandoned rather than reused
+            Thread.currentThread().interrupt();
+        } else {
+            freeBuffers.addAll(pendingBuffers);
+        }
+        pendingBuffers.clear();
+        if (block != null) {
+            freeBuffers.add(block);
+        }
+        trailer = new PngEncoder.Trailer();
+        block = buffer();
+        blockStart = 0;
+        sink.begin();
+        PngEncoder.write(sink, PngEncoder.header(layout.width(), layout.height()));
+    }
+
+    @Override
+    protected void row(int plane, byte[] data, int offset, int y) throws Exception {
+        // Row zero of each block buffer holds the last row of the previous block, used by the "up" style filters
+        int index = y - blockStart + 1;
+        System.arraycopy(data, offset, block, index * rowBytes, rowBytes);
+        boolean last = y == layout.height() - 1;
+        if (index == rowsPerBlock || last) {
+            pending.add(encoder.submit(block, rowBytes, rowBytes, layout.width(), index, blockStart > 0, bgr, blockStart == 0, last));
+            pendingBuffers.add(block);
+            if (!last) {
+                byte[] next = buffer();
+                System.arraycopy(block, index * rowBytes, next, 0, rowBytes);
+                block = next;
+                blockStart = y + 1;
+            } else {
+                block = null;
+            }
+            drain(false);
+        }
+    }
+
+    @Override
+    protected void endFrame() throws Exception {
+        try {
+            if (block != null) {
+                // The last block was never compressed, the zlib stream is not finished so the image would be corrupt
+                throw new IllegalStateException("Incomplete frame");
+            }
+            drain(true);
+            PngEncoder.write(sink, trailer.end());
+        }
+        finally {
+            sink.end();
+        }
+    }
+
+    @Override
+    public T result() {
+        return sink.result();
+    }
+
+    private void drain(boolean wait) throws Exception {
+        while (!pending.isEmpty() && (wait || pending.peekFirst().isDone())) {
+            trailer.add(sink, pending.removeFirst());
+            freeBuffers.add(pendingBuffers.removeFirst());
+        }
+    }
+
+    private byte[] buffer() {
+        byte[] buffer = freeBuffers.pollFirst();
+        return buffer != null ? buffer : new byte[(rowsPerBlock + 1) * rowBytes];
+    }
+
+}
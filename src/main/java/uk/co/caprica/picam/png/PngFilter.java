@@ -0,0 +1,47 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.png;
+
+/**
+ * PNG row filter selection.
+ */
+public enum PngFilter {
+
+    NONE(0),
+    SUB(1),
+    UP(2),
+    AVERAGE(3),
+    PAETH(4),
+
+    /**
+     * Choose the filter for each row that gives the minimum sum of absolute differences.
+     */
+    ADAPTIVE(-1);
+
+    private final int value;
+
+    PngFilter(int value) {
+        this.value = value;
+    }
+
+    public int value() {
+        return value;
+    }
+}
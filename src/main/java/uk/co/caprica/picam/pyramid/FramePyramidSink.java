@@ -0,0 +1,77 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.pyramid;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+/**
+ * Implementation of a pyramid sink that assembles a whole level into an unpadded raw frame, for example for an in-memory
+ * cache.
+ * <p>
+ * The frame buffer is reused for each capture if the level size does not change, so the frame must be copied if it is
+ * needed after the next capture begins.
+ */
+public class FramePyramidSink implements PyramidSink {
+
+    private RawFrameLayout layout;
+
+    private byte[] frame;
+
+    private volatile boolean complete;
+
+    @Override
+    public void begin(RawFrameLayout layout) {
+        complete = false;
+        if (frame == null || frame.length != layout.frameSize()) {
+            frame = new byte[layout.frameSize()];
+        }
+        this.layout = layout;
+    }
+
+    @Override
+    public void band(PyramidBand band) {
+        int offset = band.plane() == 0 ? 0 : band.plane() == 1 ? layout.uOffset() : layout.vOffset();
+        int stride = band.plane() == 0 ? layout.stride() : layout.chromaStride();
+        System.arraycopy(band.data(), 0, frame, offset + band.y() * stride, band.rows() * band.rowBytes());
+    }
+
+    @Override
+    public void end() {
+        complete = true;
+    }
+
+    /**
+     * Get the layout of the level.
+     *
+     * @return layout
+     */
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Get the assembled level.
+     *
+     * @return frame data, or <code>null</code> if the level is not complete
+     */
+    public byte[] frame() {
+        return complete ? frame : null;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.pyramid;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+/**
+ * A band of consecutive rows of one plane of one level of an image pyramid.
+ * <p>
+ * The rows are packed with no padding, each row is {@link #rowBytes()} bytes. The band data belongs to a pool and must
+ * not be retained after {@link PyramidSink#band(PyramidBand)} returns.
+ */
+public final class PyramidBand {
+
+    private final int level;
+
+    private final RawFrameLayout layout;
+
+    private final int plane;
+
+    private final int y;
+
+    private final int rows;
+
+    private final int rowBytes;
+
+    private final byte[] data;
+
+    PyramidBand(int level, RawFrameLayout layout, int plane, int y, int rows, int rowBytes, byte[] data) {
+        this.level = level;
+        this.layout = layout;
+        this.plane = plane;
+        this.y = y;
+        this.rows = rows;
+        this.rowBytes = rowBytes;
+        this.data = data;
+    }
+
+    /**
+     * Get the level, 0 being full size.
+     *
+     * @return level
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * Get the layout of the whole level.
+     *
+     * @return layout, with no padding
+     */
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Get the plane.
+     *
+     * @return plane number, see {@link uk.co.caprica.picam.raw.RawRowPictureCaptureHandler#PLANE_Y}
+     */
+    public int plane() {
+        return plane;
+    }
+
+    /**
+     * Get the row number, within the plane, of the first row of the band.
+     *
+     * @return row number
+     */
+    public int y() {
+        return y;
+    }
+
+    /**
+     * Get the number of rows in the band.
+     *
+     * @return number of rows
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of bytes in each row.
+     *
+     * @return row size, in bytes
+     */
+    public int rowBytes() {
+        return rowBytes;
+    }
+
+    /**
+     * Get the band data.
+     *
+     * @return data, at least {@link #rows()} times {@link #rowBytes()} bytes
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("level %d plane %d rows %d to %d", level, plane, y, y + rows - 1);
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.pyramid;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.RawRowPictureCaptureHandler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Implementation of a picture capture handler that builds an image pyramid (full size, 1/2, 1/4, 1/8 and so on) from a
+ * raw capture in a single pass over the rows as they arrive.
+ * <p>
+ * Each level is the previous level reduced by two in each direction with a two by two box filter, so a row of a level
+ * is produced as soon as the second of its two source rows is available. Only one pending row per level and plane is
+ * kept. The rows of each level are collected into bands, and each complete band is handed to the sink for that level.
+ * Each level is an unpadded raw frame in the same encoding as the capture.
+ * <p>
+ * Band buffers come from a small fixed pool per level. Without an executor the sinks are invoked on the capture thread
+ * and a single buffer per level is enough. With an executor the sinks are invoked in parallel, each level in order on
+ * its own chain of tasks, and a few bands per level may be in flight; if a sink falls behind, the capture waits for a
+ * buffer to be returned. Either way memory use is bounded by a few bands per level, never a whole frame.
+ * <p>
+ * The result is always <code>null</code>, the levels are only delivered to the sinks. If a sink fails, the capture
+ * fails when it ends.
+ */
+public class PyramidPictureCaptureHandler extends RawRowPictureCaptureHandler<Void> {
+
+    /**
+     * Default number of rows in a band.
+     */
+    public static final int DEFAULT_BAND_ROWS = 16;
+
+    /**
+     * Number of band buffers per level and plane when an executor is used.
+     */
+    private static final int BANDS_IN_FLIGHT = 3;
+
+    private final PyramidSink[] sinks;
+
+    private final int levels;
+
+    private final int planes;
+
+    private final int bandRows;
+
+    private final Executor executor;
+
+    private final RawFrameLayout[] layouts;
+
+    private final int[][] rowBytes;
+
+    private final int[][] planeRows;
+
+    private final int[] channels;
+
+    private final byte[][][] pending;
+
+    private final byte[][][] reduced;
+
+    private final BlockingQueue<byte[]>[][] pools;
+
+    private final byte[][][] bands;
+
+    private final int[][] bandStart;
+
+    private final CompletableFuture<?>[] chains;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Create a picture capture handler that invokes the sinks on the capture thread.
+     *
+     * @param layout frame layout
+     * @param sinks one sink for each level, starting with full size, a sink may be <code>null</code> if that level is
+     *              not wanted
+     */
+    public PyramidPictureCaptureHandler(RawFrameLayout layout, PyramidSink... sinks) {
+        this(layout, DEFAULT_BAND_ROWS, null, sinks);
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param bandRows number of rows in a band
+     * @param executor executor used to invoke the sinks in parallel, or <code>null</code> to invoke them on the capture
+     *                 thread
+     * @param sinks one sink for each level, starting with full size, a sink may be <code>null</code> if that level is
+     *              not wanted
+     */
+    @SuppressWarnings("unchecked")
+    public PyramidPictureCaptureHandler(RawFrameLayout layout, int bandRows, Executor executor, PyramidSink... sinks) {
+        super(layout, layout.isPlanar());
+        if (sinks.length == 0) {
+            throw new IllegalArgumentException("At least one level is required");
+        }
+        if (bandRows < 1) {
+            throw new IllegalArgumentException("Band rows must be at least 1");
+        }
+        this.sinks = sinks.clone();
+        this.levels = sinks.length;
+        this.planes = layout.isPlanar() ? 3 : 1;
+        this.bandRows = bandRows;
+        this.executor = executor;
+        this.layouts = new RawFrameLayout[levels];
+        this.rowBytes = new int[levels][planes];
+        this.planeRows = new int[levels][planes];
+        this.channels = new int[] {layout.bytesPerPixel(), 1, 1};
+        this.pending = new byte[levels][planes][];
+        this.reduced = new byte[levels][planes][];
+        @SuppressWarnings("unchecked")
+        BlockingQueue<byte[]>[][] pools = (BlockingQueue<byte[]>[][]) new BlockingQueue<?>[levels][planes];
+        this.pools = pools;
+        this.bands = new byte[levels][planes][];
+        this.bandStart = new int[levels][planes];
+        this.chains = new CompletableFuture<?>[levels];
+        int width = layout.width();
+        int height = layout.height();
+        for (int level = 0; level < levels; level++) {
+            RawFrameLayout levelLayout = rawFrameLayout(layout.encoding(), width, height, 1, 1);
+            layouts[level] = levelLayout;
+            for (int plane = 0; plane < planes; plane++) {
+                rowBytes[level][plane] = plane == PLANE_Y ? width * layout.bytesPerPixel() : levelLayout.chromaWidth();
+                planeRows[level][plane] = plane == PLANE_Y ? height : levelLayout.chromaHeight();
+            }
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        for (int level = 0; level < levels; level++) {
+            for (int plane = 0; plane < planes; plane++) {
+                if (level + 1 < levels) {
+                    pending[level][plane] = new byte[rowBytes[level][plane]];
+                    reduced[level][plane] = new byte[rowBytes[level + 1][plane]];
+                }
+                if (sinks[level] != null) {
+                    int count = executor != null ? BANDS_IN_FLIGHT : 1;
+                    pools[level][plane] = new ArrayBlockingQueue<>(count);
+                    for (int i = 0; i < count; i++) {
+                        pools[level][plane].add(new byte[bandRows * rowBytes[level][plane]]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the layout of a level.
+     *
+     * @param level level, 0 being full size
+     * @return layout, with no padding
+     */
+    public RawFrameLayout layout(int level) {
+        return layouts[level];
+    }
+
+    @Override
+    protected void beginFrame() throws Exception {
+        failure.set(null);
+        for (int level = 0; level < levels; level++) {
+            for (int plane = 0; plane < planes; plane++) {
+                if (bands[level][plane] != null) {
+                    // Left over from an incomplete capture
+                    pools[level][plane].offer(bands[level][plane]);
+                    bands[level][plane] = null;
+                }
+            }
+            PyramidSink sink = sinks[level];
+            if (sink != null) {
+                RawFrameLayout levelLayout = layouts[level];
+                dispatch(level, () -> sink.begin(levelLayout));
+            }
+        }
+    }
+
+    @Override
+    protected void row(int plane, byte[] data, int offset, int y) throws Exception {
+        levelRow(0, plane, data, offset, y);
+    }
+
+    @Override
+    protected void endFrame() throws Exception {
+        for (int level = 0; level < levels; level++) {
+            PyramidSink sink = sinks[level];
+            if (sink != null) {
+                dispatch(level, sink::end);
+            }
+        }
+        for (int level = 0; level < levels; level++) {
+            if (chains[level] != null) {
+                chains[level].join();
+                chains[level] = null;
+            }
+        }
+        Throwable cause = failure.getAndSet(null);
+        if (cause instanceof Exception) {
+            throw (Exception) cause;
+        } else if (cause != null) {
+            throw new CompletionException(cause);
+        }
+    }
+
+    @Override
+    public Void result() {
+        return null;
+    }
+
+    private void levelRow(int level, int plane, byte[] data, int offset, int y) throws Exception {
+        int bytes = rowBytes[level][plane];
+        int lastRow = planeRows[level][plane] - 1;
+        if (sinks[level] != null) {
+            byte[] band = bands[level][plane];
+            if (band == null) {
+                band = pools[level][plane].take();
+                bands[level][plane] = band;
+                bandStart[level][plane] = y;
+            }
+            int index = y - bandStart[level][plane];
+            System.arraycopy(data, offset, band, index * bytes, bytes);
+            if (index + 1 == bandRows || y == lastRow) {
+                handOff(level, plane, index + 1);
+            }
+        }
+        if (level + 1 < levels) {
+            if ((y & 1) == 0 && y != lastRow) {
+                System.arraycopy(data, offset, pending[level][plane], 0, bytes);
+            } else {
+                // An odd number of rows ends with a row that is paired with itself
+                boolean paired = (y & 1) == 1;
+                byte[] upper = paired ? pending[level][plane] : data;
+                int upperOffset = paired ? 0 : offset;
+                byte[] out = reduced[level][plane];
+                reduce(upper, upperOffset, data, offset, bytes, channels[plane], out, rowBytes[level + 1][plane]);
+                levelRow(level + 1, plane, out, 0, y >> 1);
+            }
+        }
+    }
+
+    /**
+     * Reduce two rows to one row of half the width with a two by two box filter.
+     */
+    private static void reduce(byte[] upper, int upperOffset, byte[] lower, int lowerOffset, int bytes, int channels, byte[] out, int outBytes) {
+        int lastPixel = bytes - channels;
+        for (int i = 0; i < outBytes; i++) {
+            int pixel = i / channels;
+            int channel = i - pixel * channels;
+            int left = pixel * 2 * channels + channel;
+            // An odd width ends with a pixel that is paired with itself
+            int right = Math.min(left + channels, lastPixel + channel);
+            int sum = (upper[upperOffset + left] & 0xff) + (upper[upperOffset + right] & 0xff) + (lower[lowerOffset + left] & 0xff) + (lower[lowerOffset + right] & 0xff);
+            out[i] = (byte) ((sum + 2) >> 2);
+        }
+    }
+
+    private void handOff(int level, int plane, int rows) throws Exception {
+        byte[] data = bands[level][plane];
+        bands[level][plane] = null;
+        PyramidBand band = new PyramidBand(level, layouts[level], plane, bandStart[level][plane], rows, rowBytes[level][plane], data);
+        BlockingQueue<byte[]> pool = pools[level][plane];
+        PyramidSink sink = sinks[level];
+        dispatch(level, () -> {
+            try {
+                sink.band(band);
+            }
+            finally {
+                pool.offer(data);
+            }
+        });
+    }
+
+    private void dispatch(int level, SinkCall call) throws Exception {
+        if (executor == null) {
+            call.run();
+            return;
+        }
+        CompletableFuture<?> chain = chains[level] != null ? chains[level] : CompletableFuture.completedFuture(null);
+        chains[level] = chain.thenRunAsync(() -> {
+            try {
+                call.run();
+            }
+            catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }, executor);
+    }
+
+    private interface SinkCall {
+        void run() throws Exception;
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.pyramid;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+/**
+ * Specification for a component that receives one level of an image pyramid, a band of rows at a time.
+ * <p>
+ * For each capture a sink receives {@link #begin(RawFrameLayout)}, then each band in order (for a planar frame all of
+ * the bands of the Y plane, then the U plane, then the V plane), then {@link #end()}. The calls for one level are never
+ * concurrent, but different levels may be processed in parallel.
+ */
+public interface PyramidSink {
+
+    /**
+     * Begin a level.
+     *
+     * @param layout layout of the level, with no padding
+     * @throws Exception if a general error occurs
+     */
+    void begin(RawFrameLayout layout) throws Exception;
+
+    /**
+     * Process a band of rows.
+     *
+     * @param band band
+     * @throws Exception if a general error occurs
+     */
+    void band(PyramidBand band) throws Exception;
+
+    /**
+     * End a level.
+     *
+     * @throws Exception if a general error occurs
+     */
+    void end() throws Exception;
+
+}
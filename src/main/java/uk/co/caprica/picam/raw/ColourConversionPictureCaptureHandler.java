@@ -0,0 +1,118 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Implementation of a picture capture handler that converts a raw capture to an RGB image while the picture data
+ * streams in, without buffering the frame.
+ * <p>
+ * For {@link Encoding#RGB24} and {@link Encoding#BGR24} each row is converted as soon as it arrives. For
+ * {@link Encoding#I420} the luma is stored directly in the destination image, the U plane is kept in a quarter-size
+ * buffer, and each pair of image rows is converted as soon as the matching V row arrives.
+ * <p>
+ * The destination image is obtained from the {@link ColourConverter} and so is reused for each capture of the same size.
+ * <p>
+ * The conversion runs row by row on the thread delivering the picture data, it does not use the fork-join pool of the
+ * {@link ColourConverter}. Splitting the rows across the pool would mean copying them, because the picture data array
+ * may be reused as soon as each call returns, and that is the frame buffer this handler exists to avoid. The work is
+ * spread over the time the capture takes to arrive instead. If the conversion must be finished as quickly as possible
+ * after the capture ends, assemble the frame with a {@link FrameAssembler} and use
+ * {@link ColourConverter#convert(byte[], RawFrameLayout, int[])}, which converts in parallel.
+ */
+public class ColourConversionPictureCaptureHandler extends RawRowPictureCaptureHandler<BufferedImage> {
+
+    private final BufferedImage image;
+
+    private final int[] pixels;
+
+    private final byte[] uPlane;
+
+    private final byte[] lumaRow;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param converter colour converter providing the reusable destination image
+     */
+    public ColourConversionPictureCaptureHandler(RawFrameLayout layout, ColourConverter converter) {
+        super(layout, true);
+        this.image = converter.image(layout.width(), layout.height());
+        this.pixels = ColourConverter.pixels(image);
+        this.uPlane = layout.isPlanar() ? new byte[layout.chromaWidth() * layout.chromaHeight()] : null;
+        this.lumaRow = layout.isPlanar() ? new byte[layout.width()] : null;
+    }
+
+    @Override
+    protected void beginFrame() {
+    }
+
+    @Override
+    protected void row(int plane, byte[] data, int offset, int y) {
+        int width = layout.width();
+        switch (layout.encoding()) {
+            case RGB24:
+                ColourConverter.packedRow(data, offset, pixels, y * width, width, 0, 2);
+                break;
+            case BGR24:
+                ColourConverter.packedRow(data, offset, pixels, y * width, width, 2, 0);
+                break;
+            default:
+                if (plane == PLANE_Y) {
+                    for (int x = 0, i = y * width; x < width; x++) {
+                        pixels[i + x] = data[offset + x] & 0xff;
+                    }
+                } else if (plane == PLANE_U) {
+                    System.arraycopy(data, offset, uPlane, y * layout.chromaWidth(), layout.chromaWidth());
+                } else {
+                    int uOffset = y * layout.chromaWidth();
+                    for (int row = y * 2; row < Math.min(y * 2 + 2, layout.height()); row++) {
+                        int i = row * width;
+                        for (int x = 0; x < width; x++) {
+                            lumaRow[x] = (byte) pixels[i + x];
+                        }
+                        ColourConverter.yuvRow(lumaRow, 0, uPlane, uOffset, data, offset, pixels, i, width);
+                    }
+                }
+                break;
+        }
+    }
+
+    @Override
+    protected void endFrame() {
+    }
+
+    /**
+     * Get the converted image.
+     * <p>
+     * The same image instance is returned for each capture.
+     *
+     * @return image
+     */
+    @Override
+    public BufferedImage result() {
+        return image;
+    }
+
+}
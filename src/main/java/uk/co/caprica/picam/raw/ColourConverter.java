@@ -0,0 +1,266 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Conversion of raw captures to packed RGB pixels, as used by Java2D {@link BufferedImage#TYPE_INT_RGB} images.
+ * <p>
+ * All arithmetic is fixed-point integer. YUV is converted using the full-range (JFIF) BT.601 equations, which is what
+ * the camera produces for stills.
+ * <p>
+ * Whole frames are converted in parallel, the rows being split recursively across a fork-join pool.
+ * <p>
+ * Destination images are cached by size and reused, an image returned by {@link #image(int, int)} or
+ * {@link #toImage(byte[], RawFrameLayout)} will be overwritten by the next conversion of the same size.
+ */
+public final class ColourConverter {
+
+    /**
+     * Minimum number of pixels converted by a single task.
+     */
+    private static final int MIN_PIXELS_PER_TASK = 65536;
+
+    private final ForkJoinPool pool;
+
+    private final Map<Long, BufferedImage> images = new HashMap<>();
+
+    /**
+     * Create a colour converter using the common fork-join pool.
+     */
+    public ColourConverter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a colour converter.
+     *
+     * @param pool fork-join pool used for whole-frame conversions
+     */
+    public ColourConverter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Get a reusable image.
+     *
+     * @param width image width
+     * @param height image height
+     * @return image, the same instance is returned for each call with the same size
+     */
+    public synchronized BufferedImage image(int width, int height) {
+        Long key = (long) width << 32 | height;
+        BufferedImage image = images.get(key);
+        if (image == null) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            images.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Get the pixel array backing an image.
+     *
+     * @param image image, which must be {@link BufferedImage#TYPE_INT_RGB}
+     * @return pixels
+     */
+    public static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Convert a complete raw frame to a reusable image.
+     *
+     * @param frame frame data
+     * @param layout frame layout
+     * @return image
+     */
+    public BufferedImage toImage(byte[] frame, RawFrameLayout layout) {
+        BufferedImage image = image(layout.width(), layout.height());
+        convert(frame, layout, pixels(image));
+        return image;
+    }
+
+    /**
+     * Convert a complete raw frame to packed RGB pixels, in parallel.
+     *
+     * @param frame frame data
+     * @param layout frame layout
+     * @param destination destination pixels, at least width times height
+     */
+    public void convert(byte[] frame, RawFrameLayout layout, int[] destination) {
+        if (frame.length < layout.frameSize()) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        int rowsPerTask = Math.max(1, MIN_PIXELS_PER_TASK / layout.width());
+        pool.invoke(new RowsTask(frame, layout, destination, 0, layout.height(), rowsPerTask));
+    }
+
+    /**
+     * Convert a range of rows of a complete raw frame, on the calling thread.
+     *
+     * @param frame frame data
+     * @param layout frame layout
+     * @param destination destination pixels
+     * @param firstRow first row to convert
+     * @param lastRow row after the last row to convert
+     */
+    public static void convertRows(byte[] frame, RawFrameLayout layout, int[] destination, int firstRow, int lastRow) {
+        int width = layout.width();
+        int stride = layout.stride();
+        switch (layout.encoding()) {
+            case I420:
+                int chromaStride = layout.chromaStride();
+                for (int y = firstRow; y < lastRow; y++) {
+                    int chroma = (y >> 1) * chromaStride;
+                    yuvRow(frame, y * stride, frame, layout.uOffset() + chroma, frame, layout.vOffset() + chroma, destination, y * width, width);
+                }
+                break;
+            case RGB24:
+                for (int y = firstRow; y < lastRow; y++) {
+                    packedRow(frame, y * stride, destination, y * width, width, 0, 2);
+                }
+                break;
+            case BGR24:
+                for (int y = firstRow; y < lastRow; y++) {
+                    packedRow(frame, y * stride, destination, y * width, width, 2, 0);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not a raw encoding: " + layout.encoding());
+        }
+    }
+
+    /**
+     * Convert one row of YUV 4:2:0 to packed RGB.
+     *
+     * @param luma luma data
+     * @param lumaOffset offset of the first luma sample of the row
+     * @param u U data
+     * @param uOffset offset of the first U sample of the row
+     * @param v V data
+     * @param vOffset offset of the first V sample of the row
+     * @param destination destination pixels
+     * @param destinationOffset offset of the first destination pixel
+     * @param width number of pixels
+     */
+    static void yuvRow(byte[] luma, int lumaOffset, byte[] u, int uOffset, byte[] v, int vOffset, int[] destination, int destinationOffset, int width) {
+        for (int x = 0; x < width; x += 2) {
+            // Each chroma sample is shared by two pixels, so the chroma terms are calculated once per pair
+            int c = x >> 1;
+            int cb = (u[uOffset + c] & 0xff) - 128;
+            int cr = (v[vOffset + c] & 0xff) - 128;
+            int rd = (91881 * cr + 32768) >> 16;
+            int gd = (22554 * cb + 46802 * cr - 32768) >> 16;
+            int bd = (116130 * cb + 32768) >> 16;
+            int y0 = luma[lumaOffset + x] & 0xff;
+            destination[destinationOffset + x] = clamp(y0 + rd) << 16 | clamp(y0 - gd) << 8 | clamp(y0 + bd);
+            if (x + 1 < width) {
+                int y1 = luma[lumaOffset + x + 1] & 0xff;
+                destination[destinationOffset + x + 1] = clamp(y1 + rd) << 16 | clamp(y1 - gd) << 8 | clamp(y1 + bd);
+            }
+        }
+    }
+
+    /**
+     * Convert one row of packed three-byte pixels to packed RGB.
+     *
+     * @param data row data
+     * @param offset offset of the first byte of the row
+     * @param destination destination pixels
+     * @param destinationOffset offset of the first destination pixel
+     * @param width number of pixels
+     * @param red offset of the red byte within a pixel
+     * @param blue offset of the blue byte within a pixel
+     */
+    static void packedRow(byte[] data, int offset, int[] destination, int destinationOffset, int width, int red, int blue) {
+        for (int x = 0, i = offset; x < width; x++, i += 3) {
+            destination[destinationOffset + x] = (data[i + red] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + blue] & 0xff);
+        }
+    }
+
+    /**
+     * Convert a single full-range YUV value to packed RGB.
+     *
+     * @param y luma
+     * @param u U (Cb)
+     * @param v V (Cr)
+     * @return packed RGB
+     */
+    public static int yuvToRgb(int y, int u, int v) {
+        int cb = u - 128;
+        int cr = v - 128;
+        // Fixed-point (16 bit) coefficients 1.402, 0.344136, 0.714136 and 1.772
+        int r = y + ((91881 * cr + 32768) >> 16);
+        int g = y - ((22554 * cb + 46802 * cr - 32768) >> 16);
+        int b = y + ((116130 * cb + 32768) >> 16);
+        return clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static final class RowsTask extends RecursiveAction {
+
+        private final byte[] frame;
+
+        private final RawFrameLayout layout;
+
+        private final int[] destination;
+
+        private final int firstRow;
+
+        private final int lastRow;
+
+        private final int rowsPerTask;
+
+        private RowsTask(byte[] frame, RawFrameLayout layout, int[] destination, int firstRow, int lastRow, int rowsPerTask) {
+            this.frame = frame;
+            this.layout = layout;
+            this.destination = destination;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= rowsPerTask) {
+                convertRows(frame, layout, destination, firstRow, lastRow);
+            } else {
+                int middle = (firstRow + lastRow) >>> 1;
+                invokeAll(
+                    new RowsTask(frame, layout, destination, firstRow, middle, rowsPerTask),
+                    new RowsTask(frame, layout, destination, middle, lastRow, rowsPerTask)
+                );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+/**
+ * Assembles the chunks of picture data of a raw capture into a complete frame, for picture capture handlers that
+ * can only process the frame once all of it has arrived.
+ * <p>
+ * Chunks passed to {@link PictureCaptureHandler#pictureData(byte[])} may be reused by the caller, so every chunk is
+ * copied into a frame buffer that is allocated when first needed and reused for each capture. Any data past the end of
+ * the frame is counted but ignored.
+ */
+public final class FrameAssembler {
+
+    private final int frameSize;
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * Create a frame assembler.
+     *
+     * @param layout frame layout
+     */
+    public FrameAssembler(RawFrameLayout layout) {
+        this.frameSize = layout.frameSize();
+    }
+
+    /**
+     * Begin a new frame, discarding anything received for the previous one.
+     */
+    public void begin() {
+        position = 0;
+    }
+
+    /**
+     * Add a chunk of picture data.
+     *
+     * @param data picture data
+     */
+    public void add(byte[] data) {
+        int n = Math.min(data.length, frameSize - position);
+        if (n > 0) {
+            if (buffer == null) {
+                buffer = new byte[frameSize];
+            }
+            System.arraycopy(data, 0, buffer, position, n);
+        }
+        position += data.length;
+    }
+
+    /**
+     * Determine whether the whole frame has been received.
+     *
+     * @return <code>true</code> if the frame is complete
+     */
+    public boolean isComplete() {
+        return position >= frameSize;
+    }
+
+    /**
+     * Get the frame buffer.
+     * <p>
+     * The buffer is overwritten by the next frame.
+     *
+     * @return frame, only valid if {@link #isComplete()}
+     */
+    public byte[] frame() {
+        return buffer;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.raw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Integral image (summed-area table) of the luma of a picture.
+ * <p>
+ * Entry (x, y) of the table is the sum of all pixels above and to the left of pixel (x, y), so the sum of any
+ * rectangle can be found from four entries in constant time, however large the rectangle.
+ * <p>
+ * The table has one more row and column than the picture, the first of each being zero. It is held in an
+ * <code>int[]</code> if the sum of the whole picture can not overflow an <code>int</code> (up to about 8 megapixels),
+ * otherwise in a <code>long[]</code>.
+ * <p>
+ * The table is built from luma rows as they arrive. For small pictures each row is accumulated onto the row above
+ * immediately. For large pictures the rows are grouped into bands; each row is only summed horizontally as it arrives,
+ * and each complete band is summed vertically by a task in a fork-join pool while later rows are still arriving. When
+ * the frame ends, the final total of each band is carried into the bands below it, again in parallel.
+ * <p>
+ * The table is allocated once, nothing is allocated from one frame to the next. An instance must only be used for one
+ * frame at a time, and the table must not be read while a frame is being built.
+ */
+public final class IntegralImage {
+
+    /**
+     * Smallest picture, in pixels, that is built in parallel.
+     */
+    private static final int MIN_PARALLEL_PIXELS = 1 << 20;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tableWidth;
+
+    private final int[] ints;
+
+    private final long[] longs;
+
+    private final ForkJoinPool pool;
+
+    private final int bandRows;
+
+    private final int bandCount;
+
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+    private final List<ForkJoinTask<?>> carryTasks = new ArrayList<>();
+
+    private final boolean[] submitted;
+
+    private final RecursiveAction carryAll = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            invokeAll(carryTasks);
+        }
+    };
+
+    /**
+     * Create an integral image built with the common fork-join pool.
+     *
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     */
+    public IntegralImage(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create an integral image.
+     *
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     * @param pool fork-join pool used to build large pictures in parallel
+     */
+    public IntegralImage(int width, int height, ForkJoinPool pool) {
+        this.width = width;
+        this.height = height;
+        this.tableWidth = width + 1;
+        long entries = (long) tableWidth * (height + 1);
+        if (entries > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Picture is too large");
+        }
+        if ((long) width * height * 255 <= Integer.MAX_VALUE) {
+            this.ints = new int[(int) entries];
+            this.longs = null;
+        } else {
+            this.ints = null;
+            this.longs = new long[(int) entries];
+        }
+        this.pool = pool;
+        int parallelism = pool.getParallelism();
+        if (parallelism > 1 && (long) width * height >= MIN_PARALLEL_PIXELS) {
+            this.bandRows = Math.max(16, (height + parallelism * 4 - 1) / (parallelism * 4));
+            this.bandCount = (height + bandRows - 1) / bandRows;
+            for (int band = 0; band < bandCount; band++) {
+                tasks.add(new BandTask(band));
+                if (band > 0) {
+                    carryTasks.add(new CarryTask(band));
+                }
+            }
+        } else {
+            this.bandRows = height;
+            this.bandCount = 1;
+        }
+        this.submitted = new boolean[bandCount];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Get the table, if it is held in an <code>int[]</code>.
+     *
+     * @return table, <code>(width + 1) * (height + 1)</code> entries row by row, or <code>null</code>
+     */
+    public int[] ints() {
+        return ints;
+    }
+
+    /**
+     * Get the table, if it is held in a <code>long[]</code>.
+     *
+     * @return table, <code>(width + 1) * (height + 1)</code> entries row by row, or <code>null</code>
+     */
+    public long[] longs() {
+        return longs;
+    }
+
+    /**
+     * Get a table entry, the sum of all pixels above and to the left of a position.
+     *
+     * @param x x position, 0 to width
+     * @param y y position, 0 to height
+     * @return sum
+     */
+    public long entry(int x, int y) {
+        int i = y * tableWidth + x;
+        return ints != null ? ints[i] : longs[i];
+    }
+
+    /**
+     * Get the sum of a rectangle.
+     *
+     * @param x left edge, in pixels
+     * @param y top edge, in pixels
+     * @param width width, in pixels
+     * @param height height, in pixels
+     * @return sum of the luma of the pixels in the rectangle
+     */
+    public long sum(int x, int y, int width, int height) {
+        int top = y * tableWidth;
+        int bottom = (y + height) * tableWidth;
+        if (ints != null) {
+            // Differences of ints wrap correctly even if an intermediate value would overflow
+            return ints[bottom + x + width] - ints[bottom + x] - ints[top + x + width] + ints[top + x];
+        }
+        return longs[bottom + x + width] - longs[bottom + x] - longs[top + x + width] + longs[top + x];
+    }
+
+    /**
+     * Get the mean luma of a rectangle.
+     *
+     * @param x left edge, in pixels
+     * @param y top edge, in pixels
+     * @param width width, in pixels
+     * @param height height, in pixels
+     * @return mean
+     */
+    public double mean(int x, int y, int width, int height) {
+        return (double) sum(x, y, width, height) / ((long) width * height);
+    }
+
+    /**
+     * Begin a new frame.
+     */
+    void beginFrame() {
+        // Row zero and column zero are never written, so there is nothing to clear
+        joinSubmitted();
+        for (ForkJoinTask<?> task : tasks) {
+            task.reinitialize();
+        }
+    }
+
+    /**
+     * Add a row of luma.
+     *
+     * @param luma array containing the row
+     * @param offset offset of the first pixel of the row
+     * @param y row number
+     */
+    void row(byte[] luma, int offset, int y) {
+        int base = (y + 1) * tableWidth + 1;
+        boolean accumulate = bandCount == 1;
+        if (ints != null) {
+            int[] table = ints;
+            int sum = 0;
+            int above = base - tableWidth;
+            for (int x = 0; x < width; x++) {
+                sum += luma[offset + x] & 0xff;
+                table[base + x] = accumulate ? sum + table[above + x] : sum;
+            }
+        } else {
+            long[] table = longs;
+            long sum = 0;
+            int above = base - tableWidth;
+            for (int x = 0; x < width; x++) {
+                sum += luma[offset + x] & 0xff;
+                table[base + x] = accumulate ? sum + table[above + x] : sum;
+            }
+        }
+        if (!accumulate && ((y + 1) % bandRows == 0 || y == height - 1)) {
+            int band = y / bandRows;
+            submitted[band] = true;
+            pool.execute(tasks.get(band));
+        }
+    }
+
+    /**
+     * End the frame, completing the table.
+     */
+    void endFrame() {
+        if (bandCount == 1) {
+            return;
+        }
+        for (int band = 0; band < bandCount; band++) {
+            if (!submitted[band]) {
+                // Incomplete frame, the table is not valid anyway
+                joinSubmitted();
+                return;
+            }
+        }
+        joinSubmitted();
+        // Each band's last row becomes a complete table row in turn, the rows of the next band then build on it
+        for (int band = 1; band < bandCount; band++) {
+            int carry = band * bandRows * tableWidth;
+            int last = Math.min((band + 1) * bandRows, height) * tableWidth;
+            addRow(carry, last);
+        }
+        for (ForkJoinTask<?> task : carryTasks) {
+            task.reinitialize();
+        }
+        carryAll.reinitialize();
+        pool.invoke(carryAll);
+    }
+
+    private void joinSubmitted() {
+        for (int band = 0; band < bandCount; band++) {
+            if (submitted[band]) {
+                tasks.get(band).join();
+                submitted[band] = false;
+            }
+        }
+    }
+
+    /**
+     * Add a table row to another table row.
+     */
+    private void addRow(int from, int to) {
+        if (ints != null) {
+            for (int x = 1; x < tableWidth; x++) {
+                ints[to + x] += ints[from + x];
+            }
+        } else {
+            for (int x = 1; x < tableWidth; x++) {
+                longs[to + x] += longs[from + x];
+            }
+        }
+    }
+
+    /**
+     * Sums the rows of a band vertically, within the band.
+     */
+    private final class BandTask extends RecursiveAction {
+
+        private final int band;
+
+        private BandTask(int band) {
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            int first = band * bandRows + 1;
+            int last = Math.min((band + 1) * bandRows, height);
+            for (int row = first + 1; row <= last; row++) {
+                addRow((row - 1) * tableWidth, row * tableWidth);
+            }
+        }
+    }
+
+    /**
+     * Adds the complete row above a band to every row of the band except the last, which has already been done.
+     */
+    private final class CarryTask extends RecursiveAction {
+
+        private final int band;
+
+        private CarryTask(int band) {
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            int carry = band * bandRows * tableWidth;
+            int first = band * bandRows + 1;
+            int last = Math.min((band + 1) * bandRows, height);
+            for (int row = first; row < last; row++) {
+                addRow(carry, row * tableWidth);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.raw;
+
+/**
+ * Implementation of a picture capture handler that builds the integral image of the luma of a raw capture as the
+ * picture data arrives.
+ * <p>
+ * The result is the same {@link IntegralImage} instance for every capture, it is only valid until the next capture
+ * begins.
+ */
+public class IntegralImagePictureCaptureHandler extends LumaPictureCaptureHandler<IntegralImage> {
+
+    private final IntegralImage integralImage;
+
+    private boolean complete;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     */
+    public IntegralImagePictureCaptureHandler(RawFrameLayout layout) {
+        this(layout, new IntegralImage(layout.width(), layout.height()));
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param integralImage integral image, the same size as the frame
+     */
+    public IntegralImagePictureCaptureHandler(RawFrameLayout layout, IntegralImage integralImage) {
+        super(layout);
+        if (integralImage.width() != layout.width() || integralImage.height() != layout.height()) {
+            throw new IllegalArgumentException("Integral image size does not match the frame layout");
+        }
+        this.integralImage = integralImage;
+    }
+
+    @Override
+    protected void beginFrame() {
+        complete = false;
+        integralImage.beginFrame();
+    }
+
+    @Override
+    protected void lumaRow(byte[] luma, int offset, int y) {
+        integralImage.row(luma, offset, y);
+    }
+
+    @Override
+    protected void endFrame() {
+        integralImage.endFrame();
+        complete = true;
+    }
+
+    /**
+     * Get the integral image.
+     *
+     * @return integral image, or <code>null</code> if the capture has not ended
+     */
+    @Override
+    public IntegralImage result() {
+        return complete ? integralImage : null;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.raw;
+
+import java.awt.Point;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+/**
+ * The luma (greyscale) of a raw capture, with no padding: one byte per pixel, row after row.
+ * <p>
+ * The same array backs {@link #data()}, {@link #buffer()} and {@link #image()}, none of them copy the pixels.
+ * <p>
+ * Frames come from a pool. Call {@link #release()} when finished with a frame so that it can be reused for a later
+ * capture, after which none of its views must be used. If it is never released it is simply garbage collected.
+ */
+public final class LumaFrame {
+
+    private static final ColorModel GREY = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] {8}, false, false, ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    private final int width;
+
+    private final int height;
+
+    private final byte[] data;
+
+    private final Queue<LumaFrame> pool;
+
+    private BufferedImage image;
+
+    private boolean released;
+
+    LumaFrame(int width, int height, Queue<LumaFrame> pool) {
+        this.width = width;
+        this.height = height;
+        this.data = new byte[width * height];
+        this.pool = pool;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Get the pixels.
+     *
+     * @return pixel data, width times height bytes
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Get the pixels as a buffer.
+     *
+     * @return buffer sharing the pixel data
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Get the pixels as an image.
+     * <p>
+     * The image is created once for each pooled frame and shares the pixel data, it is equivalent to an image of type
+     * {@link BufferedImage#TYPE_BYTE_GRAY}.
+     *
+     * @return image
+     */
+    public synchronized BufferedImage image() {
+        if (image == null) {
+            DataBufferByte buffer = new DataBufferByte(data, data.length);
+            WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width, 1, new int[] {0}, new Point());
+            image = new BufferedImage(GREY, raster, false, null);
+        }
+        return image;
+    }
+
+    /**
+     * Return the frame to the pool.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            pool.offer(this);
+        }
+    }
+
+    synchronized void acquire() {
+        released = false;
+    }
+
+}
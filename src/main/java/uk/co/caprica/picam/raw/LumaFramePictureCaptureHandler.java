@@ -0,0 +1,86 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Implementation of a picture capture handler that extracts only the luma of a raw capture, as a {@link LumaFrame}.
+ * <p>
+ * For {@link Encoding#I420} only the visible part of each row of the Y plane is copied, the row padding and the chroma
+ * planes are skipped within each chunk of picture data without being touched. For {@link Encoding#RGB24} and
+ * {@link Encoding#BGR24} the luma is calculated as each row arrives.
+ * <p>
+ * Frames are taken from a pool, if each frame is released after use there is no allocation from one capture to the
+ * next.
+ */
+public class LumaFramePictureCaptureHandler extends LumaPictureCaptureHandler<LumaFrame> {
+
+    private final Queue<LumaFrame> pool = new ConcurrentLinkedQueue<>();
+
+    private LumaFrame frame;
+
+    private LumaFrame result;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     */
+    public LumaFramePictureCaptureHandler(RawFrameLayout layout) {
+        super(layout);
+    }
+
+    @Override
+    protected void beginFrame() {
+        result = null;
+        if (frame == null) {
+            frame = pool.poll();
+            if (frame == null) {
+                frame = new LumaFrame(layout.width(), layout.height(), pool);
+            }
+            frame.acquire();
+        }
+    }
+
+    @Override
+    protected void lumaRow(byte[] luma, int offset, int y) {
+        System.arraycopy(luma, offset, frame.data(), y * layout.width(), layout.width());
+    }
+
+    @Override
+    protected void endFrame() {
+        result = frame;
+        frame = null;
+    }
+
+    /**
+     * Get the luma frame.
+     *
+     * @return frame, or <code>null</code> if the capture has not ended
+     */
+    @Override
+    public LumaFrame result() {
+        return result;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.raw;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/**
+ * Accumulates luma rows into a small grid of mean values.
+ * <p>
+ * This is the common starting point for whole-picture measurements that only need a coarse view of the picture, such
+ * as perceptual hashing and exposure metering.
+ * <p>
+ * Cells are not expected to be more than a few tens of pixels across, so rows and columns are sampled evenly rather
+ * than all being added, there is no need to touch every pixel to get a stable mean.
+ * <p>
+ * Nothing is allocated after construction, other than a row buffer when adding a whole image.
+ */
+public final class LumaGrid {
+
+    /**
+     * Target number of samples along each side of a cell.
+     */
+    private static final int SAMPLES_PER_CELL = 16;
+
+    private final int columns;
+
+    private final int[] cellX;
+
+    private final int[] cellY;
+
+    private final int columnStep;
+
+    private final int rowStep;
+
+    private final int[] counts;
+
+    private final int[] sums;
+
+    private final int[] cells;
+
+    /**
+     * Create a luma grid.
+     *
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     * @param columns number of grid columns
+     * @param rows number of grid rows
+     */
+    public LumaGrid(int width, int height, int columns, int rows) {
+        this.columns = columns;
+        this.columnStep = Math.max(1, width / (columns * SAMPLES_PER_CELL));
+        this.rowStep = Math.max(1, height / (rows * SAMPLES_PER_CELL));
+        this.cellX = new int[width];
+        this.cellY = new int[height];
+        this.counts = new int[columns * rows];
+        this.sums = new int[columns * rows];
+        this.cells = new int[columns * rows];
+        int[] columnCounts = new int[columns];
+        int[] rowCounts = new int[rows];
+        for (int x = 0; x < width; x++) {
+            cellX[x] = x * columns / width;
+            if (x % columnStep == 0) {
+                columnCounts[cellX[x]]++;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            cellY[y] = y * rows / height;
+            if (y % rowStep == 0) {
+                rowCounts[cellY[y]]++;
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            // A picture smaller than the grid has empty cells, avoid dividing by zero
+            counts[i] = Math.max(1, columnCounts[i % columns] * rowCounts[i / columns]);
+        }
+    }
+
+    /**
+     * Get the number of grid columns.
+     *
+     * @return number of columns
+     */
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of grid rows.
+     *
+     * @return number of rows
+     */
+    public int rows() {
+        return cells.length / columns;
+    }
+
+    /**
+     * Clear the grid ready for a new picture.
+     */
+    public void reset() {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = 0;
+        }
+    }
+
+    /**
+     * Add a row of luma.
+     *
+     * @param luma array containing the row
+     * @param offset offset of the first pixel of the row
+     * @param y row number
+     */
+    public void row(byte[] luma, int offset, int y) {
+        if (y % rowStep != 0) {
+            return;
+        }
+        int[] sums = this.sums;
+        int[] cellX = this.cellX;
+        int base = cellY[y] * columns;
+        for (int x = 0; x < cellX.length; x += columnStep) {
+            sums[base + cellX[x]] += luma[offset + x] & 0xff;
+        }
+    }
+
+    /**
+     * Get the mean luma of each cell.
+     *
+     * @return cell values, the array is reused
+     */
+    public int[] cells() {
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = sums[i] / counts[i];
+        }
+        return cells;
+    }
+
+    /**
+     * Add a whole image, for example a thumbnail.
+     * <p>
+     * The grid must have been created with the same size as the image. Colour images are converted to luma with the
+     * same arithmetic as {@link LumaPictureCaptureHandler}.
+     *
+     * @param image image
+     */
+    public void image(BufferedImage image) {
+        if (image.getWidth() != cellX.length || image.getHeight() != cellY.length) {
+            throw new IllegalArgumentException("Image size does not match the grid");
+        }
+        byte[] luma = new byte[image.getWidth()];
+        Raster raster = image.getRaster();
+        int[] pixel = new int[raster.getNumBands()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < luma.length; x++) {
+                raster.getPixel(x, y, pixel);
+                luma[x] = (byte) (pixel.length == 1 ? pixel[0] : (77 * pixel[0] + 150 * pixel[1] + 29 * pixel[2] + 128) >> 8);
+            }
+            row(luma, 0, y);
+        }
+    }
+
+}
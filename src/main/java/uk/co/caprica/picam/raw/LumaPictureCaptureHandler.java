@@ -0,0 +1,94 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.enums.Encoding;
+
+/**
+ * Base implementation of a picture capture handler that processes the luma (brightness) of a raw capture one row at a
+ * time, as the picture data arrives.
+ * <p>
+ * For {@link Encoding#I420} the rows of the Y plane are used directly, the chroma planes are skipped without being
+ * copied. For {@link Encoding#RGB24} and {@link Encoding#BGR24} the luma of each row is calculated into a row buffer.
+ * <p>
+ * Nothing is allocated after construction.
+ *
+ * @see RawRowPictureCaptureHandler
+ *
+ * @param <T> type of result produced by the picture capture handler
+ */
+public abstract class LumaPictureCaptureHandler<T> extends RawRowPictureCaptureHandler<T> {
+
+    /**
+     * Buffer used for the luma of a packed RGB row.
+     */
+    private final byte[] lumaBuffer;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     */
+    protected LumaPictureCaptureHandler(RawFrameLayout layout) {
+        super(layout, false);
+        this.lumaBuffer = layout.isPlanar() ? null : new byte[layout.width()];
+    }
+
+    @Override
+    protected final void row(int plane, byte[] data, int offset, int y) throws Exception {
+        switch (layout.encoding()) {
+            case RGB24:
+                toLuma(data, offset, 0, 2);
+                lumaRow(lumaBuffer, 0, y);
+                break;
+            case BGR24:
+                toLuma(data, offset, 2, 0);
+                lumaRow(lumaBuffer, 0, y);
+                break;
+            default:
+                lumaRow(data, offset, y);
+                break;
+        }
+    }
+
+    /**
+     * Process one row of luma.
+     * <p>
+     * The supplied array must not be retained, it may be a chunk of picture data or an internal buffer.
+     *
+     * @param luma array containing the row
+     * @param offset offset of the first pixel of the row in the array
+     * @param y row number
+     * @throws Exception if a general error occurs
+     */
+    protected abstract void lumaRow(byte[] luma, int offset, int y) throws Exception;
+
+    private void toLuma(byte[] data, int position, int red, int blue) {
+        byte[] luma = lumaBuffer;
+        for (int x = 0, i = position; x < luma.length; x++, i += 3) {
+            int r = data[i + red] & 0xff;
+            int g = data[i + 1] & 0xff;
+            int b = data[i + blue] & 0xff;
+            // Fixed-point (8 bit) BT.601 luma
+            luma[x] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+        }
+    }
+
+}
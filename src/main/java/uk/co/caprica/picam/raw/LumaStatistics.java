@@ -0,0 +1,160 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+/**
+ * Luma (brightness) statistics for a capture.
+ * <p>
+ * The statistics are all derived from a 256-bin histogram.
+ */
+public final class LumaStatistics {
+
+    private final int[] histogram = new int[256];
+
+    private final int darkThreshold;
+
+    private final int brightThreshold;
+
+    private long count;
+
+    private long sum;
+
+    private long sumOfSquares;
+
+    private long dark;
+
+    private long bright;
+
+    LumaStatistics(int darkThreshold, int brightThreshold) {
+        this.darkThreshold = darkThreshold;
+        this.brightThreshold = brightThreshold;
+    }
+
+    void reset() {
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = 0;
+        }
+    }
+
+    int[] bins() {
+        return histogram;
+    }
+
+    void update() {
+        count = 0;
+        sum = 0;
+        sumOfSquares = 0;
+        dark = 0;
+        bright = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            long n = histogram[i];
+            count += n;
+            sum += n * i;
+            sumOfSquares += n * i * i;
+            if (i <= darkThreshold) {
+                dark += n;
+            }
+            if (i >= brightThreshold) {
+                bright += n;
+            }
+        }
+    }
+
+    /**
+     * Get the histogram.
+     *
+     * @return copy of the histogram, the number of pixels with each luma value
+     */
+    public int[] histogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * Get the number of pixels with a particular luma value.
+     *
+     * @param value luma value, 0 to 255
+     * @return number of pixels
+     */
+    public int histogram(int value) {
+        return histogram[value];
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    public double variance() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = mean();
+        return (double) sumOfSquares / count - mean * mean;
+    }
+
+    public double standardDeviation() {
+        return Math.sqrt(variance());
+    }
+
+    /**
+     * Get the luma value below which a particular fraction of the pixels lie.
+     *
+     * @param fraction fraction, 0.0 to 1.0
+     * @return luma value
+     */
+    public int percentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long total = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            total += histogram[i];
+            if (total >= target && total > 0) {
+                return i;
+            }
+        }
+        return 255;
+    }
+
+    /**
+     * Get the fraction of pixels at or below the dark clipping threshold.
+     *
+     * @return fraction, 0.0 to 1.0
+     */
+    public double darkClipped() {
+        return count > 0 ? (double) dark / count : 0;
+    }
+
+    /**
+     * Get the fraction of pixels at or above the bright clipping threshold.
+     *
+     * @return fraction, 0.0 to 1.0
+     */
+    public double brightClipped() {
+        return count > 0 ? (double) bright / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mean %.2f stddev %.2f dark %.2f%% bright %.2f%%", mean(), standardDeviation(), darkClipped() * 100, brightClipped() * 100);
+    }
+
+}
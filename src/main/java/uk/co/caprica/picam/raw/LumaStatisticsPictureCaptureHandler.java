@@ -0,0 +1,91 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+/**
+ * Implementation of a picture capture handler that calculates luma statistics (histogram, mean, standard deviation and
+ * clipped pixels) for a raw capture, without buffering the picture data.
+ * <p>
+ * The same statistics instance is returned for every capture and is updated in place, so steady-state operation does
+ * not allocate. Copy any values that must be kept before the next capture.
+ */
+public class LumaStatisticsPictureCaptureHandler extends LumaPictureCaptureHandler<LumaStatistics> {
+
+    /**
+     * Default luma value at or below which a pixel is counted as clipped to black.
+     */
+    public static final int DEFAULT_DARK_THRESHOLD = 2;
+
+    /**
+     * Default luma value at or above which a pixel is counted as clipped to white.
+     */
+    public static final int DEFAULT_BRIGHT_THRESHOLD = 253;
+
+    private final LumaStatistics statistics;
+
+    private final int[] histogram;
+
+    /**
+     * Create a picture capture handler with the default clipping thresholds.
+     *
+     * @param layout frame layout
+     */
+    public LumaStatisticsPictureCaptureHandler(RawFrameLayout layout) {
+        this(layout, DEFAULT_DARK_THRESHOLD, DEFAULT_BRIGHT_THRESHOLD);
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param darkThreshold luma value at or below which a pixel is counted as clipped to black
+     * @param brightThreshold luma value at or above which a pixel is counted as clipped to white
+     */
+    public LumaStatisticsPictureCaptureHandler(RawFrameLayout layout, int darkThreshold, int brightThreshold) {
+        super(layout);
+        this.statistics = new LumaStatistics(darkThreshold, brightThreshold);
+        this.histogram = statistics.bins();
+    }
+
+    @Override
+    protected void beginFrame() {
+        statistics.reset();
+    }
+
+    @Override
+    protected void lumaRow(byte[] luma, int offset, int y) {
+        int[] h = histogram;
+        int end = offset + layout.width();
+        for (int i = offset; i < end; i++) {
+            h[luma[i] & 0xff]++;
+        }
+    }
+
+    @Override
+    protected void endFrame() {
+        statistics.update();
+    }
+
+    @Override
+    public LumaStatistics result() {
+        return statistics;
+    }
+
+}
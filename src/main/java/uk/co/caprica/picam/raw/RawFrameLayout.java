@@ -0,0 +1,282 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.Encoding;
+
+/**
+ * Memory layout of a raw (unencoded) capture.
+ * <p>
+ * Raw captures from the camera are padded by the VideoCore: each row is padded to a multiple of 32 pixels and the
+ * number of rows is padded to a multiple of 16. For {@link Encoding#I420} the frame is made up of a full-size Y plane
+ * followed by the quarter-size U and V planes, each with the same padding halved. For {@link Encoding#RGB24} and
+ * {@link Encoding#BGR24} the frame is a single plane of packed three-byte pixels.
+ */
+public final class RawFrameLayout {
+
+    /**
+     * Horizontal alignment used by the VideoCore for raw captures, in pixels.
+     */
+    public static final int VIDEOCORE_HORIZONTAL_ALIGNMENT = 32;
+
+    /**
+     * Vertical alignment used by the VideoCore for raw captures, in rows.
+     */
+    public static final int VIDEOCORE_VERTICAL_ALIGNMENT = 16;
+
+    private final Encoding encoding;
+
+    private final int width;
+
+    private final int height;
+
+    private final int bytesPerPixel;
+
+    private final int stride;
+
+    private final int rows;
+
+    private final int chromaWidth;
+
+    private final int chromaHeight;
+
+    private final int chromaStride;
+
+    private final int chromaRows;
+
+    private final int uOffset;
+
+    private final int vOffset;
+
+    private final int frameSize;
+
+    private RawFrameLayout(Encoding encoding, int width, int height, int horizontalAlignment, int verticalAlignment) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and height must be greater than zero");
+        }
+        this.encoding = encoding;
+        this.width = width;
+        this.height = height;
+        int paddedWidth = align(width, horizontalAlignment);
+        this.rows = align(height, verticalAlignment);
+        switch (encoding) {
+            case I420:
+                this.bytesPerPixel = 1;
+                this.stride = paddedWidth;
+                this.chromaWidth = (width + 1) / 2;
+                this.chromaHeight = (height + 1) / 2;
+                this.chromaStride = (paddedWidth + 1) / 2;
+                this.chromaRows = (rows + 1) / 2;
+                this.uOffset = stride * rows;
+                this.vOffset = uOffset + chromaStride * chromaRows;
+                this.frameSize = vOffset + chromaStride * chromaRows;
+                break;
+            case RGB24:
+            case BGR24:
+                this.bytesPerPixel = 3;
+                this.stride = paddedWidth * 3;
+                this.chromaWidth = 0;
+                this.chromaHeight = 0;
+                this.chromaStride = 0;
+                this.chromaRows = 0;
+                this.uOffset = -1;
+                this.vOffset = -1;
+                this.frameSize = stride * rows;
+                break;
+            default:
+                throw new IllegalArgumentException("Not a raw encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Create the layout of a raw capture from the camera, with VideoCore padding.
+     *
+     * @param encoding raw encoding
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     * @return frame layout
+     * @throws IllegalArgumentException if the encoding is not a raw encoding
+     */
+    public static RawFrameLayout rawFrameLayout(Encoding encoding, int width, int height) {
+        return new RawFrameLayout(encoding, width, height, VIDEOCORE_HORIZONTAL_ALIGNMENT, VIDEOCORE_VERTICAL_ALIGNMENT);
+    }
+
+    /**
+     * Create the layout of a raw frame with specific padding.
+     * <p>
+     * Use an alignment of one for a frame with no padding at all.
+     *
+     * @param encoding raw encoding
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     * @param horizontalAlignment alignment of each row, in pixels
+     * @param verticalAlignment alignment of the number of rows
+     * @return frame layout
+     * @throws IllegalArgumentException if the encoding is not a raw encoding
+     */
+    public static RawFrameLayout rawFrameLayout(Encoding encoding, int width, int height, int horizontalAlignment, int verticalAlignment) {
+        return new RawFrameLayout(encoding, width, height, horizontalAlignment, verticalAlignment);
+    }
+
+    /**
+     * Create the layout of a raw capture from the camera for a particular camera configuration.
+     *
+     * @param configuration camera configuration
+     * @return frame layout
+     * @throws IllegalArgumentException if the configured encoding is not a raw encoding
+     */
+    public static RawFrameLayout rawFrameLayout(CameraConfiguration configuration) {
+        return rawFrameLayout(configuration.encoding(), configuration.width(), configuration.height());
+    }
+
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * Get the visible picture width.
+     *
+     * @return width, in pixels
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Get the visible picture height.
+     *
+     * @return height, in pixels
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Get the number of bytes per pixel in the first (or only) plane.
+     *
+     * @return 1 for {@link Encoding#I420}, 3 for the packed RGB encodings
+     */
+    public int bytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Get the number of bytes between the start of consecutive rows in the first (or only) plane.
+     *
+     * @return row stride, in bytes
+     */
+    public int stride() {
+        return stride;
+    }
+
+    /**
+     * Get the number of rows in the first (or only) plane, including padding.
+     *
+     * @return padded number of rows
+     */
+    public int rows() {
+        return rows;
+    }
+
+    public int chromaWidth() {
+        return chromaWidth;
+    }
+
+    public int chromaHeight() {
+        return chromaHeight;
+    }
+
+    public int chromaStride() {
+        return chromaStride;
+    }
+
+    public int chromaRows() {
+        return chromaRows;
+    }
+
+    /**
+     * Get the offset of the U plane.
+     *
+     * @return offset, in bytes, or -1 if the frame is not planar
+     */
+    public int uOffset() {
+        return uOffset;
+    }
+
+    /**
+     * Get the offset of the V plane.
+     *
+     * @return offset, in bytes, or -1 if the frame is not planar
+     */
+    public int vOffset() {
+        return vOffset;
+    }
+
+    /**
+     * Get the total size of a frame, including all padding.
+     *
+     * @return frame size, in bytes
+     */
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public boolean isPlanar() {
+        return encoding == Encoding.I420;
+    }
+
+    /**
+     * Get the end of the visible part of the first (or only) plane, the offset just past the last byte of the last
+     * visible row.
+     *
+     * @return offset, in bytes
+     */
+    public int visibleEnd() {
+        return stride * (height - 1) + width * bytesPerPixel;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RawFrameLayout)) {
+            return false;
+        }
+        RawFrameLayout other = (RawFrameLayout) obj;
+        return encoding == other.encoding && width == other.width && height == other.height && stride == other.stride && rows == other.rows;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((encoding.hashCode() * 31 + width) * 31 + height) * 31 + stride) * 31 + rows;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %dx%d stride %d rows %d size %d", encoding, width, height, stride, rows, frameSize);
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+
+/**
+ * Base implementation of a picture capture handler that processes a raw capture one row at a time, as the picture data
+ * arrives.
+ * <p>
+ * The picture data for a raw capture is delivered in arbitrary sized chunks. This class tracks the position within the
+ * frame and delivers each visible row of each plane: the Y, U and V planes for {@link Encoding#I420}, or the single
+ * packed plane for {@link Encoding#RGB24} and {@link Encoding#BGR24}. A row that is wholly contained in a chunk is
+ * passed on without copying, only rows split across chunks are assembled in a row buffer. Padding, and the rows of any
+ * planes that are not wanted, are skipped by offset arithmetic.
+ * <p>
+ * Nothing is allocated after construction.
+ *
+ * @param <T> type of result produced by the picture capture handler
+ */
+public abstract class RawRowPictureCaptureHandler<T> implements PictureCaptureHandler<T> {
+
+    /**
+     * Plane number of the Y plane, or of the only plane of a packed frame.
+     */
+    public static final int PLANE_Y = 0;
+
+    /**
+     * Plane number of the U plane.
+     */
+    public static final int PLANE_U = 1;
+
+    /**
+     * Plane number of the V plane.
+     */
+    public static final int PLANE_V = 2;
+
+    /**
+     * Frame layout.
+     */
+    protected final RawFrameLayout layout;
+
+    private final int planeCount;
+
+    private final long[] planeStart = new long[3];
+
+    private final long[] planeEnd = new long[3];
+
+    private final int[] planeStride = new int[3];
+
+    private final int[] planeRowBytes = new int[3];
+
+    private final boolean[] wanted = new boolean[3];
+
+    /**
+     * Buffer used to assemble rows that are split across chunks.
+     */
+    private final byte[] rowBuffer;
+
+    /**
+     * Offset of the next byte of picture data within the frame.
+     */
+    private long offset;
+
+    /**
+     * Current plane.
+     */
+    private int plane;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param chroma <code>true</code> to process the chroma planes of a planar frame; <code>false</code> to skip them
+     */
+    protected RawRowPictureCaptureHandler(RawFrameLayout layout, boolean chroma) {
+        this.layout = layout;
+        this.planeCount = layout.isPlanar() ? 3 : 1;
+        planeStride[PLANE_Y] = layout.stride();
+        planeRowBytes[PLANE_Y] = layout.width() * layout.bytesPerPixel();
+        planeStart[PLANE_Y] = 0;
+        wanted[PLANE_Y] = true;
+        if (layout.isPlanar()) {
+            planeStride[PLANE_U] = planeStride[PLANE_V] = layout.chromaStride();
+            planeRowBytes[PLANE_U] = planeRowBytes[PLANE_V] = layout.chromaWidth();
+            planeStart[PLANE_U] = layout.uOffset();
+            planeStart[PLANE_V] = layout.vOffset();
+            wanted[PLANE_U] = wanted[PLANE_V] = chroma;
+        }
+        for (int i = 0; i < planeCount; i++) {
+            int rows = i == PLANE_Y ? layout.height() : layout.chromaHeight();
+            planeEnd[i] = planeStart[i] + (long) planeStride[i] * (rows - 1) + planeRowBytes[i];
+        }
+        this.rowBuffer = new byte[planeRowBytes[PLANE_Y]];
+    }
+
+    @Override
+    public void begin() throws Exception {
+        offset = 0;
+        plane = 0;
+        beginFrame();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        int length = data.length;
+        int position = 0;
+        while (position < length && plane < planeCount) {
+            long relative = offset - planeStart[plane];
+            if (relative < 0) {
+                // Padding before the start of this plane
+                int skip = (int) Math.min(-relative, length - position);
+                position += skip;
+                offset += skip;
+                continue;
+            }
+            if (!wanted[plane] || offset >= planeEnd[plane]) {
+                plane++;
+                continue;
+            }
+            int stride = planeStride[plane];
+            int rowBytes = planeRowBytes[plane];
+            int y = (int) (relative / stride);
+            int x = (int) (relative - (long) y * stride);
+            if (x >= rowBytes) {
+                // Row padding
+                int skip = Math.min(stride - x, length - position);
+                position += skip;
+                offset += skip;
+            } else if (x == 0 && length - position >= rowBytes) {
+                // Whole row in this chunk
+                row(plane, data, position, y);
+                position += rowBytes;
+                offset += rowBytes;
+            } else {
+                int n = Math.min(rowBytes - x, length - position);
+                System.arraycopy(data, position, rowBuffer, x, n);
+                position += n;
+                offset += n;
+                if (x + n == rowBytes) {
+                    row(plane, rowBuffer, 0, y);
+                }
+            }
+        }
+        // Everything else (unwanted planes, padding) is simply skipped
+        offset += length - position;
+        return length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        endFrame();
+    }
+
+    /**
+     * Get the frame layout.
+     *
+     * @return layout
+     */
+    public final RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Invoked at the start of each capture.
+     *
+     * @throws Exception if a general error occurs
+     */
+    protected abstract void beginFrame() throws Exception;
+
+    /**
+     * Process one row of a plane.
+     * <p>
+     * Rows are delivered in order, all of the rows of one plane before any rows of the next.
+     * <p>
+     * The supplied array must not be retained, it may be a chunk of picture data or an internal buffer.
+     *
+     * @param plane plane number, {@link #PLANE_Y}, {@link #PLANE_U} or {@link #PLANE_V}
+     * @param data array containing the row
+     * @param offset offset of the first byte of the row in the array
+     * @param y row number within the plane
+     * @throws Exception if a general error occurs
+     */
+    protected abstract void row(int plane, byte[] data, int offset, int y) throws Exception;
+
+    /**
+     * Invoked at the end of each capture.
+     *
+     * @throws Exception if a general error occurs
+     */
+    protected abstract void endFrame() throws Exception;
+
+}
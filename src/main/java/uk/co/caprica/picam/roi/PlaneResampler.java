@@ -0,0 +1,250 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.roi;
+
+/**
+ * Crops and scales one plane of a region as the rows of the plane arrive.
+ * <p>
+ * Only the state needed for the output rows in progress is kept: for a box filter a row of sums, for a bilinear filter
+ * the two most recent horizontally interpolated source rows. Output rows are written as soon as their last source row
+ * has arrived.
+ * <p>
+ * Nothing is allocated after construction.
+ */
+final class PlaneResampler {
+
+    private final int sourceX;
+
+    private final int sourceY;
+
+    private final int sourceWidth;
+
+    private final int sourceHeight;
+
+    private final int channels;
+
+    private final int outputWidth;
+
+    private final int outputHeight;
+
+    private final int outputOffset;
+
+    private final ScaleFilter filter;
+
+    private final boolean copy;
+
+    /**
+     * For each output column (box), the first source column.
+     * <p>
+     * For bilinear, the left source column of the pair.
+     */
+    private final int[] columnStart;
+
+    /**
+     * For each output column (box), the column after the last source column.
+     * <p>
+     * For bilinear, the weight of the right source column, 0 to 256.
+     */
+    private final int[] columnEnd;
+
+    /**
+     * For each output row (box), the row after the last source row.
+     * <p>
+     * For bilinear, the source row that must have arrived before the output row can be written.
+     */
+    private final int[] rowEnd;
+
+    /**
+     * For bilinear, the upper source row of each output row.
+     */
+    private final int[] rowStart;
+
+    /**
+     * For bilinear, the weight of the lower source row of each output row, 0 to 256.
+     */
+    private final int[] rowWeight;
+
+    private final int[] sums;
+
+    private int[] previous;
+
+    private int[] current;
+
+    private byte[] destination;
+
+    private int outputRow;
+
+    private int boxRowStart;
+
+    PlaneResampler(int sourceX, int sourceY, int sourceWidth, int sourceHeight, int channels, int outputWidth, int outputHeight, int outputOffset, ScaleFilter filter) {
+        this.sourceX = sourceX;
+        this.sourceY = sourceY;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.channels = channels;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.outputOffset = outputOffset;
+        this.filter = filter;
+        this.copy = sourceWidth == outputWidth && sourceHeight == outputHeight;
+        this.columnStart = new int[outputWidth];
+        this.columnEnd = new int[outputWidth];
+        this.rowEnd = new int[outputHeight];
+        if (filter == ScaleFilter.BOX) {
+            if (outputWidth > sourceWidth || outputHeight > sourceHeight) {
+                throw new IllegalArgumentException("A box filter can not enlarge a region");
+            }
+            for (int x = 0; x < outputWidth; x++) {
+                columnStart[x] = x * sourceWidth / outputWidth;
+                columnEnd[x] = (x + 1) * sourceWidth / outputWidth;
+            }
+            for (int y = 0; y < outputHeight; y++) {
+                rowEnd[y] = (y + 1) * sourceHeight / outputHeight;
+            }
+            this.rowStart = null;
+            this.rowWeight = null;
+            this.sums = new int[outputWidth * channels];
+        } else {
+            this.rowStart = new int[outputHeight];
+            this.rowWeight = new int[outputHeight];
+            for (int x = 0; x < outputWidth; x++) {
+                int position = position(x, sourceWidth, outputWidth);
+                columnStart[x] = Math.min(position >> 8, sourceWidth - 1);
+                columnEnd[x] = columnStart[x] < sourceWidth - 1 ? position & 0xff : 0;
+            }
+            for (int y = 0; y < outputHeight; y++) {
+                int position = position(y, sourceHeight, outputHeight);
+                rowStart[y] = Math.min(position >> 8, sourceHeight - 1);
+                rowWeight[y] = rowStart[y] < sourceHeight - 1 ? position & 0xff : 0;
+                rowEnd[y] = rowWeight[y] > 0 ? rowStart[y] + 1 : rowStart[y];
+            }
+            this.sums = null;
+            this.previous = new int[outputWidth * channels];
+            this.current = new int[outputWidth * channels];
+        }
+    }
+
+    /**
+     * Get the source position of the centre of an output sample, in 8-bit fixed point, clamped to the first sample.
+     */
+    private static int position(int output, int sourceSize, int outputSize) {
+        long position = ((2L * output + 1) * sourceSize - outputSize) * 256 / (2L * outputSize);
+        return (int) Math.max(0, position);
+    }
+
+    /**
+     * Begin a frame.
+     *
+     * @param destination destination frame data
+     */
+    void begin(byte[] destination) {
+        this.destination = destination;
+        outputRow = 0;
+        boxRowStart = 0;
+        if (sums != null) {
+            clear(sums);
+        }
+    }
+
+    /**
+     * Process a row of the plane.
+     *
+     * @param data array containing the row
+     * @param offset offset of the first sample of the row in the array
+     * @param y row number within the plane
+     */
+    void row(byte[] data, int offset, int y) {
+        int r = y - sourceY;
+        if (r < 0 || r >= sourceHeight || outputRow >= outputHeight) {
+            return;
+        }
+        int start = offset + sourceX * channels;
+        if (copy) {
+            System.arraycopy(data, start, destination, outputOffset + r * outputWidth * channels, outputWidth * channels);
+            outputRow++;
+        } else if (filter == ScaleFilter.BOX) {
+            boxRow(data, start, r);
+        } else {
+            bilinearRow(data, start, r);
+        }
+    }
+
+    private void boxRow(byte[] data, int start, int r) {
+        int channels = this.channels;
+        int[] sums = this.sums;
+        for (int x = 0; x < outputWidth; x++) {
+            int end = start + columnEnd[x] * channels;
+            for (int c = 0; c < channels; c++) {
+                int sum = 0;
+                for (int i = start + columnStart[x] * channels + c; i < end; i += channels) {
+                    sum += data[i] & 0xff;
+                }
+                sums[x * channels + c] += sum;
+            }
+        }
+        if (r + 1 == rowEnd[outputRow]) {
+            int rows = rowEnd[outputRow] - boxRowStart;
+            int out = outputOffset + outputRow * outputWidth * channels;
+            for (int x = 0; x < outputWidth; x++) {
+                int area = (columnEnd[x] - columnStart[x]) * rows;
+                for (int c = 0; c < channels; c++) {
+                    int i = x * channels + c;
+                    destination[out + i] = (byte) ((sums[i] + (area >> 1)) / area);
+                }
+            }
+            clear(sums);
+            boxRowStart = rowEnd[outputRow];
+            outputRow++;
+        }
+    }
+
+    private void bilinearRow(byte[] data, int start, int r) {
+        // Keep the previous interpolated row only if an output row still needs it
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        int channels = this.channels;
+        for (int x = 0; x < outputWidth; x++) {
+            int left = start + columnStart[x] * channels;
+            int weight = columnEnd[x];
+            for (int c = 0; c < channels; c++) {
+                int a = data[left + c] & 0xff;
+                int b = weight > 0 ? data[left + channels + c] & 0xff : 0;
+                current[x * channels + c] = a * (256 - weight) + b * weight;
+            }
+        }
+        while (outputRow < outputHeight && rowEnd[outputRow] == r) {
+            int weight = rowWeight[outputRow];
+            // The upper row is the previous row when interpolating, otherwise just this row
+            int[] upper = weight > 0 ? previous : current;
+            int out = outputOffset + outputRow * outputWidth * channels;
+            for (int i = 0; i < outputWidth * channels; i++) {
+                destination[out + i] = (byte) ((upper[i] * (256 - weight) + current[i] * weight + 32768) >> 16);
+            }
+            outputRow++;
+        }
+    }
+
+    private static void clear(int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0;
+        }
+    }
+
+}
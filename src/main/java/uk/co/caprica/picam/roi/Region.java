@@ -0,0 +1,142 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.roi;
+
+/**
+ * A region of interest within a raw capture.
+ * <p>
+ * The region is a rectangle of the source frame, optionally scaled to a different output size.
+ * <p>
+ * For {@link uk.co.caprica.picam.enums.Encoding#I420} the position and size of the region, and the output size, must
+ * be even so that the chroma planes line up.
+ * <p>
+ * This can be used in like a "builder".
+ */
+public final class Region {
+
+    private final String name;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    private int outputWidth;
+
+    private int outputHeight;
+
+    private ScaleFilter filter = ScaleFilter.BOX;
+
+    private Region(String name, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid region");
+        }
+        this.name = name;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.outputWidth = width;
+        this.outputHeight = height;
+    }
+
+    /**
+     * Create a region, initially not scaled.
+     *
+     * @param name name of the region
+     * @param x left edge, in pixels
+     * @param y top edge, in pixels
+     * @param width width, in pixels
+     * @param height height, in pixels
+     * @return region
+     */
+    public static Region region(String name, int x, int y, int width, int height) {
+        return new Region(name, x, y, width, height);
+    }
+
+    /**
+     * Scale the region.
+     *
+     * @param outputWidth width of the output, in pixels
+     * @param outputHeight height of the output, in pixels
+     * @return this region
+     */
+    public Region scale(int outputWidth, int outputHeight) {
+        if (outputWidth <= 0 || outputHeight <= 0) {
+            throw new IllegalArgumentException("Output width and height must be greater than zero");
+        }
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        return this;
+    }
+
+    /**
+     * Set the scaling filter.
+     * <p>
+     * The default is {@link ScaleFilter#BOX}, which can not be used to enlarge a region.
+     *
+     * @param filter filter
+     * @return this region
+     */
+    public Region filter(ScaleFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int x() {
+        return x;
+    }
+
+    public int y() {
+        return y;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int outputWidth() {
+        return outputWidth;
+    }
+
+    public int outputHeight() {
+        return outputHeight;
+    }
+
+    public ScaleFilter filter() {
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %dx%d+%d+%d -> %dx%d %s", name, width, height, x, y, outputWidth, outputHeight, filter);
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.roi;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.util.Queue;
+
+/**
+ * The extracted pixels of a region of interest.
+ * <p>
+ * The pixels are a raw frame in the same encoding as the capture, with no padding, described by {@link #layout()}. It
+ * can be used anywhere else a raw frame can, for example with {@link uk.co.caprica.picam.raw.ColourConverter}.
+ * <p>
+ * The frame data comes from a pool. Call {@link #release()} when finished with it so that it can be reused for a later
+ * capture, after which the data must no longer be used. If it is never released it is simply garbage collected.
+ */
+public final class RegionImage {
+
+    private final Region region;
+
+    private final RawFrameLayout layout;
+
+    private final byte[] data;
+
+    private final Queue<byte[]> pool;
+
+    private boolean released;
+
+    RegionImage(Region region, RawFrameLayout layout, byte[] data, Queue<byte[]> pool) {
+        this.region = region;
+        this.layout = layout;
+        this.data = data;
+        this.pool = pool;
+    }
+
+    public Region region() {
+        return region;
+    }
+
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Get the frame data.
+     *
+     * @return frame data, {@link RawFrameLayout#frameSize()} bytes
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Return the frame data to the pool.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            pool.offer(data);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s", region.name(), layout);
+    }
+
+}
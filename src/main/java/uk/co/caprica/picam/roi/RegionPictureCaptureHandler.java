@@ -0,0 +1,135 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.roi;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.RawRowPictureCaptureHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Implementation of a picture capture handler that extracts several regions of interest from a raw capture, each
+ * optionally scaled, in a single pass over the picture data as it arrives.
+ * <p>
+ * The full frame is never buffered. Each row is passed to every region that contains it, and each region writes its
+ * output rows as soon as the source rows they need have arrived.
+ * <p>
+ * The result is one {@link RegionImage} per region, in the order the regions were given. The frame data of each region
+ * image comes from a pool belonging to that region, so if the images are released after use there is no allocation
+ * from one capture to the next.
+ */
+public class RegionPictureCaptureHandler extends RawRowPictureCaptureHandler<List<RegionImage>> {
+
+    private final Region[] regions;
+
+    private final RawFrameLayout[] layouts;
+
+    private final List<Queue<byte[]>> pools = new ArrayList<>();
+
+    private final PlaneResampler[][] resamplers;
+
+    private final byte[][] destinations;
+
+    private List<RegionImage> result;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param layout frame layout
+     * @param regions regions to extract
+     */
+    public RegionPictureCaptureHandler(RawFrameLayout layout, Region... regions) {
+        super(layout, layout.isPlanar());
+        this.regions = regions.clone();
+        this.layouts = new RawFrameLayout[regions.length];
+        this.resamplers = new PlaneResampler[layout.isPlanar() ? 3 : 1][regions.length];
+        this.destinations = new byte[regions.length][];
+        for (int i = 0; i < regions.length; i++) {
+            Region region = regions[i];
+            if (region.x() + region.width() > layout.width() || region.y() + region.height() > layout.height()) {
+                throw new IllegalArgumentException("Region is outside of the frame: " + region);
+            }
+            RawFrameLayout output = rawFrameLayout(layout.encoding(), region.outputWidth(), region.outputHeight(), 1, 1);
+            layouts[i] = output;
+            pools.add(new ConcurrentLinkedQueue<>());
+            resamplers[PLANE_Y][i] = new PlaneResampler(region.x(), region.y(), region.width(), region.height(), layout.bytesPerPixel(), region.outputWidth(), region.outputHeight(), 0, region.filter());
+            if (layout.encoding() == Encoding.I420) {
+                if (((region.x() | region.y() | region.width() | region.height() | region.outputWidth() | region.outputHeight()) & 1) != 0) {
+                    throw new IllegalArgumentException("Region position and sizes must be even for I420: " + region);
+                }
+                resamplers[PLANE_U][i] = chromaResampler(region, output.uOffset());
+                resamplers[PLANE_V][i] = chromaResampler(region, output.vOffset());
+            }
+        }
+    }
+
+    private static PlaneResampler chromaResampler(Region region, int offset) {
+        return new PlaneResampler(region.x() / 2, region.y() / 2, region.width() / 2, region.height() / 2, 1, region.outputWidth() / 2, region.outputHeight() / 2, offset, region.filter());
+    }
+
+    @Override
+    protected void beginFrame() {
+        result = null;
+        for (int i = 0; i < regions.length; i++) {
+            byte[] destination = pools.get(i).poll();
+            if (destination == null) {
+                destination = new byte[layouts[i].frameSize()];
+            }
+            destinations[i] = destination;
+            for (PlaneResampler[] plane : resamplers) {
+                plane[i].begin(destination);
+            }
+        }
+    }
+
+    @Override
+    protected void row(int plane, byte[] data, int offset, int y) {
+        for (PlaneResampler resampler : resamplers[plane]) {
+            resampler.row(data, offset, y);
+        }
+    }
+
+    @Override
+    protected void endFrame() {
+        List<RegionImage> images = new ArrayList<>(regions.length);
+        for (int i = 0; i < regions.length; i++) {
+            images.add(new RegionImage(regions[i], layouts[i], destinations[i], pools.get(i)));
+            destinations[i] = null;
+        }
+        result = Collections.unmodifiableList(images);
+    }
+
+    /**
+     * Get the extracted regions.
+     *
+     * @return one image per region, or <code>null</code> if the capture has not ended
+     */
+    @Override
+    public List<RegionImage> result() {
+        return result;
+    }
+
+}
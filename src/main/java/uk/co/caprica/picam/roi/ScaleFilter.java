@@ -0,0 +1,40 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.roi;
+
+/**
+ * Filters used to scale a region of interest.
+ */
+public enum ScaleFilter {
+
+    /**
+     * Each output pixel is the mean of the block of source pixels it covers.
+     * <p>
+     * Only suitable for reducing the size of a region, the best quality for large reductions.
+     */
+    BOX,
+
+    /**
+     * Each output pixel is interpolated from the four nearest source pixels.
+     * <p>
+     * Suitable for any scale, but for reductions of more than a half detail is lost rather than averaged.
+     */
+    BILINEAR
+
+}
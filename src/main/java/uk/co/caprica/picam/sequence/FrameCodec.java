@@ -0,0 +1,71 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.sequence;
+
+import java.io.IOException;
+
+/**
+ * Block compression codec used for the tiles of a raw frame sequence.
+ * <p>
+ * Implementations must be thread-safe, tiles are compressed and decompressed in parallel.
+ */
+public interface FrameCodec {
+
+    /**
+     * Get the identifier of the codec, recorded in the sequence file so that a reader can check it has the right codec.
+     *
+     * @return identifier
+     */
+    int id();
+
+    /**
+     * Get the largest possible compressed size of a block.
+     *
+     * @param length uncompressed length, in bytes
+     * @return largest compressed length, in bytes
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compress a block.
+     *
+     * @param source uncompressed data
+     * @param sourceOffset offset of the first byte to compress
+     * @param length number of bytes to compress
+     * @param target buffer for the compressed data, with room for {@link #maxCompressedLength(int)} bytes
+     * @param targetOffset offset at which to write the compressed data
+     * @return compressed length, in bytes
+     */
+    int compress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset);
+
+    /**
+     * Decompress a block.
+     *
+     * @param source compressed data
+     * @param sourceOffset offset of the compressed data
+     * @param length compressed length, in bytes
+     * @param target buffer for the uncompressed data
+     * @param targetOffset offset at which to write the uncompressed data
+     * @param targetLength expected uncompressed length, in bytes
+     * @throws IOException if the compressed data is not valid or does not decompress to the expected length
+     */
+    void decompress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset, int targetLength) throws IOException;
+
+}
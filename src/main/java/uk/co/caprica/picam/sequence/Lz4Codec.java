@@ -0,0 +1,203 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.sequence;
+
+import java.io.IOException;
+
+/**
+ * A pure Java implementation of the LZ4 block format.
+ * <p>
+ * This is the fast (not the high compression) variant: a single hash table of recent positions, four byte minimum
+ * matches, and skipping ahead faster the longer no match is found. Blocks produced are readable by any LZ4 block
+ * decoder.
+ * <p>
+ * The hash table is kept per thread and is never cleared, a stale entry is just a candidate whose bytes do not match.
+ */
+public final class Lz4Codec implements FrameCodec {
+
+    /**
+     * Identifier of this codec.
+     */
+    public static final int ID = 1;
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int HASH_LOG = 16;
+
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset) {
+        int[] table = TABLE.get();
+        int end = sourceOffset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = sourceOffset;
+        int position = sourceOffset;
+        int out = targetOffset;
+        if (length >= MF_LIMIT + 1) {
+            while (position < mfLimit) {
+                int sequence = readInt(source, position);
+                int hash = hash(sequence);
+                int reference = table[hash];
+                table[hash] = position;
+                if (reference < sourceOffset || reference >= position || position - reference > MAX_DISTANCE || readInt(source, reference) != sequence) {
+                    position += 1 + ((position - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (position > anchor && reference > sourceOffset && source[position - 1] == source[reference - 1]) {
+                    position--;
+                    reference--;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit && source[position + matchLength] == source[reference + matchLength]) {
+                    matchLength++;
+                }
+                out = sequence(source, anchor, position - anchor, position - reference, matchLength, target, out);
+                position += matchLength;
+                anchor = position;
+                if (position < mfLimit) {
+                    // Remember a position inside the match too, it helps runs
+                    table[hash(readInt(source, position - 2))] = position - 2;
+                }
+            }
+        }
+        return lastLiterals(source, anchor, end - anchor, target, out) - targetOffset;
+    }
+
+    @Override
+    public void decompress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset, int targetLength) throws IOException {
+        int in = sourceOffset;
+        int inEnd = sourceOffset + length;
+        int out = targetOffset;
+        int outEnd = targetOffset + targetLength;
+        try {
+            while (in < inEnd) {
+                int token = source[in++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > inEnd - in || literals > outEnd - out) {
+                    throw new IOException("Corrupt block, literals overrun");
+                }
+                System.arraycopy(source, in, target, out, literals);
+                in += literals;
+                out += literals;
+                if (in == inEnd) {
+                    break;
+                }
+                int distance = (source[in] & 0xff) | (source[in + 1] & 0xff) << 8;
+                in += 2;
+                int matchLength = token & 0xf;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int reference = out - distance;
+                if (distance == 0 || reference < targetOffset || matchLength > outEnd - out) {
+                    throw new IOException("Corrupt block, bad match");
+                }
+                // An overlapping match repeats the last "distance" bytes, each copy doubles what can be copied next
+                int end = out + matchLength;
+                while (out < end) {
+                    int n = Math.min(out - reference, end - out);
+                    System.arraycopy(target, reference, target, out, n);
+                    out += n;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt block, truncated");
+        }
+        if (out != outEnd) {
+            throw new IOException("Corrupt block, expected " + targetLength + " bytes but got " + (out - targetOffset));
+        }
+    }
+
+    private static int sequence(byte[] source, int literalStart, int literals, int distance, int matchLength, byte[] target, int out) {
+        int matchCode = matchLength - MIN_MATCH;
+        int tokenPosition = out++;
+        int token = (Math.min(literals, 15) << 4) | Math.min(matchCode, 15);
+        target[tokenPosition] = (byte) token;
+        out = length(literals, target, out);
+        System.arraycopy(source, literalStart, target, out, literals);
+        out += literals;
+        target[out++] = (byte) distance;
+        target[out++] = (byte) (distance >>> 8);
+        return length(matchCode, target, out);
+    }
+
+    private static int lastLiterals(byte[] source, int literalStart, int literals, byte[] target, int out) {
+        target[out++] = (byte) (Math.min(literals, 15) << 4);
+        out = length(literals, target, out);
+        System.arraycopy(source, literalStart, target, out, literals);
+        return out + literals;
+    }
+
+    /**
+     * Write the extra bytes of a length that does not fit in its four bits of the token.
+     */
+    private static int length(int length, byte[] target, int out) {
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                target[out++] = (byte) 255;
+                remaining -= 255;
+            }
+            target[out++] = (byte) remaining;
+        }
+        return out;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xff) | (data[position + 1] & 0xff) << 8 | (data[position + 2] & 0xff) << 16 | (data[position + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+}
@@ -0,0 +1,446 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.sequence;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.DELTA;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.HEADER_SIZE;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.INDEX_ENTRY_SIZE;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.INDEX_MAGIC;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.KEYFRAME;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.MAGIC;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.TRAILER_SIZE;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.VERSION;
+
+/**
+ * Reader for a sequence of raw frames written by a {@link RawSequenceWriter}.
+ * <p>
+ * Any frame can be read. The nearest keyframe at or before the frame is decoded, then each delta frame after it is
+ * applied in turn. The most recently read frame is kept, so reading forwards from it only decodes the frames in
+ * between; reading a sequence in order decodes each frame once.
+ * <p>
+ * The tiles of each frame are decompressed in parallel in a fork-join pool.
+ * <p>
+ * A reader must only be used by one thread at a time.
+ */
+public final class RawSequenceReader implements Closeable {
+
+    private final FileChannel channel;
+
+    private final FrameCodec codec;
+
+    private final ForkJoinPool pool;
+
+    private final RawFrameLayout layout;
+
+    private final int keyframeInterval;
+
+    private final int tileSize;
+
+    private final int frameSize;
+
+    private final int tileCount;
+
+    private final boolean indexed;
+
+    private long[] offsets;
+
+    private long[] timestamps;
+
+    private byte[] types;
+
+    private int frames;
+
+    private final byte[] current;
+
+    private final byte[] scratch;
+
+    private final byte[] record;
+
+    private final int[] tileOffsets;
+
+    private final int[] tileLengths;
+
+    private final List<TileTask> tasks = new ArrayList<>();
+
+    private final RecursiveAction decompressAll = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    };
+
+    private boolean keyframe;
+
+    private int currentIndex = -1;
+
+    /**
+     * Open a sequence written with the {@link Lz4Codec}, decompressing with the common fork-join pool.
+     *
+     * @param file sequence file
+     * @throws IOException if the file can not be read or is not a raw sequence
+     */
+    public RawSequenceReader(Path file) throws IOException {
+        this(file, new Lz4Codec(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Open a sequence.
+     *
+     * @param file sequence file
+     * @param codec codec the sequence was written with
+     * @param pool fork-join pool used to decompress the tiles
+     * @throws IOException if the file can not be read, is not a raw sequence, or was written with a different codec
+     */
+    public RawSequenceReader(Path file, FrameCodec codec, ForkJoinPool pool) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.codec = codec;
+        this.pool = pool;
+        try {
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a raw sequence: " + file);
+            }
+            Encoding encoding = encoding(header.getInt());
+            int width = header.getInt();
+            int height = header.getInt();
+            int stride = header.getInt();
+            int rows = header.getInt();
+            this.frameSize = header.getInt();
+            int codecId = header.getInt();
+            this.keyframeInterval = header.getInt();
+            this.tileSize = header.getInt();
+            if (codecId != codec.id()) {
+                throw new IOException("Sequence was written with codec " + codecId + ", not " + codec.id());
+            }
+            int bytesPerPixel = encoding == Encoding.I420 ? 1 : 3;
+            this.layout = rawFrameLayout(encoding, width, height, stride / bytesPerPixel, rows);
+            if (layout.stride() != stride || layout.frameSize() != frameSize || tileSize < 1) {
+                throw new IOException("Invalid raw sequence header: " + file);
+            }
+            this.tileCount = (frameSize + tileSize - 1) / tileSize;
+            this.indexed = readIndex();
+            if (!indexed) {
+                scan();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.current = new byte[frameSize];
+        this.scratch = new byte[frameSize];
+        this.tileOffsets = new int[tileCount];
+        this.tileLengths = new int[tileCount];
+        int maxRecord = 9 + 4 * tileCount;
+        for (int tile = 0; tile < tileCount; tile++) {
+            maxRecord += codec.maxCompressedLength(tileLength(tile));
+            tasks.add(new TileTask(tile));
+        }
+        this.record = new byte[maxRecord];
+    }
+
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    public int keyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     * Get the number of frames in the sequence.
+     *
+     * @return number of frames
+     */
+    public int frames() {
+        return frames;
+    }
+
+    /**
+     * Determine whether the sequence was closed properly, if not the frames were found by scanning the file.
+     *
+     * @return <code>true</code> if the file has an index
+     */
+    public boolean indexed() {
+        return indexed;
+    }
+
+    /**
+     * Get the timestamp of a frame.
+     *
+     * @param index frame index
+     * @return timestamp, in milliseconds
+     */
+    public long timestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    public boolean isKeyframe(int index) {
+        checkIndex(index);
+        return types[index] == KEYFRAME;
+    }
+
+    /**
+     * Get the keyframe a frame is decoded from.
+     *
+     * @param index frame index
+     * @return index of the nearest keyframe at or before the frame
+     */
+    public int keyframe(int index) {
+        checkIndex(index);
+        int key = index;
+        while (types[key] != KEYFRAME) {
+            key--;
+        }
+        return key;
+    }
+
+    /**
+     * Read a frame.
+     *
+     * @param index frame index
+     * @param frame buffer for the frame, at least {@link RawFrameLayout#frameSize()} bytes
+     * @throws IOException if an I/O error occurs or the frame data is not valid
+     */
+    public void read(int index, byte[] frame) throws IOException {
+        checkIndex(index);
+        if (frame.length < frameSize) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        int key = keyframe(index);
+        int from = currentIndex >= key && currentIndex <= index ? currentIndex + 1 : key;
+        currentIndex = -1;
+        for (int i = from; i <= index; i++) {
+            decode(i);
+        }
+        currentIndex = index;
+        System.arraycopy(current, 0, frame, 0, frameSize);
+    }
+
+    /**
+     * Read a frame into a new buffer.
+     *
+     * @param index frame index
+     * @return frame data
+     * @throws IOException if an I/O error occurs or the frame data is not valid
+     */
+    public byte[] read(int index) throws IOException {
+        byte[] frame = new byte[frameSize];
+        read(index, frame);
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void decode(int index) throws IOException {
+        long offset = offsets[index];
+        int headerSize = 9 + 4 * tileCount;
+        ByteBuffer header = ByteBuffer.wrap(record, 0, headerSize);
+        readFully(header, offset);
+        header.flip();
+        keyframe = header.get() == KEYFRAME;
+        header.getLong();
+        int dataLength = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            int length = header.getInt();
+            if (length < 0 || length > codec.maxCompressedLength(tileLength(tile))) {
+                throw new IOException("Corrupt frame " + index);
+            }
+            tileOffsets[tile] = headerSize + dataLength;
+            tileLengths[tile] = length;
+            dataLength += length;
+        }
+        readFully(ByteBuffer.wrap(record, headerSize, dataLength), offset + headerSize);
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).compute();
+            } else {
+                for (TileTask task : tasks) {
+                    task.reinitialize();
+                }
+                decompressAll.reinitialize();
+                pool.invoke(decompressAll);
+            }
+        } catch (UncheckedIOException e) {
+            throw new IOException("Corrupt frame " + index, e);
+        }
+    }
+
+    /**
+     * Read the index written when the sequence was closed.
+     */
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        int count = trailer.getInt();
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != INDEX_MAGIC || count < 0 || indexOffset < HEADER_SIZE || indexOffset + (long) count * INDEX_ENTRY_SIZE + TRAILER_SIZE != size) {
+            return false;
+        }
+        ByteBuffer index = read(indexOffset, count * INDEX_ENTRY_SIZE);
+        offsets = new long[count];
+        timestamps = new long[count];
+        types = new byte[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = index.getLong();
+            timestamps[i] = index.getLong();
+            types[i] = index.get();
+        }
+        frames = count;
+        return count == 0 || types[0] == KEYFRAME;
+    }
+
+    /**
+     * Find the frame records by walking the file, stopping at the first incomplete or invalid record.
+     */
+    private void scan() throws IOException {
+        offsets = new long[256];
+        timestamps = new long[256];
+        types = new byte[256];
+        frames = 0;
+        long size = channel.size();
+        long position = HEADER_SIZE;
+        int headerSize = 9 + 4 * tileCount;
+        while (position + headerSize <= size) {
+            ByteBuffer header = read(position, headerSize);
+            byte type = header.get();
+            long timestamp = header.getLong();
+            if (type != KEYFRAME && (type != DELTA || frames == 0)) {
+                break;
+            }
+            long recordSize = headerSize;
+            boolean valid = true;
+            for (int tile = 0; tile < tileCount; tile++) {
+                int length = header.getInt();
+                if (length < 0 || length > codec.maxCompressedLength(tileLength(tile))) {
+                    valid = false;
+                    break;
+                }
+                recordSize += length;
+            }
+            if (!valid || position + recordSize > size) {
+                break;
+            }
+            if (frames == offsets.length) {
+                offsets = Arrays.copyOf(offsets, frames * 2);
+                timestamps = Arrays.copyOf(timestamps, frames * 2);
+                types = Arrays.copyOf(types, frames * 2);
+            }
+            offsets[frames] = position;
+            timestamps[frames] = timestamp;
+            types[frames] = type;
+            frames++;
+            position += recordSize;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private int tileLength(int tile) {
+        return Math.min(tileSize, frameSize - tile * tileSize);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= frames) {
+            throw new IndexOutOfBoundsException("No such frame: " + index);
+        }
+    }
+
+    private static Encoding encoding(int value) throws IOException {
+        for (Encoding encoding : Encoding.values()) {
+            if (encoding.value() == value) {
+                return encoding;
+            }
+        }
+        throw new IOException("Unknown encoding: " + value);
+    }
+
+    /**
+     * Decompresses one tile of a frame record, onto the current frame for a delta.
+     */
+    private final class TileTask extends RecursiveAction {
+
+        private final int tile;
+
+        private TileTask(int tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            int start = tile * tileSize;
+            int length = tileLength(tile);
+            try {
+                if (keyframe) {
+                    codec.decompress(record, tileOffsets[tile], tileLengths[tile], current, start, length);
+                } else {
+                    codec.decompress(record, tileOffsets[tile], tileLengths[tile], scratch, start, length);
+                    byte[] frame = current;
+                    byte[] xor = scratch;
+                    for (int i = start, end = start + length; i < end; i++) {
+                        frame[i] ^= xor[i];
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.sequence;
+
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writer for a compressed sequence of raw frames.
+ * <p>
+ * Every frame is split into tiles, fixed size runs of bytes, and each tile is compressed independently with a
+ * {@link FrameCodec}, so the tiles of a frame are compressed in parallel in a fork-join pool. A keyframe is compressed
+ * as it is. Every other frame is first XOR'd with the frame before it, so anything that did not change becomes zero
+ * and compresses to almost nothing; for a fixed camera most of each frame does not change.
+ * <p>
+ * Frames are stored whole, including padding, so a frame read back is exactly the frame that was written.
+ * <p>
+ * Random access is through the nearest keyframe at or before the wanted frame, so the keyframe interval trades the
+ * cost of seeking against the compression ratio.
+ * <p>
+ * The file starts with a header describing the layout and codec, followed by the frame records. Each record is a type
+ * byte, a timestamp, the compressed length of each tile and then the compressed tiles. When the writer is closed an
+ * index of the records is appended; a file that was not closed, for example after a crash, is still readable up to its
+ * last complete record, the reader then finds the records by scanning.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the writer is opened.
+ * <p>
+ * Frames must be written by one thread at a time.
+ */
+public final class RawSequenceWriter implements Closeable {
+
+    static final int MAGIC = 0x51535250;
+
+    static final int VERSION = 1;
+
+    static final int INDEX_MAGIC = 0x58445250;
+
+    static final int HEADER_SIZE = 44;
+
+    static final int INDEX_ENTRY_SIZE = 17;
+
+    static final int TRAILER_SIZE = 16;
+
+    static final byte KEYFRAME = 0;
+
+    static final byte DELTA = 1;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path file;
+
+    private final RawFrameLayout layout;
+
+    private int keyframeInterval = 30;
+
+    private FrameCodec codec = new Lz4Codec();
+
+    private int tileSize = 256 * 1024;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private DataOutputStream out;
+
+    private long position;
+
+    private int frameSize;
+
+    private byte[] previous;
+
+    private byte[] delta;
+
+    private byte[][] tiles;
+
+    private int[] lengths;
+
+    private final List<TileTask> tasks = new ArrayList<>();
+
+    private final RecursiveAction compressAll = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    };
+
+    private byte[] frame;
+
+    private boolean keyframe;
+
+    private long[] offsets = new long[256];
+
+    private long[] timestamps = new long[256];
+
+    private byte[] types = new byte[256];
+
+    private int frames;
+
+    private long bytes;
+
+    private boolean closed;
+
+    private RawSequenceWriter(Path file, RawFrameLayout layout) {
+        this.file = file;
+        this.layout = layout;
+    }
+
+    /**
+     * Create a writer.
+     *
+     * @param file sequence file, replaced if it exists
+     * @param layout layout of the frames
+     * @return writer
+     */
+    public static RawSequenceWriter rawSequenceWriter(Path file, RawFrameLayout layout) {
+        return new RawSequenceWriter(file, layout);
+    }
+
+    /**
+     * Set the number of frames from one keyframe to the next, the default is 30.
+     * <p>
+     * An interval of one makes every frame a keyframe.
+     *
+     * @param keyframeInterval interval, in frames
+     * @return this writer
+     */
+    public RawSequenceWriter keyframeInterval(int keyframeInterval) {
+        checkNotOpened();
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be at least one");
+        }
+        this.keyframeInterval = keyframeInterval;
+        return this;
+    }
+
+    /**
+     * Set the codec, the default is {@link Lz4Codec}.
+     *
+     * @param codec codec
+     * @return this writer
+     */
+    public RawSequenceWriter codec(FrameCodec codec) {
+        checkNotOpened();
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Set the size of each tile, the default is 256KB.
+     * <p>
+     * Smaller tiles give more parallelism, larger tiles compress a little better.
+     *
+     * @param tileSize tile size, in bytes
+     * @return this writer
+     */
+    public RawSequenceWriter tileSize(int tileSize) {
+        checkNotOpened();
+        if (tileSize < 1024) {
+            throw new IllegalArgumentException("Tile size must be at least 1024 bytes");
+        }
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used to compress the tiles, the default is the common pool.
+     *
+     * @param pool pool
+     * @return this writer
+     */
+    public RawSequenceWriter pool(ForkJoinPool pool) {
+        checkNotOpened();
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Open the writer, creating the file and writing its header.
+     *
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public RawSequenceWriter open() throws IOException {
+        checkNotOpened();
+        frameSize = layout.frameSize();
+        int tileCount = (frameSize + tileSize - 1) / tileSize;
+        previous = new byte[frameSize];
+        delta = new byte[frameSize];
+        tiles = new byte[tileCount][];
+        lengths = new int[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tiles[tile] = new byte[codec.maxCompressedLength(tileLength(tile))];
+            tasks.add(new TileTask(tile));
+        }
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(layout.encoding().value());
+        out.writeInt(layout.width());
+        out.writeInt(layout.height());
+        out.writeInt(layout.stride());
+        out.writeInt(layout.rows());
+        out.writeInt(frameSize);
+        out.writeInt(codec.id());
+        out.writeInt(keyframeInterval);
+        out.writeInt(tileSize);
+        position = HEADER_SIZE;
+        return this;
+    }
+
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Write a frame, timestamped now.
+     *
+     * @param frame frame data, at least {@link RawFrameLayout#frameSize()} bytes
+     * @return index of the frame in the sequence
+     * @throws IOException if an I/O error occurs
+     */
+    public int write(byte[] frame) throws IOException {
+        return write(frame, System.currentTimeMillis());
+    }
+
+    /**
+     * Write a frame.
+     *
+     * @param frame frame data, at least {@link RawFrameLayout#frameSize()} bytes
+     * @param timestamp timestamp of the frame, in milliseconds
+     * @return index of the frame in the sequence
+     * @throws IOException if an I/O error occurs
+     */
+    public int write(byte[] frame, long timestamp) throws IOException {
+        checkOpen();
+        if (frame.length < frameSize) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        this.frame = frame;
+        this.keyframe = frames % keyframeInterval == 0;
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).compute();
+            } else {
+                for (TileTask task : tasks) {
+                    task.reinitialize();
+                }
+                compressAll.reinitialize();
+                pool.invoke(compressAll);
+            }
+        } finally {
+            this.frame = null;
+        }
+        if (frames == offsets.length) {
+            offsets = Arrays.copyOf(offsets, frames * 2);
+            timestamps = Arrays.copyOf(timestamps, frames * 2);
+            types = Arrays.copyOf(types, frames * 2);
+        }
+        byte type = keyframe ? KEYFRAME : DELTA;
+        offsets[frames] = position;
+        timestamps[frames] = timestamp;
+        types[frames] = type;
+        out.writeByte(type);
+        out.writeLong(timestamp);
+        for (int length : lengths) {
+            out.writeInt(length);
+        }
+        long recordSize = 9 + 4L * lengths.length;
+        for (int tile = 0; tile < tiles.length; tile++) {
+            out.write(tiles[tile], 0, lengths[tile]);
+            recordSize += lengths[tile];
+        }
+        position += recordSize;
+        bytes += recordSize;
+        return frames++;
+    }
+
+    /**
+     * Flush written frames to the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        out.flush();
+    }
+
+    /**
+     * Get the number of frames written.
+     *
+     * @return number of frames
+     */
+    public int frames() {
+        return frames;
+    }
+
+    /**
+     * Get the number of bytes of frame records written, not counting the file header or index.
+     *
+     * @return number of bytes
+     */
+    public long compressedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the compression ratio so far, the uncompressed size of the frames over their compressed size.
+     *
+     * @return ratio, or zero if no frames have been written
+     */
+    public double ratio() {
+        return bytes > 0 ? (double) frames * frameSize / bytes : 0;
+    }
+
+    /**
+     * Close the writer, appending the index of the frames.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (out == null || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long indexOffset = position;
+            for (int i = 0; i < frames; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(timestamps[i]);
+                out.writeByte(types[i]);
+            }
+            out.writeInt(frames);
+            out.writeLong(indexOffset);
+            out.writeInt(INDEX_MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+
+    private int tileLength(int tile) {
+        return Math.min(tileSize, frameSize - tile * tileSize);
+    }
+
+    private void checkNotOpened() {
+        if (out != null) {
+            throw new IllegalStateException("Writer has already been opened");
+        }
+    }
+
+    private void checkOpen() {
+        if (out == null) {
+            throw new IllegalStateException("Writer has not been opened");
+        }
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+    }
+
+    /**
+     * Compresses one tile of the current frame, and remembers it for the next frame.
+     */
+    private final class TileTask extends RecursiveAction {
+
+        private final int tile;
+
+        private TileTask(int tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            int start = tile * tileSize;
+            int length = tileLength(tile);
+            byte[] source = frame;
+            if (!keyframe) {
+                byte[] before = previous;
+                byte[] xor = delta;
+                for (int i = start, end = start + length; i < end; i++) {
+                    xor[i] = (byte) (source[i] ^ before[i]);
+                }
+                source = xor;
+            }
+            lengths[tile] = codec.compress(source, start, length, tiles[tile], 0);
+            System.arraycopy(frame, start, previous, start, length);
+        }
+    }
+
+}
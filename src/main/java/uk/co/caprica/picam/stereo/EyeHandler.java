@@ -0,0 +1,39 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.stereo;
+
+/**
+ * Specification for a component that processes one eye of a stereoscopic capture.
+ *
+ * @param <T> type of result
+ */
+public interface EyeHandler<T> {
+
+    /**
+     * Process an eye.
+     * <p>
+     * The view, and the frame data it refers to, must not be retained after this method returns.
+     *
+     * @param view view of the eye
+     * @return result
+     * @throws Exception if a general error occurs
+     */
+    T eye(EyeView view) throws Exception;
+
+}
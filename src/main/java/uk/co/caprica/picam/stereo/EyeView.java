@@ -0,0 +1,209 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.stereo;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.nio.ByteBuffer;
+
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_U;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_V;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_Y;
+
+/**
+ * A view of one eye of a stereoscopic raw capture.
+ * <p>
+ * The view does not copy any picture data, it describes where the eye's pixels are within the combined frame: the
+ * offset of the first pixel of each plane and the stride between rows, which is the stride of the combined frame. The
+ * pixel at (x, y) of a plane is at <code>offset(plane) + y * stride(plane) + x * bytesPerPixel()</code> (chroma planes
+ * have one byte per sample).
+ * <p>
+ * If the capture was decimated, each eye was squeezed to half size in the direction in which the eyes are arranged, so
+ * the pixels of the view are not square, see {@link #horizontalScale()} and {@link #verticalScale()}.
+ * <p>
+ * A view is only valid for as long as the frame it refers to is not changed.
+ */
+public final class EyeView {
+
+    private final Eye eye;
+
+    private final byte[] data;
+
+    private final RawFrameLayout layout;
+
+    private final int width;
+
+    private final int height;
+
+    private final int[] offsets;
+
+    private final int horizontalScale;
+
+    private final int verticalScale;
+
+    EyeView(Eye eye, byte[] data, RawFrameLayout layout, int width, int height, int[] offsets, int horizontalScale, int verticalScale) {
+        this.eye = eye;
+        this.data = data;
+        this.layout = layout;
+        this.width = width;
+        this.height = height;
+        this.offsets = offsets;
+        this.horizontalScale = horizontalScale;
+        this.verticalScale = verticalScale;
+    }
+
+    public Eye eye() {
+        return eye;
+    }
+
+    /**
+     * Get the combined frame data.
+     *
+     * @return frame data, not a copy
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public Encoding encoding() {
+        return layout.encoding();
+    }
+
+    /**
+     * Get the width of the eye.
+     *
+     * @return width, in pixels
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Get the height of the eye.
+     *
+     * @return height, in pixels
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Get the number of bytes per pixel in the first (or only) plane.
+     *
+     * @return bytes per pixel
+     */
+    public int bytesPerPixel() {
+        return layout.bytesPerPixel();
+    }
+
+    /**
+     * Get the offset of the first pixel of the eye in a plane.
+     *
+     * @param plane plane number
+     * @return offset, in bytes
+     */
+    public int offset(int plane) {
+        return offsets[plane];
+    }
+
+    /**
+     * Get the number of bytes between the start of consecutive rows of a plane.
+     *
+     * @param plane plane number
+     * @return stride, in bytes
+     */
+    public int stride(int plane) {
+        return plane == PLANE_Y ? layout.stride() : layout.chromaStride();
+    }
+
+    /**
+     * Get the width of the chroma planes of the eye.
+     *
+     * @return width, in samples, or zero if the frame is not planar
+     */
+    public int chromaWidth() {
+        return layout.isPlanar() ? (width + 1) / 2 : 0;
+    }
+
+    /**
+     * Get the height of the chroma planes of the eye.
+     *
+     * @return height, in samples, or zero if the frame is not planar
+     */
+    public int chromaHeight() {
+        return layout.isPlanar() ? (height + 1) / 2 : 0;
+    }
+
+    /**
+     * Get the number of scene pixels each pixel of the view covers horizontally.
+     *
+     * @return 2 for a decimated side by side capture, otherwise 1
+     */
+    public int horizontalScale() {
+        return horizontalScale;
+    }
+
+    /**
+     * Get the number of scene pixels each pixel of the view covers vertically.
+     *
+     * @return 2 for a decimated top and bottom capture, otherwise 1
+     */
+    public int verticalScale() {
+        return verticalScale;
+    }
+
+    /**
+     * Get a sample.
+     *
+     * @param plane plane number, for packed frames always {@link uk.co.caprica.picam.raw.RawRowPictureCaptureHandler#PLANE_Y}
+     * @param x x position, in pixels (or chroma samples)
+     * @param y y position, in rows (or chroma rows)
+     * @return sample value, 0 to 255, for packed frames the first byte of the pixel
+     */
+    public int sample(int plane, int x, int y) {
+        int step = plane == PLANE_Y ? layout.bytesPerPixel() : 1;
+        return data[offsets[plane] + y * stride(plane) + x * step] & 0xff;
+    }
+
+    /**
+     * Get a buffer view of a plane.
+     * <p>
+     * The buffer shares the frame data, position zero is the first pixel of the eye and rows are {@link #stride(int)}
+     * bytes apart. The buffer is read-only.
+     *
+     * @param plane plane number
+     * @return buffer
+     */
+    public ByteBuffer buffer(int plane) {
+        if (plane != PLANE_Y && (!layout.isPlanar() || plane > PLANE_V || plane < PLANE_U)) {
+            throw new IllegalArgumentException("No such plane: " + plane);
+        }
+        int rows = plane == PLANE_Y ? height : chromaHeight();
+        int rowBytes = plane == PLANE_Y ? width * layout.bytesPerPixel() : chromaWidth();
+        int length = stride(plane) * (rows - 1) + rowBytes;
+        return ByteBuffer.wrap(data, offsets[plane], length).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s eye %dx%d of %s", eye, width, height, layout);
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.stereo;
+
+/**
+ * The results of processing both eyes of a stereoscopic capture.
+ *
+ * @param <L> type of left eye result
+ * @param <R> type of right eye result
+ */
+public final class StereoPair<L, R> {
+
+    private final L left;
+
+    private final R right;
+
+    StereoPair(L left, R right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    public L left() {
+        return left;
+    }
+
+    public R right() {
+        return right;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("left %s right %s", left, right);
+    }
+
+}
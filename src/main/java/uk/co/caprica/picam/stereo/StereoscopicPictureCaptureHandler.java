@@ -0,0 +1,89 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.stereo;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.raw.FrameAssembler;
+
+/**
+ * Implementation of a picture capture handler that passes each eye of a stereoscopic raw capture to its own handler,
+ * processing both eyes in parallel.
+ * <p>
+ * The eyes are only available once the whole frame has arrived, the chunks are assembled by a {@link FrameAssembler}.
+ * The eye handlers receive views of the assembled frame, not copies.
+ *
+ * @param <L> type of left eye result
+ * @param <R> type of right eye result
+ */
+public class StereoscopicPictureCaptureHandler<L, R> implements PictureCaptureHandler<StereoPair<L, R>> {
+
+    private final StereoscopicSplitter splitter;
+
+    private final EyeHandler<L> left;
+
+    private final EyeHandler<R> right;
+
+    private final FrameAssembler assembler;
+
+    private StereoPair<L, R> result;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param splitter splitter
+     * @param left handler for the left eye
+     * @param right handler for the right eye
+     */
+    public StereoscopicPictureCaptureHandler(StereoscopicSplitter splitter, EyeHandler<L> left, EyeHandler<R> right) {
+        this.splitter = splitter;
+        this.left = left;
+        this.right = right;
+        this.assembler = new FrameAssembler(splitter.layout());
+    }
+
+    @Override
+    public void begin() throws Exception {
+        assembler.begin();
+        result = null;
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        assembler.add(data);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        if (assembler.isComplete()) {
+            result = splitter.split(assembler.frame(), left, right);
+        }
+    }
+
+    /**
+     * Get the results of processing the eyes.
+     *
+     * @return results, or <code>null</code> if a complete frame was not received
+     */
+    @Override
+    public StereoPair<L, R> result() {
+        return result;
+    }
+
+}
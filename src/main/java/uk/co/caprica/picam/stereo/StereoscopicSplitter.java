@@ -0,0 +1,204 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+package uk.co.caprica.picam.stereo;
+
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.StereoscopicMode;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_U;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_V;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_Y;
+
+/**
+ * Splits a stereoscopic raw capture into a view of each eye, without copying.
+ * <p>
+ * For {@link StereoscopicMode#SIDE_BY_SIDE} the left eye is normally the left half of the frame, and for
+ * {@link StereoscopicMode#TOP_BOTTOM} it is normally the top half; if the eyes are swapped it is the other half.
+ * <p>
+ * The eyes can be processed in parallel, each by its own {@link EyeHandler}, since the views share the frame data but
+ * do not overlap.
+ */
+public final class StereoscopicSplitter {
+
+    private final RawFrameLayout layout;
+
+    private final StereoscopicMode mode;
+
+    private final boolean decimate;
+
+    private final int eyeWidth;
+
+    private final int eyeHeight;
+
+    private final int[][] offsets = new int[2][3];
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private StereoscopicSplitter(RawFrameLayout layout, StereoscopicMode mode, boolean decimate, boolean swapEyes) {
+        this.layout = layout;
+        this.mode = mode;
+        this.decimate = decimate;
+        int first = swapEyes ? Eye.RIGHT.ordinal() : Eye.LEFT.ordinal();
+        int second = 1 - first;
+        switch (mode) {
+            case SIDE_BY_SIDE:
+                eyeWidth = layout.width() / 2;
+                eyeHeight = layout.height();
+                if (layout.isPlanar() && eyeWidth % 2 != 0) {
+                    throw new IllegalArgumentException("Eye width must be even for a planar frame");
+                }
+                offsets[second][PLANE_Y] = eyeWidth * layout.bytesPerPixel();
+                offsets[second][PLANE_U] = offsets[second][PLANE_V] = eyeWidth / 2;
+                break;
+            case TOP_BOTTOM:
+                eyeWidth = layout.width();
+                eyeHeight = layout.height() / 2;
+                if (layout.isPlanar() && eyeHeight % 2 != 0) {
+                    throw new IllegalArgumentException("Eye height must be even for a planar frame");
+                }
+                offsets[second][PLANE_Y] = eyeHeight * layout.stride();
+                offsets[second][PLANE_U] = offsets[second][PLANE_V] = eyeHeight / 2 * layout.chromaStride();
+                break;
+            default:
+                throw new IllegalArgumentException("Not a stereoscopic mode: " + mode);
+        }
+        if (layout.isPlanar()) {
+            for (int[] eye : offsets) {
+                eye[PLANE_U] += layout.uOffset();
+                eye[PLANE_V] += layout.vOffset();
+            }
+        }
+    }
+
+    /**
+     * Create a splitter.
+     *
+     * @param layout layout of the combined frame, containing both eyes
+     * @param mode stereoscopic mode
+     * @param decimate <code>true</code> if each eye was decimated to half size
+     * @param swapEyes <code>true</code> if the eyes were swapped
+     * @return splitter
+     */
+    public static StereoscopicSplitter stereoscopicSplitter(RawFrameLayout layout, StereoscopicMode mode, boolean decimate, boolean swapEyes) {
+        return new StereoscopicSplitter(layout, mode, decimate, swapEyes);
+    }
+
+    /**
+     * Create a splitter for a particular camera configuration.
+     * <p>
+     * If the eyes are decimated, the combined frame is the configured size and each eye is squeezed into half of it.
+     * Otherwise each eye is the configured size and the combined frame is twice as wide (side by side) or twice as high
+     * (top and bottom).
+     *
+     * @param configuration camera configuration
+     * @return splitter
+     */
+    public static StereoscopicSplitter stereoscopicSplitter(CameraConfiguration configuration) {
+        StereoscopicMode mode = configuration.stereoscopicMode();
+        boolean decimate = Boolean.TRUE.equals(configuration.decimate());
+        int width = configuration.width();
+        int height = configuration.height();
+        if (!decimate) {
+            if (mode == StereoscopicMode.SIDE_BY_SIDE) {
+                width *= 2;
+            } else if (mode == StereoscopicMode.TOP_BOTTOM) {
+                height *= 2;
+            }
+        }
+        return new StereoscopicSplitter(rawFrameLayout(configuration.encoding(), width, height), mode, decimate, Boolean.TRUE.equals(configuration.swapEyes()));
+    }
+
+    /**
+     * Set the fork-join pool used to process the eyes in parallel.
+     * <p>
+     * The default is the common pool.
+     *
+     * @param pool fork-join pool
+     * @return this splitter
+     */
+    public StereoscopicSplitter pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Get the layout of the combined frame.
+     *
+     * @return layout
+     */
+    public RawFrameLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Get a view of one eye.
+     *
+     * @param frame combined frame data
+     * @param eye eye
+     * @return view
+     */
+    public EyeView view(byte[] frame, Eye eye) {
+        if (frame.length < layout.frameSize()) {
+            throw new IllegalArgumentException("Frame is too small for the layout");
+        }
+        int horizontalScale = decimate && mode == StereoscopicMode.SIDE_BY_SIDE ? 2 : 1;
+        int verticalScale = decimate && mode == StereoscopicMode.TOP_BOTTOM ? 2 : 1;
+        return new EyeView(eye, frame, layout, eyeWidth, eyeHeight, offsets[eye.ordinal()], horizontalScale, verticalScale);
+    }
+
+    /**
+     * Process both eyes in parallel.
+     * <p>
+     * The right eye is processed in the fork-join pool while the left eye is processed on the calling thread.
+     *
+     * @param frame combined frame data
+     * @param left handler for the left eye
+     * @param right handler for the right eye
+     * @param <L> type of left eye result
+     * @param <R> type of right eye result
+     * @return results
+     * @throws Exception if either handler fails
+     */
+    public <L, R> StereoPair<L, R> split(byte[] frame, EyeHandler<L> left, EyeHandler<R> right) throws Exception {
+        EyeView leftView = view(frame, Eye.LEFT);
+        EyeView rightView = view(frame, Eye.RIGHT);
+        ForkJoinTask<R> rightTask = pool.submit(() -> right.eye(rightView));
+        L leftResult;
+        try {
+            leftResult = left.eye(leftView);
+        }
+        finally {
+            // Never return while the other eye may still be reading the frame
+            rightTask.quietlyJoin();
+        }
+        try {
+            return new StereoPair<>(leftResult, rightTask.get());
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+}
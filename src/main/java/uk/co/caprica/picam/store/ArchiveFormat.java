@@ -0,0 +1,54 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+/**
+ * Archive formats supported by {@link RollingArchive}.
+ */
+public enum ArchiveFormat {
+
+    /**
+     * POSIX ustar archive, entries are always stored uncompressed.
+     */
+    TAR(".tar"),
+
+    /**
+     * ZIP archive, entries are stored or deflated.
+     * <p>
+     * ZIP64 is not used, so an archive is limited to 4GB and 65535 entries.
+     */
+    ZIP(".zip");
+
+    private final String extension;
+
+    ArchiveFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Get the file name extension for the format.
+     *
+     * @return extension, including the dot
+     */
+    public String extension() {
+        return extension;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+/**
+ * Implementation of a picture capture handler that streams each picture into a {@link RollingArchive} as a new entry.
+ * <p>
+ * Entry names are made from a format pattern containing a "%d" formatter somewhere to take the capture number, in the
+ * same way as {@link uk.co.caprica.picam.SequentialFilePictureCaptureHandler}.
+ * <p>
+ * The result is the name of the entry.
+ */
+public class ArchivePictureCaptureHandler implements PictureCaptureHandler<String> {
+
+    private final RollingArchive archive;
+
+    private final String pattern;
+
+    private int number;
+
+    private String name;
+
+    /**
+     * Create a picture capture handler.
+     * <p>
+     * Entry numbering will start from one.
+     *
+     * @param archive rolling archive
+     * @param pattern format pattern for the entry names, containing a "%d" formatter somewhere to take the capture number
+     */
+    public ArchivePictureCaptureHandler(RollingArchive archive, String pattern) {
+        this(archive, pattern, 1);
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param archive rolling archive
+     * @param pattern format pattern for the entry names, containing a "%d" formatter somewhere to take the capture number
+     * @param initial initial capture number
+     */
+    public ArchivePictureCaptureHandler(RollingArchive archive, String pattern, int initial) {
+        this.archive = archive;
+        this.pattern = pattern;
+        this.number = initial;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        name = String.format(pattern, number++);
+        archive.begin(name);
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        archive.write(data, 0, data.length);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        archive.end();
+    }
+
+    @Override
+    public String result() {
+        return name;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+
+/**
+ * Writes entries, one at a time, to an archive file.
+ */
+abstract class ArchiveWriter extends RollingFile.Writer {
+
+    private int entries;
+
+    protected ArchiveWriter(ChannelOutput out) {
+        super(out);
+    }
+
+    /**
+     * Get the number of complete entries.
+     *
+     * @return number of entries
+     */
+    final int entries() {
+        return entries;
+    }
+
+    @Override
+    final long size() {
+        return out.position();
+    }
+
+    /**
+     * Begin an entry, writing a header that is completed when the entry ends.
+     *
+     * @param name entry name
+     * @param time modification time, milliseconds since the epoch
+     * @throws IOException if an error occurs
+     */
+    abstract void begin(String name, long time) throws IOException;
+
+    /**
+     * End the current entry, completing its header.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    void end() throws IOException {
+        entries++;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.nio.file.Path;
+
+/**
+ * Implementation of a picture capture handler that streams each JPEG picture into a {@link RollingAvi} as a new video
+ * frame.
+ * <p>
+ * The result is the final path of the video the frame was written to. The video itself is only complete, and only
+ * has that name, once the rolling AVI has moved on to the next video or been closed.
+ */
+public class AviPictureCaptureHandler implements PictureCaptureHandler<Path> {
+
+    private final RollingAvi avi;
+
+    private Path video;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param avi rolling AVI
+     */
+    public AviPictureCaptureHandler(RollingAvi avi) {
+        this.avi = avi;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        avi.begin();
+        video = avi.video();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        avi.write(data, 0, data.length);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        avi.end();
+    }
+
+    @Override
+    public Path result() {
+        return video;
+    }
+
+}
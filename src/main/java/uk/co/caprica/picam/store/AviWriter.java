@@ -0,0 +1,333 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Writes a Motion JPEG AVI (RIFF AVI 1.0) file, one JPEG picture per frame.
+ * <p>
+ * The headers are written first with placeholder values, each frame is streamed into the <code>movi</code> list as a
+ * <code>00dc</code> chunk as it arrives, and the <code>idx1</code> index is kept in memory, sixteen bytes a frame.
+ * Finishing the file appends the index and rewrites the headers with the final frame count, sizes and picture
+ * dimensions.
+ * <p>
+ * The picture dimensions are read from the start of frame segment of the first frame, unless they were given.
+ */
+final class AviWriter extends RollingFile.Writer {
+
+    /**
+     * Largest file that is written, RIFF sizes are 32 bits and many players treat them as signed.
+     */
+    static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Size of everything before the first frame: the RIFF header, the header list and the start of the movi list.
+     */
+    static final int HEADER_SIZE = 224;
+
+    /**
+     * Position of the "movi" list type, which the index offsets are relative to.
+     */
+    private static final int MOVI_POSITION = HEADER_SIZE - 4;
+
+    private static final int AVIF_HASINDEX = 0x10;
+
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private final int framesPerSecond;
+
+    private int width;
+
+    private int height;
+
+    private final FrameSize frameSize;
+
+    private int[] offsets = new int[1024];
+
+    private int[] sizes = new int[1024];
+
+    private int frames;
+
+    private int largestFrame;
+
+    private long frameStart;
+
+    private long frameLength;
+
+    AviWriter(ChannelOutput out, int framesPerSecond, int width, int height) throws IOException {
+        super(out);
+        this.framesPerSecond = framesPerSecond;
+        this.width = width;
+        this.height = height;
+        this.frameSize = width > 0 ? null : new FrameSize();
+        out.write(header(HEADER_SIZE, HEADER_SIZE));
+    }
+
+    int frames() {
+        return frames;
+    }
+
+    /**
+     * Get the size the file would be if it were finished now.
+     *
+     * @return size, in bytes
+     */
+    @Override
+    long size() {
+        return out.position() + 8 + (long) frames * INDEX_ENTRY_SIZE;
+    }
+
+    void begin() throws IOException {
+        frameStart = out.position();
+        frameLength = 0;
+        out.write(chunk("00dc", 0));
+    }
+
+    @Override
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (size() + length + 8 + INDEX_ENTRY_SIZE > MAX_FILE_BYTES) {
+            throw new IOException("Frame does not fit in the AVI file");
+        }
+        if (frameSize != null && frames == 0) {
+            frameSize.update(data, offset, length);
+        }
+        out.write(data, offset, length);
+        frameLength += length;
+    }
+
+    @Override
+    void end() throws IOException {
+        if ((frameLength & 1) != 0) {
+            out.write(new byte[1]);
+        }
+        out.patch(frameStart, chunk("00dc", (int) frameLength));
+        if (frames == offsets.length) {
+            offsets = Arrays.copyOf(offsets, frames * 2);
+            sizes = Arrays.copyOf(sizes, frames * 2);
+        }
+        offsets[frames] = (int) (frameStart - MOVI_POSITION);
+        sizes[frames] = (int) frameLength;
+        largestFrame = Math.max(largestFrame, (int) frameLength);
+        if (frames == 0 && frameSize != null) {
+            width = frameSize.width;
+            height = frameSize.height;
+        }
+        frames++;
+    }
+
+    /**
+     * Discard the frame that was begun and not ended.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    void discard() throws IOException {
+        out.truncate(frameStart);
+        if (frameSize != null && frames == 0) {
+            frameSize.reset();
+        }
+    }
+
+    /**
+     * Append the index and rewrite the headers.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    void finish() throws IOException {
+        long moviEnd = out.position();
+        ByteBuffer index = buffer(8 + frames * INDEX_ENTRY_SIZE);
+        index.putInt(fourCC("idx1")).putInt(frames * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < frames; i++) {
+            index.putInt(fourCC("00dc")).putInt(AVIIF_KEYFRAME).putInt(offsets[i]).putInt(sizes[i]);
+        }
+        out.write(index.array());
+        out.patch(0, header(out.position(), moviEnd));
+    }
+
+    private byte[] header(long fileSize, long moviEnd) {
+        int suggestedBuffer = largestFrame + 8;
+        ByteBuffer header = buffer(HEADER_SIZE);
+        header.put(list("RIFF", (int) (fileSize - 8), "AVI "));
+        header.put(list("LIST", 192, "hdrl"));
+        header.put(chunk("avih", 56));
+        header.putInt(1000000 / framesPerSecond);
+        header.putInt(frames > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) largestFrame * framesPerSecond) : 0);
+        header.putInt(0);
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(frames);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(suggestedBuffer);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+        header.put(list("LIST", 116, "strl"));
+        header.put(chunk("strh", 56));
+        header.putInt(fourCC("vids"));
+        header.putInt(fourCC("MJPG"));
+        header.putInt(0);
+        header.putShort((short) 0).putShort((short) 0);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(framesPerSecond);
+        header.putInt(0);
+        header.putInt(frames);
+        header.putInt(suggestedBuffer);
+        header.putInt(-1);
+        header.putInt(0);
+        header.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+        header.put(chunk("strf", 40));
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        header.putInt(fourCC("MJPG"));
+        header.putInt(width * height * 3);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+        header.put(list("LIST", (int) (moviEnd - MOVI_POSITION), "movi"));
+        return header.array();
+    }
+
+    private static byte[] chunk(String id, int size) {
+        return buffer(8).putInt(fourCC(id)).putInt(size).array();
+    }
+
+    private static byte[] list(String id, int size, String type) {
+        return buffer(12).putInt(fourCC(id)).putInt(size).putInt(fourCC(type)).array();
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int fourCC(String value) {
+        return value.charAt(0) | (value.charAt(1) << 8) | (value.charAt(2) << 16) | (value.charAt(3) << 24);
+    }
+
+    /**
+     * Finds the picture dimensions in the start of frame segment of a JPEG as its data streams past, without
+     * buffering it. Scanning stops at the start of scan segment, before the entropy-coded data.
+     */
+    private static final class FrameSize {
+
+        private static final int MARKER_START = 0;
+
+        private static final int MARKER = 1;
+
+        private static final int LENGTH_HIGH = 2;
+
+        private static final int LENGTH_LOW = 3;
+
+        private static final int SKIP = 4;
+
+        private static final int START_OF_FRAME = 5;
+
+        private static final int DONE = 6;
+
+        private int state;
+
+        private int marker;
+
+        private int remaining;
+
+        private final byte[] sof = new byte[5];
+
+        private int collected;
+
+        private int width;
+
+        private int height;
+
+        void reset() {
+            state = MARKER_START;
+            width = 0;
+            height = 0;
+        }
+
+        void update(byte[] data, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end && state != DONE; i++) {
+                int b = data[i] & 0xff;
+                switch (state) {
+                    case MARKER_START:
+                        state = b == 0xff ? MARKER : DONE;
+                        break;
+                    case MARKER:
+                        if (b == 0xff) {
+                            // Fill byte
+                        } else if (b == 0xd8 || b == 0x01 || b >= 0xd0 && b <= 0xd7) {
+                            state = MARKER_START;
+                        } else if (b == 0xda || b == 0xd9) {
+                            state = DONE;
+                        } else {
+                            marker = b;
+                            state = LENGTH_HIGH;
+                        }
+                        break;
+                    case LENGTH_HIGH:
+                        remaining = b << 8;
+                        state = LENGTH_LOW;
+                        break;
+                    case LENGTH_LOW:
+                        remaining = (remaining | b) - 2;
+                        if (isStartOfFrame(marker) && remaining >= sof.length) {
+                            collected = 0;
+                            state = START_OF_FRAME;
+                        } else {
+                            state = remaining > 0 ? SKIP : MARKER_START;
+                        }
+                        break;
+                    case SKIP: {
+                        int n = Math.min(remaining, end - i);
+                        remaining -= n;
+                        i += n - 1;
+                        if (remaining == 0) {
+                            state = MARKER_START;
+                        }
+                        break;
+                    }
+                    case START_OF_FRAME:
+                        sof[collected++] = (byte) b;
+                        if (collected == sof.length) {
+                            height = (sof[1] & 0xff) << 8 | sof[2] & 0xff;
+                            width = (sof[3] & 0xff) << 8 | sof[4] & 0xff;
+                            state = DONE;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private static boolean isStartOfFrame(int marker) {
+            return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+        }
+    }
+
+}
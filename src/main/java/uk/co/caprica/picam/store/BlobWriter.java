@@ -0,0 +1,157 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Receives the content of a blob as it streams in, hashing it as it goes.
+ * <p>
+ * Content up to the memory limit is held in memory, so a duplicate is never written at all. Larger content is spilled
+ * to a temporary file in the store.
+ */
+final class BlobWriter {
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path temporaryDirectory;
+
+    private final MessageDigest digest;
+
+    private final int memoryLimit;
+
+    private byte[] memory = new byte[BUFFER_SIZE];
+
+    private int size;
+
+    private long length;
+
+    private Path spill;
+
+    private OutputStream out;
+
+    BlobWriter(Path temporaryDirectory, MessageDigest digest, int memoryLimit) {
+        this.temporaryDirectory = temporaryDirectory;
+        this.digest = digest;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Start new content, discarding anything left from before.
+     *
+     * @throws IOException if a temporary file can not be removed
+     */
+    void reset() throws IOException {
+        digest.reset();
+        size = 0;
+        length = 0;
+        discard();
+    }
+
+    void write(byte[] data, int offset, int count) throws IOException {
+        digest.update(data, offset, count);
+        length += count;
+        if (out == null) {
+            if (size + count <= memoryLimit) {
+                if (size + count > memory.length) {
+                    memory = Arrays.copyOf(memory, Math.min(memoryLimit, Math.max(size + count, memory.length * 2)));
+                }
+                System.arraycopy(data, offset, memory, size, count);
+                size += count;
+                return;
+            }
+            spill = Files.createTempFile(temporaryDirectory, "blob", ".tmp");
+            out = new BufferedOutputStream(Files.newOutputStream(spill), BUFFER_SIZE);
+            out.write(memory, 0, size);
+            size = 0;
+        }
+        out.write(data, offset, count);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Finish the content.
+     *
+     * @return digest, as lower-case hexadecimal
+     * @throws IOException if the temporary file can not be written
+     */
+    String finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        byte[] hash = digest.digest();
+        char[] result = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            result[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Get a temporary file containing the finished content, writing it if the content is in memory.
+     * <p>
+     * The caller takes ownership of the file.
+     *
+     * @return temporary file, to be moved into place
+     * @throws IOException if the content can not be written
+     */
+    Path file() throws IOException {
+        if (spill != null) {
+            Path result = spill;
+            spill = null;
+            return result;
+        }
+        Path result = Files.createTempFile(temporaryDirectory, "blob", ".tmp");
+        try (OutputStream file = Files.newOutputStream(result)) {
+            file.write(memory, 0, size);
+        }
+        return result;
+    }
+
+    /**
+     * Discard any temporary file.
+     *
+     * @throws IOException if the file can not be removed
+     */
+    void discard() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (spill != null) {
+            Files.deleteIfExists(spill);
+            spill = null;
+        }
+    }
+
+}
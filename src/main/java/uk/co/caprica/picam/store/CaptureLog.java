@@ -0,0 +1,551 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of captures, stored as a sequence of segment files in a directory.
+ * <p>
+ * Each picture is appended to the current segment as a single record: a header with a magic number, the length of the
+ * picture data and a timestamp, then the picture data itself, then a CRC-32 of the data and the header fields. The
+ * data is streamed into the record as it arrives, and the length in the header is only filled in once the record is
+ * complete, so a record that was being written when the power failed never looks valid.
+ * <p>
+ * When a segment reaches the maximum size or age a new segment is started with the next segment number. Records are
+ * never split across segments.
+ * <p>
+ * Writes go through a single large buffer, so each capture costs a few large sequential writes rather than a file
+ * creation, many small writes and a close. Data is only guaranteed to be on disk after {@link #sync()} or when a segment
+ * is rolled over or the log is closed.
+ * <p>
+ * When the log is opened the last segment is scanned and truncated after its last valid record, removing anything left
+ * behind by a torn write. New records always go into a new segment.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the log is opened.
+ * <p>
+ * Appending must only be done by one thread at a time, reading may be done concurrently from other threads.
+ */
+public final class CaptureLog implements Closeable {
+
+    static final int SEGMENT_MAGIC = 0x5043414d;
+
+    static final int SEGMENT_VERSION = 1;
+
+    static final int SEGMENT_HEADER_SIZE = 8;
+
+    static final int RECORD_MAGIC = 0x52454331;
+
+    static final int RECORD_HEADER_SIZE = 16;
+
+    static final int RECORD_TRAILER_SIZE = 4;
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Number of bits of a location used for the offset within the segment.
+     */
+    private static final int OFFSET_BITS = 40;
+
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path directory;
+
+    private long maxSegmentBytes = 256L * 1024 * 1024;
+
+    private long maxSegmentAge = TimeUnit.HOURS.toMillis(1);
+
+    private int bufferSize = 1024 * 1024;
+
+    private Clock clock = Clock.systemUTC();
+
+    private final CRC32 crc = new CRC32();
+
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+    private final byte[] patch = new byte[4];
+
+    private final byte[] trailer = new byte[RECORD_TRAILER_SIZE];
+
+    private boolean opened;
+
+    private boolean closed;
+
+    private long nextSegment;
+
+    private long segment = -1;
+
+    private ChannelOutput out;
+
+    private long segmentCreated;
+
+    /**
+     * Position in the segment of the record being written, or -1 if there is none.
+     */
+    private long recordStart = -1;
+
+    private long recordTimestamp;
+
+    private long recordLength;
+
+    private long truncated;
+
+    private CaptureLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create a capture log.
+     *
+     * @param directory directory containing the segment files, created if necessary when the log is opened
+     * @return capture log
+     */
+    public static CaptureLog captureLog(Path directory) {
+        return new CaptureLog(directory);
+    }
+
+    /**
+     * Pack a segment number and an offset into a single location value.
+     *
+     * @param segment segment number
+     * @param offset offset of a record within the segment
+     * @return location
+     */
+    public static long location(long segment, long offset) {
+        return (segment << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Get the segment number from a location.
+     *
+     * @param location location
+     * @return segment number
+     */
+    public static long segment(long location) {
+        return location >>> OFFSET_BITS;
+    }
+
+    /**
+     * Get the offset within the segment from a location.
+     *
+     * @param location location
+     * @return offset, in bytes
+     */
+    public static long offset(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    /**
+     * Set the size at which a new segment is started.
+     * <p>
+     * The default is 256MB.
+     *
+     * @param maxSegmentBytes maximum segment size, in bytes, a single record may take a segment past this size
+     * @return this capture log
+     */
+    public CaptureLog maxSegmentBytes(long maxSegmentBytes) {
+        checkNotOpened();
+        if (maxSegmentBytes <= SEGMENT_HEADER_SIZE || maxSegmentBytes > OFFSET_MASK) {
+            throw new IllegalArgumentException("Maximum segment size is out of range");
+        }
+        this.maxSegmentBytes = maxSegmentBytes;
+        return this;
+    }
+
+    /**
+     * Set the age at which a new segment is started.
+     * <p>
+     * The default is one hour.
+     *
+     * @param maxSegmentAge maximum segment age
+     * @param unit unit of the age
+     * @return this capture log
+     */
+    public CaptureLog maxSegmentAge(long maxSegmentAge, TimeUnit unit) {
+        checkNotOpened();
+        if (maxSegmentAge <= 0) {
+            throw new IllegalArgumentException("Maximum segment age must be greater than zero");
+        }
+        this.maxSegmentAge = unit.toMillis(maxSegmentAge);
+        return this;
+    }
+
+    /**
+     * Set the size of the write buffer.
+     * <p>
+     * The default is 1MB. Picture data chunks larger than the buffer are written directly without being copied.
+     *
+     * @param bufferSize buffer size, in bytes
+     * @return this capture log
+     */
+    public CaptureLog bufferSize(int bufferSize) {
+        checkNotOpened();
+        if (bufferSize < RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + RECORD_HEADER_SIZE);
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Set the clock used for record timestamps and segment ages.
+     *
+     * @param clock clock
+     * @return this capture log
+     */
+    public CaptureLog clock(Clock clock) {
+        checkNotOpened();
+        this.clock = clock;
+        return this;
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Open the log, recovering the last segment.
+     *
+     * @return this capture log
+     * @throws IOException if an error occurs
+     */
+    public synchronized CaptureLog open() throws IOException {
+        checkNotOpened();
+        Files.createDirectories(directory);
+        List<Long> segments = segments();
+        if (!segments.isEmpty()) {
+            long last = segments.get(segments.size() - 1);
+            recover(segmentFile(last));
+            nextSegment = last + 1;
+        }
+        opened = true;
+        return this;
+    }
+
+    /**
+     * Get the number of bytes removed from the end of the last segment when the log was opened.
+     *
+     * @return number of bytes, zero if the log was closed cleanly
+     */
+    public long truncated() {
+        return truncated;
+    }
+
+    /**
+     * Get the numbers of all of the segments in the log, oldest first.
+     *
+     * @return segment numbers
+     * @throws IOException if the directory can not be read
+     */
+    public List<Long> segments() throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    result.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Get the file for a segment.
+     *
+     * @param segment segment number
+     * @return segment file, which may not exist
+     */
+    public Path segmentFile(long segment) {
+        return directory.resolve(String.format("%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Get the number of the segment currently being written.
+     *
+     * @return segment number, or -1 if nothing has been written since the log was opened
+     */
+    public synchronized long currentSegment() {
+        return segment;
+    }
+
+    /**
+     * Begin a new record.
+     * <p>
+     * Any record that was begun and not ended is discarded.
+     *
+     * @throws IOException if an error occurs
+     */
+    public synchronized void begin() throws IOException {
+        checkOpen();
+        if (recordStart >= 0) {
+            discard();
+        }
+        long now = clock.millis();
+        if (out == null || out.position() > SEGMENT_HEADER_SIZE && (out.position() >= maxSegmentBytes || now - segmentCreated >= maxSegmentAge)) {
+            roll(now);
+        }
+        recordStart = out.position();
+        recordTimestamp = now;
+        recordLength = 0;
+        crc.reset();
+        header.clear();
+        header.putInt(RECORD_MAGIC);
+        // The length is filled in when the record ends, until then the record is not valid
+        header.putInt(0);
+        header.putLong(now);
+        out.write(header.array());
+    }
+
+    /**
+     * Append picture data to the current record.
+     *
+     * @param data data
+     * @param offset offset of the first byte to append
+     * @param length number of bytes to append
+     * @throws IOException if an error occurs
+     */
+    public synchronized void append(byte[] data, int offset, int length) throws IOException {
+        if (recordStart < 0) {
+            throw new IllegalStateException("No record has been begun");
+        }
+        if (recordLength + length > Integer.MAX_VALUE - RECORD_HEADER_SIZE - RECORD_TRAILER_SIZE) {
+            throw new IOException("Record is too large");
+        }
+        crc.update(data, offset, length);
+        recordLength += length;
+        out.write(data, offset, length);
+    }
+
+    /**
+     * End the current record.
+     * <p>
+     * A record with no picture data is discarded.
+     *
+     * @return the record, or <code>null</code> if it was discarded
+     * @throws IOException if an error occurs
+     */
+    public synchronized CaptureLogRecord end() throws IOException {
+        if (recordStart < 0) {
+            throw new IllegalStateException("No record has been begun");
+        }
+        if (recordLength == 0) {
+            discard();
+            return null;
+        }
+        int length = (int) recordLength;
+        updateHeader(crc, length, recordTimestamp);
+        putInt(trailer, (int) crc.getValue());
+        out.write(trailer);
+        // If the header has already left the buffer, the buffer, trailer included, is written to the file before the
+        // length is patched. Either way the checksum covers the length, so a torn record fails either the length or
+        // the checksum
+        putInt(patch, length);
+        out.patch(recordStart + 4, patch);
+        CaptureLogRecord record = new CaptureLogRecord(segment, recordStart, recordTimestamp, length);
+        recordStart = -1;
+        return record;
+    }
+
+    /**
+     * Write any buffered records to the segment file.
+     * <p>
+     * The data is passed to the operating system, it is not necessarily on disk.
+     *
+     * @throws IOException if an error occurs
+     */
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Write any buffered records to the segment file and force them to disk.
+     *
+     * @throws IOException if an error occurs
+     */
+    public synchronized void sync() throws IOException {
+        if (out != null) {
+            out.force(false);
+        }
+    }
+
+    /**
+     * Read the picture data of a record.
+     *
+     * @param location location of the record
+     * @return picture data
+     * @throws IOException if the record can not be read or is not valid
+     */
+    public byte[] read(long location) throws IOException {
+        long segment = segment(location);
+        long offset = offset(location);
+        synchronized (this) {
+            if (segment == this.segment && out != null) {
+                out.flush();
+            }
+        }
+        try (FileChannel in = FileChannel.open(segmentFile(segment), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(in, header, offset);
+            int magic = header.getInt(0);
+            int length = header.getInt(4);
+            long timestamp = header.getLong(8);
+            if (magic != RECORD_MAGIC || length <= 0 || offset + RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE > in.size()) {
+                throw new IOException("No valid record at segment " + segment + " offset " + offset);
+            }
+            ByteBuffer data = ByteBuffer.allocate(length + RECORD_TRAILER_SIZE);
+            readFully(in, data, offset + RECORD_HEADER_SIZE);
+            CRC32 check = new CRC32();
+            check.update(data.array(), 0, length);
+            updateHeader(check, length, timestamp);
+            if ((int) check.getValue() != data.getInt(length)) {
+                throw new IOException("Checksum mismatch at segment " + segment + " offset " + offset);
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(data.array(), 0, result, 0, length);
+            return result;
+        }
+    }
+
+    /**
+     * Close the log.
+     * <p>
+     * Any record that was begun and not ended is discarded, everything else is forced to disk.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed || !opened) {
+            closed = true;
+            return;
+        }
+        closed = true;
+        if (recordStart >= 0) {
+            discard();
+        }
+        closeSegment();
+    }
+
+    /**
+     * Add the header fields of a record to its checksum, after the data.
+     */
+    static void updateHeader(CRC32 crc, int length, long timestamp) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(length >>> shift);
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (timestamp >>> shift));
+        }
+    }
+
+    private void recover(Path file) throws IOException {
+        long end;
+        try (SegmentReader reader = new SegmentReader(file, true)) {
+            if (!reader.valid()) {
+                truncated = Files.size(file);
+                Files.delete(file);
+                return;
+            }
+            while (reader.next()) {
+                // Just find the end of the last valid record
+            }
+            end = reader.end();
+        }
+        try (FileChannel recovered = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            truncated = recovered.size() - end;
+            if (truncated > 0) {
+                recovered.truncate(end);
+                recovered.force(true);
+            }
+        }
+    }
+
+    private void roll(long now) throws IOException {
+        closeSegment();
+        segment = nextSegment++;
+        out = new ChannelOutput(segmentFile(segment), bufferSize);
+        segmentCreated = now;
+        header.clear();
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        out.write(header.array(), 0, SEGMENT_HEADER_SIZE);
+    }
+
+    private void closeSegment() throws IOException {
+        if (out != null) {
+            try (ChannelOutput closing = out) {
+                out = null;
+                closing.force(true);
+            }
+        }
+    }
+
+    private void discard() throws IOException {
+        out.truncate(recordStart);
+        recordStart = -1;
+    }
+
+    private static void putInt(byte[] data, int value) {
+        data[0] = (byte) (value >>> 24);
+        data[1] = (byte) (value >>> 16);
+        data[2] = (byte) (value >>> 8);
+        data[3] = (byte) value;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (!opened || closed) {
+            throw new IllegalStateException("The capture log is not open");
+        }
+    }
+
+    private void checkNotOpened() {
+        if (opened) {
+            throw new IllegalStateException("The capture log has already been opened");
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+
+/**
+ * Implementation of a picture capture handler that appends each picture to a {@link CaptureLog}.
+ * <p>
+ * This is intended for very long capture runs, where the per-file overhead of something like
+ * {@link SequentialFilePictureCaptureHandler} adds up: the picture data is streamed straight into the log's write
+ * buffer as it arrives, no file is created per picture.
+ * <p>
+ * Each record can optionally be added to a {@link TimeIndex} as soon as it is written.
+ * <p>
+ * The result is the record that was written, or <code>null</code> if the capture produced no data.
+ */
+public class CaptureLogPictureCaptureHandler implements PictureCaptureHandler<CaptureLogRecord> {
+
+    private final CaptureLog log;
+
+    private final TimeIndex index;
+
+    private CaptureLogRecord record;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param log open capture log
+     */
+    public CaptureLogPictureCaptureHandler(CaptureLog log) {
+        this(log, null);
+    }
+
+    /**
+     * Create a picture capture handler that maintains a time index.
+     *
+     * @param log open capture log
+     * @param index time index of the capture log, may be <code>null</code>
+     */
+    public CaptureLogPictureCaptureHandler(CaptureLog log, TimeIndex index) {
+        this.log = log;
+        this.index = index;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        record = null;
+        log.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        log.append(data, 0, data.length);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        record = log.end();
+        if (record != null && index != null) {
+            index.add(record);
+        }
+    }
+
+    @Override
+    public CaptureLogRecord result() {
+        return record;
+    }
+
+}
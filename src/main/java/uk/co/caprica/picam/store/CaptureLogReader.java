@@ -0,0 +1,153 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sequential reader for all of the records in a {@link CaptureLog}, oldest first.
+ * <p>
+ * Each segment is read up to its last valid record. Nothing is allocated per record, the accessors describe the record
+ * most recently read by {@link #next()}.
+ */
+public final class CaptureLogReader implements Closeable {
+
+    private final CaptureLog log;
+
+    private final List<Long> segments;
+
+    private final boolean verify;
+
+    private int index = -1;
+
+    private SegmentReader reader;
+
+    /**
+     * Create a reader that reads and checks the data of every record.
+     *
+     * @param log capture log
+     * @throws IOException if the segments can not be listed
+     */
+    public CaptureLogReader(CaptureLog log) throws IOException {
+        this(log, true);
+    }
+
+    /**
+     * Create a reader.
+     * <p>
+     * A reader that does not verify records is much faster when only the record headers are needed, but it can not
+     * provide the picture data.
+     *
+     * @param log capture log
+     * @param verify <code>true</code> to read and check the data of every record; <code>false</code> to only read the
+     *               record headers
+     * @throws IOException if the segments can not be listed
+     */
+    public CaptureLogReader(CaptureLog log, boolean verify) throws IOException {
+        this(log, verify, 0);
+    }
+
+    /**
+     * Create a reader that starts at a particular segment.
+     *
+     * @param log capture log
+     * @param verify <code>true</code> to read and check the data of every record; <code>false</code> to only read the
+     *               record headers
+     * @param fromSegment number of the first segment to read, earlier segments are skipped
+     * @throws IOException if the segments can not be listed
+     */
+    public CaptureLogReader(CaptureLog log, boolean verify, long fromSegment) throws IOException {
+        this.log = log;
+        this.segments = log.segments();
+        this.verify = verify;
+        int skip = 0;
+        while (skip < segments.size() && segments.get(skip) < fromSegment) {
+            skip++;
+        }
+        segments.subList(0, skip).clear();
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return <code>true</code> if there was another record; <code>false</code> if there are no more records
+     * @throws IOException if an error occurs
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (reader != null && reader.next()) {
+                return true;
+            }
+            if (index + 1 >= segments.size()) {
+                return false;
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            reader = new SegmentReader(log.segmentFile(segments.get(++index)), verify);
+        }
+    }
+
+    public long segment() {
+        return segments.get(index);
+    }
+
+    public long offset() {
+        return reader.offset();
+    }
+
+    public long location() {
+        return CaptureLog.location(segment(), reader.offset());
+    }
+
+    public long timestamp() {
+        return reader.timestamp();
+    }
+
+    public int length() {
+        return reader.length();
+    }
+
+    /**
+     * Get the picture data of the current record.
+     * <p>
+     * The array is reused for the next record.
+     *
+     * @return data, the first {@link #length()} bytes are valid
+     * @throws IllegalStateException if the reader does not verify records
+     */
+    public byte[] data() {
+        if (!verify) {
+            throw new IllegalStateException("The reader does not read picture data");
+        }
+        return reader.data();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+}
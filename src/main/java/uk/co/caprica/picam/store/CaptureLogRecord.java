@@ -0,0 +1,94 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+/**
+ * The position and header of a record in a {@link CaptureLog}.
+ */
+public final class CaptureLogRecord {
+
+    private final long segment;
+
+    private final long offset;
+
+    private final long timestamp;
+
+    private final int length;
+
+    CaptureLogRecord(long segment, long offset, long timestamp, int length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.length = length;
+    }
+
+    /**
+     * Get the number of the segment containing the record.
+     *
+     * @return segment number
+     */
+    public long segment() {
+        return segment;
+    }
+
+    /**
+     * Get the offset of the record within its segment.
+     *
+     * @return offset, in bytes, of the record header
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Get the time the record was started.
+     *
+     * @return timestamp, milliseconds since the epoch
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the length of the picture data.
+     *
+     * @return length, in bytes, not including the record header and trailer
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get the location of the record, the segment number and offset packed into a single value.
+     *
+     * @see CaptureLog#location(long, long)
+     *
+     * @return location
+     */
+    public long location() {
+        return CaptureLog.location(segment, offset);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("segment %d offset %d timestamp %d length %d", segment, offset, timestamp, length);
+    }
+
+}
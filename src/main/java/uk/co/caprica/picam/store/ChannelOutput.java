@@ -0,0 +1,152 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered sequential output to a file that can go back and patch bytes that have already been written.
+ * <p>
+ * Headers that can only be completed after their data has been written are patched in the buffer if they are still
+ * there, otherwise with a positional write to the file. Before a positional write everything buffered is written to
+ * the file, so the bytes after a patched header always reach the file before the patch does.
+ */
+final class ChannelOutput implements Closeable {
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Position in the file of the first byte in the buffer.
+     */
+    private long flushed;
+
+    ChannelOutput(Path file, int bufferSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Get the position of the next byte to be written.
+     *
+     * @return position, in bytes
+     */
+    long position() {
+        return flushed + buffer.position();
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length >= buffer.capacity()) {
+                ByteBuffer direct = ByteBuffer.wrap(data, offset, length);
+                while (direct.hasRemaining()) {
+                    flushed += channel.write(direct);
+                }
+                return;
+            }
+        }
+        buffer.put(data, offset, length);
+    }
+
+    void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Overwrite bytes that have already been written.
+     * <p>
+     * If the bytes are no longer all in the buffer, the buffer is flushed first.
+     *
+     * @param position position of the first byte to overwrite
+     * @param data replacement bytes
+     * @throws IOException if an error occurs
+     */
+    void patch(long position, byte[] data) throws IOException {
+        if (position + data.length > position()) {
+            throw new IllegalArgumentException("Can not patch past the end of the output");
+        }
+        if (position < flushed) {
+            flush();
+        }
+        if (position >= flushed) {
+            for (int i = 0; i < data.length; i++) {
+                buffer.put((int) (position - flushed) + i, data[i]);
+            }
+        } else {
+            ByteBuffer patch = ByteBuffer.wrap(data);
+            while (patch.hasRemaining()) {
+                channel.write(patch, position + patch.position());
+            }
+        }
+    }
+
+    /**
+     * Discard everything from a position onwards.
+     *
+     * @param position new end of the output
+     * @throws IOException if an error occurs
+     */
+    void truncate(long position) throws IOException {
+        if (position >= flushed) {
+            buffer.position((int) (position - flushed));
+        } else {
+            buffer.clear();
+            channel.truncate(position);
+            channel.position(position);
+            flushed = position;
+        }
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flush and force everything to disk.
+     *
+     * @param metaData <code>true</code> to also force the file metadata, as with {@link FileChannel#force(boolean)}
+     * @throws IOException if an error occurs
+     */
+    void force(boolean metaData) throws IOException {
+        flush();
+        channel.force(metaData);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+}
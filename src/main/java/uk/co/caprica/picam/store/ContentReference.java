@@ -0,0 +1,85 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.nio.file.Path;
+
+/**
+ * A logical name for a blob in a {@link ContentStore}.
+ */
+public final class ContentReference {
+
+    private final Path name;
+
+    private final String digest;
+
+    private final long length;
+
+    private final boolean duplicate;
+
+    ContentReference(Path name, String digest, long length, boolean duplicate) {
+        this.name = name;
+        this.digest = digest;
+        this.length = length;
+        this.duplicate = duplicate;
+    }
+
+    /**
+     * Get the logical name, which can be read like any other file.
+     *
+     * @return name
+     */
+    public Path name() {
+        return name;
+    }
+
+    /**
+     * Get the digest of the content.
+     *
+     * @return digest, as lower-case hexadecimal
+     */
+    public String digest() {
+        return digest;
+    }
+
+    /**
+     * Get the length of the content.
+     *
+     * @return length, in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Check whether the content was already in the store.
+     *
+     * @return <code>true</code> if the content was already stored; <code>false</code> if a new blob was written
+     */
+    public boolean duplicate() {
+        return duplicate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s -> %s (%d bytes%s)", name, digest, length, duplicate ? ", duplicate" : "");
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store of captures, where identical captures are only stored once.
+ * <p>
+ * Each capture is hashed as it streams in. Unique content is written once, as a blob named by its digest in a fan-out
+ * directory tree (for example <code>objects/3f/a2/3fa2...</code>), so no directory gets too large. Logical names are
+ * hard links to the blob, so they cost only a directory entry and can be read like any other file by anything that
+ * expects a capture at a particular path.
+ * <p>
+ * The link count of a blob, maintained by the file system, is its reference count: deleting the last logical name of a
+ * blob deletes the blob. Logical names must therefore be on the same file system as the store, and the file system must
+ * support hard links and the <code>unix</code> file attribute view, as the usual Linux file systems do.
+ * <p>
+ * Content up to the memory limit is held in memory while it is hashed, so a duplicate never touches the disk. Larger
+ * content is spilled to a temporary file in the store and moved into place, or discarded, once its digest is known.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the store is opened.
+ */
+public final class ContentStore {
+
+    private static final String OBJECTS = "objects";
+
+    private static final String TEMPORARY = "tmp";
+
+    private final Path directory;
+
+    private String algorithm = "SHA-256";
+
+    private int fanOut = 2;
+
+    private int memoryLimit = 16 * 1024 * 1024;
+
+    private boolean opened;
+
+    /**
+     * Blob for each file key, used to find the blob of a logical name.
+     */
+    private final Map<Object, Path> blobsByKey = new HashMap<>();
+
+    private long blobs;
+
+    private long duplicates;
+
+    private long duplicateBytes;
+
+    private ContentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create a content store.
+     *
+     * @param directory directory for the blobs, created if necessary when the store is opened
+     * @return content store
+     */
+    public static ContentStore contentStore(Path directory) {
+        return new ContentStore(directory);
+    }
+
+    /**
+     * Set the digest algorithm.
+     * <p>
+     * The default is SHA-256.
+     *
+     * @param algorithm name of a {@link MessageDigest} algorithm
+     * @return this content store
+     */
+    public ContentStore algorithm(String algorithm) {
+        checkNotOpened();
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, e);
+        }
+        this.algorithm = algorithm;
+        return this;
+    }
+
+    /**
+     * Set the number of directory levels above each blob, each level named by the next two hexadecimal digits.
+     * <p>
+     * The default is 2, up to 65536 directories.
+     *
+     * @param fanOut number of levels, 0 to 4
+     * @return this content store
+     */
+    public ContentStore fanOut(int fanOut) {
+        checkNotOpened();
+        if (fanOut < 0 || fanOut > 4) {
+            throw new IllegalArgumentException("Fan-out must be in the range 0 to 4");
+        }
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * Set the largest content held in memory while it is hashed.
+     * <p>
+     * The default is 16MB.
+     *
+     * @param memoryLimit limit, in bytes
+     * @return this content store
+     */
+    public ContentStore memoryLimit(int memoryLimit) {
+        checkNotOpened();
+        if (memoryLimit < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative");
+        }
+        this.memoryLimit = memoryLimit;
+        return this;
+    }
+
+    /**
+     * Open the store, removing any temporary files and unreferenced blobs left behind and indexing the existing blobs.
+     *
+     * @return this content store
+     * @throws IOException if an error occurs
+     */
+    public synchronized ContentStore open() throws IOException {
+        checkNotOpened();
+        Files.createDirectories(directory.resolve(OBJECTS));
+        Path temporary = Files.createDirectories(directory.resolve(TEMPORARY));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(temporary)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        try (Stream<Path> paths = Files.walk(directory.resolve(OBJECTS))) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    if (linkCount(path) == 1) {
+                        // Moved into place but never linked to a name, before a crash
+                        Files.delete(path);
+                    } else {
+                        blobsByKey.put(attributes.fileKey(), path);
+                        blobs++;
+                    }
+                }
+            }
+        }
+        opened = true;
+        return this;
+    }
+
+    /**
+     * Get the file of a blob.
+     *
+     * @param digest digest of the content
+     * @return blob file, which may not exist
+     */
+    public Path blob(String digest) {
+        Path result = directory.resolve(OBJECTS);
+        for (int level = 0; level < fanOut; level++) {
+            result = result.resolve(digest.substring(level * 2, level * 2 + 2));
+        }
+        return result.resolve(digest);
+    }
+
+    /**
+     * Get the number of logical names that refer to a blob.
+     *
+     * @param digest digest of the content
+     * @return number of references, or -1 if there is no such blob
+     * @throws IOException if an error occurs
+     */
+    public synchronized int references(String digest) throws IOException {
+        Path blob = blob(digest);
+        if (!Files.exists(blob)) {
+            return -1;
+        }
+        return linkCount(blob) - 1;
+    }
+
+    /**
+     * Add a logical name for a blob that is already in the store.
+     * <p>
+     * If the name already refers to different content, that reference is deleted first.
+     *
+     * @param digest digest of the content
+     * @param name logical name
+     * @return reference
+     * @throws IOException if there is no such blob or the name can not be created
+     */
+    public synchronized ContentReference link(String digest, Path name) throws IOException {
+        checkOpened();
+        Path blob = blob(digest);
+        if (!Files.exists(blob)) {
+            throw new IOException("No such blob: " + digest);
+        }
+        link(blob, name);
+        return new ContentReference(name, digest, Files.size(blob), true);
+    }
+
+    /**
+     * Delete a logical name, and its blob if there are no other references to it.
+     *
+     * @param name logical name
+     * @return <code>true</code> if the name was deleted; <code>false</code> if it did not exist
+     * @throws IOException if an error occurs
+     */
+    public synchronized boolean delete(Path name) throws IOException {
+        checkOpened();
+        if (!Files.exists(name)) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(name, BasicFileAttributes.class);
+        Path blob = blobsByKey.get(attributes.fileKey());
+        Files.delete(name);
+        if (blob != null && linkCount(blob) == 1) {
+            Files.delete(blob);
+            blobsByKey.remove(attributes.fileKey());
+            blobs--;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of blobs in the store.
+     *
+     * @return number of blobs
+     */
+    public synchronized long blobs() {
+        return blobs;
+    }
+
+    /**
+     * Get the number of captures since the store was opened that were already in the store.
+     *
+     * @return number of captures
+     */
+    public synchronized long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get the total size of the captures since the store was opened that were already in the store, the space saved.
+     *
+     * @return size, in bytes
+     */
+    public synchronized long duplicateBytes() {
+        return duplicateBytes;
+    }
+
+    /**
+     * Create a writer for content.
+     *
+     * @return writer
+     */
+    BlobWriter writer() {
+        checkOpened();
+        try {
+            return new BlobWriter(directory.resolve(TEMPORARY), MessageDigest.getInstance(algorithm), memoryLimit);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Store finished content, if it is not already stored, and add logical names for it.
+     *
+     * @param writer writer containing the content
+     * @param names logical names
+     * @return references, one for each name
+     * @throws IOException if an error occurs
+     */
+    List<ContentReference> commit(BlobWriter writer, Path... names) throws IOException {
+        String digest = writer.finish();
+        Path blob = blob(digest);
+        synchronized (this) {
+            if (Files.exists(blob)) {
+                writer.discard();
+                return duplicate(blob, digest, writer.length(), names);
+            }
+        }
+        // Spilled outside the lock, the blob only appears once it is complete
+        Path file = writer.file();
+        synchronized (this) {
+            // Checked again, the same content may have been committed by another thread in the meantime
+            if (Files.exists(blob)) {
+                Files.delete(file);
+                return duplicate(blob, digest, writer.length(), names);
+            }
+            Files.createDirectories(blob.getParent());
+            Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+            blobsByKey.put(Files.readAttributes(blob, BasicFileAttributes.class).fileKey(), blob);
+            blobs++;
+            return link(blob, digest, writer.length(), false, names);
+        }
+    }
+
+    private List<ContentReference> duplicate(Path blob, String digest, long length, Path... names) throws IOException {
+        duplicates++;
+        duplicateBytes += length;
+        return link(blob, digest, length, true, names);
+    }
+
+    /**
+     * Add logical names for a blob, the caller holds the lock so the blob can not be deleted in the meantime.
+     */
+    private List<ContentReference> link(Path blob, String digest, long length, boolean duplicate, Path... names) throws IOException {
+        List<ContentReference> result = new ArrayList<>(names.length);
+        for (Path name : names) {
+            link(blob, name);
+            result.add(new ContentReference(name, digest, length, duplicate));
+        }
+        return result;
+    }
+
+    private void link(Path blob, Path name) throws IOException {
+        if (Files.exists(name)) {
+            if (Files.isSameFile(name, blob)) {
+                return;
+            }
+            delete(name);
+        }
+        Path parent = name.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.createLink(name, blob);
+    }
+
+    private static int linkCount(Path file) throws IOException {
+        return (Integer) Files.getAttribute(file, "unix:nlink");
+    }
+
+    private void checkOpened() {
+        if (!opened) {
+            throw new IllegalStateException("The content store has not been opened");
+        }
+    }
+
+    private void checkNotOpened() {
+        if (opened) {
+            throw new IllegalStateException("The content store has already been opened");
+        }
+    }
+
+}
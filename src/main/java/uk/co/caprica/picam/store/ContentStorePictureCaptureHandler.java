@@ -0,0 +1,90 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Implementation of a picture capture handler that stores each picture in a {@link ContentStore}.
+ * <p>
+ * The picture is hashed as the data arrives, with no second pass over it, and is only written if the same content is
+ * not already stored. Each of the logical names set for the capture then refers to the stored content.
+ * <p>
+ * The result is a reference for each logical name.
+ */
+public class ContentStorePictureCaptureHandler implements PictureCaptureHandler<List<ContentReference>> {
+
+    private final ContentStore store;
+
+    private final BlobWriter writer;
+
+    private Path[] names;
+
+    private List<ContentReference> references;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param store open content store
+     * @param names logical names for the next capture
+     */
+    public ContentStorePictureCaptureHandler(ContentStore store, Path... names) {
+        this.store = store;
+        this.writer = store.writer();
+        this.names = names;
+    }
+
+    /**
+     * Set the logical names for the next capture.
+     *
+     * @param names logical names
+     * @return this handler
+     */
+    public ContentStorePictureCaptureHandler names(Path... names) {
+        this.names = names;
+        return this;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        references = null;
+        writer.reset();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        writer.write(data, 0, data.length);
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        references = store.commit(writer, names);
+    }
+
+    @Override
+    public List<ContentReference> result() {
+        return references;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Forces a directory to disk, so that the entries added to or removed from it are durable.
+ */
+interface DirectoryForce {
+
+    /**
+     * Force a directory.
+     *
+     * @param directory directory
+     * @throws IOException if the directory can not be forced
+     */
+    void force(Path directory) throws IOException;
+
+    /**
+     * Force a directory through a channel opened on it.
+     * <p>
+     * Windows does not allow a directory to be opened at all, so there a failure to open it is ignored and only the
+     * file data is durable. Anywhere else, any failure is an error.
+     *
+     * @param directory directory
+     * @throws IOException if the directory can not be forced
+     */
+    static void channel(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (System.getProperty("os.name", "").startsWith("Windows")) {
+                return;
+            }
+            throw e;
+        }
+        try (FileChannel opened = channel) {
+            opened.force(true);
+        }
+    }
+
+}
@@ -0,0 +1,434 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes completed capture files durable in groups, so that many captures share the cost of forcing data to disk.
+ * <p>
+ * Each completed file is registered and gets a future. A single commit thread forces every file registered since the
+ * last commit, then each distinct directory containing them (so that the new directory entries are durable too), and
+ * only then completes the futures. A commit happens no later than the maximum latency after the first file of the
+ * group was registered, or straight away once the maximum batch size is reached.
+ * <p>
+ * The files of a group are forced in parallel on a fork-join pool, so the device sees all of the flushes at once and
+ * the group takes about as long as the slowest of them rather than the sum. Each directory is forced once per group
+ * however many of the files are in it.
+ * <p>
+ * If a file can not be forced, its future completes exceptionally. If a directory can not be forced, the futures of
+ * every file in that directory complete exceptionally, as their directory entries may not be durable. Windows does not
+ * allow a directory to be forced, so there only the file data is forced.
+ * <p>
+ * If the commit thread is interrupted it stops, and the futures of every file not yet committed complete
+ * exceptionally with an {@link InterruptedIOException}; no more files can be registered.
+ * <p>
+ * The batch sizes, the commit times and the latency from registration to durability are recorded for reporting.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the coordinator is started.
+ */
+public final class GroupCommit implements Closeable {
+
+    private long maxLatency = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private int maxBatch = 64;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private DirectoryForce directoryForce = DirectoryForce::channel;
+
+    /**
+     * Files waiting to be committed, with the futures for each registration of them.
+     */
+    private LinkedHashMap<Path, List<CompletableFuture<Path>>> pending = new LinkedHashMap<>();
+
+    private int pendingCount;
+
+    /**
+     * Registration time of each pending registration, in the same order.
+     */
+    private List<Long> pendingTimes = new ArrayList<>();
+
+    private long firstPending;
+
+    private Thread thread;
+
+    private boolean closed;
+
+    private long commits;
+
+    private long files;
+
+    private long maxBatchSize;
+
+    private long commitNanos;
+
+    private long maxCommitNanos;
+
+    private long latencyNanos;
+
+    private long maxLatencyNanos;
+
+    private GroupCommit() {
+    }
+
+    /**
+     * Create a group commit coordinator.
+     *
+     * @return group commit coordinator
+     */
+    public static GroupCommit groupCommit() {
+        return new GroupCommit();
+    }
+
+    /**
+     * Set the longest a registered file waits before its group is committed.
+     * <p>
+     * The default is 50 milliseconds.
+     *
+     * @param maxLatency maximum latency
+     * @param unit unit of the latency
+     * @return this group commit coordinator
+     */
+    public GroupCommit maxLatency(long maxLatency, TimeUnit unit) {
+        checkNotStarted();
+        if (maxLatency < 0) {
+            throw new IllegalArgumentException("Maximum latency must not be negative");
+        }
+        this.maxLatency = unit.toNanos(maxLatency);
+        return this;
+    }
+
+    /**
+     * Set the number of registrations that causes a commit straight away.
+     * <p>
+     * The default is 64.
+     *
+     * @param maxBatch maximum batch size
+     * @return this group commit coordinator
+     */
+    public GroupCommit maxBatch(int maxBatch) {
+        checkNotStarted();
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Maximum batch must be at least 1");
+        }
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * Set the fork-join pool used to force the files of a group.
+     * <p>
+     * The default is the common pool.
+     *
+     * @param pool fork-join pool
+     * @return this group commit coordinator
+     */
+    public GroupCommit pool(ForkJoinPool pool) {
+        checkNotStarted();
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Set how directories are forced, for testing.
+     *
+     * @param directoryForce directory force
+     * @return this group commit coordinator
+     */
+    GroupCommit directoryForce(DirectoryForce directoryForce) {
+        checkNotStarted();
+        this.directoryForce = directoryForce;
+        return this;
+    }
+
+    /**
+     * Start the commit thread.
+     *
+     * @return this group commit coordinator
+     */
+    public synchronized GroupCommit start() {
+        checkNotStarted();
+        thread = new Thread(this::run, "picam-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Register a completed file to be made durable.
+     * <p>
+     * The file must have been closed, anything written to it after it is registered may not be covered.
+     *
+     * @param file file
+     * @return future completed with the file when it is durable
+     */
+    public synchronized CompletableFuture<Path> register(Path file) {
+        if (thread == null || closed) {
+            throw new IllegalStateException("The group commit coordinator is not running");
+        }
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        long now = System.nanoTime();
+        if (pendingCount == 0) {
+            firstPending = now;
+        }
+        pending.computeIfAbsent(file, key -> new ArrayList<>(1)).add(result);
+        pendingTimes.add(now);
+        pendingCount++;
+        if (pendingCount == 1 || pendingCount >= maxBatch) {
+            notifyAll();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of commits.
+     *
+     * @return number of commits
+     */
+    public synchronized long commits() {
+        return commits;
+    }
+
+    /**
+     * Get the number of registrations committed.
+     *
+     * @return number of files
+     */
+    public synchronized long files() {
+        return files;
+    }
+
+    /**
+     * Get the mean number of registrations in a commit.
+     *
+     * @return mean batch size
+     */
+    public synchronized double meanBatchSize() {
+        return commits > 0 ? (double) files / commits : 0;
+    }
+
+    /**
+     * Get the largest number of registrations in a commit.
+     *
+     * @return largest batch size
+     */
+    public synchronized long maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Get the mean time taken to force a group to disk.
+     *
+     * @return time, in nanoseconds
+     */
+    public synchronized long meanCommitNanos() {
+        return commits > 0 ? commitNanos / commits : 0;
+    }
+
+    /**
+     * Get the longest time taken to force a group to disk.
+     *
+     * @return time, in nanoseconds
+     */
+    public synchronized long maxCommitNanos() {
+        return maxCommitNanos;
+    }
+
+    /**
+     * Get the mean time from registering a file to it being durable.
+     *
+     * @return time, in nanoseconds
+     */
+    public synchronized long meanLatencyNanos() {
+        return files > 0 ? latencyNanos / files : 0;
+    }
+
+    /**
+     * Get the longest time from registering a file to it being durable.
+     *
+     * @return time, in nanoseconds
+     */
+    public synchronized long maxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * Commit everything that is pending, then stop the commit thread.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            thread = this.thread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d commits, %d files, %.1f files per commit (max %d), %.3f ms per commit (max %.3f), %.3f ms latency (max %.3f)",
+            commits, files, meanBatchSize(), maxBatchSize, meanCommitNanos() / 1e6, maxCommitNanos / 1e6, meanLatencyNanos() / 1e6, maxLatencyNanos / 1e6);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Map<Path, List<CompletableFuture<Path>>> batch;
+                List<Long> times;
+                synchronized (this) {
+                    while (true) {
+                        if (pendingCount == 0) {
+                            if (closed) {
+                                return;
+                            }
+                            wait();
+                            continue;
+                        }
+                        long remaining = firstPending + maxLatency - System.nanoTime();
+                        if (closed || pendingCount >= maxBatch || remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    batch = pending;
+                    times = pendingTimes;
+                    pending = new LinkedHashMap<>();
+                    pendingTimes = new ArrayList<>();
+                    pendingCount = 0;
+                }
+                try {
+                    commit(batch, times);
+                } catch (RuntimeException e) {
+                    fail(batch, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Map<Path, List<CompletableFuture<Path>>> abandoned;
+            synchronized (this) {
+                closed = true;
+                abandoned = pending;
+                pending = new LinkedHashMap<>();
+                pendingTimes = new ArrayList<>();
+                pendingCount = 0;
+            }
+            fail(abandoned, new InterruptedIOException("The group commit thread was interrupted"));
+        }
+    }
+
+    private static void fail(Map<Path, List<CompletableFuture<Path>>> batch, Throwable failure) {
+        for (List<CompletableFuture<Path>> futures : batch.values()) {
+            for (CompletableFuture<Path> future : futures) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private void commit(Map<Path, List<CompletableFuture<Path>>> batch, List<Long> times) {
+        long start = System.nanoTime();
+        Map<Path, IOException> failedDirectories = new LinkedHashMap<>();
+        Map<Path, IOException> failedFiles = new ConcurrentHashMap<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        List<ForkJoinTask<?>> forces = new ArrayList<>(batch.size());
+        for (Path file : batch.keySet()) {
+            forces.add(pool.submit(() -> force(file, failedFiles)));
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                directories.add(directory);
+            }
+        }
+        for (ForkJoinTask<?> force : forces) {
+            force.join();
+        }
+        for (Path directory : directories) {
+            try {
+                directoryForce.force(directory);
+            } catch (IOException e) {
+                failedDirectories.put(directory, e);
+            }
+        }
+        long end = System.nanoTime();
+        int count = times.size();
+        synchronized (this) {
+            commits++;
+            files += count;
+            maxBatchSize = Math.max(maxBatchSize, count);
+            commitNanos += end - start;
+            maxCommitNanos = Math.max(maxCommitNanos, end - start);
+            for (long time : times) {
+                latencyNanos += end - time;
+                maxLatencyNanos = Math.max(maxLatencyNanos, end - time);
+            }
+        }
+        for (Map.Entry<Path, List<CompletableFuture<Path>>> entry : batch.entrySet()) {
+            Path file = entry.getKey();
+            IOException failure = failedFiles.get(file);
+            if (failure == null) {
+                failure = failedDirectories.get(file.toAbsolutePath().getParent());
+            }
+            for (CompletableFuture<Path> future : entry.getValue()) {
+                if (failure == null) {
+                    future.complete(file);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private static void force(Path file, Map<Path, IOException> failedFiles) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            failedFiles.put(file, e);
+        }
+    }
+
+    private synchronized void checkNotStarted() {
+        if (thread != null) {
+            throw new IllegalStateException("The group commit coordinator has already been started");
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.FilePictureCaptureHandler;
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Implementation of a picture capture handler that registers each file written by another handler, for example a
+ * {@link FilePictureCaptureHandler} or a {@link SequentialFilePictureCaptureHandler}, with a {@link GroupCommit}
+ * coordinator.
+ * <p>
+ * The capture itself does not wait for the file to be durable. The result is a future that completes when it is.
+ */
+public class GroupCommitPictureCaptureHandler implements PictureCaptureHandler<CompletableFuture<Path>> {
+
+    private final PictureCaptureHandler<File> handler;
+
+    private final GroupCommit groupCommit;
+
+    private CompletableFuture<Path> durable;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param handler handler that writes the capture files
+     * @param groupCommit started group commit coordinator
+     */
+    public GroupCommitPictureCaptureHandler(PictureCaptureHandler<File> handler, GroupCommit groupCommit) {
+        this.handler = handler;
+        this.groupCommit = groupCommit;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        durable = null;
+        handler.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        return handler.pictureData(data);
+    }
+
+    @Override
+    public void end() throws Exception {
+        handler.end();
+        File file = handler.result();
+        if (file != null) {
+            durable = groupCommit.register(file.toPath());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Path> result() {
+        return durable;
+    }
+
+}
@@ -0,0 +1,561 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a capture directory within a disk quota by deleting the oldest captures.
+ * <p>
+ * Three policies are supported, any combination of which may be used:
+ * <ul>
+ *     <li>maximum bytes - the total size of the captures in the directory;</li>
+ *     <li>maximum age - how long a capture is kept for;</li>
+ *     <li>minimum free space - the usable space left on the file system containing the directory.</li>
+ * </ul>
+ * The directory tree is walked once, when the manager is started. Only files whose names match the capture pattern are
+ * taken to be captures, so anything else in the tree, such as capture logs or indexes, is never deleted; files still
+ * being written, named with a <code>.part</code> suffix, are always skipped. After that the manager relies on being
+ * told about each new capture file, usually by a {@link RetentionPictureCaptureHandler} when the capture ends, and keeps
+ * its own running total rather than walking the tree again.
+ * <p>
+ * Files are deleted oldest first, in batches, on a single low-priority daemon thread. Recording a new capture only
+ * updates the running total and, if the maximum size has been exceeded, wakes up the deletion thread, so the capture
+ * path never waits for a deletion. Between batches the thread pauses to leave the disk to the captures, unless the free
+ * space is below the minimum. The policies are also checked periodically, for the age and free space limits.
+ * <p>
+ * A file that can not be deleted is dropped from the manager, counted by {@link #failedFiles()}, and the rest of the
+ * batch carries on, so one stuck file can not hold up the deletion of everything after it.
+ * <p>
+ * Note that on Linux the JVM ignores thread priorities unless told otherwise, the pauses between batches are what keep
+ * the deletions out of the way of the captures.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the manager is started.
+ */
+public final class RetentionManager implements Closeable {
+
+    private static final String DEFAULT_PATTERN = "*.{jpg,jpeg,png,gif,bmp}";
+
+    private static final String PART = ".part";
+
+    private static final class Entry {
+
+        private final Path file;
+
+        private final long bytes;
+
+        private final long time;
+
+        private Entry(Path file, long bytes, long time) {
+            this.file = file;
+            this.bytes = bytes;
+            this.time = time;
+        }
+    }
+
+    private final Path directory;
+
+    private long maxBytes = Long.MAX_VALUE;
+
+    private long maxAge = Long.MAX_VALUE;
+
+    private long minFreeBytes;
+
+    private int batchSize = 16;
+
+    private long batchPause = 100;
+
+    private long checkInterval = TimeUnit.SECONDS.toMillis(10);
+
+    private Clock clock = Clock.systemUTC();
+
+    private PathMatcher captures = FileSystems.getDefault().getPathMatcher("glob:" + DEFAULT_PATTERN);
+
+    private LongSupplier usableSpace;
+
+    /**
+     * Files in the order they will be deleted, oldest first.
+     */
+    private final LinkedHashMap<Path, Entry> files = new LinkedHashMap<>();
+
+    private final Object deleteLock = new Object();
+
+    private long usedBytes;
+
+    private long deletedFiles;
+
+    private long deletedBytes;
+
+    private long failedFiles;
+
+    private IOException lastFailure;
+
+    private boolean wake;
+
+    private Thread thread;
+
+    private volatile boolean closed;
+
+    private RetentionManager(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create a retention manager.
+     *
+     * @param directory capture directory, including any sub-directories
+     * @return retention manager
+     */
+    public static RetentionManager retentionManager(Path directory) {
+        return new RetentionManager(directory);
+    }
+
+    /**
+     * Set the maximum total size of the captures.
+     *
+     * @param maxBytes maximum size, in bytes
+     * @return this retention manager
+     */
+    public RetentionManager maxBytes(long maxBytes) {
+        checkNotStarted();
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum bytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum age of a capture.
+     *
+     * @param maxAge maximum age
+     * @param unit unit of the age
+     * @return this retention manager
+     */
+    public RetentionManager maxAge(long maxAge, TimeUnit unit) {
+        checkNotStarted();
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("Maximum age must be greater than zero");
+        }
+        this.maxAge = unit.toMillis(maxAge);
+        return this;
+    }
+
+    /**
+     * Set the minimum usable space to leave on the file system.
+     *
+     * @param minFreeBytes minimum free space, in bytes
+     * @return this retention manager
+     */
+    public RetentionManager minFreeBytes(long minFreeBytes) {
+        checkNotStarted();
+        if (minFreeBytes < 0) {
+            throw new IllegalArgumentException("Minimum free bytes must not be negative");
+        }
+        this.minFreeBytes = minFreeBytes;
+        return this;
+    }
+
+    /**
+     * Set the number of files deleted in each batch.
+     * <p>
+     * The default is 16.
+     *
+     * @param batchSize number of files
+     * @return this retention manager
+     */
+    public RetentionManager batchSize(int batchSize) {
+        checkNotStarted();
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set the pause between batches of deletions.
+     * <p>
+     * The default is 100 milliseconds.
+     *
+     * @param batchPause pause
+     * @param unit unit of the pause
+     * @return this retention manager
+     */
+    public RetentionManager batchPause(long batchPause, TimeUnit unit) {
+        checkNotStarted();
+        if (batchPause < 0) {
+            throw new IllegalArgumentException("Batch pause must not be negative");
+        }
+        this.batchPause = unit.toMillis(batchPause);
+        return this;
+    }
+
+    /**
+     * Set the interval between periodic checks of the policies.
+     * <p>
+     * The default is 10 seconds.
+     *
+     * @param checkInterval interval
+     * @param unit unit of the interval
+     * @return this retention manager
+     */
+    public RetentionManager checkInterval(long checkInterval, TimeUnit unit) {
+        checkNotStarted();
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException("Check interval must be greater than zero");
+        }
+        this.checkInterval = unit.toMillis(checkInterval);
+        return this;
+    }
+
+    /**
+     * Set the clock used for the ages of the captures.
+     *
+     * @param clock clock
+     * @return this retention manager
+     */
+    public RetentionManager clock(Clock clock) {
+        checkNotStarted();
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Set the pattern of the names of the capture files found when the manager is started.
+     * <p>
+     * The default is <code>"*.{jpg,jpeg,png,gif,bmp}"</code>, the encoded picture formats. Files named with a
+     * <code>.part</code> suffix are skipped whatever the pattern.
+     *
+     * @param glob glob pattern, matched against the file name only
+     * @return this retention manager
+     * @throws java.util.regex.PatternSyntaxException if the pattern is invalid
+     */
+    public RetentionManager captures(String glob) {
+        checkNotStarted();
+        this.captures = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return this;
+    }
+
+    /**
+     * Set how the usable space is found, for testing.
+     */
+    RetentionManager usableSpace(LongSupplier usableSpace) {
+        checkNotStarted();
+        this.usableSpace = usableSpace;
+        return this;
+    }
+
+    /**
+     * Start the manager, walking the directory tree to find the existing captures and starting the deletion thread.
+     *
+     * @return this retention manager
+     * @throws IOException if the directory can not be read
+     */
+    public RetentionManager start() throws IOException {
+        checkNotStarted();
+        Files.createDirectories(directory);
+        if (usableSpace == null) {
+            FileStore store = Files.getFileStore(directory);
+            usableSpace = () -> {
+                try {
+                    return store.getUsableSpace();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+        }
+        List<Entry> existing = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && isCapture(path)) {
+                    existing.add(new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+            }
+        }
+        existing.sort((a, b) -> Long.compare(a.time, b.time));
+        synchronized (this) {
+            for (Entry entry : existing) {
+                files.put(entry.file, entry);
+                usedBytes += entry.bytes;
+            }
+            thread = new Thread(this::run, "picam-retention");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Record a new capture file.
+     * <p>
+     * The file is newer than every file already recorded. If the file had already been recorded, for example because
+     * it has been overwritten, it replaces the earlier record.
+     *
+     * @param file capture file
+     * @param bytes size of the file, in bytes
+     */
+    public synchronized void added(Path file, long bytes) {
+        Entry previous = files.remove(file);
+        if (previous != null) {
+            usedBytes -= previous.bytes;
+        }
+        files.put(file, new Entry(file, bytes, clock.millis()));
+        usedBytes += bytes;
+        if (usedBytes > maxBytes) {
+            wake = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the total size of the captures.
+     *
+     * @return size, in bytes
+     */
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Get the number of captures.
+     *
+     * @return number of files
+     */
+    public synchronized int files() {
+        return files.size();
+    }
+
+    /**
+     * Get the number of captures deleted since the manager was started.
+     *
+     * @return number of files
+     */
+    public synchronized long deletedFiles() {
+        return deletedFiles;
+    }
+
+    /**
+     * Get the size of the captures deleted since the manager was started.
+     *
+     * @return size, in bytes
+     */
+    public synchronized long deletedBytes() {
+        return deletedBytes;
+    }
+
+    /**
+     * Get the number of captures that could not be deleted since the manager was started.
+     * <p>
+     * These files are no longer managed, and are not counted in {@link #usedBytes()}.
+     *
+     * @return number of files
+     */
+    public synchronized long failedFiles() {
+        return failedFiles;
+    }
+
+    /**
+     * Get the error from the most recent failure to delete a capture.
+     *
+     * @return error, or <code>null</code> if there has been no failure
+     */
+    public synchronized IOException lastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Apply the policies now, on the calling thread, deleting as many files as necessary.
+     * <p>
+     * There are no pauses between batches. Files that can not be deleted are counted by {@link #failedFiles()}.
+     *
+     * @return number of files deleted
+     */
+    public long check() {
+        return enforce(false);
+    }
+
+    /**
+     * Stop the deletion thread.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            thread = this.thread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                enforce(true);
+                synchronized (this) {
+                    if (!wake && !closed) {
+                        wait(checkInterval);
+                    }
+                    wake = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Keep going, the next check may well succeed
+                try {
+                    Thread.sleep(checkInterval);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private long enforce(boolean pause) {
+        long deleted = 0;
+        while (!closed || !pause) {
+            int count = deleteBatch();
+            if (count == 0) {
+                break;
+            }
+            deleted += count;
+            if (pause && batchPause > 0 && !lowSpace()) {
+                try {
+                    Thread.sleep(batchPause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the next batch of files that break a policy.
+     *
+     * @return number of files deleted or dropped
+     */
+    private int deleteBatch() {
+        synchronized (deleteLock) {
+            boolean lowSpace = lowSpace();
+            List<Entry> batch = new ArrayList<>(batchSize);
+            synchronized (this) {
+                long excess = usedBytes - maxBytes;
+                long oldest = maxAge == Long.MAX_VALUE ? Long.MIN_VALUE : clock.millis() - maxAge;
+                Iterator<Entry> iterator = files.values().iterator();
+                // Without low space, only enough files to get under the maximum size are taken
+                while (batch.size() < batchSize && iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (!lowSpace && excess <= 0 && entry.time >= oldest) {
+                        break;
+                    }
+                    batch.add(entry);
+                    excess -= entry.bytes;
+                    iterator.remove();
+                }
+            }
+            IOException[] failures = new IOException[batch.size()];
+            int done = 0;
+            try {
+                for (; done < batch.size(); done++) {
+                    try {
+                        Files.deleteIfExists(batch.get(done).file);
+                    } catch (IOException e) {
+                        failures[done] = e;
+                    }
+                }
+            } finally {
+                finish(batch, failures, done);
+            }
+            return done;
+        }
+    }
+
+    private boolean isCapture(Path file) {
+        Path name = file.getFileName();
+        return !name.toString().endsWith(PART) && captures.matches(name);
+    }
+
+    private boolean lowSpace() {
+        return minFreeBytes > 0 && usableSpace.getAsLong() < minFreeBytes;
+    }
+
+    /**
+     * Account for the files of a batch that were deleted or failed, and put back any that were not tried at the front so
+     * they are tried first next time.
+     */
+    private synchronized void finish(List<Entry> batch, IOException[] failures, int done) {
+        for (int i = 0; i < done; i++) {
+            Entry entry = batch.get(i);
+            usedBytes -= entry.bytes;
+            if (failures[i] == null) {
+                deletedFiles++;
+                deletedBytes += entry.bytes;
+            } else {
+                failedFiles++;
+                lastFailure = failures[i];
+            }
+        }
+        if (done < batch.size()) {
+            LinkedHashMap<Path, Entry> remaining = new LinkedHashMap<>();
+            for (Entry entry : batch.subList(done, batch.size())) {
+                remaining.put(entry.file, entry);
+            }
+            remaining.putAll(files);
+            files.clear();
+            files.putAll(remaining);
+        }
+    }
+
+    private synchronized void checkNotStarted() {
+        if (thread != null) {
+            throw new IllegalStateException("The retention manager has already been started");
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.FilePictureCaptureHandler;
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+
+import java.io.File;
+
+/**
+ * Implementation of a picture capture handler that tells a {@link RetentionManager} about each capture file written by
+ * another handler, for example a {@link FilePictureCaptureHandler} or a {@link SequentialFilePictureCaptureHandler}.
+ * <p>
+ * The size of the file is counted as the picture data passes through, so the file does not need to be examined.
+ */
+public class RetentionPictureCaptureHandler implements PictureCaptureHandler<File> {
+
+    private final PictureCaptureHandler<File> handler;
+
+    private final RetentionManager manager;
+
+    private long bytes;
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param handler handler that writes the capture files
+     * @param manager retention manager for the capture directory
+     */
+    public RetentionPictureCaptureHandler(PictureCaptureHandler<File> handler, RetentionManager manager) {
+        this.handler = handler;
+        this.manager = manager;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        bytes = 0;
+        handler.begin();
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        int result = handler.pictureData(data);
+        // A negative result aborts the capture, but whatever was already written is still in the file
+        bytes += Math.max(0, result);
+        return result;
+    }
+
+    @Override
+    public void end() throws Exception {
+        handler.end();
+        File file = handler.result();
+        if (file != null) {
+            manager.added(file.toPath(), bytes);
+        }
+    }
+
+    @Override
+    public File result() {
+        return handler.result();
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A sequence of archive files that captures are streamed into, one entry per capture.
+ * <p>
+ * Each entry is streamed straight into the archive as the picture data arrives, with no temporary files: its header is
+ * written first and completed once the data has been written. A new archive is started when the current one reaches the
+ * maximum number of entries, size or age; the limits are checked as each entry begins, so an idle archive is only
+ * closed by the next capture or by {@link #close()}. A single entry may take an archive past the maximum size, but a ZIP
+ * archive can never be more than 4GB.
+ * <p>
+ * An archive is written under a temporary name ending in <code>.part</code>. When it is closed it is completed, forced
+ * to disk and renamed to its final name in one atomic step, so anything watching the directory only ever sees complete
+ * archives. The listener, if any, is then told about the archive, for example to upload it, on the thread that closed
+ * it.
+ * <p>
+ * Archive names are made from a {@link java.util.Formatter} pattern, given the archive number and the time the archive
+ * was started (in milliseconds), followed by the extension for the format. The default pattern,
+ * <code>"captures-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS-%1$04d"</code>, gives names like
+ * <code>captures-20190314-153207-0001.tar</code>.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the first entry.
+ * <p>
+ * An instance must only be used by one thread at a time.
+ */
+public final class RollingArchive extends RollingFile<ArchiveWriter, RollingArchive> {
+
+    private final ArchiveFormat format;
+
+    private int level;
+
+    private int maxEntries = Integer.MAX_VALUE;
+
+    private RollingArchive(Path directory, ArchiveFormat format) {
+        super(directory, format.extension(), "captures-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS-%1$04d", "rolling archive", "entry");
+        this.format = format;
+    }
+
+    /**
+     * Create a rolling archive.
+     *
+     * @param directory directory for the archive files, created if necessary
+     * @param format archive format
+     * @return rolling archive
+     */
+    public static RollingArchive rollingArchive(Path directory, ArchiveFormat format) {
+        return new RollingArchive(directory, format);
+    }
+
+    /**
+     * Set the deflate compression level for {@link ArchiveFormat#ZIP} archives.
+     * <p>
+     * The default is 0, entries are stored uncompressed. Pictures that are already compressed, such as JPEG, gain
+     * little from deflating.
+     *
+     * @param level compression level, 0 (store) to 9
+     * @return this rolling archive
+     */
+    public RollingArchive compressionLevel(int level) {
+        checkNotStarted();
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be in the range 0 to 9");
+        }
+        if (level > 0 && format != ArchiveFormat.ZIP) {
+            throw new IllegalArgumentException("Only ZIP archives can be compressed");
+        }
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Set the number of entries at which a new archive is started.
+     *
+     * @param maxEntries maximum number of entries
+     * @return this rolling archive
+     */
+    public RollingArchive maxEntries(int maxEntries) {
+        checkNotStarted();
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    public ArchiveFormat format() {
+        return format;
+    }
+
+    /**
+     * Get the final path of the archive currently being written.
+     *
+     * @return path, or <code>null</code> if there is no current archive
+     */
+    public Path archive() {
+        return file();
+    }
+
+    /**
+     * Begin a new entry, starting a new archive first if necessary.
+     * <p>
+     * Any entry that was begun and not ended is discarded.
+     *
+     * @param name entry name
+     * @throws IOException if an error occurs
+     */
+    public void begin(String name) throws IOException {
+        beginItem((writer, now) -> writer.begin(name, now));
+    }
+
+    @Override
+    ArchiveWriter newWriter(ChannelOutput out) {
+        return format == ArchiveFormat.ZIP ? new ZipWriter(out, level) : new TarWriter(out);
+    }
+
+    @Override
+    boolean full(ArchiveWriter writer) {
+        return writer.entries() >= maxEntries || format == ArchiveFormat.ZIP && writer.entries() >= ZipWriter.MAX_ENTRIES;
+    }
+
+}
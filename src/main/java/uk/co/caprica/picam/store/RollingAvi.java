@@ -0,0 +1,182 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A sequence of Motion JPEG AVI video files that JPEG captures are streamed into, one video frame per capture.
+ * <p>
+ * This turns a time-lapse straight into a playable video as it is captured: there is no re-encoding and there are no
+ * intermediate picture files. Each picture is streamed into the video as its data arrives, the index is kept in memory
+ * and the headers are completed when the video is closed.
+ * <p>
+ * A new video is started when the current one reaches the maximum number of frames, size or age; the limits are checked
+ * as each frame begins. The size limit defaults to 1GB and can not be more than 2GB, the largest AVI 1.0 (RIFF) file
+ * that players reliably accept; rolling over to a new file keeps every video within it.
+ * <p>
+ * A video is written under a temporary name ending in <code>.part</code>. When it is closed it is completed, forced to
+ * disk and renamed to its final name in one atomic step, so anything watching the directory only ever sees complete
+ * videos. The listener, if any, is then told about the video on the thread that closed it.
+ * <p>
+ * Video names are made from a {@link java.util.Formatter} pattern, given the video number and the time the video was
+ * started (in milliseconds), followed by <code>.avi</code>. The default pattern,
+ * <code>"video-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS-%1$04d"</code>, gives names like
+ * <code>video-20190314-153207-0001.avi</code>.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the first frame.
+ * <p>
+ * An instance must only be used by one thread at a time.
+ */
+public final class RollingAvi extends RollingFile<AviWriter, RollingAvi> {
+
+    private int framesPerSecond = 25;
+
+    private int width;
+
+    private int height;
+
+    private int maxFrames = Integer.MAX_VALUE;
+
+    private RollingAvi(Path directory) {
+        super(directory, ".avi", "video-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS-%1$04d", "rolling AVI", "frame");
+    }
+
+    /**
+     * Create a rolling AVI.
+     *
+     * @param directory directory for the video files, created if necessary
+     * @return rolling AVI
+     */
+    public static RollingAvi rollingAvi(Path directory) {
+        return new RollingAvi(directory);
+    }
+
+    /**
+     * Set the playback frame rate.
+     * <p>
+     * The default is 25 frames per second. This is only how fast the video plays, it has nothing to do with how often
+     * the pictures were captured.
+     *
+     * @param framesPerSecond frame rate
+     * @return this rolling AVI
+     */
+    public RollingAvi frameRate(int framesPerSecond) {
+        checkNotStarted();
+        if (framesPerSecond < 1) {
+            throw new IllegalArgumentException("Frame rate must be at least 1");
+        }
+        this.framesPerSecond = framesPerSecond;
+        return this;
+    }
+
+    /**
+     * Set the picture size recorded in the video headers.
+     * <p>
+     * By default the size is read from the first picture in each video.
+     *
+     * @param width picture width, in pixels
+     * @param height picture height, in pixels
+     * @return this rolling AVI
+     */
+    public RollingAvi size(int width, int height) {
+        checkNotStarted();
+        if (width < 1 || height < 1 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("Width and height must be in the range 1 to 65535");
+        }
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Set the number of frames at which a new video is started.
+     *
+     * @param maxFrames maximum number of frames
+     * @return this rolling AVI
+     */
+    public RollingAvi maxFrames(int maxFrames) {
+        checkNotStarted();
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("Maximum frames must be at least 1");
+        }
+        this.maxFrames = maxFrames;
+        return this;
+    }
+
+    /**
+     * Set the size at which a new video is started.
+     * <p>
+     * The default is 1GB, the maximum is 2GB. A single frame may take a video past this size, but never past 2GB.
+     *
+     * @param maxBytes maximum size, in bytes
+     * @return this rolling AVI
+     */
+    @Override
+    public RollingAvi maxBytes(long maxBytes) {
+        checkNotStarted();
+        if (maxBytes < 1 || maxBytes > AviWriter.MAX_FILE_BYTES) {
+            throw new IllegalArgumentException("Maximum bytes must be in the range 1 to " + AviWriter.MAX_FILE_BYTES);
+        }
+        return super.maxBytes(maxBytes);
+    }
+
+    /**
+     * Get the final path of the video currently being written.
+     *
+     * @return path, or <code>null</code> if there is no current video
+     */
+    public Path video() {
+        return file();
+    }
+
+    /**
+     * Get the number of frames in the video currently being written.
+     *
+     * @return number of frames, zero if there is no current video
+     */
+    public int frames() {
+        AviWriter writer = writer();
+        return writer != null ? writer.frames() : 0;
+    }
+
+    /**
+     * Begin a new frame, starting a new video first if necessary.
+     * <p>
+     * Any frame that was begun and not ended is discarded.
+     *
+     * @throws IOException if an error occurs
+     */
+    public void begin() throws IOException {
+        beginItem((writer, now) -> writer.begin());
+    }
+
+    @Override
+    AviWriter newWriter(ChannelOutput out) throws IOException {
+        return new AviWriter(out, framesPerSecond, width, height);
+    }
+
+    @Override
+    boolean full(AviWriter writer) {
+        return writer.frames() >= maxFrames;
+    }
+
+}
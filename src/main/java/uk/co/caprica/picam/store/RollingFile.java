@@ -0,0 +1,428 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A sequence of files that captures are streamed into, one item per capture, with a new file started when the current
+ * one reaches its maximum size or age, or a limit of the particular kind of file.
+ * <p>
+ * A file is written under a temporary name ending in <code>.part</code>. When it is closed it is completed, forced to
+ * disk and renamed to its final name in one atomic step, so anything watching the directory only ever sees complete
+ * files, then the directory is forced so that the rename survives a crash too. The listener, if any, is then told
+ * about the file on the thread that closed it.
+ * <p>
+ * Each file is written by a writer made by {@link #newWriter(ChannelOutput)}, the rest of the life of the file is the
+ * same whatever its kind.
+ *
+ * @param <W> type of writer
+ * @param <R> type of rolling file, returned by the configuration methods
+ */
+abstract class RollingFile<W extends RollingFile.Writer, R extends RollingFile<W, R>> implements Closeable {
+
+    /**
+     * Writes items, one at a time, to a file.
+     */
+    abstract static class Writer {
+
+        protected final ChannelOutput out;
+
+        protected Writer(ChannelOutput out) {
+            this.out = out;
+        }
+
+        /**
+         * Get the size of the file so far.
+         *
+         * @return size, in bytes
+         */
+        abstract long size();
+
+        /**
+         * Write item data.
+         *
+         * @param data data
+         * @param offset offset of the first byte to write
+         * @param length number of bytes to write
+         * @throws IOException if an error occurs
+         */
+        abstract void write(byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * End the current item.
+         *
+         * @throws IOException if an error occurs
+         */
+        abstract void end() throws IOException;
+
+        /**
+         * Discard the item that was begun and not ended.
+         *
+         * @throws IOException if an error occurs
+         */
+        abstract void discard() throws IOException;
+
+        /**
+         * Write whatever the format needs after the last item.
+         *
+         * @throws IOException if an error occurs
+         */
+        abstract void finish() throws IOException;
+    }
+
+    /**
+     * Begins an item with a writer.
+     *
+     * @param <W> type of writer
+     */
+    interface ItemStart<W> {
+
+        /**
+         * Begin an item.
+         *
+         * @param writer writer
+         * @param now current time, milliseconds since the epoch
+         * @throws IOException if an error occurs
+         */
+        void begin(W writer, long now) throws IOException;
+    }
+
+    private static final String PART = ".part";
+
+    private final Path directory;
+
+    private final String extension;
+
+    private final String description;
+
+    private final String item;
+
+    private long maxBytes = 1024L * 1024 * 1024;
+
+    private long maxAge = Long.MAX_VALUE;
+
+    private String namePattern;
+
+    private int bufferSize = 1024 * 256;
+
+    private Clock clock = Clock.systemUTC();
+
+    private Consumer<Path> listener;
+
+    private DirectoryForce directoryForce = DirectoryForce::channel;
+
+    private boolean started;
+
+    private int number;
+
+    private Path part;
+
+    private Path file;
+
+    private W writer;
+
+    private long created;
+
+    private boolean inItem;
+
+    /**
+     * Create a rolling file.
+     *
+     * @param directory directory for the files
+     * @param extension file name extension, including the dot
+     * @param namePattern default name pattern
+     * @param description description, for error messages
+     * @param item name of an item, for error messages
+     */
+    RollingFile(Path directory, String extension, String namePattern, String description, String item) {
+        this.directory = directory;
+        this.extension = extension;
+        this.namePattern = namePattern;
+        this.description = description;
+        this.item = item;
+    }
+
+    /**
+     * Set the size at which a new file is started.
+     * <p>
+     * The default is 1GB. A single item may take a file past this size.
+     *
+     * @param maxBytes maximum size, in bytes
+     * @return this rolling file
+     */
+    public R maxBytes(long maxBytes) {
+        checkNotStarted();
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Maximum bytes must be at least 1");
+        }
+        this.maxBytes = maxBytes;
+        return self();
+    }
+
+    /**
+     * Set the age at which a new file is started.
+     *
+     * @param maxAge maximum age
+     * @param unit unit of the age
+     * @return this rolling file
+     */
+    public R maxAge(long maxAge, TimeUnit unit) {
+        checkNotStarted();
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("Maximum age must be greater than zero");
+        }
+        this.maxAge = unit.toMillis(maxAge);
+        return self();
+    }
+
+    /**
+     * Set the pattern for file names.
+     *
+     * @param namePattern {@link java.util.Formatter} pattern, given the file number and start time
+     * @return this rolling file
+     */
+    public R namePattern(String namePattern) {
+        checkNotStarted();
+        this.namePattern = namePattern;
+        return self();
+    }
+
+    /**
+     * Set the size of the write buffer.
+     * <p>
+     * The default is 256KB.
+     *
+     * @param bufferSize buffer size, in bytes
+     * @return this rolling file
+     */
+    public R bufferSize(int bufferSize) {
+        checkNotStarted();
+        if (bufferSize < 512) {
+            throw new IllegalArgumentException("Buffer size must be at least 512");
+        }
+        this.bufferSize = bufferSize;
+        return self();
+    }
+
+    /**
+     * Set the clock used for item times, file names and file ages.
+     *
+     * @param clock clock
+     * @return this rolling file
+     */
+    public R clock(Clock clock) {
+        checkNotStarted();
+        this.clock = clock;
+        return self();
+    }
+
+    /**
+     * Set the listener told about each file when it is complete.
+     *
+     * @param listener listener, given the final path of the file
+     * @return this rolling file
+     */
+    public R listener(Consumer<Path> listener) {
+        checkNotStarted();
+        this.listener = listener;
+        return self();
+    }
+
+    /**
+     * Set how directories are forced, for testing.
+     *
+     * @param directoryForce directory force
+     * @return this rolling file
+     */
+    R directoryForce(DirectoryForce directoryForce) {
+        checkNotStarted();
+        this.directoryForce = directoryForce;
+        return self();
+    }
+
+    /**
+     * Write data to the current item.
+     *
+     * @param data data
+     * @param offset offset of the first byte to write
+     * @param length number of bytes to write
+     * @throws IOException if an error occurs
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkInItem();
+        writer.write(data, offset, length);
+    }
+
+    /**
+     * End the current item.
+     *
+     * @throws IOException if an error occurs
+     */
+    public void end() throws IOException {
+        checkInItem();
+        // If the item can not be ended it is still in progress, and is discarded by the next item or roll
+        writer.end();
+        inItem = false;
+    }
+
+    /**
+     * Complete the current file now, if there is one, rather than waiting for a limit to be reached.
+     *
+     * @throws IOException if an error occurs
+     */
+    public void roll() throws IOException {
+        if (inItem) {
+            writer.discard();
+            inItem = false;
+        }
+        if (writer != null) {
+            closeFile();
+        }
+    }
+
+    /**
+     * Complete the current file, any item that was begun and not ended is discarded.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        roll();
+    }
+
+    /**
+     * Create the writer for a new file.
+     *
+     * @param out output for the file
+     * @return writer
+     * @throws IOException if an error occurs
+     */
+    abstract W newWriter(ChannelOutput out) throws IOException;
+
+    /**
+     * Determine whether the current file has reached a limit of its kind, in addition to the size and age.
+     *
+     * @param writer writer for the current file
+     * @return <code>true</code> if a new file must be started
+     */
+    abstract boolean full(W writer);
+
+    /**
+     * Begin a new item, discarding any item that was begun and not ended, and starting a new file first if necessary.
+     *
+     * @param start begins the item with the writer for the file
+     * @throws IOException if an error occurs
+     */
+    final void beginItem(ItemStart<W> start) throws IOException {
+        started = true;
+        if (inItem) {
+            writer.discard();
+            inItem = false;
+        }
+        long now = clock.millis();
+        if (writer != null && (writer.size() >= maxBytes || now - created >= maxAge || full(writer))) {
+            closeFile();
+        }
+        if (writer == null) {
+            openFile(now);
+        }
+        start.begin(writer, now);
+        inItem = true;
+    }
+
+    /**
+     * Get the final path of the file currently being written.
+     *
+     * @return path, or <code>null</code> if there is no current file
+     */
+    final Path file() {
+        return file;
+    }
+
+    /**
+     * Get the writer for the file currently being written.
+     *
+     * @return writer, or <code>null</code> if there is no current file
+     */
+    final W writer() {
+        return writer;
+    }
+
+    final void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("The " + description + " has already been started");
+        }
+    }
+
+    private void openFile(long now) throws IOException {
+        Files.createDirectories(directory);
+        String name;
+        do {
+            name = String.format(namePattern, ++number, now) + extension;
+            file = directory.resolve(name);
+            part = directory.resolve(name + PART);
+        } while (Files.exists(file) || Files.exists(part));
+        ChannelOutput out = new ChannelOutput(part, bufferSize);
+        try {
+            writer = newWriter(out);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            file = null;
+            throw e;
+        }
+        created = now;
+    }
+
+    private void closeFile() throws IOException {
+        Path completed = file;
+        W closing = writer;
+        writer = null;
+        file = null;
+        try (ChannelOutput out = closing.out) {
+            closing.finish();
+            out.force(true);
+        }
+        Files.move(part, completed, StandardCopyOption.ATOMIC_MOVE);
+        directoryForce.force(directory);
+        if (listener != null) {
+            listener.accept(completed);
+        }
+    }
+
+    private void checkInItem() {
+        if (!inItem) {
+            throw new IllegalStateException("No " + item + " has been begun");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private R self() {
+        return (R) this;
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static uk.co.caprica.picam.store.CaptureLog.RECORD_HEADER_SIZE;
+import static uk.co.caprica.picam.store.CaptureLog.RECORD_MAGIC;
+import static uk.co.caprica.picam.store.CaptureLog.RECORD_TRAILER_SIZE;
+import static uk.co.caprica.picam.store.CaptureLog.SEGMENT_HEADER_SIZE;
+import static uk.co.caprica.picam.store.CaptureLog.SEGMENT_MAGIC;
+import static uk.co.caprica.picam.store.CaptureLog.SEGMENT_VERSION;
+
+/**
+ * Sequential reader for the records of a single segment file.
+ * <p>
+ * Reading stops at the first record that is incomplete or fails its checks, everything after it is treated as the
+ * remains of a torn write.
+ */
+final class SegmentReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 256;
+
+    private final long size;
+
+    private final DataInputStream in;
+
+    private final CRC32 crc = new CRC32();
+
+    private final boolean verify;
+
+    private boolean done;
+
+    private long end;
+
+    private long offset;
+
+    private long timestamp;
+
+    private int length;
+
+    private byte[] data = new byte[0];
+
+    /**
+     * Create a reader.
+     *
+     * @param file segment file
+     * @param verify <code>true</code> to read and check the data of every record; <code>false</code> to skip over it
+     * @throws IOException if the file can not be opened
+     */
+    SegmentReader(Path file, boolean verify) throws IOException {
+        this.size = Files.size(file);
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+        this.verify = verify;
+        if (size < SEGMENT_HEADER_SIZE || in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION) {
+            done = true;
+        } else {
+            end = SEGMENT_HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Check whether the segment header is valid.
+     *
+     * @return <code>true</code> if the header is valid
+     */
+    boolean valid() {
+        return end > 0;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return <code>true</code> if a valid record was read; <code>false</code> at the end of the valid records
+     * @throws IOException if an error occurs
+     */
+    boolean next() throws IOException {
+        if (done) {
+            return false;
+        }
+        done = true;
+        long available = size - end - RECORD_HEADER_SIZE - RECORD_TRAILER_SIZE;
+        if (available <= 0) {
+            return false;
+        }
+        int magic = in.readInt();
+        int length = in.readInt();
+        long timestamp = in.readLong();
+        if (magic != RECORD_MAGIC || length <= 0 || length > available) {
+            return false;
+        }
+        if (verify) {
+            if (data.length < length) {
+                data = new byte[Math.max(length, data.length + (data.length >> 1))];
+            }
+            in.readFully(data, 0, length);
+            int stored = in.readInt();
+            crc.reset();
+            crc.update(data, 0, length);
+            CaptureLog.updateHeader(crc, length, timestamp);
+            if ((int) crc.getValue() != stored) {
+                return false;
+            }
+        } else {
+            skip(length + RECORD_TRAILER_SIZE);
+        }
+        this.offset = end;
+        this.timestamp = timestamp;
+        this.length = length;
+        end += RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE;
+        done = false;
+        return true;
+    }
+
+    /**
+     * Get the offset just past the last valid record read.
+     *
+     * @return offset, in bytes
+     */
+    long end() {
+        return end;
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Get the data of the last record read, only valid if the reader verifies records.
+     *
+     * @return data, the first {@link #length()} bytes are valid
+     */
+    byte[] data() {
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            count -= skipped;
+        }
+    }
+
+}
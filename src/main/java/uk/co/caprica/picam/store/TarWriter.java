@@ -0,0 +1,143 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX ustar archive.
+ * <p>
+ * The header of each entry is written with a size of zero and rewritten with the real size when the entry ends, so the
+ * data can be streamed without knowing its size in advance.
+ */
+final class TarWriter extends ArchiveWriter {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final long MAX_SIZE = 077777777777L;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private final byte[] padding = new byte[BLOCK_SIZE];
+
+    private long start = -1;
+
+    private String name;
+
+    private long time;
+
+    private long size;
+
+    TarWriter(ChannelOutput out) {
+        super(out);
+    }
+
+    @Override
+    void begin(String name, long time) throws IOException {
+        if (name.getBytes(StandardCharsets.UTF_8).length > 100) {
+            throw new IllegalArgumentException("Entry name is longer than 100 bytes: " + name);
+        }
+        this.start = out.position();
+        this.name = name;
+        this.time = time;
+        this.size = 0;
+        out.write(header(0));
+    }
+
+    @Override
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (size + length > MAX_SIZE) {
+            throw new IOException("Entry is too large for a tar archive");
+        }
+        out.write(data, offset, length);
+        size += length;
+    }
+
+    @Override
+    void end() throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(padding, 0, BLOCK_SIZE - remainder);
+        }
+        out.patch(start, header(size));
+        start = -1;
+        super.end();
+    }
+
+    @Override
+    void discard() throws IOException {
+        if (start >= 0) {
+            out.truncate(start);
+            start = -1;
+        }
+    }
+
+    @Override
+    void finish() throws IOException {
+        // Two zero blocks mark the end of the archive
+        out.write(padding);
+        out.write(padding);
+    }
+
+    private byte[] header(long size) {
+        byte[] block = header;
+        Arrays.fill(block, (byte) 0);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, block, 0, nameBytes.length);
+        octal(block, 100, 8, 0644);
+        octal(block, 108, 8, 0);
+        octal(block, 116, 8, 0);
+        octal(block, 124, 12, size);
+        octal(block, 136, 12, time / 1000);
+        block[156] = '0';
+        ascii(block, 257, "ustar\u0000");
+        ascii(block, 263, "00");
+        // The checksum is calculated with the checksum field itself as spaces
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        octal(block, 148, 7, checksum);
+        block[155] = ' ';
+        return block;
+    }
+
+    /**
+     * Write a zero-padded octal number followed by a NUL.
+     */
+    private static void octal(byte[] block, int offset, int length, long value) {
+        int digits = length - 1;
+        for (int i = digits - 1; i >= 0; i--) {
+            block[offset + i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+        block[offset + digits] = 0;
+    }
+
+    private static void ascii(byte[] block, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            block[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+}
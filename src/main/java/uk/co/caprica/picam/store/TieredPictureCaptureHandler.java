@@ -0,0 +1,114 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.io.BufferedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Implementation of a picture capture handler that saves pictures to a {@link TieredStore} with sequentially numbered
+ * names.
+ * <p>
+ * Each picture is written to the hot tier, and handed over to the store for migration to the cold tier when it is
+ * complete.
+ * <p>
+ * The result is the name of the capture, relative to the tiers, which can be used to read it back from the store.
+ */
+public class TieredPictureCaptureHandler implements PictureCaptureHandler<Path> {
+
+    // Buffer size, somewhat arbitrary (default is 32k)
+    private static final int BUFFER_SIZE = 1024 * 32;
+
+    private final TieredStore store;
+
+    private final String pattern;
+
+    private int number;
+
+    private Path name;
+
+    private Path file;
+
+    private long bytes;
+
+    private BufferedOutputStream out;
+
+    /**
+     * Create a picture capture handler.
+     * <p>
+     * File numbering will start from one.
+     *
+     * @param store started tiered store
+     * @param pattern format pattern for the names, relative to the tiers, containing a "%d" formatter somewhere to take
+     *                the file number
+     */
+    public TieredPictureCaptureHandler(TieredStore store, String pattern) {
+        this(store, pattern, 1);
+    }
+
+    /**
+     * Create a picture capture handler.
+     *
+     * @param store started tiered store
+     * @param pattern format pattern for the names, relative to the tiers, containing a "%d" formatter somewhere to take
+     *                the file number
+     * @param initial initial file number
+     */
+    public TieredPictureCaptureHandler(TieredStore store, String pattern, int initial) {
+        this.store = store;
+        this.pattern = pattern;
+        this.number = initial;
+    }
+
+    @Override
+    public void begin() throws Exception {
+        name = Paths.get(String.format(pattern, number++));
+        file = store.create(name);
+        bytes = 0;
+        out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+    }
+
+    @Override
+    public int pictureData(byte[] data) throws Exception {
+        out.write(data);
+        bytes += data.length;
+        return data.length;
+    }
+
+    @Override
+    public void end() throws Exception {
+        if (out != null) {
+            out.flush();
+            out.close();
+            out = null;
+            store.completed(file, bytes);
+        }
+    }
+
+    @Override
+    public Path result() {
+        return name;
+    }
+
+}
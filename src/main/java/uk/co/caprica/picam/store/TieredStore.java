@@ -0,0 +1,663 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A two-tier capture store: captures are written to a fast hot tier, usually a RAM-backed tmpfs directory, and moved to
+ * a persistent cold tier, usually on the SD card, in batches.
+ * <p>
+ * Captures are named by paths relative to the tiers. A background thread migrates every completed capture in the hot
+ * tier once per flush interval, or sooner if the hot tier reaches its maximum size. Each batch is copied to the cold
+ * tier in large sequential writes, forced to disk, renamed into place and the directories forced, and only then removed
+ * from the hot tier. So at most a flush interval's worth of captures (plus the batch being migrated) can be lost if the
+ * power fails.
+ * <p>
+ * Each capture in a batch is migrated on its own. A capture that can not be migrated, including one whose cold tier
+ * directory can not be forced, stays in the hot tier and is tried again with the next batch. After the maximum number
+ * of attempts it is given up on: it is moved to the quarantine directory, by default ".failed" in the cold tier, so
+ * that it does not stay in the hot tier memory. If even that fails it is left in the hot tier. Either way it is no
+ * longer counted as pending, it can still be read, and it is listed by {@link #failed()}.
+ * <p>
+ * If the hot tier is full because migration is not keeping up, new captures are written straight to the cold tier
+ * rather than being delayed or filling the memory.
+ * <p>
+ * Reads check the hot tier first and then the cold tier, so a capture can be read wherever it currently is.
+ * <p>
+ * Capture names must be unique, a capture must not be rewritten while it is waiting to be migrated.
+ * <p>
+ * This can be used in like a "builder", the configuration must not be changed after the store is started.
+ */
+public final class TieredStore implements Closeable {
+
+    private static final String PART = ".part";
+
+    private static final String QUARANTINE = ".failed";
+
+    private final Path hot;
+
+    private final Path cold;
+
+    private Path quarantine;
+
+    private long hotBytes = 64L * 1024 * 1024;
+
+    private long flushInterval = TimeUnit.SECONDS.toMillis(5);
+
+    private int maxAttempts = 3;
+
+    private DirectoryForce directoryForce = DirectoryForce::channel;
+
+    /**
+     * Completed captures in the hot tier, oldest first, with their sizes.
+     */
+    private final LinkedHashMap<Path, Long> pending = new LinkedHashMap<>();
+
+    /**
+     * Number of failed attempts to migrate each pending capture.
+     */
+    private final Map<Path, Integer> attempts = new HashMap<>();
+
+    /**
+     * Captures that have been given up on, in the order they were given up on.
+     */
+    private final Set<Path> failed = new LinkedHashSet<>();
+
+    private final Object migrateLock = new Object();
+
+    private long pendingBytes;
+
+    private long migratedFiles;
+
+    private long migratedBytes;
+
+    private long batches;
+
+    private long coldWrites;
+
+    private long failedFiles;
+
+    private IOException lastFailure;
+
+    private boolean wake;
+
+    private Thread thread;
+
+    private volatile boolean closed;
+
+    private TieredStore(Path hot, Path cold) {
+        this.hot = hot;
+        this.cold = cold;
+        this.quarantine = cold.resolve(QUARANTINE);
+    }
+
+    /**
+     * Create a tiered store.
+     *
+     * @param hot hot tier directory, for example on a tmpfs file system
+     * @param cold cold tier directory, on persistent storage
+     * @return tiered store
+     */
+    public static TieredStore tieredStore(Path hot, Path cold) {
+        return new TieredStore(hot, cold);
+    }
+
+    /**
+     * Set the maximum size of the captures waiting in the hot tier.
+     * <p>
+     * The default is 64MB.
+     *
+     * @param hotBytes maximum size, in bytes
+     * @return this tiered store
+     */
+    public TieredStore hotBytes(long hotBytes) {
+        checkNotStarted();
+        if (hotBytes < 0) {
+            throw new IllegalArgumentException("Hot tier size must not be negative");
+        }
+        this.hotBytes = hotBytes;
+        return this;
+    }
+
+    /**
+     * Set the interval between migrations.
+     * <p>
+     * The default is 5 seconds.
+     *
+     * @param flushInterval interval
+     * @param unit unit of the interval
+     * @return this tiered store
+     */
+    public TieredStore flushInterval(long flushInterval, TimeUnit unit) {
+        checkNotStarted();
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Flush interval must be greater than zero");
+        }
+        this.flushInterval = unit.toMillis(flushInterval);
+        return this;
+    }
+
+    /**
+     * Set the number of times migrating a capture is attempted before it is given up on.
+     * <p>
+     * The default is 3.
+     *
+     * @param maxAttempts maximum attempts
+     * @return this tiered store
+     */
+    public TieredStore maxAttempts(int maxAttempts) {
+        checkNotStarted();
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Maximum attempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Set the directory that captures are moved to when they are given up on.
+     * <p>
+     * The default is ".failed" in the cold tier. Capture names must not be inside this directory.
+     *
+     * @param quarantine quarantine directory, on persistent storage
+     * @return this tiered store
+     */
+    public TieredStore quarantine(Path quarantine) {
+        checkNotStarted();
+        this.quarantine = quarantine;
+        return this;
+    }
+
+    /**
+     * Set how directories are forced, for testing.
+     *
+     * @param directoryForce directory force
+     * @return this tiered store
+     */
+    TieredStore directoryForce(DirectoryForce directoryForce) {
+        checkNotStarted();
+        this.directoryForce = directoryForce;
+        return this;
+    }
+
+    /**
+     * Start the store.
+     * <p>
+     * Any captures left in the hot tier, if it survived a restart of the application, are migrated with the first
+     * batch.
+     *
+     * @return this tiered store
+     * @throws IOException if an error occurs
+     */
+    public TieredStore start() throws IOException {
+        checkNotStarted();
+        Files.createDirectories(hot);
+        Files.createDirectories(cold);
+        try (Stream<Path> paths = Files.walk(hot)) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                if (Files.isRegularFile(path)) {
+                    completed(path, Files.size(path));
+                }
+            }
+        }
+        synchronized (this) {
+            thread = new Thread(this::run, "picam-tiered-store");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Get the file to write a new capture to, creating its directory if necessary.
+     * <p>
+     * This is in the hot tier unless the hot tier is full.
+     *
+     * @param name name of the capture, relative to the tiers
+     * @return file to write
+     * @throws IOException if the directory can not be created
+     */
+    public Path create(Path name) throws IOException {
+        checkName(name);
+        Path file;
+        synchronized (this) {
+            if (pendingBytes < hotBytes) {
+                file = hot.resolve(name);
+            } else {
+                file = cold.resolve(name);
+                coldWrites++;
+            }
+        }
+        Path parent = file.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return file;
+    }
+
+    /**
+     * Record a capture that has been completely written to a file from {@link #create(Path)}.
+     *
+     * @param file file that was written
+     * @param bytes size of the file, in bytes
+     */
+    public synchronized void completed(Path file, long bytes) {
+        if (!file.startsWith(hot)) {
+            return;
+        }
+        Path name = hot.relativize(file);
+        Long previous = pending.put(name, bytes);
+        pendingBytes += bytes - (previous != null ? previous : 0);
+        if (pendingBytes >= hotBytes) {
+            wake = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Find a capture, in whichever tier it is currently in, or in the quarantine directory.
+     * <p>
+     * The capture may be migrated at any time, use {@link #newInputStream(Path)} to read it reliably.
+     *
+     * @param name name of the capture, relative to the tiers
+     * @return file, or <code>null</code> if the capture is in neither tier nor quarantined
+     */
+    public Path resolve(Path name) {
+        Path file = hot.resolve(name);
+        if (Files.exists(file)) {
+            return file;
+        }
+        file = cold.resolve(name);
+        if (Files.exists(file)) {
+            return file;
+        }
+        file = quarantine.resolve(name);
+        return Files.exists(file) ? file : null;
+    }
+
+    /**
+     * Open a capture for reading, in whichever tier it is currently in.
+     *
+     * @param name name of the capture, relative to the tiers
+     * @return input stream
+     * @throws NoSuchFileException if the capture is in neither tier nor quarantined
+     * @throws IOException if an error occurs
+     */
+    public InputStream newInputStream(Path name) throws IOException {
+        try {
+            return Files.newInputStream(hot.resolve(name));
+        } catch (NoSuchFileException e) {
+            // Migrated, the cold copy is in place before the hot copy is removed
+            try {
+                return Files.newInputStream(cold.resolve(name));
+            } catch (NoSuchFileException f) {
+                // Given up on, the quarantined copy is in place before the hot copy is removed
+                return Files.newInputStream(quarantine.resolve(name));
+            }
+        }
+    }
+
+    /**
+     * Read a capture, from whichever tier it is currently in.
+     *
+     * @param name name of the capture, relative to the tiers
+     * @return picture data
+     * @throws NoSuchFileException if the capture is in neither tier nor quarantined
+     * @throws IOException if an error occurs
+     */
+    public byte[] read(Path name) throws IOException {
+        try {
+            return Files.readAllBytes(hot.resolve(name));
+        } catch (NoSuchFileException e) {
+            try {
+                return Files.readAllBytes(cold.resolve(name));
+            } catch (NoSuchFileException f) {
+                return Files.readAllBytes(quarantine.resolve(name));
+            }
+        }
+    }
+
+    /**
+     * Get the size of the captures waiting in the hot tier.
+     *
+     * @return size, in bytes
+     */
+    public synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Get the number of captures waiting in the hot tier.
+     *
+     * @return number of captures
+     */
+    public synchronized int pendingFiles() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of captures migrated to the cold tier since the store was started.
+     *
+     * @return number of captures
+     */
+    public synchronized long migratedFiles() {
+        return migratedFiles;
+    }
+
+    /**
+     * Get the size of the captures migrated to the cold tier since the store was started.
+     *
+     * @return size, in bytes
+     */
+    public synchronized long migratedBytes() {
+        return migratedBytes;
+    }
+
+    /**
+     * Get the number of migration batches since the store was started.
+     *
+     * @return number of batches
+     */
+    public synchronized long batches() {
+        return batches;
+    }
+
+    /**
+     * Get the number of captures written straight to the cold tier because the hot tier was full.
+     *
+     * @return number of captures
+     */
+    public synchronized long coldWrites() {
+        return coldWrites;
+    }
+
+    /**
+     * Get the number of captures given up on since the store was started, after failing to migrate them.
+     *
+     * @return number of captures
+     */
+    public synchronized long failedFiles() {
+        return failedFiles;
+    }
+
+    /**
+     * Get the captures given up on since the store was started, oldest first.
+     * <p>
+     * Each capture is in the quarantine directory, or still in the hot tier if it could not be moved there, and can be
+     * found with {@link #resolve(Path)}.
+     *
+     * @return names of the captures, relative to the tiers
+     */
+    public synchronized List<Path> failed() {
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * Get the error from the most recent failure to migrate a capture.
+     *
+     * @return error, or <code>null</code> if there has been no failure
+     */
+    public synchronized IOException lastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Migrate every completed capture in the hot tier now, on the calling thread.
+     * <p>
+     * A capture that can not be migrated does not stop the others being migrated.
+     *
+     * @return number of captures migrated
+     * @throws IOException if any capture could not be migrated, after migrating the rest
+     */
+    public int flush() throws IOException {
+        synchronized (migrateLock) {
+            List<Path> names;
+            List<Long> sizes;
+            synchronized (this) {
+                names = new ArrayList<>(pending.keySet());
+                sizes = new ArrayList<>(pending.values());
+            }
+            if (names.isEmpty()) {
+                return 0;
+            }
+            Map<Path, IOException> failures = new HashMap<>();
+            migrate(names, failures);
+            List<Path> givenUp = new ArrayList<>();
+            IOException failure = null;
+            synchronized (this) {
+                for (int i = 0; i < names.size(); i++) {
+                    Path name = names.get(i);
+                    long size = sizes.get(i);
+                    IOException e = failures.get(name);
+                    if (e == null) {
+                        pending.remove(name);
+                        attempts.remove(name);
+                        pendingBytes -= size;
+                        migratedBytes += size;
+                        migratedFiles++;
+                    } else {
+                        failure = e;
+                        lastFailure = e;
+                        if (attempts.merge(name, 1, Integer::sum) >= maxAttempts) {
+                            pending.remove(name);
+                            attempts.remove(name);
+                            pendingBytes -= size;
+                            failedFiles++;
+                            failed.add(name);
+                            givenUp.add(name);
+                        }
+                    }
+                }
+                batches++;
+            }
+            for (Path name : givenUp) {
+                try {
+                    moveToQuarantine(name);
+                } catch (IOException e) {
+                    // Left in the hot tier, where it can still be found
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return names.size();
+        }
+    }
+
+    /**
+     * Stop the migration thread and migrate everything that is left in the hot tier.
+     *
+     * @throws IOException if the final migration fails
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            thread = this.thread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                synchronized (this) {
+                    if (!wake && !closed) {
+                        wait(flushInterval);
+                    }
+                    wake = false;
+                }
+                if (!closed) {
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Failed captures have been counted, and stay pending to be tried again if they have attempts left
+            }
+        }
+    }
+
+    /**
+     * Copy a batch of captures to the cold tier, make them durable, then remove them from the hot tier.
+     * <p>
+     * Each capture that fails is recorded, the rest of the batch carries on without it.
+     */
+    private void migrate(List<Path> names, Map<Path, IOException> failures) {
+        List<Path> copied = new ArrayList<>(names.size());
+        for (Path name : names) {
+            try {
+                copy(hot.resolve(name), cold.resolve(name));
+                copied.add(name);
+            } catch (IOException e) {
+                failures.put(name, e);
+            }
+        }
+        // One durability barrier for the whole batch, after all of the copies so the writes to the card can be merged.
+        // There is no way to force a whole file system, so each file is forced, but the forces only wait for writes
+        // that are already under way, and nothing is renamed until all of them are done
+        List<Path> forced = new ArrayList<>(copied.size());
+        for (Path name : copied) {
+            try {
+                force(part(cold.resolve(name)));
+                forced.add(name);
+            } catch (IOException e) {
+                failures.put(name, e);
+            }
+        }
+        Map<Path, List<Path>> directories = new LinkedHashMap<>();
+        for (Path name : forced) {
+            Path target = cold.resolve(name);
+            try {
+                Files.move(part(target), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                directories.computeIfAbsent(target.getParent(), directory -> new ArrayList<>()).add(name);
+            } catch (IOException e) {
+                failures.put(name, e);
+            }
+        }
+        for (Map.Entry<Path, List<Path>> entry : directories.entrySet()) {
+            try {
+                directoryForce.force(entry.getKey());
+            } catch (IOException e) {
+                // The renames may not be durable, so the hot copies must be kept
+                for (Path name : entry.getValue()) {
+                    failures.put(name, e);
+                }
+                continue;
+            }
+            for (Path name : entry.getValue()) {
+                try {
+                    Files.deleteIfExists(hot.resolve(name));
+                } catch (IOException e) {
+                    failures.put(name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a capture that has been given up on from the hot tier to the quarantine directory, durably, and remove
+     * anything that the failed attempts to migrate it left in the cold tier.
+     */
+    private void moveToQuarantine(Path name) throws IOException {
+        Path target = quarantine.resolve(name);
+        Path part = part(target);
+        copy(hot.resolve(name), target);
+        force(part);
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        directoryForce.force(target.getParent());
+        Files.delete(hot.resolve(name));
+        // Anything left in the cold tier by the failed attempts is not known to be complete or durable
+        Path cold = this.cold.resolve(name);
+        Files.deleteIfExists(cold);
+        Files.deleteIfExists(part(cold));
+    }
+
+    /**
+     * Copy a file to a part file next to its target.
+     */
+    private static void copy(Path source, Path target) throws IOException {
+        Path part = part(target);
+        Files.createDirectories(target.getParent());
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            out.force(true);
+        }
+    }
+
+    private static Path part(Path target) {
+        return target.resolveSibling(target.getFileName() + PART);
+    }
+
+    private void checkName(Path name) {
+        if (name.isAbsolute() || name.normalize().startsWith("..")) {
+            throw new IllegalArgumentException("Name must be relative to the tiers: " + name);
+        }
+        if (cold.resolve(name).normalize().startsWith(quarantine.normalize())) {
+            throw new IllegalArgumentException("Name must not be in the quarantine directory: " + name);
+        }
+    }
+
+    private synchronized void checkNotStarted() {
+        if (thread != null) {
+            throw new IllegalStateException("The tiered store has already been started");
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A time index of the records in a {@link CaptureLog}.
+ * <p>
+ * The index is a file containing a header followed by an array of fixed-size (timestamp, location) entries in the
+ * order the records were written, so both the timestamps and the locations are in ascending order. Finding the record
+ * nearest to a time is a binary search, and a range of records is a sequential scan of the entries, neither of which
+ * touch the capture log itself.
+ * <p>
+ * The file is memory-mapped in large regions. A region is mapped, and the file extended, the first time an entry is
+ * written to it; the part of the file that has not been written yet is a sparse hole taking no space on disk. Entries
+ * are only guaranteed to be on disk after {@link #force()}, or when the index is closed.
+ * <p>
+ * The index holds nothing that can not be found from the capture log. When it is opened the entries for the last
+ * indexed segment are replaced from the log, so records written after the index was last forced are added and records
+ * lost from the log after a power failure are removed. If the index file is missing or damaged it is rebuilt from the
+ * record headers of the whole log.
+ * <p>
+ * If the clock goes backwards, a timestamp earlier than the previous entry is stored as the previous entry's timestamp
+ * so that the entries stay in order.
+ * <p>
+ * Adding entries must only be done by one thread at a time, lookups may be done concurrently from other threads.
+ */
+public final class TimeIndex implements Closeable {
+
+    /**
+     * Name of the index file used by {@link #timeIndex(CaptureLog)}.
+     */
+    public static final String INDEX_FILE_NAME = "capture.idx";
+
+    private static final int MAGIC = 0x54494458;
+
+    private static final int VERSION = 1;
+
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int HEADER_SIZE = ENTRY_SIZE;
+
+    /**
+     * Default number of entries in each mapped region, as a power of two, 4M entries is a 64MB region.
+     */
+    private static final int DEFAULT_REGION_SHIFT = 22;
+
+    /**
+     * Callback for entries found by a range scan.
+     */
+    public interface Visitor {
+
+        /**
+         * Visit an entry.
+         *
+         * @param timestamp timestamp, milliseconds since the epoch
+         * @param location location of the record in the capture log
+         * @return <code>true</code> to continue the scan; <code>false</code> to stop
+         * @throws IOException if an error occurs
+         */
+        boolean entry(long timestamp, long location) throws IOException;
+    }
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer header;
+
+    private final int regionShift;
+
+    private final int regionMask;
+
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    private volatile MappedByteBuffer[] mapped = new MappedByteBuffer[0];
+
+    private volatile long size;
+
+    private TimeIndex(Path file, int regionShift) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        this.regionShift = regionShift;
+        this.regionMask = (1 << regionShift) - 1;
+    }
+
+    /**
+     * Open the time index of a capture log, stored in the log directory as {@link #INDEX_FILE_NAME}.
+     *
+     * @param log open capture log
+     * @return time index
+     * @throws IOException if an error occurs
+     */
+    public static TimeIndex timeIndex(CaptureLog log) throws IOException {
+        return timeIndex(log.directory().resolve(INDEX_FILE_NAME), log);
+    }
+
+    /**
+     * Open the time index of a capture log.
+     *
+     * @param file index file
+     * @param log open capture log
+     * @return time index
+     * @throws IOException if an error occurs
+     */
+    public static TimeIndex timeIndex(Path file, CaptureLog log) throws IOException {
+        return timeIndex(file, log, DEFAULT_REGION_SHIFT);
+    }
+
+    /**
+     * Rebuild the time index of a capture log from scratch, replacing any existing index file.
+     *
+     * @param file index file
+     * @param log open capture log
+     * @return time index
+     * @throws IOException if an error occurs
+     */
+    public static TimeIndex rebuild(Path file, CaptureLog log) throws IOException {
+        return rebuild(file, log, DEFAULT_REGION_SHIFT);
+    }
+
+    static TimeIndex timeIndex(Path file, CaptureLog log, int regionShift) throws IOException {
+        if (!Files.exists(file)) {
+            return rebuild(file, log, regionShift);
+        }
+        TimeIndex index = new TimeIndex(file, regionShift);
+        if (!index.load()) {
+            index.close();
+            return rebuild(file, log, regionShift);
+        }
+        try {
+            index.catchUp(log);
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    static TimeIndex rebuild(Path file, CaptureLog log, int regionShift) throws IOException {
+        Files.deleteIfExists(file);
+        TimeIndex index = new TimeIndex(file, regionShift);
+        try {
+            index.header.putInt(0, MAGIC);
+            index.header.putInt(4, VERSION);
+            index.setSize(0);
+            index.catchUp(log);
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return number of entries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the timestamp of an entry.
+     *
+     * @param index index of the entry
+     * @return timestamp, milliseconds since the epoch
+     */
+    public long timestamp(long index) {
+        checkIndex(index);
+        return region(index).getLong(position(index));
+    }
+
+    /**
+     * Get the location of an entry.
+     *
+     * @see CaptureLog#read(long)
+     *
+     * @param index index of the entry
+     * @return location of the record in the capture log
+     */
+    public long location(long index) {
+        checkIndex(index);
+        return region(index).getLong(position(index) + 8);
+    }
+
+    /**
+     * Find the last entry at or before a time.
+     *
+     * @param timestamp time, milliseconds since the epoch
+     * @return index of the entry, or -1 if there is none
+     */
+    public long floor(long timestamp) {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (timestamp(middle) <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Find the first entry at or after a time.
+     *
+     * @param timestamp time, milliseconds since the epoch
+     * @return index of the entry, or -1 if there is none
+     */
+    public long ceiling(long timestamp) {
+        long size = this.size;
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (timestamp(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low < size ? low : -1;
+    }
+
+    /**
+     * Find the entry nearest to a time.
+     * <p>
+     * If two entries are equally near, the earlier one is found.
+     *
+     * @param timestamp time, milliseconds since the epoch
+     * @return index of the entry, or -1 if the index is empty
+     */
+    public long nearest(long timestamp) {
+        long floor = floor(timestamp);
+        long next = floor + 1;
+        if (next >= size) {
+            return floor;
+        }
+        if (floor < 0) {
+            return next;
+        }
+        return timestamp - timestamp(floor) <= timestamp(next) - timestamp ? floor : next;
+    }
+
+    /**
+     * Visit the entries in a time range, in order.
+     *
+     * @param from start of the range, inclusive, milliseconds since the epoch
+     * @param to end of the range, exclusive, milliseconds since the epoch
+     * @param visitor callback for each entry
+     * @return number of entries visited
+     * @throws IOException if the visitor fails
+     */
+    public long scan(long from, long to, Visitor visitor) throws IOException {
+        long first = ceiling(from);
+        if (first < 0) {
+            return 0;
+        }
+        long size = this.size;
+        long count = 0;
+        for (long index = first; index < size; index++) {
+            MappedByteBuffer region = region(index);
+            int position = position(index);
+            long timestamp = region.getLong(position);
+            if (timestamp >= to) {
+                break;
+            }
+            count++;
+            if (!visitor.entry(timestamp, region.getLong(position + 8))) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add an entry for a record that has just been written.
+     *
+     * @param record record
+     */
+    public void add(CaptureLogRecord record) {
+        add(record.timestamp(), record.location());
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param timestamp timestamp, milliseconds since the epoch
+     * @param location location of the record in the capture log, after the location of the previous entry
+     */
+    public synchronized void add(long timestamp, long location) {
+        long size = this.size;
+        if (size > 0) {
+            if (location <= location(size - 1)) {
+                throw new IllegalArgumentException("Location must be after the previous entry");
+            }
+            timestamp = Math.max(timestamp, timestamp(size - 1));
+        }
+        MappedByteBuffer region;
+        try {
+            region = map(size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map the index", e);
+        }
+        int position = position(size);
+        region.putLong(position, timestamp);
+        region.putLong(position + 8, location);
+        // The entry is written before the count that makes it visible
+        setSize(size + 1);
+    }
+
+    /**
+     * Force all entries to disk.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Load and check the header.
+     */
+    private boolean load() throws IOException {
+        if (channel.size() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            return false;
+        }
+        long count = header.getLong(8);
+        if (count < 0 || HEADER_SIZE + count * ENTRY_SIZE > channel.size()) {
+            return false;
+        }
+        size = count;
+        for (long index = 0; index < count; index += 1L << regionShift) {
+            map(index);
+        }
+        return true;
+    }
+
+    /**
+     * Replace the entries of the last indexed segment, and add any later records, from the capture log.
+     */
+    private void catchUp(CaptureLog log) throws IOException {
+        log.flush();
+        long fromSegment = 0;
+        if (size > 0) {
+            fromSegment = CaptureLog.segment(location(size - 1));
+            long first = firstAtOrAfter(CaptureLog.location(fromSegment, 0));
+            setSize(first);
+        }
+        try (CaptureLogReader reader = new CaptureLogReader(log, false, fromSegment)) {
+            while (reader.next()) {
+                add(reader.timestamp(), reader.location());
+            }
+        }
+        force();
+    }
+
+    /**
+     * Find the first entry at or after a location.
+     */
+    private long firstAtOrAfter(long location) {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (location(middle) < location) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void setSize(long size) {
+        this.size = size;
+        header.putLong(8, size);
+    }
+
+    private MappedByteBuffer map(long index) throws IOException {
+        int number = (int) (index >>> regionShift);
+        while (regions.size() <= number) {
+            long position = HEADER_SIZE + ((long) regions.size() << regionShift) * ENTRY_SIZE;
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) ENTRY_SIZE << regionShift));
+            mapped = regions.toArray(new MappedByteBuffer[0]);
+        }
+        return regions.get(number);
+    }
+
+    private MappedByteBuffer region(long index) {
+        return mapped[(int) (index >>> regionShift)];
+    }
+
+    private int position(long index) {
+        return (int) (index & regionMask) * ENTRY_SIZE;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+}
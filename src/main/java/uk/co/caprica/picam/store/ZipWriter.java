@@ -0,0 +1,273 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive.
+ * <p>
+ * The local header of each entry is written with a zero checksum and sizes, and patched when the entry ends, so the
+ * data can be streamed without knowing its size in advance and without data descriptors, which not every reader
+ * accepts for stored entries.
+ */
+final class ZipWriter extends ArchiveWriter {
+
+    /**
+     * Largest archive, entry or offset that can be described without ZIP64.
+     */
+    static final long MAX_SIZE = 0xffffffffL;
+
+    /**
+     * Most entries that can be described without ZIP64.
+     */
+    static final int MAX_ENTRIES = 0xffff;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    /**
+     * General purpose flag for UTF-8 names.
+     */
+    private static final int UTF8 = 0x0800;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final class Entry {
+
+        private final byte[] name;
+
+        private final int dosTime;
+
+        private final long offset;
+
+        private final int crc;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private Entry(byte[] name, int dosTime, long offset, int crc, long compressedSize, long size) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final Deflater deflater;
+
+    private final byte[] deflated;
+
+    private final CRC32 crc = new CRC32();
+
+    private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long start = -1;
+
+    private byte[] name;
+
+    private int dosTime;
+
+    private long size;
+
+    /**
+     * Create a writer.
+     *
+     * @param out output
+     * @param level deflate compression level, 0 to store entries uncompressed
+     */
+    ZipWriter(ChannelOutput out, int level) {
+        super(out);
+        this.deflater = level > 0 ? new Deflater(level, true) : null;
+        this.deflated = level > 0 ? new byte[1024 * 64] : null;
+    }
+
+    @Override
+    void begin(String name, long time) throws IOException {
+        this.name = name.getBytes(StandardCharsets.UTF_8);
+        if (this.name.length > 0xffff) {
+            throw new IllegalArgumentException("Entry name is too long");
+        }
+        if (out.position() > MAX_SIZE) {
+            throw new IOException("Archive is too large for another entry without ZIP64");
+        }
+        this.start = out.position();
+        this.dosTime = dosTime(time);
+        this.size = 0;
+        crc.reset();
+        header.clear();
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) UTF8);
+        header.putShort((short) (deflater != null ? DEFLATED : STORED));
+        header.putInt(dosTime);
+        // Checksum and sizes, patched when the entry ends
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putShort((short) this.name.length);
+        header.putShort((short) 0);
+        out.write(header.array(), 0, header.position());
+        out.write(this.name);
+    }
+
+    @Override
+    void write(byte[] data, int offset, int length) throws IOException {
+        // Checked before anything is written, the entry is left to be discarded
+        if (size + length > MAX_SIZE) {
+            throw new IOException("Entry is too large for a ZIP archive without ZIP64");
+        }
+        crc.update(data, offset, length);
+        size += length;
+        if (deflater == null) {
+            out.write(data, offset, length);
+        } else {
+            deflater.setInput(data, offset, length);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+    }
+
+    @Override
+    void end() throws IOException {
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain();
+            }
+            deflater.reset();
+        }
+        long compressedSize = out.position() - start - 30 - name.length;
+        if (compressedSize > MAX_SIZE) {
+            // Deflating made the entry larger than its data, it can not be kept without a central directory entry
+            discard();
+            throw new IOException("Entry is too large for a ZIP archive without ZIP64");
+        }
+        header.clear();
+        header.putInt((int) crc.getValue());
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        byte[] patch = new byte[12];
+        System.arraycopy(header.array(), 0, patch, 0, 12);
+        out.patch(start + 14, patch);
+        entries.add(new Entry(name, dosTime, start, (int) crc.getValue(), compressedSize, size));
+        start = -1;
+        super.end();
+    }
+
+    @Override
+    void discard() throws IOException {
+        if (start >= 0) {
+            if (deflater != null) {
+                deflater.reset();
+            }
+            out.truncate(start);
+            start = -1;
+        }
+    }
+
+    @Override
+    void finish() throws IOException {
+        long directoryStart = out.position();
+        for (Entry entry : entries) {
+            header.clear();
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short) VERSION);
+            header.putShort((short) VERSION);
+            header.putShort((short) UTF8);
+            header.putShort((short) (deflater != null ? DEFLATED : STORED));
+            header.putInt(entry.dosTime);
+            header.putInt(entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.name.length);
+            // Extra field, comment, disk number, internal and external attributes
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) entry.offset);
+            out.write(header.array(), 0, header.position());
+            out.write(entry.name);
+        }
+        long directorySize = out.position() - directoryStart;
+        if (out.position() > MAX_SIZE) {
+            throw new IOException("Archive is too large for ZIP without ZIP64");
+        }
+        header.clear();
+        header.putInt(END_OF_CENTRAL_DIRECTORY);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) entries.size());
+        header.putShort((short) entries.size());
+        header.putInt((int) directorySize);
+        header.putInt((int) directoryStart);
+        header.putShort((short) 0);
+        out.write(header.array(), 0, header.position());
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private void drain() throws IOException {
+        int count = deflater.deflate(deflated);
+        if (count > 0) {
+            out.write(deflated, 0, count);
+        }
+    }
+
+    private static int dosTime(long time) {
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (local.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (local.getYear() - 1980) << 25
+            | local.getMonthValue() << 21
+            | local.getDayOfMonth() << 16
+            | local.getHour() << 11
+            | local.getMinute() << 5
+            | local.getSecond() >> 1;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PictureDataRecorderTest {
+
+    @Test
+    public void testReplay() throws Exception {
+        PictureDataRecorder recorder = new PictureDataRecorder();
+        List<byte[]> received = new ArrayList<>();
+        for (int capture = 0; capture < 2; capture++) {
+            recorder.begin();
+            // The same array is reused for every chunk, as the camera may do
+            byte[] chunk = new byte[3];
+            for (int i = 0; i < 3; i++) {
+                Arrays.fill(chunk, (byte) (capture * 10 + i));
+                recorder.add(chunk);
+            }
+            recorder.add(new byte[] {(byte) capture});
+            Arrays.fill(chunk, (byte) -1);
+            received.clear();
+            recorder.replay(new NopPictureCaptureHandler() {
+                @Override
+                public int pictureData(byte[] data) {
+                    received.add(data.clone());
+                    return data.length;
+                }
+            });
+            // The chunks are replayed exactly as they were recorded
+            assertEquals(4, received.size());
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(new byte[] {(byte) (capture * 10 + i), (byte) (capture * 10 + i), (byte) (capture * 10 + i)}, received.get(i));
+            }
+            assertArrayEquals(new byte[] {(byte) capture}, received.get(3));
+        }
+    }
+
+    @Test
+    public void testShortReplay() throws Exception {
+        PictureDataRecorder recorder = new PictureDataRecorder();
+        recorder.begin();
+        recorder.add(new byte[100]);
+        recorder.add(new byte[100]);
+        recorder.replay(new ByteArrayPictureCaptureHandler());
+        recorder.begin();
+        recorder.add(new byte[50]);
+        ByteArrayPictureCaptureHandler handler = new ByteArrayPictureCaptureHandler();
+        recorder.replay(handler);
+        // Nothing is left over from the longer capture before
+        assertEquals(50, handler.result().length);
+    }
+
+    @Test
+    public void testHandlerEndedOnFailure() throws Exception {
+        PictureDataRecorder recorder = new PictureDataRecorder();
+        recorder.begin();
+        recorder.add(new byte[10]);
+        boolean[] ended = new boolean[1];
+        try {
+            recorder.replay(new NopPictureCaptureHandler() {
+                @Override
+                public int pictureData(byte[] data) {
+                    return data.length - 1;
+                }
+
+                @Override
+                public void end() {
+                    ended[0] = true;
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Handler did not accept all of the data", e.getMessage());
+        }
+        assertTrue(ended[0]);
+    }
+
+}
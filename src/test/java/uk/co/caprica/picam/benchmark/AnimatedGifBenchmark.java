@@ -0,0 +1,93 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.gif.AnimatedGif;
+import uk.co.caprica.picam.gif.PaletteMode;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.gif.AnimatedGif.animatedGif;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Measure writing an animated GIF preview, 40 frames of 640x480 I420 with a moving object over a fixed scene, with one
+ * thread and with the common pool, for each palette mode.
+ */
+public class AnimatedGifBenchmark {
+
+    private static final int FRAMES = 40;
+
+    public static void main(String[] args) throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 640, 480);
+        byte[][] frames = frames(layout);
+        ForkJoinPool single = new ForkJoinPool(1);
+        int threads = ForkJoinPool.commonPool().getParallelism();
+        for (PaletteMode mode : PaletteMode.values()) {
+            AnimatedGif serial = build(layout, frames, mode, single);
+            AnimatedGif parallel = build(layout, frames, mode, ForkJoinPool.commonPool());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Benchmark.run(mode + ", 1 thread", 1, 5, () -> {
+                out.reset();
+                serial.write(out);
+            });
+            Benchmark.run(mode + ", " + threads + " threads", 1, 5, () -> {
+                out.reset();
+                parallel.write(out);
+            });
+            System.out.printf("%-40s %10d KB%n", mode + " size", out.size() / 1024);
+        }
+        single.shutdown();
+    }
+
+    private static AnimatedGif build(RawFrameLayout layout, byte[][] frames, PaletteMode mode, ForkJoinPool pool) {
+        AnimatedGif gif = animatedGif(layout).paletteMode(mode).pool(pool);
+        for (byte[] frame : frames) {
+            gif.add(frame);
+        }
+        return gif;
+    }
+
+    private static byte[][] frames(RawFrameLayout layout) {
+        byte[][] frames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = new byte[layout.frameSize()];
+            for (int y = 0; y < layout.height(); y++) {
+                for (int x = 0; x < layout.width(); x++) {
+                    boolean object = x >= i * 12 && x < i * 12 + 80 && y >= 200 && y < 280;
+                    frame[y * layout.stride() + x] = (byte) (object ? 220 : (x + y) / 5);
+                }
+            }
+            for (int y = 0; y < layout.chromaHeight(); y++) {
+                for (int x = 0; x < layout.chromaWidth(); x++) {
+                    boolean object = x * 2 >= i * 12 && x * 2 < i * 12 + 80 && y * 2 >= 200 && y * 2 < 280;
+                    frame[layout.uOffset() + y * layout.chromaStride() + x] = (byte) (object ? 90 : 128 + x / 10);
+                    frame[layout.vOffset() + y * layout.chromaStride() + x] = (byte) (object ? 200 : 128 - y / 10);
+                }
+            }
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+}
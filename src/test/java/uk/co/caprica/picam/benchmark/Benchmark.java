@@ -0,0 +1,60 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+/**
+ * Minimal timing harness used by the benchmark applications.
+ * <p>
+ * Each operation is run a number of times to warm up the JIT, then timed over a number of further iterations. This is
+ * not a replacement for a proper benchmark harness, but it needs nothing other than a JVM on the Pi.
+ */
+public final class Benchmark {
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Run and time an operation.
+     *
+     * @param name name of the operation, for the report
+     * @param warmup number of untimed warm-up iterations
+     * @param iterations number of timed iterations
+     * @param operation operation to run
+     * @return mean time per operation, in milliseconds
+     * @throws Exception if the operation fails
+     */
+    public static double run(String name, int warmup, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        double result = (System.nanoTime() - start) / 1e6 / iterations;
+        System.out.printf("%-40s %10.3f ms/op%n", name, result);
+        return result;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+import uk.co.caprica.picam.store.CaptureLog;
+import uk.co.caprica.picam.store.CaptureLogPictureCaptureHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static uk.co.caprica.picam.store.CaptureLog.captureLog;
+
+/**
+ * Compare writing a run of pictures one file per picture against appending them to a capture log.
+ * <p>
+ * Run this against the storage actually used for captures, by default a directory under the working directory. The
+ * capture log timing includes forcing the log to disk when it is closed, the one file per picture timing does not.
+ */
+public class CaptureLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "capture-log-benchmark");
+        int pictures = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 512 * 1024;
+        int chunkSize = 64 * 1024;
+
+        byte[] picture = new byte[size];
+        new Random(1).nextBytes(picture);
+        byte[][] chunks = new byte[(size + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Arrays.copyOfRange(picture, i * chunkSize, Math.min(size, (i + 1) * chunkSize));
+        }
+        Files.createDirectories(directory);
+        double megabytes = (double) pictures * size / (1024 * 1024);
+
+        Path files = directory.resolve("files");
+        double fileMillis = Benchmark.run("One file per picture", 1, 3, () -> {
+            delete(files);
+            Files.createDirectories(files);
+            SequentialFilePictureCaptureHandler handler = new SequentialFilePictureCaptureHandler(files.resolve("picture-%06d.dat").toString());
+            for (int i = 0; i < pictures; i++) {
+                handler.begin();
+                for (byte[] chunk : chunks) {
+                    handler.pictureData(chunk);
+                }
+                handler.end();
+            }
+        });
+        System.out.printf("%-40s %10.1f MB/s%n", "", megabytes * 1000 / fileMillis);
+
+        Path log = directory.resolve("log");
+        double logMillis = Benchmark.run("Capture log", 1, 3, () -> {
+            delete(log);
+            try (CaptureLog captureLog = captureLog(log).open()) {
+                CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(captureLog);
+                for (int i = 0; i < pictures; i++) {
+                    handler.begin();
+                    for (byte[] chunk : chunks) {
+                        handler.pictureData(chunk);
+                    }
+                    handler.end();
+                }
+            }
+        });
+        System.out.printf("%-40s %10.1f MB/s%n", "", megabytes * 1000 / logMillis);
+
+        delete(directory);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.ColourConversionPictureCaptureHandler;
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Compare a naive per-pixel floating point conversion of each raw format with the single-threaded, parallel and
+ * streaming conversions.
+ */
+public class ColourConversionBenchmark {
+
+    private static final int CHUNK_SIZE = 81920;
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2592;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1944;
+
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24, Encoding.BGR24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, width, height);
+            byte[] frame = new byte[layout.frameSize()];
+            new Random(1).nextBytes(frame);
+            System.out.println(layout);
+
+            BufferedImage naive = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Benchmark.run("  naive", 2, 5, () -> naive(frame, layout, naive));
+
+            ColourConverter sequential = new ColourConverter(new ForkJoinPool(1));
+            Benchmark.run("  fixed-point, 1 thread", 5, 20, () -> sequential.toImage(frame, layout));
+
+            ColourConverter parallel = new ColourConverter();
+            Benchmark.run(String.format("  fixed-point, %d threads", ForkJoinPool.getCommonPoolParallelism()), 5, 20, () -> parallel.toImage(frame, layout));
+
+            ColourConversionPictureCaptureHandler handler = new ColourConversionPictureCaptureHandler(layout, parallel);
+            Benchmark.run("  streaming", 5, 20, () -> {
+                handler.begin();
+                for (int i = 0; i < frame.length; i += CHUNK_SIZE) {
+                    handler.pictureData(Arrays.copyOfRange(frame, i, Math.min(frame.length, i + CHUNK_SIZE)));
+                }
+                handler.end();
+            });
+            System.out.println();
+        }
+    }
+
+    private static void naive(byte[] frame, RawFrameLayout layout, BufferedImage image) {
+        for (int y = 0; y < layout.height(); y++) {
+            for (int x = 0; x < layout.width(); x++) {
+                int r;
+                int g;
+                int b;
+                if (layout.isPlanar()) {
+                    double luma = frame[y * layout.stride() + x] & 0xff;
+                    double u = (frame[layout.uOffset() + (y / 2) * layout.chromaStride() + x / 2] & 0xff) - 128;
+                    double v = (frame[layout.vOffset() + (y / 2) * layout.chromaStride() + x / 2] & 0xff) - 128;
+                    r = (int) Math.max(0, Math.min(255, luma + 1.402 * v));
+                    g = (int) Math.max(0, Math.min(255, luma - 0.344136 * u - 0.714136 * v));
+                    b = (int) Math.max(0, Math.min(255, luma + 1.772 * u));
+                } else {
+                    int i = y * layout.stride() + x * 3;
+                    r = frame[i] & 0xff;
+                    g = frame[i + 1] & 0xff;
+                    b = frame[i + 2] & 0xff;
+                    if (layout.encoding() == Encoding.BGR24) {
+                        int t = r;
+                        r = b;
+                        b = t;
+                    }
+                }
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+    }
+
+}
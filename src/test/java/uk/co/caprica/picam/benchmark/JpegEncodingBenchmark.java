@@ -0,0 +1,99 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.jpeg.JpegEncoder;
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.jpeg.JpegEncoder.jpegEncoder;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Compare JPEG encoding of synthetic RGB24 frames with ImageIO against the parallel encoder, at several resolutions.
+ */
+public class JpegEncodingBenchmark {
+
+    private static final int[][] RESOLUTIONS = {
+        {640, 480},
+        {1296, 972},
+        {1920, 1080},
+        {2592, 1944}
+    };
+
+    public static void main(String[] args) throws Exception {
+        int quality = args.length > 0 ? Integer.parseInt(args[0]) : 85;
+        for (int[] resolution : RESOLUTIONS) {
+            run(resolution[0], resolution[1], quality);
+            System.out.println();
+        }
+    }
+
+    private static void run(int width, int height, int quality) throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, width, height);
+        byte[] frame = new byte[layout.frameSize()];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width * 3; x++) {
+                frame[y * layout.stride() + x] = (byte) ((x / 3) * 255 / width + (x % 3) * y / 8 + ((x * 31 + y * 17) % 7));
+            }
+        }
+        System.out.println(layout);
+
+        BufferedImage image = new ColourConverter().toImage(frame, layout);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Benchmark.run("ImageIO", 2, 5, () -> {
+            out.reset();
+            try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+        });
+        System.out.printf("%-40s %10d bytes%n", "", out.size());
+
+        JpegEncoder single = jpegEncoder().quality(quality).pool(new ForkJoinPool(1));
+        Benchmark.run("Band encoder, 1 thread", 2, 5, () -> single.encode(frame, layout, new ByteArrayPictureCaptureHandler()));
+
+        JpegEncoder parallel = jpegEncoder().quality(quality);
+        Benchmark.run(String.format("Band encoder, %d threads", ForkJoinPool.getCommonPoolParallelism()), 2, 5, () -> parallel.encode(frame, layout, new ByteArrayPictureCaptureHandler()));
+        System.out.printf("%-40s %10d bytes%n", "", parallel.encode(frame, layout, new ByteArrayPictureCaptureHandler()).length);
+
+        int target = out.size() / 2;
+        JpegEncoder sized = jpegEncoder().quality(quality).targetSize(target, 10);
+        Benchmark.run(String.format("Band encoder, target %d bytes", target), 2, 5, () -> sized.encode(frame, layout, new ByteArrayPictureCaptureHandler()));
+        System.out.printf("%-40s %10d bytes, quality %d%n", "", sized.encode(frame, layout, new ByteArrayPictureCaptureHandler()).length, sized.usedQuality());
+        writer.dispose();
+    }
+
+}
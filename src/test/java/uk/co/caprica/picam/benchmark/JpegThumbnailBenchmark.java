@@ -0,0 +1,89 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.jpeg.JpegThumbnailPictureCaptureHandler;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare creating a 1/8 scale thumbnail from a full-size JPEG by decoding and scaling with ImageIO against the
+ * DCT-domain thumbnail picture capture handler.
+ */
+public class JpegThumbnailBenchmark {
+
+    private static final int CHUNK_SIZE = 81920;
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2592;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1944;
+
+        byte[] jpeg = createJpeg(width, height);
+        System.out.printf("%dx%d JPEG, %d bytes%n%n", width, height, jpeg.length);
+
+        Benchmark.run("ImageIO decode and scale 1/8", 5, 20, () -> {
+            BufferedImage full = ImageIO.read(new ByteArrayInputStream(jpeg));
+            BufferedImage thumbnail = new BufferedImage(width / 8, height / 8, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = thumbnail.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(full, 0, 0, thumbnail.getWidth(), thumbnail.getHeight(), null);
+            g.dispose();
+        });
+
+        JpegThumbnailPictureCaptureHandler dc = new JpegThumbnailPictureCaptureHandler(8);
+        Benchmark.run("DC thumbnail 1/8", 5, 20, () -> feed(dc, jpeg));
+
+        JpegThumbnailPictureCaptureHandler ac = new JpegThumbnailPictureCaptureHandler(4);
+        Benchmark.run("DC+AC thumbnail 1/4", 5, 20, () -> feed(ac, jpeg));
+    }
+
+    private static void feed(JpegThumbnailPictureCaptureHandler handler, byte[] jpeg) throws Exception {
+        handler.begin();
+        for (int i = 0; i < jpeg.length; i += CHUNK_SIZE) {
+            handler.pictureData(Arrays.copyOfRange(jpeg, i, Math.min(jpeg.length, i + CHUNK_SIZE)));
+        }
+        handler.end();
+        if (handler.result() == null) {
+            throw new IllegalStateException("Thumbnail failed");
+        }
+    }
+
+    private static byte[] createJpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, ((x * 255 / width) ^ noise) << 16 | ((y * 255 / height) ^ noise) << 8 | ((x + y) & 0xff));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.motion.MotionDetectionPictureCaptureHandler;
+import uk.co.caprica.picam.motion.MotionDetector;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Run motion detection over a synthetic sequence of I420 frames (a bright square moving over a noisy background),
+ * with a single-threaded pool and with the common pool.
+ */
+public class MotionDetectionBenchmark {
+
+    private static final int CHUNK_SIZE = 81920;
+
+    private static final int FRAMES = 16;
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2592;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1944;
+        int cellSize = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, width, height);
+        byte[][] frames = frames(layout);
+        byte[][][] chunks = new byte[FRAMES][][];
+        for (int i = 0; i < FRAMES; i++) {
+            chunks[i] = split(frames[i]);
+        }
+        System.out.printf("%s, cell size %d%n%n", layout, cellSize);
+
+        for (int parallelism : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            MotionDetectionPictureCaptureHandler handler = new MotionDetectionPictureCaptureHandler(layout,
+                MotionDetector.motionDetector(width, height).cellSize(cellSize).tileSize(8).pool(pool)
+            );
+            int[] frame = new int[1];
+            Benchmark.run(String.format("Motion detection, %d thread(s)", parallelism), FRAMES * 2, FRAMES * 4, () -> {
+                byte[][] frameChunks = chunks[frame[0]++ % FRAMES];
+                handler.begin();
+                for (byte[] chunk : frameChunks) {
+                    handler.pictureData(chunk);
+                }
+                handler.end();
+            });
+            pool.shutdown();
+        }
+    }
+
+    private static byte[][] frames(RawFrameLayout layout) {
+        Random random = new Random(1);
+        byte[][] frames = new byte[FRAMES][];
+        int size = layout.height() / 8;
+        for (int f = 0; f < FRAMES; f++) {
+            byte[] frame = new byte[layout.frameSize()];
+            for (int y = 0; y < layout.height(); y++) {
+                for (int x = 0; x < layout.width(); x++) {
+                    frame[y * layout.stride() + x] = (byte) (64 + random.nextInt(8));
+                }
+            }
+            int left = f * (layout.width() - size) / FRAMES;
+            for (int y = layout.height() / 2; y < layout.height() / 2 + size; y++) {
+                Arrays.fill(frame, y * layout.stride() + left, y * layout.stride() + left + size, (byte) 220);
+            }
+            frames[f] = frame;
+        }
+        return frames;
+    }
+
+    private static byte[][] split(byte[] frame) {
+        byte[][] chunks = new byte[(frame.length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Arrays.copyOfRange(frame, i * CHUNK_SIZE, Math.min(frame.length, (i + 1) * CHUNK_SIZE));
+        }
+        return chunks;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.png.PngEncoder;
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.png.PngEncoder.pngEncoder;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+/**
+ * Compare PNG encoding of a synthetic RGB24 frame with ImageIO against the parallel encoder.
+ */
+public class PngEncodingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2592;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1944;
+
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, width, height);
+        byte[] frame = new byte[layout.frameSize()];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width * 3; x++) {
+                frame[y * layout.stride() + x] = (byte) ((x / 3) * 255 / width + (x % 3) * y / 8 + ((x * 31 + y * 17) % 7));
+            }
+        }
+        System.out.println(layout);
+        System.out.println();
+
+        BufferedImage image = new ColourConverter().toImage(frame, layout);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Benchmark.run("ImageIO", 2, 5, () -> {
+            out.reset();
+            ImageIO.write(image, "png", out);
+        });
+        System.out.printf("%-40s %10d bytes%n", "", out.size());
+
+        ByteArrayPictureCaptureHandler sink = new ByteArrayPictureCaptureHandler(out.size() * 2);
+
+        PngEncoder single = pngEncoder().pool(new ForkJoinPool(1));
+        Benchmark.run("Block encoder, 1 thread", 2, 5, () -> single.encode(frame, layout, sink));
+
+        PngEncoder parallel = pngEncoder();
+        Benchmark.run(String.format("Block encoder, %d threads", ForkJoinPool.getCommonPoolParallelism()), 2, 5, () -> parallel.encode(frame, layout, sink));
+
+        PngEncoder fast = pngEncoder().level(1);
+        Benchmark.run("Block encoder, level 1", 2, 5, () -> fast.encode(frame, layout, sink));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.sequence.RawSequenceReader;
+import uk.co.caprica.picam.sequence.RawSequenceWriter;
+import uk.co.caprica.picam.sequence.Lz4Codec;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.rawSequenceWriter;
+
+/**
+ * Measure the compression ratio and throughput of raw frame sequences, for synthetic 1080p I420 sequences.
+ * <p>
+ * The "still" sequence is a fixed scene with a small moving object, the best case for delta frames. The "noisy"
+ * sequence adds sensor-like noise to the low bit of every pixel, close to the worst case for a real fixed camera.
+ * <p>
+ * Each sequence is written with one thread and with the common pool, then read back in order and at random.
+ */
+public class RawSequenceBenchmark {
+
+    private static final int FRAMES = 60;
+
+    public static void main(String[] args) throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 1920, 1080);
+        run("still", layout, frames(layout, false));
+        run("noisy", layout, frames(layout, true));
+    }
+
+    private static void run(String name, RawFrameLayout layout, byte[][] frames) throws Exception {
+        Path file = Files.createTempFile("picam-sequence", ".seq");
+        double megabytes = (double) FRAMES * layout.frameSize() / (1024 * 1024);
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            double[] ratio = new double[1];
+            double serialMillis = Benchmark.run(name + " write, 1 thread", 1, 3, () -> write(file, layout, frames, single, ratio));
+            System.out.printf("%-40s %10.1f MB/s%n", "", megabytes * 1000 / serialMillis);
+            double parallelMillis = Benchmark.run(name + " write, " + ForkJoinPool.commonPool().getParallelism() + " threads", 1, 3, () -> write(file, layout, frames, ForkJoinPool.commonPool(), ratio));
+            System.out.printf("%-40s %10.1f MB/s%n", "", megabytes * 1000 / parallelMillis);
+            System.out.printf("%-40s %10.1f :1 (%d KB/frame)%n", name + " ratio", ratio[0], (long) (layout.frameSize() / ratio[0] / 1024));
+            byte[] frame = new byte[layout.frameSize()];
+            try (RawSequenceReader reader = new RawSequenceReader(file)) {
+                double readMillis = Benchmark.run(name + " read in order", 1, 3, () -> {
+                    for (int i = 0; i < reader.frames(); i++) {
+                        reader.read(i, frame);
+                    }
+                });
+                System.out.printf("%-40s %10.1f MB/s%n", "", megabytes * 1000 / readMillis);
+                Random random = new Random(3);
+                double seekMillis = Benchmark.run(name + " read at random (x10)", 1, 3, () -> {
+                    for (int i = 0; i < 10; i++) {
+                        reader.read(random.nextInt(reader.frames()), frame);
+                    }
+                });
+                System.out.printf("%-40s %10.3f ms/frame%n", "", seekMillis / 10);
+            }
+        } finally {
+            single.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void write(Path file, RawFrameLayout layout, byte[][] frames, ForkJoinPool pool, double[] ratio) throws Exception {
+        try (RawSequenceWriter writer = rawSequenceWriter(file, layout).codec(new Lz4Codec()).pool(pool).open()) {
+            for (byte[] frame : frames) {
+                writer.write(frame);
+            }
+            ratio[0] = writer.ratio();
+        }
+    }
+
+    private static byte[][] frames(RawFrameLayout layout, boolean noisy) {
+        Random random = new Random(1);
+        byte[] scene = new byte[layout.frameSize()];
+        for (int y = 0; y < layout.rows(); y++) {
+            for (int x = 0; x < layout.stride(); x++) {
+                scene[y * layout.stride() + x] = (byte) ((x / 8 + y / 4) & 0xfe);
+            }
+        }
+        for (int i = layout.uOffset(); i < scene.length; i++) {
+            scene[i] = (byte) 128;
+        }
+        byte[][] frames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = scene.clone();
+            int left = 100 + i * 20;
+            for (int y = 400; y < 600; y++) {
+                for (int x = left; x < left + 200; x++) {
+                    frame[y * layout.stride() + x] = (byte) 230;
+                }
+            }
+            if (noisy) {
+                for (int y = 0; y < layout.height(); y++) {
+                    for (int x = 0; x < layout.width(); x++) {
+                        frame[y * layout.stride() + x] |= random.nextInt(2);
+                    }
+                }
+            }
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+}
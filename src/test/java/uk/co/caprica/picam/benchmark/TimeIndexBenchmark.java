@@ -0,0 +1,83 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.benchmark;
+
+import uk.co.caprica.picam.store.CaptureLog;
+import uk.co.caprica.picam.store.TimeIndex;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static uk.co.caprica.picam.store.CaptureLog.captureLog;
+
+/**
+ * Time nearest-frame lookups and range scans in a large time index.
+ * <p>
+ * The index is filled with synthetic entries, one frame a second with some jitter, it does not need a real capture log
+ * of that size.
+ */
+public class TimeIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "time-index-benchmark");
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 20000000;
+        int lookups = 1000000;
+
+        Files.createDirectories(directory);
+        Path file = directory.resolve("benchmark.idx");
+        try (CaptureLog log = captureLog(directory.resolve("log")).open();
+             TimeIndex index = TimeIndex.rebuild(file, log)) {
+            long start = 1500000000000L;
+            Random random = new Random(1);
+            long fill = System.nanoTime();
+            for (int i = 0; i < entries; i++) {
+                index.add(start + i * 1000L + random.nextInt(200), CaptureLog.location(i >>> 16, (i & 0xffff) * 4096L));
+            }
+            System.out.printf("%-40s %10.3f s%n", String.format("Add %d entries", entries), (System.nanoTime() - fill) / 1e9);
+
+            long[] times = new long[lookups];
+            for (int i = 0; i < lookups; i++) {
+                times[i] = start + (long) (random.nextDouble() * entries * 1000L);
+            }
+            long[] sink = new long[1];
+            double millis = Benchmark.run("Nearest, 1M random lookups", 2, 5, () -> {
+                for (long time : times) {
+                    sink[0] += index.location(index.nearest(time));
+                }
+            });
+            System.out.printf("%-40s %10.3f us/lookup%n", "", millis * 1000 / lookups);
+
+            Benchmark.run("Scan one hour, 1000 random ranges", 2, 5, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    index.scan(times[i], times[i] + 3600000L, (timestamp, location) -> {
+                        sink[0] += location;
+                        return true;
+                    });
+                }
+            });
+        }
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory.resolve("log"));
+        Files.deleteIfExists(directory);
+    }
+
+}
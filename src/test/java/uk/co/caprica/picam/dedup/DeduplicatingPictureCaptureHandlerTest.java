@@ -0,0 +1,126 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.dedup;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.dedup.Deduplicator.deduplicator;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class DeduplicatingPictureCaptureHandlerTest {
+
+    private static final TestFrames.Pixel SCENE = (x, y) -> {
+        int l = (x / 20 + y / 20) % 2 == 0 ? 60 : 180;
+        return l << 16 | l << 8 | l;
+    };
+
+    /**
+     * The same scene, slightly brighter and with some noise.
+     */
+    private static final TestFrames.Pixel SIMILAR = (x, y) -> {
+        int l = ((x / 20 + y / 20) % 2 == 0 ? 60 : 180) + 8 + (x * 7 + y * 13) % 5;
+        return l << 16 | l << 8 | l;
+    };
+
+    private static final TestFrames.Pixel DIFFERENT = (x, y) -> {
+        int l = x * 255 / 200;
+        return l << 16 | (255 - l) << 8 | y;
+    };
+
+    @Test
+    public void testDropRaw() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 200, 150);
+            Deduplicator deduplicator = deduplicator();
+            DeduplicatingPictureCaptureHandler<byte[]> handler = new DeduplicatingPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), deduplicator, layout);
+
+            byte[] scene = TestFrames.frame(layout, SCENE);
+            assertArrayEquals(scene, TestFrames.capture(handler, scene, 4099));
+            assertFalse(handler.duplicate());
+
+            assertNull(TestFrames.capture(handler, TestFrames.frame(layout, SIMILAR), 4099));
+            assertTrue(handler.duplicate());
+
+            byte[] different = TestFrames.frame(layout, DIFFERENT);
+            assertArrayEquals(different, TestFrames.capture(handler, different, 4099));
+            assertFalse(handler.duplicate());
+
+            assertEquals(3, deduplicator.frames());
+            assertEquals(1, deduplicator.duplicates());
+        }
+    }
+
+    @Test
+    public void testMarkRaw() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 200, 150);
+        Deduplicator deduplicator = deduplicator().action(DuplicateAction.MARK).hash(PerceptualHash.AVERAGE);
+        DeduplicatingPictureCaptureHandler<byte[]> handler = new DeduplicatingPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), deduplicator, layout);
+
+        TestFrames.capture(handler, TestFrames.frame(layout, SCENE), 1000);
+        assertFalse(handler.duplicate());
+
+        byte[] similar = TestFrames.frame(layout, SIMILAR);
+        assertArrayEquals(similar, TestFrames.capture(handler, similar, 1000));
+        assertTrue(handler.duplicate());
+        assertEquals(0.5, deduplicator.ratio(), 0);
+    }
+
+    @Test
+    public void testDropJpeg() throws Exception {
+        Deduplicator deduplicator = deduplicator();
+        DeduplicatingPictureCaptureHandler<byte[]> handler = new DeduplicatingPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), deduplicator);
+
+        byte[] scene = jpeg(SCENE);
+        assertArrayEquals(scene, TestFrames.capture(handler, scene, 333));
+        assertNull(TestFrames.capture(handler, jpeg(SIMILAR), 333));
+        byte[] different = jpeg(DIFFERENT);
+        assertArrayEquals(different, TestFrames.capture(handler, different, 333));
+        assertEquals(1, deduplicator.duplicates());
+    }
+
+    @Test
+    public void testUndecodableJpegIsKept() throws Exception {
+        DeduplicatingPictureCaptureHandler<byte[]> handler = new DeduplicatingPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), deduplicator());
+        byte[] data = new byte[100];
+        assertArrayEquals(data, TestFrames.capture(handler, data, 10));
+        assertArrayEquals(data, TestFrames.capture(handler, data, 10));
+    }
+
+    private static byte[] jpeg(TestFrames.Pixel pixel) throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 200, 150);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new ColourConverter().toImage(TestFrames.frame(layout, pixel), layout), "jpeg", out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.exposure;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.CameraConfiguration.cameraConfiguration;
+import static uk.co.caprica.picam.exposure.ExposureController.exposureController;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class ExposureControllerTest {
+
+    /**
+     * Simulated camera response, mean luma for a scene luminance and exposure, with a gamma of 2.2 and clipping.
+     */
+    private static double capture(double luminance, ExposureSettings settings) {
+        return 255 * Math.min(1, Math.pow(luminance * settings.exposure() / 1e6, 1 / 2.2));
+    }
+
+    @Test
+    public void testConvergesOnStaticScene() {
+        CameraConfiguration configuration = cameraConfiguration().shutterSpeed(200).iso(100);
+        ExposureController controller = exposureController(configuration).maximumStep(1);
+        double brightness = 0;
+        for (int i = 0; i < 40; i++) {
+            brightness = capture(100, controller.settings());
+            ExposureDecision decision = controller.update(brightness);
+            assertTrue(Math.abs(decision.step()) <= 1 + 1e-9);
+        }
+        assertEquals(110, brightness, 110 * 0.05);
+        assertEquals(controller.settings().shutterSpeed(), configuration.shutterSpeed().intValue());
+        assertEquals(40, controller.history().size());
+        assertEquals(10, controller.historySize(10).history().size());
+        controller.historySize(0).update(brightness);
+        assertTrue(controller.history().isEmpty());
+    }
+
+    @Test
+    public void testSunriseWithoutFlicker() {
+        CameraConfiguration configuration = cameraConfiguration().shutterSpeed(1000000).iso(800);
+        ExposureController controller = exposureController(configuration).damping(0.3);
+        double luminance = 0.2;
+        double previous = -1;
+        for (int i = 0; i < 400; i++) {
+            // Twelve stops brighter over 300 frames, then steady
+            if (i < 300) {
+                luminance *= Math.pow(2, 12.0 / 300);
+            }
+            double brightness = capture(luminance, controller.settings());
+            controller.update(brightness);
+            if (i > 50) {
+                assertEquals(110, brightness, 110 * 0.15);
+                assertTrue(Math.abs(brightness - previous) / previous < 0.05);
+            }
+            previous = brightness;
+        }
+        assertEquals(100, controller.settings().iso());
+    }
+
+    @Test
+    public void testShutterBeforeIso() {
+        CameraConfiguration configuration = cameraConfiguration().shutterSpeed(1000).iso(100);
+        ExposureController controller = exposureController(configuration).shutterSpeed(100, 50000).maximumStep(3);
+        for (int i = 0; i < 30; i++) {
+            ExposureSettings settings = controller.settings();
+            // The shutter speed takes up the small remainder left by rounding the ISO
+            assertTrue(settings.iso() == 100 || settings.shutterSpeed() > 49000);
+            controller.update(capture(1, settings));
+        }
+        assertTrue(controller.settings().iso() > 100);
+    }
+
+    @Test
+    public void testDeadBand() {
+        ExposureController controller = exposureController(cameraConfiguration().shutterSpeed(10000).iso(100)).deadBand(0.2);
+        ExposureDecision decision = controller.update(108);
+        assertEquals(0, decision.step(), 0);
+        assertTrue(decision.error() > 0);
+    }
+
+    @Test
+    public void testExposureCompensation() {
+        CameraConfiguration configuration = cameraConfiguration().shutterSpeed(10000).iso(100).exposureCompensation(6);
+        ExposureController controller = exposureController(configuration).deadBand(0);
+        // One stop of compensation, so the target brightness is higher and a frame at the plain target is too dark
+        assertTrue(controller.update(110).step() > 0);
+    }
+
+    @Test
+    public void testWeightedMetering() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 320, 240);
+        // Bright sky in the top half, dark foreground below
+        byte[] frame = TestFrames.frame(layout, (x, y) -> y < 120 ? 0xf0f0f0 : 0x404040);
+        CameraConfiguration configuration = cameraConfiguration().shutterSpeed(10000).iso(100);
+        ExposureController controller = exposureController(configuration).region(0, 0, 1, 0.5, 0);
+        ExposurePictureCaptureHandler<byte[]> handler = new ExposurePictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), controller, layout);
+
+        assertArrayEquals(frame, TestFrames.capture(handler, frame, 5000));
+        ExposureDecision decision = handler.decision();
+        assertEquals(TestFrames.luma(0x404040), decision.brightness(), 0.5);
+        assertTrue(decision.step() > 0);
+        assertEquals(decision.next().shutterSpeed(), configuration.shutterSpeed().intValue());
+    }
+
+}
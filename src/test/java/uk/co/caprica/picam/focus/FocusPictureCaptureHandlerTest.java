@@ -0,0 +1,127 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.focus;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.awt.Rectangle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class FocusPictureCaptureHandlerTest {
+
+    private static final TestFrames.Pixel SHARP = (x, y) -> grey(checker(x, y));
+
+    /**
+     * The same checkerboard, box blurred over 5x5 pixels.
+     */
+    private static final TestFrames.Pixel BLURRED = (x, y) -> {
+        int sum = 0;
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                sum += checker(x + dx, y + dy);
+            }
+        }
+        return grey(sum / 25);
+    };
+
+    @Test
+    public void testSharpScoresHigher() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 160, 120);
+            for (FocusMetric metric : FocusMetric.values()) {
+                double sharp = score(layout, metric, SHARP).score();
+                double blurred = score(layout, metric, BLURRED).score();
+                assertTrue(sharp > blurred * 4);
+            }
+        }
+    }
+
+    @Test
+    public void testLaplacianVariance() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 40, 30);
+        TestFrames.Pixel pixel = (x, y) -> grey((x * x * 7 + y * 13 + x * y) % 256);
+        long sum = 0;
+        long square = 0;
+        int count = 0;
+        for (int y = 1; y < 29; y++) {
+            for (int x = 1; x < 39; x++) {
+                int value = 4 * luma(pixel, x, y) - luma(pixel, x - 1, y) - luma(pixel, x + 1, y) - luma(pixel, x, y - 1) - luma(pixel, x, y + 1);
+                sum += value;
+                square += (long) value * value;
+                count++;
+            }
+        }
+        double mean = (double) sum / count;
+        assertEquals((double) square / count - mean * mean, score(layout, FocusMetric.LAPLACIAN_VARIANCE, pixel).score(), 1e-6);
+    }
+
+    @Test
+    public void testRegions() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 160, 120);
+        // Sharp on the left, flat on the right
+        TestFrames.Pixel pixel = (x, y) -> x < 80 ? SHARP.rgb(x, y) : grey(128);
+        FocusPictureCaptureHandler handler = new FocusPictureCaptureHandler(layout, FocusMetric.TENENGRAD, new Rectangle(0, 0, 80, 120), new Rectangle(90, 10, 60, 100));
+        FocusScore score = TestFrames.capture(handler, TestFrames.frame(layout, pixel), 999);
+        assertTrue(score.regionScore(0) > 0);
+        assertEquals(0, score.regionScore(1), 0);
+        assertEquals(score.regionScore(0), score.score(), 0);
+    }
+
+    @Test
+    public void testGate() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 160, 120);
+        double threshold = (score(layout, FocusMetric.LAPLACIAN_VARIANCE, SHARP).score() + score(layout, FocusMetric.LAPLACIAN_VARIANCE, BLURRED).score()) / 2;
+        FocusGatePictureCaptureHandler<byte[]> gate = new FocusGatePictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), layout, FocusMetric.LAPLACIAN_VARIANCE, threshold);
+
+        assertNull(TestFrames.capture(gate, TestFrames.frame(layout, BLURRED), 4096));
+        assertTrue(gate.rejected());
+
+        byte[] sharp = TestFrames.frame(layout, SHARP);
+        assertArrayEquals(sharp, TestFrames.capture(gate, sharp, 4096));
+        assertFalse(gate.rejected());
+    }
+
+    private static FocusScore score(RawFrameLayout layout, FocusMetric metric, TestFrames.Pixel pixel) throws Exception {
+        return TestFrames.capture(new FocusPictureCaptureHandler(layout, metric), TestFrames.frame(layout, pixel), 1234);
+    }
+
+    private static int checker(int x, int y) {
+        return (Math.floorDiv(x, 6) + Math.floorDiv(y, 6)) % 2 == 0 ? 40 : 210;
+    }
+
+    private static int grey(int l) {
+        return l << 16 | l << 8 | l;
+    }
+
+    private static int luma(TestFrames.Pixel pixel, int x, int y) {
+        return TestFrames.luma(pixel.rgb(x, y));
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.gif;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Node;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.ColourConverter;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.gif.AnimatedGif.animatedGif;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class AnimatedGifTest {
+
+    private static final RawFrameLayout LAYOUT = rawFrameLayout(Encoding.RGB24, 120, 90);
+
+    private static final int BACKGROUND = 0x204060;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Test
+    public void testGlobalPalette() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        List<int[]> expected = new ArrayList<>();
+        AnimatedGif gif = animatedGif(LAYOUT).delay(250, TimeUnit.MILLISECONDS).loopCount(3).pool(pool);
+        for (int i = 0; i < 6; i++) {
+            expected.add(add(gif, movingSquares(i)));
+        }
+        gif.write(file);
+        Decoded decoded = new Decoded(file);
+        assertEquals(expected.size(), decoded.frames.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("Frame " + i, expected.get(i), decoded.frames.get(i));
+            assertEquals(25, decoded.delays.get(i).intValue());
+        }
+        assertEquals(120, decoded.widths.get(0).intValue());
+        for (int i = 1; i < expected.size(); i++) {
+            // Only the rectangle around the squares that moved is stored
+            assertTrue(decoded.widths.get(i) < 120);
+            assertTrue(decoded.transparent.get(i));
+        }
+    }
+
+    @Test
+    public void testPerFramePalette() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        List<int[]> expected = new ArrayList<>();
+        AnimatedGif gif = animatedGif(LAYOUT).paletteMode(PaletteMode.PER_FRAME).pool(pool);
+        for (int i = 0; i < 5; i++) {
+            int shade = i * 40;
+            // Each frame has a different background, so nothing stays the same
+            expected.add(add(gif, (x, y) -> x < 60 ? shade << 8 : movingSquares(0).rgb(x, y)));
+        }
+        gif.write(file);
+        Decoded decoded = new Decoded(file);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("Frame " + i, expected.get(i), decoded.frames.get(i));
+        }
+    }
+
+    @Test
+    public void testNoTransparency() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        List<int[]> expected = new ArrayList<>();
+        AnimatedGif gif = animatedGif(LAYOUT).transparency(false).pool(pool);
+        for (int i = 0; i < 4; i++) {
+            expected.add(add(gif, movingSquares(i)));
+        }
+        gif.write(file);
+        Decoded decoded = new Decoded(file);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("Frame " + i, expected.get(i), decoded.frames.get(i));
+            assertEquals(120, decoded.widths.get(i).intValue());
+            assertEquals(false, decoded.transparent.get(i));
+        }
+    }
+
+    @Test
+    public void testUnchangedFrames() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        AnimatedGif gif = animatedGif(LAYOUT).pool(pool);
+        int[] expected = add(gif, movingSquares(2));
+        add(gif, movingSquares(2));
+        add(gif, movingSquares(2));
+        gif.write(file);
+        Decoded decoded = new Decoded(file);
+        assertEquals(3, decoded.frames.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected, decoded.frames.get(i));
+        }
+        assertEquals(1, decoded.widths.get(1).intValue());
+        assertEquals(1, decoded.widths.get(2).intValue());
+    }
+
+    @Test
+    public void testCodeTableResets() throws Exception {
+        // Random pixels from 200 colours fill the 4096 entry code table many times over
+        RawFrameLayout layout = rawFrameLayout(Encoding.BGR24, 301, 207);
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        Random random = new Random(1);
+        int[] colours = new int[200];
+        for (int i = 0; i < colours.length; i++) {
+            colours[i] = (i % 8) * 32 << 16 | (i / 8 % 5) * 48 << 8 | (i / 40) * 40;
+        }
+        AnimatedGif gif = animatedGif(layout).transparency(false).pool(pool);
+        List<int[]> expected = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            int[] pixels = new int[layout.width() * layout.height()];
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = colours[random.nextInt(colours.length)];
+            }
+            gif.add(TestFrames.frame(layout, (x, y) -> pixels[y * layout.width() + x]));
+            expected.add(pixels);
+        }
+        gif.write(file);
+        Decoded decoded = new Decoded(file);
+        assertArrayEquals(expected.get(0), decoded.frames.get(0));
+        assertArrayEquals(expected.get(1), decoded.frames.get(1));
+    }
+
+    @Test
+    public void testQuantisedGradient() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 160, 120);
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        AnimatedGif gif = animatedGif(layout).colours(64).pool(pool);
+        byte[] frame = TestFrames.frame(layout, (x, y) -> (x * 255 / 159) << 16 | (y * 255 / 119) << 8 | 128);
+        gif.add(frame);
+        gif.add(frame);
+        gif.write(file);
+        BufferedImage expected = new ColourConverter(pool).toImage(frame, layout);
+        Decoded decoded = new Decoded(file);
+        long error = 0;
+        int[] pixels = decoded.frames.get(1);
+        for (int i = 0; i < pixels.length; i++) {
+            int a = expected.getRGB(i % 160, i / 160);
+            int b = pixels[i];
+            error += Math.abs((a >> 16 & 0xff) - (b >> 16 & 0xff)) + Math.abs((a >> 8 & 0xff) - (b >> 8 & 0xff)) + Math.abs((a & 0xff) - (b & 0xff));
+        }
+        assertTrue("Mean error " + (double) error / pixels.length, error / pixels.length < 24);
+    }
+
+    @Test
+    public void testPictureCaptureHandler() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.gif");
+        AnimatedGif gif = animatedGif(LAYOUT).pool(pool);
+        AnimatedGifPictureCaptureHandler handler = new AnimatedGifPictureCaptureHandler(gif);
+        byte[] first = TestFrames.frame(LAYOUT, movingSquares(0));
+        byte[] second = TestFrames.frame(LAYOUT, movingSquares(1));
+        assertEquals(Integer.valueOf(0), TestFrames.capture(handler, first, first.length));
+        assertEquals(Integer.valueOf(1), TestFrames.capture(handler, second, 1000));
+        assertEquals(2, gif.frames());
+        gif.write(file);
+        assertEquals(2, new Decoded(file).frames.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigurationAfterFrames() {
+        AnimatedGif gif = animatedGif(LAYOUT);
+        gif.add(TestFrames.frame(LAYOUT, movingSquares(0)));
+        gif.colours(16);
+    }
+
+    private static TestFrames.Pixel movingSquares(int frame) {
+        return (x, y) -> {
+            if (x >= 10 + frame * 8 && x < 30 + frame * 8 && y >= 10 && y < 30) {
+                return 0xe02010;
+            }
+            if (x >= 50 && x < 70 && y >= 20 + frame * 6 && y < 40 + frame * 6) {
+                return 0x10e040;
+            }
+            return x < 90 ? BACKGROUND : 0xf0f0f0;
+        };
+    }
+
+    private static int[] add(AnimatedGif gif, TestFrames.Pixel pixel) {
+        int[] pixels = new int[LAYOUT.width() * LAYOUT.height()];
+        for (int y = 0; y < LAYOUT.height(); y++) {
+            for (int x = 0; x < LAYOUT.width(); x++) {
+                pixels[y * LAYOUT.width() + x] = pixel.rgb(x, y);
+            }
+        }
+        gif.add(TestFrames.frame(LAYOUT, pixel));
+        return pixels;
+    }
+
+    /**
+     * Frames of an animated GIF as they would be displayed, decoded by Java ImageIO.
+     */
+    private static final class Decoded {
+
+        final List<int[]> frames = new ArrayList<>();
+
+        final List<Integer> delays = new ArrayList<>();
+
+        final List<Integer> widths = new ArrayList<>();
+
+        final List<Boolean> transparent = new ArrayList<>();
+
+        Decoded(Path file) throws Exception {
+            ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+            try (ImageInputStream in = ImageIO.createImageInputStream(Files.newInputStream(file))) {
+                reader.setInput(in);
+                int count = reader.getNumImages(true);
+                int width = 0;
+                int[] canvas = null;
+                for (int i = 0; i < count; i++) {
+                    BufferedImage image = reader.read(i);
+                    IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree("javax_imageio_gif_image_1.0");
+                    Node descriptor = root.getElementsByTagName("ImageDescriptor").item(0);
+                    Node control = root.getElementsByTagName("GraphicControlExtension").item(0);
+                    int left = attribute(descriptor, "imageLeftPosition");
+                    int top = attribute(descriptor, "imageTopPosition");
+                    if (canvas == null) {
+                        width = image.getWidth();
+                        canvas = new int[width * image.getHeight()];
+                    }
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        for (int x = 0; x < image.getWidth(); x++) {
+                            int argb = image.getRGB(x, y);
+                            if (argb >>> 24 != 0) {
+                                canvas[(top + y) * width + left + x] = argb & 0xffffff;
+                            }
+                        }
+                    }
+                    frames.add(canvas.clone());
+                    delays.add(attribute(control, "delayTime"));
+                    widths.add(image.getWidth());
+                    transparent.add(Boolean.valueOf(control.getAttributes().getNamedItem("transparentColorFlag").getNodeValue()));
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        private static int attribute(Node node, String name) {
+            return Integer.parseInt(node.getAttributes().getNamedItem(name).getNodeValue());
+        }
+    }
+
+}
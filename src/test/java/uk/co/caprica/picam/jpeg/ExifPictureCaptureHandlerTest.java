@@ -0,0 +1,148 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.ExposureMode;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static uk.co.caprica.picam.CameraConfiguration.cameraConfiguration;
+
+public class ExifPictureCaptureHandlerTest {
+
+    private static final byte[] OLD_EXIF = {(byte) 0xff, (byte) 0xe1, 0, 16, 'E', 'x', 'i', 'f', 0, 0, 'O', 'L', 'D', '-', 'E', 'X', 'I', 'F'};
+
+    @Test
+    public void testReplaceExif() throws Exception {
+        byte[] jpeg = jpegWithExif();
+        CameraConfiguration configuration = cameraConfiguration().size(64, 48).iso(400).shutterSpeed(20000).exposureMode(ExposureMode.AUTO);
+        for (int chunkSize : new int[] {1, 3, 7, 100, jpeg.length}) {
+            ExifPictureCaptureHandler<byte[]> handler = new ExifPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), configuration, "pi-0001");
+            handler.begin();
+            for (int i = 0; i < jpeg.length; i += chunkSize) {
+                byte[] chunk = Arrays.copyOfRange(jpeg, i, Math.min(jpeg.length, i + chunkSize));
+                assertEquals(chunk.length, handler.pictureData(chunk));
+            }
+            handler.end();
+            byte[] result = handler.result();
+
+            assertEquals(0xff, result[2] & 0xff);
+            assertEquals(ExifSegment.APP1, result[3] & 0xff);
+            assertEquals(1, count(result, "Exif\0\0".getBytes("US-ASCII")));
+            assertEquals(0, count(result, "OLD-EXIF".getBytes("US-ASCII")));
+            assertEquals(1, count(result, "pi-0001".getBytes("US-ASCII")));
+
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(result));
+            assertNotNull(image);
+            assertEquals(64, image.getWidth());
+        }
+    }
+
+    @Test
+    public void testPassThroughNotJpeg() throws Exception {
+        byte[] data = {1, 2, 3, 4, 5};
+        ExifPictureCaptureHandler<byte[]> handler = new ExifPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), null, null);
+        handler.begin();
+        handler.pictureData(data);
+        handler.end();
+        assertArrayEquals(data, handler.result());
+    }
+
+    @Test
+    public void testInsertAfterJfif() throws Exception {
+        byte[] plain = jpeg();
+        assertEquals(0xe0, plain[3] & 0xff);
+        int app0End = 4 + ((plain[4] & 0xff) << 8 | plain[5] & 0xff);
+        // Without any EXIF segment, and with an old EXIF segment after the APP0 segment as other writers produce
+        for (byte[] jpeg : new byte[][] {plain, insert(plain, app0End, OLD_EXIF)}) {
+            for (int chunkSize : new int[] {1, 5, jpeg.length}) {
+                ExifPictureCaptureHandler<byte[]> handler = new ExifPictureCaptureHandler<>(new ByteArrayPictureCaptureHandler(), null, "pi-0002");
+                handler.begin();
+                for (int i = 0; i < jpeg.length; i += chunkSize) {
+                    byte[] chunk = Arrays.copyOfRange(jpeg, i, Math.min(jpeg.length, i + chunkSize));
+                    assertEquals(chunk.length, handler.pictureData(chunk));
+                }
+                handler.end();
+                byte[] result = handler.result();
+
+                // The JFIF APP0 segment is kept first, the EXIF segment follows it
+                assertArrayEquals(Arrays.copyOfRange(plain, 0, app0End), Arrays.copyOfRange(result, 0, app0End));
+                assertEquals(0xff, result[app0End] & 0xff);
+                assertEquals(ExifSegment.APP1, result[app0End + 1] & 0xff);
+                assertArrayEquals("Exif\0\0".getBytes("US-ASCII"), Arrays.copyOfRange(result, app0End + 4, app0End + 10));
+                assertEquals(1, count(result, "Exif\0\0".getBytes("US-ASCII")));
+                assertEquals(0, count(result, "OLD-EXIF".getBytes("US-ASCII")));
+
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(result));
+                assertNotNull(image);
+                assertEquals(64, image.getWidth());
+            }
+        }
+    }
+
+    private static byte[] jpegWithExif() throws Exception {
+        // Before the JFIF APP0 segment
+        return insert(jpeg(), 2, OLD_EXIF);
+    }
+
+    private static byte[] jpeg() throws Exception {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | 128);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] insert(byte[] jpeg, int position, byte[] segment) {
+        byte[] result = new byte[jpeg.length + segment.length];
+        System.arraycopy(jpeg, 0, result, 0, position);
+        System.arraycopy(segment, 0, result, position, segment.length);
+        System.arraycopy(jpeg, position, result, position + segment.length, jpeg.length - position);
+        return result;
+    }
+
+    private static int count(byte[] data, byte[] pattern) {
+        int count = 0;
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
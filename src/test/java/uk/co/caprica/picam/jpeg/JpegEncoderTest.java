@@ -0,0 +1,109 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.jpeg.JpegEncoder.jpegEncoder;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class JpegEncoderTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> {
+        int r = x * 255 / 203;
+        int g = y * 255 / 149;
+        int b = (x / 16 + y / 16) % 2 == 0 ? 40 : 200;
+        return r << 16 | g << 8 | b;
+    };
+
+    @Test
+    public void testRgb() throws Exception {
+        check(rawFrameLayout(Encoding.RGB24, 203, 149), 6);
+    }
+
+    @Test
+    public void testBgr() throws Exception {
+        check(rawFrameLayout(Encoding.BGR24, 203, 149), 6);
+    }
+
+    @Test
+    public void testI420() throws Exception {
+        // The test frame chroma is subsampled by point sampling, so allow a little more error on the sharp edges
+        check(rawFrameLayout(Encoding.I420, 203, 149), 10);
+    }
+
+    @Test
+    public void testTargetSize() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 203, 149);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        int full = encode(jpegEncoder().quality(95), frame, layout).length;
+        JpegEncoder encoder = jpegEncoder().quality(95).targetSize(full / 2, 5);
+        byte[] jpeg = encode(encoder, frame, layout);
+        assertTrue(jpeg.length <= full / 2);
+        assertTrue(encoder.usedQuality() < 95);
+        assertEquals(203, decode(jpeg).getWidth());
+    }
+
+    private static void check(RawFrameLayout layout, double maximumError) throws Exception {
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        // Several threads and a one-thread pool give different restart intervals, both must decode the same
+        for (ForkJoinPool pool : new ForkJoinPool[] {new ForkJoinPool(1), new ForkJoinPool(4)}) {
+            BufferedImage image = decode(encode(jpegEncoder().quality(90).pool(pool), frame, layout));
+            assertEquals(layout.width(), image.getWidth());
+            assertEquals(layout.height(), image.getHeight());
+            assertTrue(meanError(image, layout) < maximumError);
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] encode(JpegEncoder encoder, byte[] frame, RawFrameLayout layout) throws Exception {
+        return encoder.encode(frame, layout, new ByteArrayPictureCaptureHandler());
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    private static double meanError(BufferedImage image, RawFrameLayout layout) {
+        long error = 0;
+        for (int y = 0; y < layout.height(); y++) {
+            for (int x = 0; x < layout.width(); x++) {
+                int expected = PIXEL.rgb(x, y);
+                int actual = image.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    error += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                }
+            }
+        }
+        return (double) error / (layout.width() * layout.height() * 3);
+    }
+
+}
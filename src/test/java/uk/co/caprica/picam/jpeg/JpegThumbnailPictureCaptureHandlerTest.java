@@ -0,0 +1,208 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.jpeg;
+
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegThumbnailPictureCaptureHandlerTest {
+
+    @Test
+    public void testColourThumbnail() throws Exception {
+        BufferedImage source = testImage(203, 149, BufferedImage.TYPE_INT_RGB);
+        byte[] jpeg = jpeg(source);
+        for (int scale : new int[] {8, 4}) {
+            BufferedImage thumbnail = thumbnail(jpeg, scale, 5000);
+            assertNotNull(thumbnail);
+            assertEquals((203 + scale - 1) / scale, thumbnail.getWidth());
+            assertEquals((149 + scale - 1) / scale, thumbnail.getHeight());
+            assertTrue(meanError(source, thumbnail, scale) < 8);
+        }
+    }
+
+    @Test
+    public void testGreyThumbnail() throws Exception {
+        BufferedImage source = testImage(64, 40, BufferedImage.TYPE_BYTE_GRAY);
+        BufferedImage thumbnail = thumbnail(jpeg(source), 8, 7);
+        assertNotNull(thumbnail);
+        assertEquals(8, thumbnail.getWidth());
+        assertEquals(5, thumbnail.getHeight());
+        assertTrue(meanError(source, thumbnail, 8) < 8);
+    }
+
+    @Test
+    public void testMultipleChunks() throws Exception {
+        // Much larger than the decoding margin, so decoding has to stop and resume at chunk boundaries
+        BufferedImage source = testImage(1280, 960, BufferedImage.TYPE_INT_RGB);
+        byte[] jpeg = jpeg(source);
+        assertTrue(jpeg.length > 3 * 8192);
+        BufferedImage whole = thumbnail(jpeg, 8, jpeg.length);
+        assertTrue(meanError(source, whole, 8) < 8);
+        for (int chunkSize : new int[] {1000, 8191, 8192, 8193, 20000}) {
+            assertSameImage(whole, thumbnail(jpeg, 8, chunkSize));
+        }
+    }
+
+    @Test
+    public void testRestartInterval() throws Exception {
+        BufferedImage source = testImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        for (int interval : new int[] {1, 7, 25}) {
+            byte[] jpeg = jpeg(source, interval);
+            assertTrue(jpeg.length > 8192);
+            assertTrue(containsMarker(jpeg, 0xdd));
+            assertTrue(containsMarker(jpeg, 0xd0));
+            for (int scale : new int[] {8, 4}) {
+                BufferedImage whole = thumbnail(jpeg, scale, jpeg.length);
+                assertNotNull(whole);
+                assertTrue(meanError(source, whole, scale) < 8);
+                assertSameImage(whole, thumbnail(jpeg, scale, 3000));
+            }
+        }
+    }
+
+    @Test
+    public void testNotJpeg() throws Exception {
+        byte[] data = new byte[100];
+        assertNull(thumbnail(data, 8, 10));
+    }
+
+    private static BufferedImage thumbnail(byte[] jpeg, int scale, int chunkSize) throws Exception {
+        JpegThumbnailPictureCaptureHandler handler = new JpegThumbnailPictureCaptureHandler(scale);
+        handler.begin();
+        for (int i = 0; i < jpeg.length; i += chunkSize) {
+            handler.pictureData(Arrays.copyOfRange(jpeg, i, Math.min(jpeg.length, i + chunkSize)));
+        }
+        handler.end();
+        return handler.result();
+    }
+
+    private static BufferedImage testImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = (x / 16 + y / 16) % 2 == 0 ? 40 : 200;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode an image with a DRI restart interval, which the default writer never uses.
+     */
+    private static byte[] jpeg(BufferedImage image, int restartInterval) throws Exception {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            IIOMetadataNode markerSequence = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+            markerSequence.insertBefore(dri, markerSequence.getElementsByTagName("sof").item(0));
+            metadata.setFromTree(format, root);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+                writer.setOutput(stream);
+                writer.write(new IIOImage(image, null, metadata));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    private static boolean containsMarker(byte[] jpeg, int marker) {
+        for (int i = 0; i < jpeg.length - 1; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == marker) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    private static double meanError(BufferedImage source, BufferedImage thumbnail, int scale) {
+        long error = 0;
+        int count = 0;
+        for (int ty = 0; ty < source.getHeight() / scale; ty++) {
+            for (int tx = 0; tx < source.getWidth() / scale; tx++) {
+                int[] sum = new int[3];
+                for (int y = 0; y < scale; y++) {
+                    for (int x = 0; x < scale; x++) {
+                        int rgb = rgb(source, tx * scale + x, ty * scale + y);
+                        sum[0] += (rgb >> 16) & 0xff;
+                        sum[1] += (rgb >> 8) & 0xff;
+                        sum[2] += rgb & 0xff;
+                    }
+                }
+                int rgb = thumbnail.getRGB(tx, ty);
+                error += Math.abs(sum[0] / (scale * scale) - ((rgb >> 16) & 0xff));
+                error += Math.abs(sum[1] / (scale * scale) - ((rgb >> 8) & 0xff));
+                error += Math.abs(sum[2] / (scale * scale) - (rgb & 0xff));
+                count += 3;
+            }
+        }
+        return (double) error / count;
+    }
+
+    private static int rgb(BufferedImage image, int x, int y) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            // Avoid the colour space conversion done by getRGB
+            int l = image.getRaster().getSample(x, y, 0);
+            return l << 16 | l << 8 | l;
+        }
+        return image.getRGB(x, y);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.motion;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class MotionDetectionPictureCaptureHandlerTest {
+
+    @Test
+    public void testMovingSquare() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 330, 250);
+        MotionDetectionPictureCaptureHandler handler = new MotionDetectionPictureCaptureHandler(layout,
+            MotionDetector.motionDetector(330, 250).cellSize(8).tileSize(4).learningRate(0.5)
+        );
+
+        Motion first = TestFrames.capture(handler, square(layout, 40, 40), 10000);
+        assertFalse(first.motion());
+
+        Motion still = TestFrames.capture(handler, square(layout, 40, 40), 10000);
+        assertFalse(still.motion());
+        assertEquals(0, still.boundingBoxes().size());
+
+        Motion moved = TestFrames.capture(handler, square(layout, 200, 150), 7777);
+        assertTrue(moved.motion());
+        assertEquals(2, moved.boundingBoxes().size());
+        Rectangle target = new Rectangle(200, 150, 48, 48);
+        boolean found = false;
+        for (Rectangle box : moved.boundingBoxes()) {
+            found |= box.contains(target);
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testAbortedFrame() {
+        MotionDetector detector = MotionDetector.motionDetector(320, 240).cellSize(8).tileSize(2).learningRate(0.5);
+        byte[] luma = new byte[320 * 240];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (i % 320 + i / 320);
+        }
+        detector.detect(luma, 0, 320);
+        for (int i = 0; i < 20; i++) {
+            // Half a frame, its tile tasks must finish before the next frame resets the grid
+            detector.beginFrame();
+            for (int y = 0; y < 120; y++) {
+                detector.row(luma, y * 320, y);
+            }
+            Motion motion = detector.detect(luma, 0, 320);
+            assertEquals(0, motion.score(), 0);
+        }
+    }
+
+    @Test
+    public void testLargeCells() {
+        MotionDetector detector = MotionDetector.motionDetector(512, 512).cellSize(256).tileSize(1).learningRate(1);
+        byte[] background = new byte[512 * 512];
+        byte[] lighter = new byte[512 * 512];
+        Arrays.fill(background, (byte) 124);
+        Arrays.fill(lighter, (byte) 132);
+        detector.detect(background, 0, 512);
+        // Within the threshold, even though the fixed-point sums of the lighter cells do not fit in an int
+        assertEquals(0, detector.detect(lighter, 0, 512).score(), 0);
+        try {
+            MotionDetector.motionDetector(512, 512).cellSize(4096);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // The sum of a cell would not fit in an int
+        }
+    }
+
+    private static byte[] square(RawFrameLayout layout, int left, int top) {
+        return TestFrames.frame(layout, (x, y) -> x >= left && x < left + 48 && y >= top && y < top + 48 ? 0xf0f0f0 : 0x202020);
+    }
+}
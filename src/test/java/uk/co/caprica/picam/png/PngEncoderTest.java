@@ -0,0 +1,130 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.png;
+
+import org.junit.Test;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.png.PngEncoder.pngEncoder;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class PngEncoderTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> (x * 7 & 0xff) << 16 | (y * 13 & 0xff) << 8 | ((x * y) & 0xff);
+
+    @Test
+    public void testEncode() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.RGB24, Encoding.BGR24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 45, 31);
+            byte[] frame = TestFrames.frame(layout, PIXEL);
+            for (PngFilter filter : PngFilter.values()) {
+                // A tiny block size so that the image is split into many blocks
+                PngEncoder encoder = pngEncoder().filter(filter).blockSize(400);
+                check(encoder.encode(frame, layout, new ByteArrayPictureCaptureHandler()));
+                check(TestFrames.capture(new PngEncodingPictureCaptureHandler<>(layout, encoder, new ByteArrayPictureCaptureHandler()), frame, 333));
+            }
+        }
+    }
+
+    @Test
+    public void testIncompleteFrame() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 45, 31);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        PngEncodingPictureCaptureHandler<byte[]> handler = new PngEncodingPictureCaptureHandler<>(layout, pngEncoder().blockSize(400), new ByteArrayPictureCaptureHandler());
+        handler.begin();
+        handler.pictureData(Arrays.copyOf(frame, frame.length / 2));
+        try {
+            handler.end();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Incomplete frame", e.getMessage());
+        }
+        // The next capture reuses the buffers and is not affected
+        check(TestFrames.capture(handler, frame, 333));
+    }
+
+    @Test
+    public void testInterruptedWhileWaitingForAbandonedCapture() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 45, 31);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Keep the only pool thread busy so that the blocks of the abandoned capture can not complete
+            pool.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            PngEncodingPictureCaptureHandler<byte[]> handler = new PngEncodingPictureCaptureHandler<>(layout, pngEncoder().blockSize(400).pool(pool), new ByteArrayPictureCaptureHandler());
+            handler.begin();
+            handler.pictureData(Arrays.copyOf(frame, frame.length / 2));
+            Thread.currentThread().interrupt();
+            handler.begin();
+            assertTrue(Thread.interrupted());
+            release.countDown();
+            check(TestFrames.capture(handler, frame, 333));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] a = "The quick brown fox ".getBytes();
+        byte[] b = "jumps over the lazy dog".getBytes();
+        Adler32 whole = new Adler32();
+        whole.update(a);
+        whole.update(b);
+        Adler32 first = new Adler32();
+        first.update(a);
+        Adler32 second = new Adler32();
+        second.update(b);
+        assertEquals((int) whole.getValue(), PngEncoder.combineAdler32((int) first.getValue(), (int) second.getValue(), b.length));
+    }
+
+    private static void check(byte[] png) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(45, image.getWidth());
+        assertEquals(31, image.getHeight());
+        for (int y = 0; y < 31; y++) {
+            for (int x = 0; x < 45; x++) {
+                assertEquals(PIXEL.rgb(x, y), image.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+}
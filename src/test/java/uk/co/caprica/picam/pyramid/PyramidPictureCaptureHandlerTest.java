@@ -0,0 +1,145 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.pyramid;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class PyramidPictureCaptureHandlerTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> (x & 0xff) << 16 | (y & 0xff) << 8 | ((x * 7 + y * 3) & 0xff);
+
+    @Test
+    public void testPacked() throws Exception {
+        check(rawFrameLayout(Encoding.RGB24, 203, 149), PyramidPictureCaptureHandler.DEFAULT_BAND_ROWS, null);
+    }
+
+    @Test
+    public void testPlanar() throws Exception {
+        check(rawFrameLayout(Encoding.I420, 206, 150), 5, null);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            check(rawFrameLayout(Encoding.I420, 320, 240), 3, executor);
+            check(rawFrameLayout(Encoding.BGR24, 99, 77), 4, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSinkFailure() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 64, 64);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PyramidSink failing = new FramePyramidSink() {
+                @Override
+                public void band(PyramidBand band) {
+                    throw new IllegalStateException();
+                }
+            };
+            TestFrames.capture(new PyramidPictureCaptureHandler(layout, 8, executor, null, failing), TestFrames.frame(layout, PIXEL), 1000);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void check(RawFrameLayout layout, int bandRows, ExecutorService executor) throws Exception {
+        FramePyramidSink[] sinks = {new FramePyramidSink(), null, new FramePyramidSink(), new FramePyramidSink()};
+        PyramidPictureCaptureHandler handler = new PyramidPictureCaptureHandler(layout, bandRows, executor, sinks);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        // Twice, so the buffers are reused
+        for (int i = 0; i < 2; i++) {
+            assertNull(TestFrames.capture(handler, frame, 3001));
+            byte[] expected = unpad(frame, layout);
+            RawFrameLayout expectedLayout = rawFrameLayout(layout.encoding(), layout.width(), layout.height(), 1, 1);
+            for (int level = 0; level < sinks.length; level++) {
+                if (sinks[level] != null) {
+                    assertEquals(expectedLayout, sinks[level].layout());
+                    assertArrayEquals(expected, sinks[level].frame());
+                }
+                RawFrameLayout next = rawFrameLayout(layout.encoding(), (expectedLayout.width() + 1) / 2, (expectedLayout.height() + 1) / 2, 1, 1);
+                expected = reduce(expected, expectedLayout, next);
+                expectedLayout = next;
+            }
+        }
+    }
+
+    private static byte[] unpad(byte[] frame, RawFrameLayout layout) {
+        RawFrameLayout unpadded = rawFrameLayout(layout.encoding(), layout.width(), layout.height(), 1, 1);
+        byte[] result = new byte[unpadded.frameSize()];
+        for (int y = 0; y < layout.height(); y++) {
+            System.arraycopy(frame, y * layout.stride(), result, y * unpadded.stride(), unpadded.stride());
+        }
+        if (layout.isPlanar()) {
+            for (int y = 0; y < layout.chromaHeight(); y++) {
+                System.arraycopy(frame, layout.uOffset() + y * layout.chromaStride(), result, unpadded.uOffset() + y * unpadded.chromaStride(), layout.chromaWidth());
+                System.arraycopy(frame, layout.vOffset() + y * layout.chromaStride(), result, unpadded.vOffset() + y * unpadded.chromaStride(), layout.chromaWidth());
+            }
+        }
+        return result;
+    }
+
+    private static byte[] reduce(byte[] frame, RawFrameLayout from, RawFrameLayout to) {
+        byte[] result = new byte[to.frameSize()];
+        reducePlane(frame, 0, from.width(), from.height(), from.bytesPerPixel(), result, 0, to.width(), to.height());
+        if (from.isPlanar()) {
+            reducePlane(frame, from.uOffset(), from.chromaWidth(), from.chromaHeight(), 1, result, to.uOffset(), to.chromaWidth(), to.chromaHeight());
+            reducePlane(frame, from.vOffset(), from.chromaWidth(), from.chromaHeight(), 1, result, to.vOffset(), to.chromaWidth(), to.chromaHeight());
+        }
+        return result;
+    }
+
+    private static void reducePlane(byte[] in, int inOffset, int inWidth, int inHeight, int channels, byte[] out, int outOffset, int outWidth, int outHeight) {
+        for (int y = 0; y < outHeight; y++) {
+            int y0 = y * 2;
+            int y1 = Math.min(y0 + 1, inHeight - 1);
+            for (int x = 0; x < outWidth; x++) {
+                int x0 = x * 2;
+                int x1 = Math.min(x0 + 1, inWidth - 1);
+                for (int c = 0; c < channels; c++) {
+                    int sum = sample(in, inOffset, inWidth, channels, x0, y0, c) + sample(in, inOffset, inWidth, channels, x1, y0, c)
+                        + sample(in, inOffset, inWidth, channels, x0, y1, c) + sample(in, inOffset, inWidth, channels, x1, y1, c);
+                    out[outOffset + (y * outWidth + x) * channels + c] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+    }
+
+    private static int sample(byte[] data, int offset, int width, int channels, int x, int y, int c) {
+        return data[offset + (y * width + x) * channels + c] & 0xff;
+    }
+
+}
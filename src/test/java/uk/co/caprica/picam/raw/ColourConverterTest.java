@@ -0,0 +1,73 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class ColourConverterTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> (x / 2 * 37 & 0xff) << 16 | (y / 2 * 53 & 0xff) << 8 | ((x / 2 + y / 2) * 11 & 0xff);
+
+    @Test
+    public void testPacked() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.RGB24, Encoding.BGR24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 33, 17);
+            byte[] frame = TestFrames.frame(layout, PIXEL);
+            ColourConverter converter = new ColourConverter();
+            int[] pixels = ColourConverter.pixels(converter.toImage(frame, layout)).clone();
+            for (int y = 0; y < 17; y++) {
+                for (int x = 0; x < 33; x++) {
+                    assertEquals(PIXEL.rgb(x, y), pixels[y * 33 + x]);
+                }
+            }
+            BufferedImage streamed = TestFrames.capture(new ColourConversionPictureCaptureHandler(layout, new ColourConverter()), frame, 100);
+            assertArrayEquals(pixels, ColourConverter.pixels(streamed));
+        }
+    }
+
+    @Test
+    public void testI420() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 33, 17);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        ColourConverter converter = new ColourConverter();
+        int[] pixels = ColourConverter.pixels(converter.toImage(frame, layout)).clone();
+        for (int y = 0; y < 17; y++) {
+            for (int x = 0; x < 33; x++) {
+                int expected = PIXEL.rgb(x, y);
+                int actual = pixels[y * 33 + x];
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    assertTrue(Math.abs((expected >> shift & 0xff) - (actual >> shift & 0xff)) <= 3);
+                }
+            }
+        }
+        for (int chunkSize : new int[] {1, 50, 1000}) {
+            BufferedImage streamed = TestFrames.capture(new ColourConversionPictureCaptureHandler(layout, new ColourConverter()), frame, chunkSize);
+            assertArrayEquals(pixels, ColourConverter.pixels(streamed));
+        }
+    }
+}
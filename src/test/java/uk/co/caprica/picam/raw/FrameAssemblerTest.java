@@ -0,0 +1,73 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class FrameAssemblerTest {
+
+    private static final RawFrameLayout LAYOUT = rawFrameLayout(Encoding.RGB24, 50, 20);
+
+    @Test
+    public void testChunksAreCopied() {
+        byte[] frame = TestFrames.frame(LAYOUT, (x, y) -> x << 16 | y);
+        FrameAssembler assembler = new FrameAssembler(LAYOUT);
+        for (int chunkSize : new int[] {frame.length, 1000, frame.length + 100}) {
+            byte[] expected = frame.clone();
+            assembler.begin();
+            // The same array is reused for every chunk, as the camera may do
+            byte[] chunk = new byte[chunkSize];
+            for (int i = 0; i < frame.length; i += chunkSize) {
+                int n = Math.min(chunkSize, frame.length - i);
+                Arrays.fill(chunk, (byte) 0);
+                System.arraycopy(frame, i, chunk, 0, n);
+                assembler.add(n == chunkSize ? chunk : Arrays.copyOf(chunk, n));
+            }
+            Arrays.fill(chunk, (byte) 0);
+            assertTrue(assembler.isComplete());
+            assertNotSame(chunk, assembler.frame());
+            assertArrayEquals(expected, assembler.frame());
+        }
+    }
+
+    @Test
+    public void testIncompleteFrame() {
+        FrameAssembler assembler = new FrameAssembler(LAYOUT);
+        assembler.begin();
+        assembler.add(new byte[LAYOUT.frameSize() - 1]);
+        assertFalse(assembler.isComplete());
+        byte[] buffer = assembler.frame();
+        assembler.begin();
+        assembler.add(new byte[LAYOUT.frameSize()]);
+        assertTrue(assembler.isComplete());
+        assertSame(buffer, assembler.frame());
+    }
+
+}
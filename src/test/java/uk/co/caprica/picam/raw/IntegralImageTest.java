@@ -0,0 +1,96 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class IntegralImageTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> {
+        int l = (x * 31 + y * 17 + x * y) & 0xff;
+        return l << 16 | (255 - l) << 8 | (x ^ y) & 0xff;
+    };
+
+    @Test
+    public void testSequential() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24}) {
+            check(rawFrameLayout(encoding, 203, 149), ForkJoinPool.commonPool());
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            check(rawFrameLayout(Encoding.I420, 1296, 972), pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void check(RawFrameLayout layout, ForkJoinPool pool) throws Exception {
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        int width = layout.width();
+        int height = layout.height();
+        long[][] expected = new long[height + 1][width + 1];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                expected[y + 1][x + 1] = TestFrames.luma(PIXEL.rgb(x, y)) + expected[y][x + 1] + expected[y + 1][x] - expected[y][x];
+            }
+        }
+        IntegralImagePictureCaptureHandler handler = new IntegralImagePictureCaptureHandler(layout, new IntegralImage(width, height, pool));
+        IntegralImage first = null;
+        // Twice, to check the table is rebuilt correctly
+        for (int i = 0; i < 2; i++) {
+            IntegralImage integralImage = TestFrames.capture(handler, frame, 65536);
+            assertNotNull(integralImage);
+            if (first != null) {
+                assertSame(first, integralImage);
+            }
+            first = integralImage;
+            for (int y = 0; y <= height; y += 7) {
+                for (int x = 0; x <= width; x += 5) {
+                    assertEquals(expected[y][x], integralImage.entry(x, y));
+                }
+            }
+            assertEquals(expected[height][width], integralImage.entry(width, height));
+            Random random = new Random(i);
+            for (int n = 0; n < 1000; n++) {
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                int w = 1 + random.nextInt(width - x);
+                int h = 1 + random.nextInt(height - y);
+                long sum = expected[y + h][x + w] - expected[y + h][x] - expected[y][x + w] + expected[y][x];
+                assertEquals(sum, integralImage.sum(x, y, w, h));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class LumaFramePictureCaptureHandlerTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> (x * 5 & 0xff) << 16 | (y * 3 & 0xff) << 8 | (x + y & 0xff);
+
+    @Test
+    public void testLuma() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24, Encoding.BGR24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 203, 149);
+            LumaFrame frame = TestFrames.capture(new LumaFramePictureCaptureHandler(layout), TestFrames.frame(layout, PIXEL), 1001);
+            assertEquals(203 * 149, frame.data().length);
+            for (int y = 0; y < 149; y++) {
+                for (int x = 0; x < 203; x++) {
+                    assertEquals(TestFrames.luma(PIXEL.rgb(x, y)), frame.data()[y * 203 + x] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testViewsShareData() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 64, 48);
+        LumaFrame frame = TestFrames.capture(new LumaFramePictureCaptureHandler(layout), TestFrames.frame(layout, PIXEL), 500);
+        BufferedImage image = frame.image();
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        assertSame(image, frame.image());
+        frame.data()[64 * 10 + 7] = 99;
+        assertEquals(99, image.getRaster().getSample(7, 10, 0));
+        assertEquals(99, frame.buffer().get(64 * 10 + 7));
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 64, 48);
+        LumaFramePictureCaptureHandler handler = new LumaFramePictureCaptureHandler(layout);
+        byte[] data = TestFrames.frame(layout, PIXEL);
+        LumaFrame first = TestFrames.capture(handler, data, 500);
+        LumaFrame second = TestFrames.capture(handler, data, 500);
+        assertNotSame(first, second);
+        first.release();
+        first.release();
+        assertSame(first, TestFrames.capture(handler, data, 500));
+        assertNotSame(first, TestFrames.capture(handler, data, 500));
+    }
+
+}
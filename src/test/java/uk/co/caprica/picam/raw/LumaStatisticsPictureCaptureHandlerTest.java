@@ -0,0 +1,62 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+
+import static org.junit.Assert.assertEquals;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+
+public class LumaStatisticsPictureCaptureHandlerTest {
+
+    @Test
+    public void testLayout() {
+        RawFrameLayout i420 = rawFrameLayout(Encoding.I420, 1920, 1080);
+        assertEquals(1920, i420.stride());
+        assertEquals(1088, i420.rows());
+        assertEquals(1920 * 1088 * 3 / 2, i420.frameSize());
+
+        RawFrameLayout rgb = rawFrameLayout(Encoding.RGB24, 100, 75);
+        assertEquals(128 * 3, rgb.stride());
+        assertEquals(80, rgb.rows());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        for (Encoding encoding : new Encoding[] {Encoding.I420, Encoding.RGB24, Encoding.BGR24}) {
+            RawFrameLayout layout = rawFrameLayout(encoding, 101, 37);
+            // Left half black, right half white, so that half of the pixels are clipped each way
+            byte[] frame = TestFrames.frame(layout, (x, y) -> x < 50 ? 0x000000 : x == 50 ? 0x808080 : 0xffffff);
+            LumaStatisticsPictureCaptureHandler handler = new LumaStatisticsPictureCaptureHandler(layout);
+            for (int chunkSize : new int[] {1, 77, 4096, frame.length}) {
+                LumaStatistics statistics = TestFrames.capture(handler, frame, chunkSize);
+                assertEquals(101 * 37, statistics.count());
+                assertEquals(50 * 37, statistics.histogram(0));
+                assertEquals(50 * 37, statistics.histogram(255));
+                assertEquals(37, statistics.histogram(128));
+                assertEquals((50 * 255 + 128) / 101.0, statistics.mean(), 0.001);
+                assertEquals(50 / 101.0, statistics.darkClipped(), 0.001);
+                assertEquals(50 / 101.0, statistics.brightClipped(), 0.001);
+                assertEquals(128, statistics.percentile(0.5));
+            }
+        }
+    }
+}
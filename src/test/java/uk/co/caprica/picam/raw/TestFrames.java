@@ -0,0 +1,135 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.raw;
+
+import uk.co.caprica.picam.PictureCaptureHandler;
+
+import java.util.Arrays;
+
+/**
+ * Helpers to create synthetic raw frames, with padding, and to feed them to picture capture handlers.
+ */
+public final class TestFrames {
+
+    /**
+     * Value used for all padding bytes, so that tests will notice if padding is not skipped.
+     */
+    public static final byte PADDING = (byte) 0xee;
+
+    public interface Pixel {
+        int rgb(int x, int y);
+    }
+
+    private TestFrames() {
+    }
+
+    /**
+     * Create a raw frame.
+     * <p>
+     * For I420 the luma and chroma are derived from the RGB values with the same fixed-point arithmetic as the
+     * library uses, for the packed formats the RGB values are used directly.
+     *
+     * @param layout frame layout
+     * @param pixel pixel values
+     * @return frame data
+     */
+    public static byte[] frame(RawFrameLayout layout, Pixel pixel) {
+        byte[] frame = new byte[layout.frameSize()];
+        Arrays.fill(frame, PADDING);
+        int stride = layout.stride();
+        for (int y = 0; y < layout.height(); y++) {
+            for (int x = 0; x < layout.width(); x++) {
+                int rgb = pixel.rgb(x, y);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                switch (layout.encoding()) {
+                    case I420:
+                        frame[y * stride + x] = (byte) luma(rgb);
+                        break;
+                    case RGB24:
+                        frame[y * stride + x * 3] = (byte) r;
+                        frame[y * stride + x * 3 + 1] = (byte) g;
+                        frame[y * stride + x * 3 + 2] = (byte) b;
+                        break;
+                    case BGR24:
+                        frame[y * stride + x * 3] = (byte) b;
+                        frame[y * stride + x * 3 + 1] = (byte) g;
+                        frame[y * stride + x * 3 + 2] = (byte) r;
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+            }
+        }
+        if (layout.isPlanar()) {
+            int chromaStride = layout.chromaStride();
+            for (int y = 0; y < layout.chromaHeight(); y++) {
+                for (int x = 0; x < layout.chromaWidth(); x++) {
+                    int rgb = pixel.rgb(Math.min(x * 2, layout.width() - 1), Math.min(y * 2, layout.height() - 1));
+                    int r = (rgb >> 16) & 0xff;
+                    int g = (rgb >> 8) & 0xff;
+                    int b = rgb & 0xff;
+                    int u = ((-43 * r - 85 * g + 128 * b + 128) >> 8) + 128;
+                    int v = ((128 * r - 107 * g - 21 * b + 128) >> 8) + 128;
+                    frame[layout.uOffset() + y * chromaStride + x] = (byte) u;
+                    frame[layout.vOffset() + y * chromaStride + x] = (byte) v;
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Calculate luma with the same fixed-point arithmetic as the library.
+     *
+     * @param rgb pixel value
+     * @return luma
+     */
+    public static int luma(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        return (77 * r + 150 * g + 29 * b + 128) >> 8;
+    }
+
+    /**
+     * Run a complete capture through a picture capture handler, splitting the frame into chunks.
+     *
+     * @param handler handler
+     * @param frame frame data
+     * @param chunkSize size of each chunk
+     * @param <T> type of result
+     * @return handler result
+     * @throws Exception if the handler fails
+     */
+    public static <T> T capture(PictureCaptureHandler<T> handler, byte[] frame, int chunkSize) throws Exception {
+        handler.begin();
+        for (int i = 0; i < frame.length; i += chunkSize) {
+            byte[] chunk = Arrays.copyOfRange(frame, i, Math.min(frame.length, i + chunkSize));
+            if (handler.pictureData(chunk) != chunk.length) {
+                throw new IllegalStateException("Chunk not consumed");
+            }
+        }
+        handler.end();
+        return handler.result();
+    }
+
+}
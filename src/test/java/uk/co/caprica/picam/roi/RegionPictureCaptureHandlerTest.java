@@ -0,0 +1,144 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.roi;
+
+import org.junit.Test;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.roi.Region.region;
+
+public class RegionPictureCaptureHandlerTest {
+
+    private static final TestFrames.Pixel PIXEL = (x, y) -> (x & 0xff) << 16 | (y & 0xff) << 8 | ((x * 3 + y * 5) & 0xff);
+
+    @Test
+    public void testCropAndBox() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 203, 149);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        RegionPictureCaptureHandler handler = new RegionPictureCaptureHandler(layout,
+            region("crop", 10, 20, 50, 30),
+            region("box", 40, 7, 120, 90).scale(40, 30)
+        );
+        List<RegionImage> images = TestFrames.capture(handler, frame, 1000);
+        assertEquals(2, images.size());
+
+        RegionImage crop = images.get(0);
+        assertEquals(50, crop.layout().width());
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 50; x++) {
+                assertEquals(PIXEL.rgb(10 + x, 20 + y), rgb(crop, x, y));
+            }
+        }
+
+        RegionImage box = images.get(1);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                int actual = rgb(box, x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int sum = 0;
+                    for (int dy = 0; dy < 3; dy++) {
+                        for (int dx = 0; dx < 3; dx++) {
+                            sum += (PIXEL.rgb(40 + x * 3 + dx, 7 + y * 3 + dy) >> shift) & 0xff;
+                        }
+                    }
+                    assertEquals((sum + 4) / 9, (actual >> shift) & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBilinear() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.BGR24, 100, 60);
+        // A smooth gradient, so interpolation should reproduce it closely whatever the scale
+        TestFrames.Pixel gradient = (x, y) -> (x * 2) << 16 | (y * 3) << 8 | (x + y);
+        byte[] frame = TestFrames.frame(layout, gradient);
+        RegionPictureCaptureHandler handler = new RegionPictureCaptureHandler(layout,
+            region("up", 20, 10, 40, 30).scale(100, 75).filter(ScaleFilter.BILINEAR),
+            region("down", 0, 0, 100, 60).scale(30, 20).filter(ScaleFilter.BILINEAR)
+        );
+        List<RegionImage> images = TestFrames.capture(handler, frame, 777);
+        checkGradient(images.get(0), 20, 10, 40.0 / 100, 30.0 / 75);
+        checkGradient(images.get(1), 0, 0, 100.0 / 30, 60.0 / 20);
+    }
+
+    @Test
+    public void testPlanar() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 200, 150);
+        byte[] frame = TestFrames.frame(layout, (x, y) -> x < 100 ? 0xff0000 : 0x00ff00);
+        RegionPictureCaptureHandler handler = new RegionPictureCaptureHandler(layout, region("half", 100, 50, 100, 100).scale(50, 50));
+        RegionImage image = TestFrames.capture(handler, frame, 4096).get(0);
+        RawFrameLayout output = image.layout();
+        assertEquals(50 * 50 + 2 * 25 * 25, output.frameSize());
+        int y = TestFrames.luma(0x00ff00);
+        for (int i = 0; i < 50 * 50; i++) {
+            assertEquals(y, image.data()[i] & 0xff);
+        }
+        for (int i = 0; i < 25 * 25; i++) {
+            assertEquals(frame[layout.uOffset() + 50], image.data()[output.uOffset() + i]);
+            assertEquals(frame[layout.vOffset() + 50], image.data()[output.vOffset() + i]);
+        }
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 64, 48);
+        byte[] frame = TestFrames.frame(layout, PIXEL);
+        RegionPictureCaptureHandler handler = new RegionPictureCaptureHandler(layout, region("all", 0, 0, 64, 48).scale(32, 24));
+        RegionImage first = TestFrames.capture(handler, frame, 500).get(0);
+        first.release();
+        RegionImage second = TestFrames.capture(handler, frame, 500).get(0);
+        assertSame(first.data(), second.data());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBoxCanNotEnlarge() {
+        new RegionPictureCaptureHandler(rawFrameLayout(Encoding.RGB24, 64, 48), region("up", 0, 0, 10, 10).scale(20, 20));
+    }
+
+    private static void checkGradient(RegionImage image, int left, int top, double xScale, double yScale) {
+        RawFrameLayout layout = image.layout();
+        for (int y = 0; y < layout.height(); y++) {
+            for (int x = 0; x < layout.width(); x++) {
+                double sx = Math.max(0, Math.min(left + (x + 0.5) * xScale - 0.5, 99));
+                double sy = Math.max(0, Math.min(top + (y + 0.5) * yScale - 0.5, 59));
+                int i = (y * layout.width() + x) * 3;
+                // BGR
+                assertTrue(Math.abs((image.data()[i + 2] & 0xff) - sx * 2) <= 1.5);
+                assertTrue(Math.abs((image.data()[i + 1] & 0xff) - sy * 3) <= 1.5);
+            }
+        }
+    }
+
+    private static int rgb(RegionImage image, int x, int y) {
+        int i = (y * image.layout().width() + x) * 3;
+        byte[] data = image.data();
+        return (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.sequence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.sequence.RawSequenceWriter.rawSequenceWriter;
+
+public class RawSequenceTest {
+
+    private static final RawFrameLayout LAYOUT = rawFrameLayout(Encoding.I420, 200, 150);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Test
+    public void testCodecRoundTrip() throws Exception {
+        Lz4Codec codec = new Lz4Codec();
+        Random random = new Random(1);
+        for (int size : new int[] {0, 1, 5, 12, 13, 17, 100, 4096, 100000}) {
+            byte[] noise = new byte[size];
+            random.nextBytes(noise);
+            assertRoundTrip(codec, noise);
+            assertRoundTrip(codec, new byte[size]);
+            byte[] text = new byte[size];
+            for (int i = 0; i < size; i++) {
+                text[i] = (byte) "the quick brown fox ".charAt(i % 20);
+            }
+            assertRoundTrip(codec, text);
+            byte[] mixed = new byte[size];
+            for (int i = 0; i < size; i++) {
+                mixed[i] = (i / 300) % 2 == 0 ? 0 : (byte) random.nextInt(4);
+            }
+            assertRoundTrip(codec, mixed);
+        }
+    }
+
+    @Test
+    public void testCodecCompressesRuns() {
+        Lz4Codec codec = new Lz4Codec();
+        byte[] zeros = new byte[256 * 1024];
+        byte[] compressed = new byte[codec.maxCompressedLength(zeros.length)];
+        assertTrue(codec.compress(zeros, 0, zeros.length, compressed, 0) < zeros.length / 200);
+    }
+
+    @Test
+    public void testCodecRejectsCorruptData() {
+        Lz4Codec codec = new Lz4Codec();
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 37);
+        }
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, 0, data.length, compressed, 0);
+        byte[] target = new byte[data.length];
+        try {
+            codec.decompress(compressed, 0, length - 1, target, 0, data.length);
+            fail("Expected truncated data to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            codec.decompress(compressed, 0, length, target, 0, data.length - 1);
+            fail("Expected the wrong length to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.seq");
+        byte[][] frames = frames(25);
+        try (RawSequenceWriter writer = rawSequenceWriter(file, LAYOUT).keyframeInterval(10).tileSize(4096).pool(pool).open()) {
+            for (int i = 0; i < frames.length; i++) {
+                assertEquals(i, writer.write(frames[i], 1000 + i));
+            }
+            assertTrue(writer.ratio() > 5);
+        }
+        try (RawSequenceReader reader = new RawSequenceReader(file, new Lz4Codec(), pool)) {
+            assertTrue(reader.indexed());
+            assertEquals(LAYOUT, reader.layout());
+            assertEquals(25, reader.frames());
+            assertEquals(10, reader.keyframeInterval());
+            assertTrue(reader.isKeyframe(20));
+            assertFalse(reader.isKeyframe(19));
+            assertEquals(10, reader.keyframe(19));
+            assertEquals(1017, reader.timestamp(17));
+            for (int i : new int[] {24, 3, 4, 5, 17, 0, 9, 10, 12, 11, 24}) {
+                assertArrayEquals("Frame " + i, frames[i], reader.read(i));
+            }
+            byte[] frame = new byte[LAYOUT.frameSize()];
+            for (int i = 0; i < frames.length; i++) {
+                reader.read(i, frame);
+                assertArrayEquals("Frame " + i, frames[i], frame);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleTile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.seq");
+        byte[][] frames = frames(5);
+        try (RawSequenceWriter writer = rawSequenceWriter(file, LAYOUT).tileSize(LAYOUT.frameSize()).open()) {
+            for (byte[] frame : frames) {
+                writer.write(frame);
+            }
+        }
+        try (RawSequenceReader reader = new RawSequenceReader(file)) {
+            for (int i = frames.length - 1; i >= 0; i--) {
+                assertArrayEquals(frames[i], reader.read(i));
+            }
+        }
+    }
+
+    @Test
+    public void testUnclosedSequenceIsScanned() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.seq");
+        byte[][] frames = frames(8);
+        RawSequenceWriter writer = rawSequenceWriter(file, LAYOUT).keyframeInterval(3).tileSize(4096).pool(pool).open();
+        for (byte[] frame : frames) {
+            writer.write(frame, 0);
+        }
+        writer.flush();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // Cut the last record short, as if the writer had crashed part way through it
+            channel.truncate(channel.size() - 10);
+        }
+        try (RawSequenceReader reader = new RawSequenceReader(file, new Lz4Codec(), pool)) {
+            assertFalse(reader.indexed());
+            assertEquals(7, reader.frames());
+            assertTrue(reader.isKeyframe(6));
+            for (int i = 0; i < 7; i++) {
+                assertArrayEquals(frames[i], reader.read(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPictureCaptureHandler() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.seq");
+        byte[][] frames = frames(4);
+        try (RawSequenceWriter writer = rawSequenceWriter(file, LAYOUT).open()) {
+            RawSequencePictureCaptureHandler handler = new RawSequencePictureCaptureHandler(writer);
+            assertEquals(Integer.valueOf(0), TestFrames.capture(handler, frames[0], LAYOUT.frameSize()));
+            assertEquals(Integer.valueOf(1), TestFrames.capture(handler, frames[1], 1000));
+            assertEquals(null, TestFrames.capture(handler, Arrays.copyOf(frames[2], 100), 1000));
+            assertEquals(Integer.valueOf(2), TestFrames.capture(handler, frames[3], 7777));
+        }
+        try (RawSequenceReader reader = new RawSequenceReader(file)) {
+            assertEquals(3, reader.frames());
+            assertArrayEquals(frames[0], reader.read(0));
+            assertArrayEquals(frames[1], reader.read(1));
+            assertArrayEquals(frames[3], reader.read(2));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongCodec() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("test.seq");
+        rawSequenceWriter(file, LAYOUT).open().close();
+        Lz4Codec lz4 = new Lz4Codec();
+        new RawSequenceReader(file, new FrameCodec() {
+            @Override
+            public int id() {
+                return 99;
+            }
+
+            @Override
+            public int maxCompressedLength(int length) {
+                return lz4.maxCompressedLength(length);
+            }
+
+            @Override
+            public int compress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset) {
+                return lz4.compress(source, sourceOffset, length, target, targetOffset);
+            }
+
+            @Override
+            public void decompress(byte[] source, int sourceOffset, int length, byte[] target, int targetOffset, int targetLength) throws IOException {
+                lz4.decompress(source, sourceOffset, length, target, targetOffset, targetLength);
+            }
+        }, pool);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigurationAfterOpen() throws Exception {
+        try (RawSequenceWriter writer = rawSequenceWriter(folder.getRoot().toPath().resolve("test.seq"), LAYOUT).open()) {
+            writer.keyframeInterval(5);
+        }
+    }
+
+    /**
+     * A square moving over a gradient, with a little noise in one corner.
+     */
+    private static byte[][] frames(int count) {
+        Random random = new Random(2);
+        byte[][] frames = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int left = 10 + i * 5;
+            frames[i] = TestFrames.frame(LAYOUT, (x, y) -> {
+                if (x >= left && x < left + 30 && y >= 40 && y < 70) {
+                    return 0xff2010;
+                }
+                if (x < 8 && y < 8) {
+                    return random.nextInt(0x1000000);
+                }
+                return (x + y) << 8;
+            });
+        }
+        return frames;
+    }
+
+    private static void assertRoundTrip(FrameCodec codec, byte[] data) throws IOException {
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length) + 3];
+        int length = codec.compress(data, 0, data.length, compressed, 3);
+        byte[] target = new byte[data.length + 2];
+        codec.decompress(compressed, 3, length, target, 2, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(target, 2, target.length));
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.stereo;
+
+import org.junit.Test;
+import uk.co.caprica.picam.CameraConfiguration;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.enums.StereoscopicMode;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static uk.co.caprica.picam.CameraConfiguration.cameraConfiguration;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_U;
+import static uk.co.caprica.picam.raw.RawRowPictureCaptureHandler.PLANE_Y;
+import static uk.co.caprica.picam.stereo.StereoscopicSplitter.stereoscopicSplitter;
+
+public class StereoscopicSplitterTest {
+
+    @Test
+    public void testSideBySide() {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 200, 90);
+        // Red is the eye (1 left, 2 right), green and blue are the position within the eye
+        byte[] frame = TestFrames.frame(layout, (x, y) -> (x < 100 ? 1 : 2) << 16 | (x % 100) << 8 | y);
+        for (boolean swap : new boolean[] {false, true}) {
+            StereoscopicSplitter splitter = stereoscopicSplitter(layout, StereoscopicMode.SIDE_BY_SIDE, false, swap);
+            checkPacked(splitter.view(frame, Eye.LEFT), swap ? 2 : 1, 100, 90);
+            checkPacked(splitter.view(frame, Eye.RIGHT), swap ? 1 : 2, 100, 90);
+        }
+    }
+
+    @Test
+    public void testTopBottom() {
+        RawFrameLayout layout = rawFrameLayout(Encoding.BGR24, 100, 180);
+        byte[] frame = TestFrames.frame(layout, (x, y) -> (y < 90 ? 1 : 2) << 16 | x << 8 | (y % 90));
+        StereoscopicSplitter splitter = stereoscopicSplitter(layout, StereoscopicMode.TOP_BOTTOM, true, false);
+        EyeView left = splitter.view(frame, Eye.LEFT);
+        EyeView right = splitter.view(frame, Eye.RIGHT);
+        assertEquals(2, left.verticalScale());
+        assertEquals(1, left.horizontalScale());
+        // BGR, so the eye is in the last byte of each pixel
+        for (int y = 0; y < 90; y++) {
+            for (int x = 0; x < 100; x++) {
+                int i = left.offset(PLANE_Y) + y * left.stride(PLANE_Y) + x * 3;
+                assertEquals(1, frame[i + 2]);
+                assertEquals(2, frame[right.offset(PLANE_Y) - left.offset(PLANE_Y) + i + 2]);
+                assertEquals(y, right.sample(PLANE_Y, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testPlanar() {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 200, 90);
+        byte[] frame = TestFrames.frame(layout, (x, y) -> x < 100 ? 0xff0000 : 0x0000ff);
+        StereoscopicSplitter splitter = stereoscopicSplitter(layout, StereoscopicMode.SIDE_BY_SIDE, false, false);
+        EyeView left = splitter.view(frame, Eye.LEFT);
+        EyeView right = splitter.view(frame, Eye.RIGHT);
+        assertEquals(50, left.chromaWidth());
+        assertEquals(45, left.chromaHeight());
+        int red = TestFrames.luma(0xff0000);
+        int blue = TestFrames.luma(0x0000ff);
+        for (int y = 0; y < 90; y++) {
+            for (int x = 0; x < 100; x++) {
+                assertEquals(red, left.sample(PLANE_Y, x, y));
+                assertEquals(blue, right.sample(PLANE_Y, x, y));
+            }
+        }
+        for (int y = 0; y < 45; y++) {
+            for (int x = 0; x < 50; x++) {
+                assertEquals(left.sample(PLANE_U, 0, 0), left.sample(PLANE_U, x, y));
+                assertEquals(right.sample(PLANE_U, 0, 0), right.sample(PLANE_U, x, y));
+            }
+        }
+        assertNotEquals(left.sample(PLANE_U, 0, 0), right.sample(PLANE_U, 0, 0));
+
+        ByteBuffer buffer = right.buffer(PLANE_Y);
+        assertEquals(blue, buffer.get(0) & 0xff);
+        assertEquals(blue, buffer.get(89 * right.stride(PLANE_Y) + 99) & 0xff);
+        assertEquals(89 * layout.stride() + 100, buffer.capacity());
+    }
+
+    @Test
+    public void testConfiguration() {
+        CameraConfiguration configuration = cameraConfiguration().width(640).height(480).encoding(Encoding.I420);
+        configuration.stereoscopicMode(StereoscopicMode.SIDE_BY_SIDE, false, false);
+        assertEquals(1280, stereoscopicSplitter(configuration).layout().width());
+        configuration.stereoscopicMode(StereoscopicMode.SIDE_BY_SIDE, true, false);
+        assertEquals(640, stereoscopicSplitter(configuration).layout().width());
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.I420, 200, 90);
+        byte[] frame = TestFrames.frame(layout, (x, y) -> x < 100 ? 0x404040 : 0xc0c0c0);
+        StereoscopicSplitter splitter = stereoscopicSplitter(layout, StereoscopicMode.SIDE_BY_SIDE, false, true);
+        EyeHandler<Double> mean = view -> {
+            long sum = 0;
+            for (int y = 0; y < view.height(); y++) {
+                for (int x = 0; x < view.width(); x++) {
+                    sum += view.sample(PLANE_Y, x, y);
+                }
+            }
+            return (double) sum / (view.width() * view.height());
+        };
+        EyeHandler<byte[]> identity = EyeView::data;
+        StereoscopicPictureCaptureHandler<Double, byte[]> handler = new StereoscopicPictureCaptureHandler<>(splitter, mean, identity);
+
+        // Eyes swapped, so the left eye is the bright half
+        StereoPair<Double, byte[]> pair = TestFrames.capture(handler, frame, 1000);
+        assertNotNull(pair);
+        assertEquals(0xc0, pair.left(), 0.5);
+
+        // A single chunk is copied, the caller may reuse it before the capture ends
+        handler.begin();
+        handler.pictureData(frame);
+        byte[] expected = frame.clone();
+        Arrays.fill(frame, (byte) 0);
+        handler.end();
+        assertNotSame(frame, handler.result().right());
+        assertArrayEquals(expected, handler.result().right());
+        assertEquals(0xc0, handler.result().left(), 0.5);
+    }
+
+    private static void checkPacked(EyeView view, int eye, int width, int height) {
+        assertEquals(width, view.width());
+        assertEquals(height, view.height());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = view.offset(PLANE_Y) + y * view.stride(PLANE_Y) + x * 3;
+                assertEquals(eye, view.data()[i]);
+                assertEquals(x, view.data()[i + 1]);
+                assertEquals(y, view.data()[i + 2]);
+            }
+        }
+    }
+
+}
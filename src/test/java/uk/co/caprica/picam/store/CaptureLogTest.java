@@ -0,0 +1,233 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.store.CaptureLog.captureLog;
+
+public class CaptureLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<byte[]> pictures = pictures(20, 1, 50000);
+        List<CaptureLogRecord> records = new ArrayList<>();
+        try (CaptureLog log = captureLog(directory).bufferSize(4096).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            for (int i = 0; i < pictures.size(); i++) {
+                records.add(TestFrames.capture(handler, pictures.get(i), 100 + i * 997));
+            }
+            // Readable before the log is closed, including records still in the buffer
+            for (int i = 0; i < pictures.size(); i++) {
+                assertArrayEquals(pictures.get(i), log.read(records.get(i).location()));
+            }
+        }
+        CaptureLog log = captureLog(directory).open();
+        assertEquals(0, log.truncated());
+        assertPictures(pictures, readAll(log));
+        for (int i = 0; i < pictures.size(); i++) {
+            assertEquals(pictures.get(i).length, records.get(i).length());
+            assertArrayEquals(pictures.get(i), log.read(records.get(i).location()));
+        }
+        log.close();
+    }
+
+    @Test
+    public void testRolloverBySize() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<byte[]> pictures = pictures(30, 1000, 3000);
+        try (CaptureLog log = captureLog(directory).maxSegmentBytes(10000).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            for (byte[] picture : pictures) {
+                TestFrames.capture(handler, picture, 512);
+            }
+            assertTrue(log.segments().size() > 5);
+            for (long segment : log.segments()) {
+                // A segment only grows past the limit by its last record
+                assertTrue(log.segmentFile(segment).toFile().length() < 10000 + 3000 + 20);
+            }
+            assertPictures(pictures, readAll(log));
+        }
+    }
+
+    @Test
+    public void testRolloverByAge() throws Exception {
+        TestClock clock = new TestClock(1000000);
+        try (CaptureLog log = captureLog(folder.getRoot().toPath()).maxSegmentAge(1, TimeUnit.MINUTES).clock(clock).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            for (int i = 0; i < 10; i++) {
+                CaptureLogRecord record = TestFrames.capture(handler, new byte[] {(byte) i}, 1);
+                assertEquals(i / 3, record.segment());
+                assertEquals(clock.millis(), record.timestamp());
+                clock.advance(20000);
+            }
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L), log.segments());
+        }
+    }
+
+    @Test
+    public void testTornWriteRecovery() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<byte[]> pictures = pictures(5, 100, 2000);
+        CaptureLog log = captureLog(directory).open();
+        CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+        for (byte[] picture : pictures) {
+            TestFrames.capture(handler, picture, 300);
+        }
+        // A record that was still being written when the power failed: data on disk, length not yet filled in
+        handler.begin();
+        handler.pictureData(new byte[5000]);
+        log.flush();
+        Path file = log.segmentFile(0);
+        long complete = file.toFile().length();
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            out.setLength(complete + 3000);
+        }
+        log = captureLog(directory).open();
+        assertTrue(log.truncated() > 0);
+        assertPictures(pictures, readAll(log));
+        try (CaptureLog reopened = log) {
+            TestFrames.capture(new CaptureLogPictureCaptureHandler(reopened), new byte[] {1, 2, 3}, 3);
+            assertEquals(Arrays.asList(0L, 1L), reopened.segments());
+        }
+    }
+
+    @Test
+    public void testCorruptRecordRecovery() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<byte[]> pictures = pictures(6, 100, 200);
+        List<CaptureLogRecord> records = new ArrayList<>();
+        try (CaptureLog log = captureLog(directory).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            for (byte[] picture : pictures) {
+                records.add(TestFrames.capture(handler, picture, 64));
+            }
+        }
+        // Damage the data of the fourth record, the last three records are lost
+        try (RandomAccessFile out = new RandomAccessFile(directory.resolve("0000000000000000.seg").toFile(), "rw")) {
+            out.seek(records.get(3).offset() + 20);
+            out.write(~pictures.get(3)[4]);
+        }
+        try (CaptureLog log = captureLog(directory).open()) {
+            assertTrue(log.truncated() > 0);
+            assertPictures(pictures.subList(0, 3), readAll(log));
+        }
+    }
+
+    @Test
+    public void testDiscardedRecords() throws Exception {
+        try (CaptureLog log = captureLog(folder.getRoot().toPath()).bufferSize(64).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            assertNull(TestFrames.capture(handler, new byte[0], 1));
+            // Begun and never ended, including data written past the buffer
+            handler.begin();
+            handler.pictureData(new byte[1000]);
+            byte[] picture = {9, 8, 7};
+            CaptureLogRecord record = TestFrames.capture(handler, picture, 3);
+            assertEquals(8, record.offset());
+            assertPictures(Arrays.asList(picture), readAll(log));
+        }
+    }
+
+    @Test
+    public void testTrailerWrittenBeforeLength() throws Exception {
+        try (CaptureLog log = captureLog(folder.getRoot().toPath()).bufferSize(64).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            // The header has left the buffer, so the length is patched in the file after the trailer is written there
+            CaptureLogRecord record = TestFrames.capture(handler, pictures(1, 1000, 1000).get(0), 100);
+            Path file = log.segmentFile(record.segment());
+            assertEquals(record.offset() + CaptureLog.RECORD_HEADER_SIZE + 1000 + CaptureLog.RECORD_TRAILER_SIZE, Files.size(file));
+        }
+    }
+
+    @Test
+    public void testHeaderOnlyReader() throws Exception {
+        List<byte[]> pictures = pictures(10, 10, 100);
+        try (CaptureLog log = captureLog(folder.getRoot().toPath()).maxSegmentBytes(300).open()) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log);
+            List<CaptureLogRecord> records = new ArrayList<>();
+            for (byte[] picture : pictures) {
+                records.add(TestFrames.capture(handler, picture, 7));
+            }
+            log.flush();
+            try (CaptureLogReader reader = new CaptureLogReader(log, false)) {
+                for (CaptureLogRecord record : records) {
+                    assertTrue(reader.next());
+                    assertEquals(record.location(), reader.location());
+                    assertEquals(record.length(), reader.length());
+                    assertEquals(record.timestamp(), reader.timestamp());
+                }
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    private static List<byte[]> pictures(int count, int minimumSize, int maximumSize) {
+        Random random = new Random(count);
+        List<byte[]> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] picture = new byte[minimumSize + random.nextInt(maximumSize - minimumSize + 1)];
+            random.nextBytes(picture);
+            result.add(picture);
+        }
+        return result;
+    }
+
+    private static void assertPictures(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static List<byte[]> readAll(CaptureLog log) throws IOException {
+        log.flush();
+        List<byte[]> result = new ArrayList<>();
+        try (CaptureLogReader reader = new CaptureLogReader(log)) {
+            while (reader.next()) {
+                result.add(Arrays.copyOf(reader.data(), reader.length()));
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.store.ContentStore.contentStore;
+
+public class ContentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDuplicatesStoredOnce() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).open();
+        byte[] still = picture(1, 5000);
+        byte[] other = picture(2, 5000);
+        ContentStorePictureCaptureHandler handler = new ContentStorePictureCaptureHandler(store, root.resolve("job1/a.png"));
+        ContentReference a = TestFrames.capture(handler, still, 700).get(0);
+        ContentReference b = TestFrames.capture(handler.names(root.resolve("job2/b.png")), still, 1000).get(0);
+        ContentReference c = TestFrames.capture(handler.names(root.resolve("job2/c.png")), other, 1000).get(0);
+
+        assertFalse(a.duplicate());
+        assertTrue(b.duplicate());
+        assertFalse(c.duplicate());
+        assertEquals(sha256(still), a.digest());
+        assertEquals(a.digest(), b.digest());
+        assertEquals(2, store.blobs());
+        assertEquals(1, store.duplicates());
+        assertEquals(5000, store.duplicateBytes());
+        assertEquals(2, store.references(a.digest()));
+        assertEquals(1, store.references(c.digest()));
+        assertArrayEquals(still, Files.readAllBytes(root.resolve("job1/a.png")));
+        assertArrayEquals(still, Files.readAllBytes(root.resolve("job2/b.png")));
+        assertArrayEquals(other, Files.readAllBytes(root.resolve("job2/c.png")));
+        assertTrue(Files.isSameFile(store.blob(a.digest()), root.resolve("job2/b.png")));
+        assertEquals(root.resolve("store/objects").resolve(a.digest().substring(0, 2)).resolve(a.digest().substring(2, 4)).resolve(a.digest()), store.blob(a.digest()));
+    }
+
+    @Test
+    public void testReferenceCountedDeletion() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).open();
+        byte[] data = picture(3, 100);
+        List<ContentReference> references = TestFrames.capture(new ContentStorePictureCaptureHandler(store, root.resolve("a"), root.resolve("b"), root.resolve("c")), data, 30);
+        String digest = references.get(0).digest();
+        assertEquals(3, store.references(digest));
+
+        assertTrue(store.delete(root.resolve("a")));
+        assertFalse(store.delete(root.resolve("a")));
+        assertEquals(2, store.references(digest));
+
+        // Reopened, the blob is found again from the objects directory
+        store = contentStore(root.resolve("store")).open();
+        assertEquals(1, store.blobs());
+        store.link(digest, root.resolve("d"));
+        assertEquals(3, store.references(digest));
+        store.delete(root.resolve("b"));
+        store.delete(root.resolve("c"));
+        assertTrue(Files.exists(store.blob(digest)));
+        store.delete(root.resolve("d"));
+        assertFalse(Files.exists(store.blob(digest)));
+        assertEquals(-1, store.references(digest));
+        assertEquals(0, store.blobs());
+    }
+
+    @Test
+    public void testNameReplaced() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).open();
+        Path name = root.resolve("latest.jpg");
+        ContentStorePictureCaptureHandler handler = new ContentStorePictureCaptureHandler(store, name);
+        String first = TestFrames.capture(handler, picture(4, 200), 64).get(0).digest();
+        String second = TestFrames.capture(handler, picture(5, 200), 64).get(0).digest();
+        assertArrayEquals(picture(5, 200), Files.readAllBytes(name));
+        assertFalse(Files.exists(store.blob(first)));
+        assertEquals(1, store.references(second));
+        // The same content again is a no-op
+        TestFrames.capture(handler, picture(5, 200), 64);
+        assertEquals(1, store.references(second));
+    }
+
+    @Test
+    public void testSpilledToDisk() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).algorithm("SHA-1").fanOut(1).memoryLimit(1000).open();
+        byte[] large = picture(6, 100000);
+        ContentStorePictureCaptureHandler handler = new ContentStorePictureCaptureHandler(store, root.resolve("x"));
+        ContentReference x = TestFrames.capture(handler, large, 4096).get(0);
+        ContentReference y = TestFrames.capture(handler.names(root.resolve("y")), large, 3000).get(0);
+        assertFalse(x.duplicate());
+        assertTrue(y.duplicate());
+        assertEquals(40, x.digest().length());
+        assertEquals(100000, y.length());
+        assertArrayEquals(large, Files.readAllBytes(root.resolve("y")));
+        assertEquals(0, root.resolve("store/tmp").toFile().list().length);
+        assertEquals(root.resolve("store/objects").resolve(x.digest().substring(0, 2)).resolve(x.digest()), store.blob(x.digest()));
+    }
+
+    @Test
+    public void testConcurrentCommitAndDelete() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).open();
+        byte[] data = picture(7, 2000);
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Path name = root.resolve("name" + t);
+                futures.add(executor.submit(() -> {
+                    // The last name of the blob is often deleted by one thread while another is committing the same
+                    // content, the blob must never be deleted from under the commit
+                    ContentStorePictureCaptureHandler handler = new ContentStorePictureCaptureHandler(store, name);
+                    for (int i = 0; i < 200; i++) {
+                        TestFrames.capture(handler, data, 500);
+                        assertArrayEquals(data, Files.readAllBytes(name));
+                        assertTrue(store.delete(name));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, store.blobs());
+        try (Stream<Path> paths = Files.walk(root.resolve("store/objects"))) {
+            assertFalse(paths.anyMatch(Files::isRegularFile));
+        }
+    }
+
+    @Test
+    public void testOrphanRemovedOnOpen() throws Exception {
+        Path root = folder.getRoot().toPath();
+        ContentStore store = contentStore(root.resolve("store")).open();
+        String kept = TestFrames.capture(new ContentStorePictureCaptureHandler(store, root.resolve("a")), picture(8, 100), 100).get(0).digest();
+        String orphan = TestFrames.capture(new ContentStorePictureCaptureHandler(store, root.resolve("b")), picture(9, 100), 100).get(0).digest();
+        // As if the store crashed between moving the blob into place and linking it
+        Files.delete(root.resolve("b"));
+        assertTrue(Files.exists(store.blob(orphan)));
+
+        store = contentStore(root.resolve("store")).open();
+        assertEquals(1, store.blobs());
+        assertFalse(Files.exists(store.blob(orphan)));
+        assertEquals(1, store.references(kept));
+    }
+
+    private static byte[] picture(int seed, int size) {
+        byte[] result = new byte[size];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder result = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+}
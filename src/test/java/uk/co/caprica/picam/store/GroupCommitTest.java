@@ -0,0 +1,176 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.store.GroupCommit.groupCommit;
+
+public class GroupCommitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGroupedByLatency() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (GroupCommit groupCommit = groupCommit().maxLatency(500, TimeUnit.MILLISECONDS).maxBatch(1000).start()) {
+            GroupCommitPictureCaptureHandler handler = new GroupCommitPictureCaptureHandler(new SequentialFilePictureCaptureHandler(directory.resolve("%d.jpg").toString()), groupCommit);
+            List<CompletableFuture<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(TestFrames.capture(handler, new byte[1000], 250));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals(directory.resolve((i + 1) + ".jpg"), futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, groupCommit.commits());
+            assertEquals(10, groupCommit.files());
+            assertEquals(10, groupCommit.maxBatchSize());
+            assertEquals(10.0, groupCommit.meanBatchSize(), 0);
+            assertTrue(groupCommit.maxLatencyNanos() >= groupCommit.meanLatencyNanos());
+            assertTrue(groupCommit.meanCommitNanos() > 0);
+        }
+    }
+
+    @Test
+    public void testGroupedByBatchSize() throws Exception {
+        try (GroupCommit groupCommit = groupCommit().maxLatency(1, TimeUnit.HOURS).maxBatch(5).start()) {
+            List<CompletableFuture<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(groupCommit.register(file(i)));
+            }
+            Thread.sleep(100);
+            assertFalse(futures.get(0).isDone());
+            futures.add(groupCommit.register(file(4)));
+            for (CompletableFuture<Path> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(1, groupCommit.commits());
+            assertEquals(5, groupCommit.maxBatchSize());
+        }
+    }
+
+    @Test
+    public void testPendingCommittedOnClose() throws Exception {
+        List<CompletableFuture<Path>> futures = new ArrayList<>();
+        try (GroupCommit groupCommit = groupCommit().maxLatency(1, TimeUnit.HOURS).start()) {
+            for (int i = 0; i < 3; i++) {
+                futures.add(groupCommit.register(file(i)));
+            }
+            assertFalse(futures.get(0).isDone());
+        }
+        for (CompletableFuture<Path> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try (GroupCommit groupCommit = groupCommit().maxLatency(0, TimeUnit.MILLISECONDS).start()) {
+            CompletableFuture<Path> missing = groupCommit.register(folder.getRoot().toPath().resolve("missing.jpg"));
+            try {
+                missing.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(file(1), groupCommit.register(file(1)).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testDirectoryFailure() throws Exception {
+        Path failing = folder.newFolder("failing").toPath();
+        Path file = failing.resolve("0.jpg");
+        Files.write(file, new byte[100]);
+        DirectoryForce directoryForce = directory -> {
+            if (directory.equals(failing)) {
+                throw new IOException("Directory can not be forced");
+            }
+        };
+        try (GroupCommit groupCommit = groupCommit().maxLatency(1, TimeUnit.HOURS).maxBatch(3).directoryForce(directoryForce).start()) {
+            CompletableFuture<Path> first = groupCommit.register(file);
+            CompletableFuture<Path> other = groupCommit.register(file(1));
+            CompletableFuture<Path> second = groupCommit.register(file);
+            // The file data was forced, but its directory entry may not be durable
+            for (CompletableFuture<?> future : new CompletableFuture<?>[] {first, second}) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertEquals("Directory can not be forced", e.getCause().getMessage());
+                }
+            }
+            assertEquals(file(1), other.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        try (GroupCommit groupCommit = groupCommit().maxLatency(1, TimeUnit.HOURS).start()) {
+            CompletableFuture<Path> future = groupCommit.register(file(1));
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("picam-group-commit")) {
+                    thread.interrupt();
+                }
+            }
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedIOException);
+            }
+            try {
+                groupCommit.register(file(2));
+                fail();
+            } catch (IllegalStateException e) {
+                // The commit thread has stopped
+            }
+        }
+    }
+
+    private Path file(int number) throws Exception {
+        Path file = folder.getRoot().toPath().resolve(number + ".jpg");
+        if (!Files.exists(file)) {
+            Files.write(file, new byte[100]);
+        }
+        return file;
+    }
+
+}
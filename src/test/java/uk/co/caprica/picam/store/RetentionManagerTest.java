@@ -0,0 +1,238 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.PictureCaptureHandler;
+import uk.co.caprica.picam.SequentialFilePictureCaptureHandler;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.store.RetentionManager.retentionManager;
+
+public class RetentionManagerTest {
+
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExistingFilesFound() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Files.createDirectories(directory.resolve("a/b"));
+        write(directory.resolve("old.jpg"), 100, START);
+        write(directory.resolve("a/b/newest.jpg"), 200, START + 2000);
+        write(directory.resolve("a/middle.jpg"), 300, START + 1000);
+        try (RetentionManager manager = retentionManager(directory).maxBytes(520).checkInterval(1, TimeUnit.HOURS).start()) {
+            // The deletion thread may already have removed the oldest file
+            assertEquals(3, manager.files() + manager.deletedFiles());
+            assertEquals(600, manager.usedBytes() + manager.deletedBytes());
+            manager.check();
+            assertEquals(1, manager.deletedFiles());
+            assertFalse(Files.exists(directory.resolve("old.jpg")));
+            assertEquals(500, manager.usedBytes());
+            assertEquals(100, manager.deletedBytes());
+        }
+    }
+
+    @Test
+    public void testOnlyCapturesFound() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        write(directory.resolve("capture.jpg"), 100, START);
+        write(directory.resolve("writing.jpg.part"), 200, START);
+        write(directory.resolve("00000001.seg"), 300, START);
+        write(directory.resolve("notes.txt"), 400, START);
+        try (RetentionManager manager = retentionManager(directory).maxBytes(1).checkInterval(1, TimeUnit.HOURS).start()) {
+            manager.check();
+            assertEquals(1, manager.deletedFiles());
+            assertFalse(Files.exists(directory.resolve("capture.jpg")));
+            assertTrue(Files.exists(directory.resolve("writing.jpg.part")));
+            assertTrue(Files.exists(directory.resolve("00000001.seg")));
+            assertTrue(Files.exists(directory.resolve("notes.txt")));
+        }
+        try (RetentionManager manager = retentionManager(directory).captures("*.{txt,part}").checkInterval(1, TimeUnit.HOURS).start()) {
+            assertEquals(1, manager.files());
+            assertEquals(400, manager.usedBytes());
+        }
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (RetentionManager manager = retentionManager(directory).maxBytes(10000).batchSize(3).checkInterval(1, TimeUnit.HOURS).start()) {
+            RetentionPictureCaptureHandler handler = new RetentionPictureCaptureHandler(new SequentialFilePictureCaptureHandler(directory.resolve("%04d.jpg").toString()), manager);
+            File last = null;
+            for (int i = 0; i < 30; i++) {
+                last = TestFrames.capture(handler, new byte[1000], 300);
+            }
+            // The deletion thread may already have started
+            manager.check();
+            assertEquals(10, manager.files());
+            assertEquals(10000, manager.usedBytes());
+            assertEquals(20, manager.deletedFiles());
+            assertFalse(Files.exists(directory.resolve("0020.jpg")));
+            assertTrue(Files.exists(directory.resolve("0021.jpg")));
+            assertTrue(last.exists());
+        }
+    }
+
+    @Test
+    public void testBackgroundDeletion() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (RetentionManager manager = retentionManager(directory).maxBytes(5000).batchPause(1, TimeUnit.MILLISECONDS).checkInterval(1, TimeUnit.HOURS).start()) {
+            RetentionPictureCaptureHandler handler = new RetentionPictureCaptureHandler(new SequentialFilePictureCaptureHandler(directory.resolve("%04d.jpg").toString()), manager);
+            for (int i = 0; i < 20; i++) {
+                TestFrames.capture(handler, new byte[1000], 1000);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (manager.usedBytes() > 5000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5000, manager.usedBytes());
+            assertFalse(Files.exists(directory.resolve("0015.jpg")));
+            assertTrue(Files.exists(directory.resolve("0016.jpg")));
+        }
+    }
+
+    @Test
+    public void testAbortedCaptureCounted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        File file = directory.resolve("aborted.jpg").toFile();
+        PictureCaptureHandler<File> aborting = new PictureCaptureHandler<File>() {
+            private int chunks;
+
+            @Override
+            public void begin() {
+                chunks = 0;
+            }
+
+            @Override
+            public int pictureData(byte[] data) {
+                return ++chunks < 3 ? data.length : -1;
+            }
+
+            @Override
+            public void end() {
+            }
+
+            @Override
+            public File result() {
+                return file;
+            }
+        };
+        try (RetentionManager manager = retentionManager(directory).checkInterval(1, TimeUnit.HOURS).start()) {
+            RetentionPictureCaptureHandler handler = new RetentionPictureCaptureHandler(aborting, manager);
+            handler.begin();
+            for (int i = 0; i < 3; i++) {
+                handler.pictureData(new byte[100]);
+            }
+            handler.end();
+            assertEquals(200, manager.usedBytes());
+        }
+    }
+
+    @Test
+    public void testUndeletableFileDropped() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (RetentionManager manager = retentionManager(directory).maxBytes(2000).batchSize(3).checkInterval(1, TimeUnit.HOURS).start()) {
+            // A non-empty directory can not be deleted, it is the oldest so it would block every other deletion
+            Path stuck = Files.createDirectories(directory.resolve("stuck"));
+            Files.write(stuck.resolve("keep.jpg"), new byte[1]);
+            manager.added(stuck, 1000);
+            for (int i = 0; i < 5; i++) {
+                Path file = directory.resolve(i + ".jpg");
+                Files.write(file, new byte[1000]);
+                manager.added(file, 1000);
+            }
+            manager.check();
+            assertEquals(1, manager.failedFiles());
+            assertNotNull(manager.lastFailure());
+            assertEquals(3, manager.deletedFiles());
+            assertEquals(2, manager.files());
+            assertEquals(2000, manager.usedBytes());
+            assertTrue(Files.exists(stuck));
+            assertFalse(Files.exists(directory.resolve("2.jpg")));
+            assertTrue(Files.exists(directory.resolve("3.jpg")));
+        }
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestClock clock = new TestClock(START);
+        try (RetentionManager manager = retentionManager(directory).maxAge(1, TimeUnit.MINUTES).clock(clock).checkInterval(1, TimeUnit.HOURS).start()) {
+            for (int i = 0; i < 10; i++) {
+                Path file = directory.resolve(i + ".jpg");
+                write(file, 10, clock.millis());
+                manager.added(file, 10);
+                clock.advance(10000);
+            }
+            // Captures at 0s to 90s, now at 100s, so anything before 40s has expired
+            manager.check();
+            assertEquals(4, manager.deletedFiles());
+            assertFalse(Files.exists(directory.resolve("3.jpg")));
+            assertTrue(Files.exists(directory.resolve("4.jpg")));
+        }
+    }
+
+    @Test
+    public void testMinFreeSpace() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        for (int i = 0; i < 10; i++) {
+            write(directory.resolve(i + ".jpg"), 1000, START + i);
+        }
+        // A file system with room for eleven files
+        LongSupplier free = () -> 11000 - directory.toFile().list().length * 1000L;
+        try (RetentionManager manager = retentionManager(directory).minFreeBytes(5000).usableSpace(free).batchSize(2).checkInterval(1, TimeUnit.HOURS).start()) {
+            // The deletion thread may get there first
+            manager.check();
+            assertEquals(4, manager.deletedFiles());
+            assertEquals(6, manager.files());
+            assertFalse(Files.exists(directory.resolve("3.jpg")));
+            assertTrue(Files.exists(directory.resolve("4.jpg")));
+            try {
+                manager.minFreeBytes(0);
+                fail();
+            } catch (IllegalStateException e) {
+                // Configuration is fixed once started
+            }
+        }
+    }
+
+    private static void write(Path file, int size, long time) throws Exception {
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.store.RollingArchive.rollingArchive;
+
+public class RollingArchiveTest {
+
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTar() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = pictures(7);
+        try (RollingArchive archive = rollingArchive(folder.getRoot().toPath(), ArchiveFormat.TAR).clock(new TestClock(START)).bufferSize(1024).listener(closed::add)) {
+            ArchivePictureCaptureHandler handler = new ArchivePictureCaptureHandler(archive, "picture-%03d.jpg");
+            for (byte[] picture : pictures) {
+                TestFrames.capture(handler, picture, 777);
+            }
+            assertEquals("picture-007.jpg", handler.result());
+            assertEquals(Collections.emptyList(), closed);
+        }
+        assertEquals(1, closed.size());
+        assertEquals("captures-" + local("yyyyMMdd-HHmmss") + "-0001.tar", closed.get(0).getFileName().toString());
+        Map<String, byte[]> entries = readTar(closed.get(0));
+        assertEquals(7, entries.size());
+        for (int i = 0; i < pictures.size(); i++) {
+            assertArrayEquals(pictures.get(i), entries.get(String.format("picture-%03d.jpg", i + 1)));
+        }
+        assertEquals(Arrays.asList(closed.get(0).getFileName().toString()), Arrays.asList(folder.getRoot().list()));
+    }
+
+    @Test
+    public void testDirectoryForcedAfterRename() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> events = new ArrayList<>();
+        DirectoryForce directoryForce = forced -> {
+            assertEquals(directory, forced);
+            // Renamed into place before the directory is forced
+            assertEquals(1, directory.toFile().list().length);
+            assertTrue(directory.toFile().list()[0].endsWith(".zip"));
+            events.add("force");
+        };
+        try (RollingArchive archive = rollingArchive(directory, ArchiveFormat.ZIP).maxEntries(1).directoryForce(directoryForce).listener(path -> events.add("listener"))) {
+            ArchivePictureCaptureHandler handler = new ArchivePictureCaptureHandler(archive, "%d.jpg");
+            TestFrames.capture(handler, new byte[100], 100);
+        }
+        assertEquals(Arrays.asList("force", "listener"), events);
+    }
+
+    @Test
+    public void testZip() throws Exception {
+        for (int level : new int[] {0, 6}) {
+            Path directory = folder.getRoot().toPath().resolve("level" + level);
+            List<Path> closed = new ArrayList<>();
+            List<byte[]> pictures = pictures(5);
+            try (RollingArchive archive = rollingArchive(directory, ArchiveFormat.ZIP).compressionLevel(level).bufferSize(2048).listener(closed::add)) {
+                ArchivePictureCaptureHandler handler = new ArchivePictureCaptureHandler(archive, "%d.png");
+                for (byte[] picture : pictures) {
+                    TestFrames.capture(handler, picture, 1000);
+                }
+            }
+            try (ZipFile zip = new ZipFile(closed.get(0).toFile())) {
+                assertEquals(5, zip.size());
+                for (int i = 0; i < pictures.size(); i++) {
+                    ZipEntry entry = zip.getEntry((i + 1) + ".png");
+                    assertEquals(level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        assertArrayEquals(pictures.get(i), read(in));
+                    }
+                }
+            }
+            // Streaming readers only see the local headers
+            try (ZipInputStream in = new ZipInputStream(Files.newInputStream(closed.get(0)))) {
+                int count = 0;
+                for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                    assertArrayEquals(pictures.get(count++), read(in));
+                }
+                assertEquals(5, count);
+            }
+        }
+    }
+
+    @Test
+    public void testRollover() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestClock clock = new TestClock(START);
+        List<Path> closed = new ArrayList<>();
+        try (RollingArchive archive = rollingArchive(directory, ArchiveFormat.TAR).maxEntries(4).maxBytes(6000).maxAge(1, TimeUnit.MINUTES).namePattern("batch-%d").clock(clock).listener(closed::add)) {
+            ArchivePictureCaptureHandler handler = new ArchivePictureCaptureHandler(archive, "%d");
+            // By count
+            for (int i = 0; i < 5; i++) {
+                TestFrames.capture(handler, new byte[100], 100);
+            }
+            assertEquals(1, closed.size());
+            // By size, the second archive already has one 512 byte entry
+            TestFrames.capture(handler, new byte[6000], 1000);
+            TestFrames.capture(handler, new byte[100], 100);
+            assertEquals(2, closed.size());
+            // By age
+            clock.advance(60000);
+            TestFrames.capture(handler, new byte[100], 100);
+            assertEquals(3, closed.size());
+        }
+        assertEquals(4, closed.size());
+        assertEquals(Arrays.asList("batch-1.tar", "batch-2.tar", "batch-3.tar", "batch-4.tar"), names(closed));
+        assertEquals(4, readTar(closed.get(0)).size());
+        assertEquals(2, readTar(closed.get(1)).size());
+        assertEquals(1, readTar(closed.get(2)).size());
+        assertEquals(1, readTar(closed.get(3)).size());
+    }
+
+    @Test
+    public void testIncompleteEntryDiscarded() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        try (RollingArchive archive = rollingArchive(folder.getRoot().toPath(), ArchiveFormat.ZIP).bufferSize(1024).listener(closed::add)) {
+            archive.begin("broken");
+            archive.write(new byte[5000], 0, 5000);
+            ArchivePictureCaptureHandler handler = new ArchivePictureCaptureHandler(archive, "%d");
+            TestFrames.capture(handler, new byte[] {1, 2, 3}, 3);
+            archive.begin("also broken");
+            assertTrue(Files.exists(folder.getRoot().toPath().resolve(archive.archive().getFileName() + ".part")));
+        }
+        try (ZipFile zip = new ZipFile(closed.get(0).toFile())) {
+            assertEquals(1, zip.size());
+            assertEquals(3, zip.getEntry("1").getSize());
+        }
+        assertEquals(30 + 1 + 3 + 46 + 1 + 22, Files.size(closed.get(0)));
+    }
+
+    private static List<byte[]> pictures(int count) {
+        Random random = new Random(count);
+        List<byte[]> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] picture = new byte[random.nextInt(3000) + (i == 0 ? 512 : 1)];
+            // Compressible, but not trivially
+            for (int j = 0; j < picture.length; j++) {
+                picture[j] = (byte) (random.nextInt(8) + j / 64);
+            }
+            result.add(picture);
+        }
+        return result;
+    }
+
+    private static Map<String, byte[]> readTar(Path file) throws Exception {
+        byte[] data = Files.readAllBytes(file);
+        assertEquals(0, data.length % 512);
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        int position = 0;
+        while (true) {
+            byte[] header = Arrays.copyOfRange(data, position, position + 512);
+            if (Arrays.equals(header, new byte[512])) {
+                assertArrayEquals(new byte[1024], Arrays.copyOfRange(data, position, data.length));
+                return result;
+            }
+            assertEquals("ustar", new String(header, 257, 5, StandardCharsets.US_ASCII));
+            int checksum = 0;
+            for (int i = 0; i < 512; i++) {
+                checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+            }
+            assertEquals(checksum, Integer.parseInt(new String(header, 148, 6, StandardCharsets.US_ASCII), 8));
+            int nameLength = 0;
+            while (header[nameLength] != 0) {
+                nameLength++;
+            }
+            String name = new String(header, 0, nameLength, StandardCharsets.UTF_8);
+            int size = Integer.parseInt(new String(header, 124, 11, StandardCharsets.US_ASCII), 8);
+            result.put(name, Arrays.copyOfRange(data, position + 512, position + 512 + size));
+            position += 512 + (size + 511) / 512 * 512;
+        }
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> names(List<Path> files) {
+        List<String> result = new ArrayList<>();
+        for (Path file : files) {
+            result.add(file.getFileName().toString());
+        }
+        return result;
+    }
+
+    private static String local(String pattern) {
+        return DateTimeFormatter.ofPattern(pattern).format(Instant.ofEpochMilli(START).atZone(ZoneId.systemDefault()));
+    }
+
+}
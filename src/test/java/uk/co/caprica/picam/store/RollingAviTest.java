@@ -0,0 +1,288 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.ByteArrayPictureCaptureHandler;
+import uk.co.caprica.picam.enums.Encoding;
+import uk.co.caprica.picam.raw.RawFrameLayout;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.caprica.picam.jpeg.JpegEncoder.jpegEncoder;
+import static uk.co.caprica.picam.raw.RawFrameLayout.rawFrameLayout;
+import static uk.co.caprica.picam.store.RollingAvi.rollingAvi;
+
+public class RollingAviTest {
+
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testVideo() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = pictures(6);
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath()).frameRate(10).clock(new TestClock(START)).bufferSize(1024).listener(closed::add)) {
+            AviPictureCaptureHandler handler = new AviPictureCaptureHandler(avi);
+            for (byte[] picture : pictures) {
+                Path video = TestFrames.capture(handler, picture, 777);
+                assertEquals(avi.video(), video);
+            }
+            assertEquals(6, avi.frames());
+            assertEquals(Collections.emptyList(), closed);
+        }
+        assertEquals(1, closed.size());
+        assertTrue(closed.get(0).getFileName().toString().matches("video-\\d{8}-\\d{6}-0001\\.avi"));
+        assertEquals(Arrays.asList(closed.get(0).getFileName().toString()), Arrays.asList(folder.getRoot().list()));
+        Avi video = new Avi(closed.get(0));
+        assertEquals(100000, video.microsPerFrame);
+        assertEquals(203, video.width);
+        assertEquals(149, video.height);
+        assertEquals(10, video.rate);
+        assertFrames(pictures, video);
+    }
+
+    @Test
+    public void testOddSizedFrames() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = Arrays.asList(new byte[101], new byte[3000], new byte[7], new byte[64]);
+        for (int i = 0; i < pictures.size(); i++) {
+            Arrays.fill(pictures.get(i), (byte) (i + 1));
+        }
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath()).size(640, 480).listener(closed::add)) {
+            AviPictureCaptureHandler handler = new AviPictureCaptureHandler(avi);
+            for (byte[] picture : pictures) {
+                TestFrames.capture(handler, picture, 1000);
+            }
+        }
+        Avi video = new Avi(closed.get(0));
+        assertEquals(640, video.width);
+        assertEquals(480, video.height);
+        assertFrames(pictures, video);
+    }
+
+    @Test
+    public void testRollOver() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = pictures(7);
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath()).maxFrames(3).namePattern("test-%d").listener(closed::add)) {
+            AviPictureCaptureHandler handler = new AviPictureCaptureHandler(avi);
+            for (byte[] picture : pictures) {
+                TestFrames.capture(handler, picture, 4096);
+            }
+            assertEquals(2, closed.size());
+        }
+        assertEquals(3, closed.size());
+        assertEquals("test-1.avi", closed.get(0).getFileName().toString());
+        assertEquals("test-3.avi", closed.get(2).getFileName().toString());
+        assertFrames(pictures.subList(0, 3), new Avi(closed.get(0)));
+        assertFrames(pictures.subList(3, 6), new Avi(closed.get(1)));
+        assertFrames(pictures.subList(6, 7), new Avi(closed.get(2)));
+    }
+
+    @Test
+    public void testRollOverBySize() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = pictures(5);
+        long limit = AviWriter.HEADER_SIZE + pictures.get(0).length + pictures.get(1).length;
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath()).maxBytes(limit).listener(closed::add)) {
+            AviPictureCaptureHandler handler = new AviPictureCaptureHandler(avi);
+            for (byte[] picture : pictures) {
+                TestFrames.capture(handler, picture, 4096);
+            }
+        }
+        assertEquals(3, closed.size());
+        assertFrames(pictures.subList(0, 2), new Avi(closed.get(0)));
+        assertFrames(pictures.subList(2, 4), new Avi(closed.get(1)));
+        assertFrames(pictures.subList(4, 5), new Avi(closed.get(2)));
+    }
+
+    @Test
+    public void testIncompleteFrameDiscarded() throws Exception {
+        List<Path> closed = new ArrayList<>();
+        List<byte[]> pictures = pictures(3);
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath()).bufferSize(512).listener(closed::add)) {
+            avi.begin();
+            avi.write(pictures.get(2), 0, 2000);
+            avi.begin();
+            avi.write(pictures.get(0), 0, pictures.get(0).length);
+            avi.end();
+            avi.begin();
+            avi.write(pictures.get(1), 0, pictures.get(1).length);
+            avi.end();
+            avi.begin();
+            avi.write(pictures.get(2), 0, 100);
+        }
+        Avi video = new Avi(closed.get(0));
+        assertEquals(203, video.width);
+        assertFrames(pictures.subList(0, 2), video);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigurationAfterStart() throws Exception {
+        try (RollingAvi avi = rollingAvi(folder.getRoot().toPath())) {
+            avi.begin();
+            avi.frameRate(5);
+        }
+    }
+
+    private static List<byte[]> pictures(int count) throws Exception {
+        RawFrameLayout layout = rawFrameLayout(Encoding.RGB24, 203, 149);
+        List<byte[]> pictures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int offset = i * 10;
+            byte[] frame = TestFrames.frame(layout, (x, y) -> ((x + offset) / 16 + y / 16) % 2 == 0 ? 0x2040c0 : 0xe0c020);
+            pictures.add(jpegEncoder().encode(frame, layout, new ByteArrayPictureCaptureHandler()));
+        }
+        return pictures;
+    }
+
+    private static void assertFrames(List<byte[]> pictures, Avi video) {
+        assertEquals(pictures.size(), video.totalFrames);
+        assertEquals(pictures.size(), video.length);
+        assertEquals(pictures.size(), video.chunks.size());
+        assertEquals(pictures.size(), video.indexed.size());
+        int largest = 0;
+        for (int i = 0; i < pictures.size(); i++) {
+            assertArrayEquals(pictures.get(i), video.chunks.get(i));
+            assertArrayEquals(pictures.get(i), video.indexed.get(i));
+            largest = Math.max(largest, pictures.get(i).length);
+        }
+        assertEquals(largest + 8, video.suggestedBufferSize);
+    }
+
+    /**
+     * Minimal AVI parser, checking the RIFF structure as it goes.
+     */
+    private static final class Avi {
+
+        int microsPerFrame;
+
+        int totalFrames;
+
+        int suggestedBufferSize;
+
+        int width;
+
+        int height;
+
+        int rate;
+
+        int length;
+
+        final List<byte[]> chunks = new ArrayList<>();
+
+        final List<byte[]> indexed = new ArrayList<>();
+
+        Avi(Path file) throws Exception {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("RIFF", fourCC(data));
+            assertEquals(data.capacity() - 8, data.getInt());
+            assertEquals("AVI ", fourCC(data));
+            int movi = -1;
+            while (data.hasRemaining()) {
+                String id = fourCC(data);
+                int size = data.getInt();
+                int end = data.position() + size + (size & 1);
+                switch (id) {
+                    case "LIST":
+                        String type = fourCC(data);
+                        if (type.equals("movi")) {
+                            movi = data.position() - 4;
+                            while (data.position() < end) {
+                                assertEquals("00dc", fourCC(data));
+                                chunks.add(bytes(data, data.getInt()));
+                            }
+                        } else {
+                            // Descend into hdrl and strl
+                            end = data.position();
+                        }
+                        break;
+                    case "avih":
+                        microsPerFrame = data.getInt(data.position());
+                        totalFrames = data.getInt(data.position() + 16);
+                        suggestedBufferSize = data.getInt(data.position() + 28);
+                        width = data.getInt(data.position() + 32);
+                        height = data.getInt(data.position() + 36);
+                        break;
+                    case "strh":
+                        assertEquals("vids", fourCC(data.duplicate().order(ByteOrder.LITTLE_ENDIAN)));
+                        rate = data.getInt(data.position() + 24);
+                        length = data.getInt(data.position() + 32);
+                        break;
+                    case "strf":
+                        assertEquals(width, data.getInt(data.position() + 4));
+                        assertEquals(height, data.getInt(data.position() + 8));
+                        break;
+                    case "idx1":
+                        for (int i = 0; i < size / 16; i++) {
+                            ByteBuffer entry = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                            entry.position(data.position() + i * 16);
+                            assertEquals("00dc", fourCC(entry));
+                            assertEquals(0x10, entry.getInt());
+                            int offset = entry.getInt();
+                            int chunkSize = entry.getInt();
+                            ByteBuffer chunk = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                            chunk.position(movi + offset);
+                            assertEquals("00dc", fourCC(chunk));
+                            assertEquals(chunkSize, chunk.getInt());
+                            indexed.add(bytes(chunk, chunkSize));
+                        }
+                        break;
+                    default:
+                        throw new AssertionError("Unexpected chunk " + id);
+                }
+                data.position(end);
+            }
+        }
+
+        private static String fourCC(ByteBuffer data) {
+            byte[] id = new byte[4];
+            data.get(id);
+            return new String(id, StandardCharsets.US_ASCII);
+        }
+
+        private static byte[] bytes(ByteBuffer data, int size) {
+            byte[] result = new byte[size];
+            data.get(result);
+            if ((size & 1) != 0) {
+                data.get();
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.caprica.picam.store.TieredStore.tieredStore;
+
+public class TieredStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMigration() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        try (TieredStore store = tieredStore(hot, cold).flushInterval(1, TimeUnit.HOURS).start()) {
+            TieredPictureCaptureHandler handler = new TieredPictureCaptureHandler(store, "2019/03/%04d.jpg");
+            for (int i = 0; i < 10; i++) {
+                assertEquals(Paths.get(String.format("2019/03/%04d.jpg", i + 1)), TestFrames.capture(handler, picture(i), 100));
+            }
+            Path name = Paths.get("2019/03/0003.jpg");
+            assertEquals(10, store.pendingFiles());
+            assertEquals(hot.resolve(name), store.resolve(name));
+            assertArrayEquals(picture(2), store.read(name));
+
+            assertEquals(10, store.flush());
+            assertEquals(0, store.pendingFiles());
+            assertEquals(0, store.pendingBytes());
+            assertEquals(10, store.migratedFiles());
+            assertEquals(1, store.batches());
+            assertFalse(Files.exists(hot.resolve(name)));
+            assertEquals(cold.resolve(name), store.resolve(name));
+            assertArrayEquals(picture(2), store.read(name));
+            try (InputStream in = store.newInputStream(name)) {
+                assertEquals(picture(2)[0], (byte) in.read());
+            }
+            assertEquals(10, cold.resolve("2019/03").toFile().list().length);
+            assertNull(store.resolve(Paths.get("missing.jpg")));
+        }
+    }
+
+    @Test
+    public void testFullHotTierWritesCold() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        try (TieredStore store = tieredStore(hot, cold).hotBytes(1000).flushInterval(1, TimeUnit.HOURS).start()) {
+            TieredPictureCaptureHandler handler = new TieredPictureCaptureHandler(store, "%d.jpg");
+            Path file = store.create(Paths.get("first.jpg"));
+            assertTrue(file.startsWith(hot));
+            Files.write(file, new byte[1000]);
+            store.completed(file, 1000);
+            // Full until migrated, unless the migration thread, woken when the tier filled, has already done so
+            Path next = store.create(Paths.get("second.jpg"));
+            assertTrue(next.startsWith(cold) || store.migratedFiles() == 1);
+            for (int i = 0; i < 20; i++) {
+                TestFrames.capture(handler, picture(i), 100);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertArrayEquals(picture(i), store.read(Paths.get((i + 1) + ".jpg")));
+            }
+        }
+        assertEquals(0, Files.list(hot).count());
+    }
+
+    @Test
+    public void testBackgroundMigration() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        try (TieredStore store = tieredStore(hot, cold).flushInterval(20, TimeUnit.MILLISECONDS).start()) {
+            TieredPictureCaptureHandler handler = new TieredPictureCaptureHandler(store, "%d.jpg");
+            for (int i = 0; i < 5; i++) {
+                TestFrames.capture(handler, picture(i), 50);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (store.migratedFiles() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, store.migratedFiles());
+            assertArrayEquals(picture(4), Files.readAllBytes(cold.resolve("5.jpg")));
+        }
+    }
+
+    @Test
+    public void testLeftoversMigratedOnStart() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        Files.createDirectories(hot.resolve("a"));
+        Files.write(hot.resolve("a/left.jpg"), picture(7));
+        try (TieredStore store = tieredStore(hot, cold).flushInterval(1, TimeUnit.HOURS).start()) {
+            assertEquals(1, store.pendingFiles());
+        }
+        assertArrayEquals(picture(7), Files.readAllBytes(cold.resolve("a/left.jpg")));
+        assertFalse(Files.exists(hot.resolve("a/left.jpg")));
+    }
+
+    @Test
+    public void testFailedMigration() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        DirectoryForce directoryForce = directory -> {
+            if (directory.equals(cold.resolve("bad"))) {
+                throw new IOException("Directory can not be forced");
+            }
+        };
+        try (TieredStore store = tieredStore(hot, cold).flushInterval(1, TimeUnit.HOURS).maxAttempts(2).directoryForce(directoryForce).start()) {
+            TieredPictureCaptureHandler good = new TieredPictureCaptureHandler(store, "good/%d.jpg");
+            TieredPictureCaptureHandler bad = new TieredPictureCaptureHandler(store, "bad/%d.jpg");
+            for (int i = 0; i < 3; i++) {
+                TestFrames.capture(good, picture(i), 100);
+                TestFrames.capture(bad, picture(i), 100);
+            }
+            // The captures in the good directory are migrated regardless
+            try {
+                store.flush();
+                fail();
+            } catch (IOException e) {
+                assertEquals("Directory can not be forced", e.getMessage());
+            }
+            assertEquals(3, store.migratedFiles());
+            assertEquals(3, store.pendingFiles());
+            assertEquals(0, store.failedFiles());
+            assertFalse(Files.exists(hot.resolve("good/1.jpg")));
+            assertTrue(Files.exists(hot.resolve("bad/1.jpg")));
+
+            // Given up on after the second attempt, and moved out of the hot tier to the quarantine directory
+            try {
+                store.flush();
+                fail();
+            } catch (IOException e) {
+                assertEquals(e, store.lastFailure());
+            }
+            assertEquals(0, store.pendingFiles());
+            assertEquals(0, store.pendingBytes());
+            assertEquals(3, store.failedFiles());
+            assertEquals(3, store.migratedFiles());
+            assertEquals(Arrays.asList(Paths.get("bad/1.jpg"), Paths.get("bad/2.jpg"), Paths.get("bad/3.jpg")), store.failed());
+            assertFalse(Files.exists(hot.resolve("bad/3.jpg")));
+            assertFalse(Files.exists(cold.resolve("bad/3.jpg")));
+            assertArrayEquals(picture(2), store.read(Paths.get("bad/3.jpg")));
+            assertEquals(cold.resolve(".failed/bad/3.jpg"), store.resolve(Paths.get("bad/3.jpg")));
+        }
+    }
+
+    @Test
+    public void testFailedQuarantine() throws Exception {
+        Path hot = folder.getRoot().toPath().resolve("hot");
+        Path cold = folder.getRoot().toPath().resolve("cold");
+        Path quarantine = folder.getRoot().toPath().resolve("quarantine");
+        DirectoryForce directoryForce = directory -> {
+            throw new IOException("Directory can not be forced");
+        };
+        try (TieredStore store = tieredStore(hot, cold).flushInterval(1, TimeUnit.HOURS).maxAttempts(1).quarantine(quarantine).directoryForce(directoryForce).start()) {
+            TestFrames.capture(new TieredPictureCaptureHandler(store, "%d.jpg"), picture(4), 100);
+            try {
+                store.flush();
+                fail();
+            } catch (IOException e) {
+                assertEquals("Directory can not be forced", e.getMessage());
+            }
+            // Still listed, and left in the hot tier because the quarantine could not be made durable
+            assertEquals(0, store.pendingFiles());
+            assertEquals(Collections.singletonList(Paths.get("1.jpg")), store.failed());
+            assertEquals(hot.resolve("1.jpg"), store.resolve(Paths.get("1.jpg")));
+            assertArrayEquals(picture(4), store.read(Paths.get("1.jpg")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuarantineName() throws Exception {
+        try (TieredStore store = tieredStore(folder.newFolder("hot").toPath(), folder.newFolder("cold").toPath()).start()) {
+            store.create(Paths.get(".failed/1.jpg"));
+        }
+    }
+
+    private static byte[] picture(int number) {
+        byte[] result = new byte[300 + number];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (number * 13 + i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of picam.
+ *
+ * picam is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * picam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with picam.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2016-2019 Caprica Software Limited.
+ */
+
+package uk.co.caprica.picam.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.caprica.picam.raw.TestFrames;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static uk.co.caprica.picam.store.CaptureLog.captureLog;
+
+public class TimeIndexTest {
+
+    private static final long START = 1500000000000L;
+
+    private static final int REGION_SHIFT = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookup() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestClock clock = new TestClock(START);
+        List<Long> times = new ArrayList<>();
+        try (CaptureLog log = captureLog(directory).clock(clock).maxSegmentBytes(200).open();
+             TimeIndex index = TimeIndex.timeIndex(directory.resolve("test.idx"), log, REGION_SHIFT)) {
+            CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log, index);
+            for (int i = 0; i < 50; i++) {
+                times.add(clock.millis());
+                TestFrames.capture(handler, picture(i), 10);
+                // Every tenth gap is much longer
+                clock.advance(i % 10 == 9 ? 60000 : 1000);
+            }
+            assertEquals(50, index.size());
+            for (int i = 0; i < 50; i++) {
+                long time = times.get(i);
+                assertEquals(i, index.floor(time));
+                assertEquals(i, index.floor(time + 999));
+                assertEquals(i, index.ceiling(time));
+                assertEquals(i, index.ceiling(time - 1 - (i % 10 == 0 && i > 0 ? 50000 : 0)));
+                assertEquals(i, index.nearest(time + 400));
+                assertEquals(i, index.nearest(time - 400));
+                assertArrayEquals(picture(i), log.read(index.location(index.nearest(time + 100))));
+            }
+            assertEquals(-1, index.floor(START - 1));
+            assertEquals(-1, index.ceiling(times.get(49) + 1));
+            assertEquals(0, index.nearest(0));
+            assertEquals(49, index.nearest(Long.MAX_VALUE));
+            // Equally near, the earlier entry
+            assertEquals(3, index.nearest(times.get(3) + 500));
+
+            List<Long> found = new ArrayList<>();
+            long count = index.scan(times.get(8), times.get(21), (timestamp, location) -> {
+                assertArrayEquals(picture(found.size() + 8), log.read(location));
+                found.add(timestamp);
+                return true;
+            });
+            assertEquals(13, count);
+            assertEquals(times.subList(8, 21), found);
+            assertEquals(3, index.scan(START, Long.MAX_VALUE, (timestamp, location) -> timestamp < times.get(2)));
+        }
+    }
+
+    @Test
+    public void testCatchUp() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve("test.idx");
+        TestClock clock = new TestClock(START);
+        try (CaptureLog log = captureLog(directory).clock(clock).maxSegmentBytes(200).open()) {
+            try (TimeIndex index = TimeIndex.timeIndex(file, log, REGION_SHIFT)) {
+                capture(log, index, clock, 0, 20);
+            }
+            // Records written while the index was not being maintained
+            capture(log, null, clock, 20, 30);
+            try (TimeIndex index = TimeIndex.timeIndex(file, log, REGION_SHIFT)) {
+                assertEntries(log, index, 30);
+            }
+        }
+    }
+
+    @Test
+    public void testLostRecordsRemoved() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve("test.idx");
+        TestClock clock = new TestClock(START);
+        List<CaptureLogRecord> records;
+        try (CaptureLog log = captureLog(directory).clock(clock).open();
+             TimeIndex index = TimeIndex.timeIndex(file, log, REGION_SHIFT)) {
+            records = capture(log, index, clock, 0, 12);
+        }
+        // The last two records never made it to disk
+        try (RandomAccessFile out = new RandomAccessFile(directory.resolve("0000000000000000.seg").toFile(), "rw")) {
+            out.setLength(records.get(10).offset() + 30);
+        }
+        try (CaptureLog log = captureLog(directory).clock(clock).open();
+             TimeIndex index = TimeIndex.timeIndex(file, log, REGION_SHIFT)) {
+            assertEntries(log, index, 10);
+        }
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestClock clock = new TestClock(START);
+        try (CaptureLog log = captureLog(directory).clock(clock).maxSegmentBytes(300).open()) {
+            try (TimeIndex index = TimeIndex.timeIndex(log)) {
+                capture(log, index, clock, 0, 25);
+            }
+            Path file = directory.resolve(TimeIndex.INDEX_FILE_NAME);
+            try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+                out.writeInt(0);
+            }
+            try (TimeIndex index = TimeIndex.timeIndex(log)) {
+                assertEntries(log, index, 25);
+            }
+            file.toFile().delete();
+            try (TimeIndex index = TimeIndex.timeIndex(log)) {
+                assertEntries(log, index, 25);
+            }
+        }
+    }
+
+    @Test
+    public void testClockGoesBackwards() throws Exception {
+        try (CaptureLog log = captureLog(folder.getRoot().toPath()).open();
+             TimeIndex index = TimeIndex.timeIndex(log)) {
+            index.add(START, 1);
+            index.add(START - 5000, 2);
+            index.add(START + 10, 3);
+            assertEquals(START, index.timestamp(1));
+            assertEquals(1, index.floor(START));
+            assertEquals(2, index.ceiling(START + 1));
+        }
+    }
+
+    private static List<CaptureLogRecord> capture(CaptureLog log, TimeIndex index, TestClock clock, int from, int to) throws Exception {
+        CaptureLogPictureCaptureHandler handler = new CaptureLogPictureCaptureHandler(log, index);
+        List<CaptureLogRecord> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            clock.advance(START + i * 1000L - clock.millis());
+            result.add(TestFrames.capture(handler, picture(i), 16));
+        }
+        return result;
+    }
+
+    private static void assertEntries(CaptureLog log, TimeIndex index, int count) throws Exception {
+        assertEquals(count, index.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(START + i * 1000L, index.timestamp(i));
+            assertArrayEquals(picture(i), log.read(index.location(i)));
+        }
+    }
+
+    private static byte[] picture(int number) {
+        byte[] result = new byte[20 + number % 7];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (number * 31 + i);
+        }
+        return result;
+    }
+
+}